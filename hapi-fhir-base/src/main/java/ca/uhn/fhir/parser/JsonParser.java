@@ -31,7 +31,9 @@ import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.lang3.StringUtils;
@@ -53,6 +55,9 @@ import org.hl7.fhir.instance.model.api.IPrimitiveType;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
 import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
@@ -85,6 +90,7 @@ import ca.uhn.fhir.model.primitive.InstantDt;
 import ca.uhn.fhir.model.primitive.IntegerDt;
 import ca.uhn.fhir.model.primitive.StringDt;
 import ca.uhn.fhir.narrative.INarrativeGenerator;
+import ca.uhn.fhir.parser.json.GsonStreamingStructure;
 import ca.uhn.fhir.parser.json.GsonStructure;
 import ca.uhn.fhir.parser.json.JsonLikeArray;
 import ca.uhn.fhir.parser.json.JsonLikeObject;
@@ -241,7 +247,7 @@ public class JsonParser extends BaseParser implements IJsonLikeParser {
 
 	@Override
 	public <T extends IBaseResource> T doParseResource(Class<T> theResourceType, Reader theReader) {
-		JsonLikeStructure jsonStructure = new GsonStructure();
+		JsonLikeStructure jsonStructure = new GsonStreamingStructure();
 		jsonStructure.load(theReader);
 		
 		T retVal = doParseResource(theResourceType, jsonStructure);
@@ -250,6 +256,13 @@ public class JsonParser extends BaseParser implements IJsonLikeParser {
 	}
 
 	public <T extends IBaseResource> T doParseResource(Class<T> theResourceType, JsonLikeStructure theJsonStructure) {
+			if (theJsonStructure instanceof GsonStreamingStructure) {
+				JsonReader reader = ((GsonStreamingStructure) theJsonStructure).takeReader();
+				if (reader != null) {
+					return doParseResource(theResourceType, reader);
+				}
+			}
+
 			JsonLikeObject object = theJsonStructure.getRootObject();
 		
 			JsonLikeValue resourceTypeObj = object.get("resourceType");
@@ -273,6 +286,34 @@ public class JsonParser extends BaseParser implements IJsonLikeParser {
 			return retVal;
 	}
 
+	/**
+	 * Parses a resource straight from the token stream, without reading the document
+	 * into a tree first
+	 */
+	private <T extends IBaseResource> T doParseResource(Class<T> theResourceType, JsonReader theReader) {
+		ParserState<? extends IBaseResource> state = ParserState.getPreResourceInstance(this, theResourceType, myContext, true, getErrorHandler());
+
+		try {
+			if (theReader.peek() != JsonToken.BEGIN_OBJECT) {
+				throw new DataFormatException("Content must be a valid JSON Object. It must start with '{'.");
+			}
+			theReader.beginObject();
+			parseResourceStreaming(theReader, state, true);
+			GsonStreamingStructure.endDocument(theReader);
+		} catch (IOException e) {
+			throw new DataFormatException("Failed to parse JSON encoded FHIR content: " + e.getMessage(), e);
+		} catch (JsonSyntaxException e) {
+			throw new DataFormatException("Failed to parse JSON encoded FHIR content: " + e.getMessage(), e);
+		}
+
+		state.endingElement();
+
+		@SuppressWarnings("unchecked")
+		T retVal = (T) state.getObject();
+
+		return retVal;
+	}
+
 	@Override
 	public void encodeBundleToJsonLikeWriter(Bundle theBundle, JsonLikeWriter theJsonLikeWriter) throws IOException, DataFormatException {
 		Validate.notNull(theBundle, "theBundle must not be null");
@@ -1084,7 +1125,10 @@ public class JsonParser extends BaseParser implements IJsonLikeParser {
 	}
 
 	private JsonLikeArray grabJsonArray(JsonLikeObject theObject, String nextName, String thePosition) {
-		JsonLikeValue object = theObject.get(nextName);
+		return toJsonArray(theObject.get(nextName), thePosition);
+	}
+
+	private JsonLikeArray toJsonArray(JsonLikeValue object, String thePosition) {
 		if (object == null || object.isNull()) {
 			return null;
 		}
@@ -1173,7 +1217,7 @@ public class JsonParser extends BaseParser implements IJsonLikeParser {
 
 	@Override
 	public <T extends IBaseResource> Bundle parseBundle(Class<T> theResourceType, Reader theReader) {
-		JsonLikeStructure jsonStructure = new GsonStructure();
+		JsonLikeStructure jsonStructure = new GsonStreamingStructure();
 		jsonStructure.load(theReader);
 		
 		Bundle retVal = parseBundle(theResourceType, jsonStructure);
@@ -1427,6 +1471,162 @@ public class JsonParser extends BaseParser implements IJsonLikeParser {
 		}
 	}
 
+	/**
+	 * Streaming counterpart of {@link #parseChildren(ParserState, String, JsonLikeValue, JsonLikeValue, String, boolean)}
+	 * for an array whose opening bracket has been consumed and whose first value is an object
+	 */
+	private void parseChildArrayStreaming(JsonReader theReader, ParserState<?> theState, String theName, JsonLikeValue theAlternateVal, String theAlternateName) throws IOException {
+		if (theName.equals("id")) {
+			getErrorHandler().incorrectJsonType(null, "id", ValueType.SCALAR, ScalarType.STRING, ValueType.ARRAY, null);
+		}
+
+		JsonLikeValue alternateVal = theAlternateVal;
+		if (alternateVal != null && alternateVal.isArray() == false) {
+			getErrorHandler().incorrectJsonType(null, theAlternateName, ValueType.ARRAY, null, alternateVal.getJsonType(), null);
+			alternateVal = null;
+		}
+
+		JsonLikeArray nextAlternateArray = JsonLikeValue.asArray(alternateVal); // could be null
+		for (int i = 0; theReader.hasNext(); i++) {
+			JsonLikeValue nextAlternate = null;
+			if (nextAlternateArray != null && i < nextAlternateArray.size()) {
+				nextAlternate = nextAlternateArray.get(i);
+			}
+			if (theReader.peek() == JsonToken.BEGIN_OBJECT) {
+				parseChildObjectStreaming(theReader, theState, theName, nextAlternate, theAlternateName, true);
+			} else {
+				parseChildren(theState, theName, GsonStreamingStructure.readValue(theReader), nextAlternate, theAlternateName, true);
+			}
+		}
+		theReader.endArray();
+	}
+
+	/**
+	 * Streaming counterpart of {@link #parseChildren(ParserState, String, JsonLikeValue, JsonLikeValue, String, boolean)}
+	 * for an object value, which is next in the reader
+	 */
+	private void parseChildObjectStreaming(JsonReader theReader, ParserState<?> theState, String theName, JsonLikeValue theAlternateVal, String theAlternateName, boolean theInArray) throws IOException {
+		if (theName.equals("id")) {
+			getErrorHandler().incorrectJsonType(null, "id", ValueType.SCALAR, ScalarType.STRING, ValueType.OBJECT, null);
+		}
+		if (!theInArray && theState.elementIsRepeating(theName)) {
+			getErrorHandler().incorrectJsonType(null, theName, ValueType.ARRAY, null, ValueType.OBJECT, null);
+		}
+
+		theState.enteringNewElement(null, theName);
+		parseAlternates(theAlternateVal, theState, theAlternateName, theAlternateName);
+		theReader.beginObject();
+		if (theState.isPreResource()) {
+			parseResourceStreaming(theReader, theState, false);
+		} else {
+			parseChildrenStreaming(theReader, theState);
+		}
+		theState.endingElement();
+	}
+
+	/**
+	 * Streaming counterpart of {@link #parseChildren(JsonLikeObject, ParserState)}, which reads
+	 * the members of an object whose opening brace has been consumed, up to and including its
+	 * closing brace.
+	 * <p>
+	 * Objects and arrays of objects are passed to the parser state as they are read. A primitive
+	 * value is held back until the <code>_name</code> member which holds its id and extensions
+	 * is found, or until the end of the object, since that member may come before or after the
+	 * value. A <code>_name</code> member which follows an object or array of objects can no
+	 * longer be paired with it, and is ignored (FHIR only defines them for primitives).
+	 * </p>
+	 */
+	private void parseChildrenStreaming(JsonReader theReader, ParserState<?> theState) throws IOException {
+		Set<String> seenNames = new HashSet<String>();
+		Map<String, JsonLikeValue> pendingValues = null;
+		Map<String, JsonLikeValue> pendingAlternates = null;
+
+		while (theReader.hasNext()) {
+			String nextName = theReader.nextName();
+			if ("resourceType".equals(nextName)) {
+				theReader.skipValue();
+				continue;
+			} else if ("extension".equals(nextName) || "modifierExtension".equals(nextName)) {
+				JsonLikeArray array = toJsonArray(GsonStreamingStructure.readValue(theReader), nextName);
+				if (array != null) {
+					parseExtension(theState, array, "modifierExtension".equals(nextName));
+				}
+				continue;
+			} else if (nextName.equals("fhir_comments")) {
+				parseFhirComments(GsonStreamingStructure.readValue(theReader), theState);
+				continue;
+			} else if (nextName.length() > 0 && nextName.charAt(0) == '_') {
+				JsonLikeValue alternateVal = GsonStreamingStructure.readValue(theReader);
+				String name = nextName.substring(1);
+				if (pendingValues != null && pendingValues.containsKey(name)) {
+					parseChildren(theState, name, pendingValues.remove(name), alternateVal, nextName, false);
+				} else if (!seenNames.contains(name)) {
+					if (pendingAlternates == null) {
+						pendingAlternates = new LinkedHashMap<String, JsonLikeValue>();
+					}
+					pendingAlternates.put(nextName, alternateVal);
+				}
+				continue;
+			}
+
+			seenNames.add(nextName);
+			String alternateName = '_' + nextName;
+			JsonLikeValue alternateVal = pendingAlternates != null ? pendingAlternates.remove(alternateName) : null;
+
+			JsonLikeValue nextVal;
+			JsonToken token = theReader.peek();
+			if (token == JsonToken.BEGIN_OBJECT) {
+				parseChildObjectStreaming(theReader, theState, nextName, alternateVal, alternateName, false);
+				continue;
+			} else if (token == JsonToken.BEGIN_ARRAY) {
+				theReader.beginArray();
+				if (theReader.hasNext() && theReader.peek() == JsonToken.BEGIN_OBJECT) {
+					parseChildArrayStreaming(theReader, theState, nextName, alternateVal, alternateName);
+					continue;
+				}
+				nextVal = GsonStreamingStructure.readRemainingArray(theReader);
+			} else {
+				nextVal = GsonStreamingStructure.readValue(theReader);
+			}
+
+			if (alternateVal != null) {
+				parseChildren(theState, nextName, nextVal, alternateVal, alternateName, false);
+			} else {
+				if (pendingValues == null) {
+					pendingValues = new LinkedHashMap<String, JsonLikeValue>();
+				}
+				pendingValues.put(nextName, nextVal);
+			}
+		}
+		theReader.endObject();
+
+		if (pendingValues != null) {
+			for (Map.Entry<String, JsonLikeValue> next : pendingValues.entrySet()) {
+				parseChildren(theState, next.getKey(), next.getValue(), null, '_' + next.getKey(), false);
+			}
+		}
+
+		/*
+		 * As in parseChildren(JsonLikeObject, ParserState), these are elements which have an
+		 * extension but no actual value
+		 */
+		if (pendingAlternates != null) {
+			for (Map.Entry<String, JsonLikeValue> next : pendingAlternates.entrySet()) {
+				String alternateName = next.getKey();
+				if (alternateName.length() > 1) {
+					JsonLikeValue nextValue = next.getValue();
+					if (nextValue.isObject()) {
+						theState.enteringNewElement(null, alternateName.substring(1));
+						parseAlternates(nextValue, theState, alternateName, alternateName);
+						theState.endingElement();
+					} else {
+						getErrorHandler().incorrectJsonType(null, alternateName, ValueType.OBJECT, null, nextValue.getJsonType(), null);
+					}
+				}
+			}
+		}
+	}
+
 	private void parseExtension(ParserState<?> theState, JsonLikeArray theValues, boolean theIsModifier) {
 		for (int i = 0; i < theValues.size(); i++) {
 			JsonLikeObject nextExtObj = JsonLikeValue.asObject(theValues.get(i));
@@ -1549,9 +1749,50 @@ public class JsonParser extends BaseParser implements IJsonLikeParser {
 		return parseResource(null, theJsonLikeStructure);
 	}
 
+	/**
+	 * Reads a resource object whose opening brace has been consumed, up to and including its
+	 * closing brace. The resource type has to be known before any of its children can be
+	 * passed to the parser state, so if <code>resourceType</code> isn't the first member,
+	 * the resource is read into a tree and parsed from there instead.
+	 */
+	private void parseResourceStreaming(JsonReader theReader, ParserState<?> theState, boolean theRoot) throws IOException {
+		String resourceType = null;
+		JsonLikeObject object = null;
+		if (theReader.hasNext()) {
+			String firstName = theReader.nextName();
+			if ("resourceType".equals(firstName) && theReader.peek() == JsonToken.STRING) {
+				resourceType = theReader.nextString();
+			} else {
+				object = GsonStreamingStructure.readRemainingObject(theReader, firstName);
+				JsonLikeValue resourceTypeObj = object.get("resourceType");
+				if (resourceTypeObj != null && resourceTypeObj.isString()) {
+					resourceType = resourceTypeObj.getAsString();
+				}
+			}
+		} else {
+			theReader.endObject();
+		}
+
+		if (theRoot) {
+			if (isBlank(resourceType)) {
+				throw new DataFormatException("Invalid JSON content detected, missing required element: 'resourceType'");
+			}
+		} else if (resourceType == null) {
+			throw new DataFormatException("Missing required element 'resourceType' from JSON resource object, unable to parse");
+		}
+
+		theState.enteringNewElement(null, resourceType);
+		if (object != null) {
+			parseChildren(object, theState);
+		} else {
+			parseChildrenStreaming(theReader, theState);
+		}
+		theState.endingElement();
+	}
+
 	@Override
 	public TagList parseTagList(Reader theReader) {
-		JsonLikeStructure jsonStructure = new GsonStructure();
+		JsonLikeStructure jsonStructure = new GsonStreamingStructure();
 		jsonStructure.load(theReader);
 		
 		TagList retVal = parseTagList(jsonStructure);
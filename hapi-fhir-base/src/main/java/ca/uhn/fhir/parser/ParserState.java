@@ -110,6 +110,15 @@ class ParserState<T> {
 		return myState.isPreResource();
 	}
 
+	/**
+	 * Returns <code>true</code> if the current state needs to receive a copy of each XML event
+	 * via {@link #xmlEvent(XMLEvent)}. Parsers which don't otherwise create event objects can use
+	 * this to avoid creating them when nobody needs them.
+	 */
+	public boolean isXmlEventRequired() {
+		return myState != null && myState.isXmlEventRequired();
+	}
+
 	private Object newContainedDt(IResource theTarget) {
 		return ReflectionUtil.newInstance(theTarget.getStructureFhirVersionEnum().getVersionImplementation().getContainedType());
 	}
@@ -860,6 +869,10 @@ class ParserState<T> {
 			// allow an implementor to override
 		}
 
+		public boolean isXmlEventRequired() {
+			return false;
+		}
+
 		/**
 		 * @param theNextEvent
 		 *           The XML event
@@ -2628,6 +2641,11 @@ class ParserState<T> {
 			return myDt;
 		}
 
+		@Override
+		public boolean isXmlEventRequired() {
+			return !myJsonMode;
+		}
+
 		@Override
 		public void xmlEvent(XMLEvent theEvent) {
 			if (theEvent.isEndElement()) {
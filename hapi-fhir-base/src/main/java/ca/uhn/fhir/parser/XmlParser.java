@@ -31,11 +31,10 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
-import javax.xml.namespace.QName;
 import javax.xml.stream.FactoryConfigurationError;
-import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.stream.XMLStreamWriter;
 import javax.xml.stream.events.Attribute;
 import javax.xml.stream.events.Characters;
@@ -124,9 +123,9 @@ public class XmlParser extends BaseParser /*implements IParser */{
 		myContext = theContext;
 	}
 
-	private XMLEventReader createStreamReader(Reader theReader) {
+	private XMLStreamReader createStreamReader(Reader theReader) {
 		try {
-			return XmlUtil.createXmlReader(theReader);
+			return XmlUtil.createXmlStreamReader(theReader);
 		} catch (FactoryConfigurationError e1) {
 			throw new ConfigurationException("Failed to initialize STaX event factory", e1);
 		} catch (XMLStreamException e1) {
@@ -179,49 +178,45 @@ public class XmlParser extends BaseParser /*implements IParser */{
 
 	@Override
 	public <T extends IBaseResource> T doParseResource(Class<T> theResourceType, Reader theReader) {
-		XMLEventReader streamReader = createStreamReader(theReader);
+		XMLStreamReader streamReader = createStreamReader(theReader);
 		return parseResource(theResourceType, streamReader);
 	}
 
-	private <T> T doXmlLoop(XMLEventReader streamReader, ParserState<T> parserState) {
+	private <T> T doXmlLoop(XMLStreamReader streamReader, ParserState<T> parserState) {
 		ourLog.trace("Entering XML parsing loop with state: {}", parserState);
 
+		/*
+		 * We use the cursor API here so that an event object doesn't need to be created for
+		 * every element, attribute and text node. The only consumer of full XML events is the
+		 * XHTML narrative state, so events are only created while it is active.
+		 */
 		try {
 			List<String> heldComments = new ArrayList<String>(1);
 
 			while (streamReader.hasNext()) {
-				XMLEvent nextEvent = streamReader.nextEvent();
+				int eventType = streamReader.next();
 				try {
 
-					switch (nextEvent.getEventType()) {
+					switch (eventType) {
 					case XMLStreamConstants.START_ELEMENT: {
-						StartElement elem = nextEvent.asStartElement();
+						String localName = streamReader.getLocalName();
 
-						String namespaceURI = elem.getName().getNamespaceURI();
-
-						if ("extension".equals(elem.getName().getLocalPart())) {
-							Attribute urlAttr = elem.getAttributeByName(new QName("url"));
-							String url;
-							if (urlAttr == null || isBlank(urlAttr.getValue())) {
+						if ("extension".equals(localName)) {
+							String url = streamReader.getAttributeValue(null, "url");
+							if (isBlank(url)) {
 								getErrorHandler().missingRequiredElement(new ParseLocation("extension"), "url");
 								url = null;
-							} else {
-								url = urlAttr.getValue();
 							}
-							parserState.enteringNewElementExtension(elem, url, false, getServerBaseUrl());
-						} else if ("modifierExtension".equals(elem.getName().getLocalPart())) {
-							Attribute urlAttr = elem.getAttributeByName(new QName("url"));
-							String url;
-							if (urlAttr == null || isBlank(urlAttr.getValue())) {
+							parserState.enteringNewElementExtension(null, url, false, getServerBaseUrl());
+						} else if ("modifierExtension".equals(localName)) {
+							String url = streamReader.getAttributeValue(null, "url");
+							if (isBlank(url)) {
 								getErrorHandler().missingRequiredElement(new ParseLocation("modifierExtension"), "url");
 								url = null;
-							} else {
-								url = urlAttr.getValue();
 							}
-							parserState.enteringNewElementExtension(elem, url, true, getServerBaseUrl());
+							parserState.enteringNewElementExtension(null, url, true, getServerBaseUrl());
 						} else {
-							String elementName = elem.getName().getLocalPart();
-							parserState.enteringNewElement(namespaceURI, elementName);
+							parserState.enteringNewElement(defaultString(streamReader.getNamespaceURI()), localName);
 						}
 
 						if (!heldComments.isEmpty()) {
@@ -231,11 +226,8 @@ public class XmlParser extends BaseParser /*implements IParser */{
 							heldComments.clear();
 						}
 
-						@SuppressWarnings("unchecked")
-						Iterator<Attribute> attributes = elem.getAttributes();
-						for (Iterator<Attribute> iter = attributes; iter.hasNext();) {
-							Attribute next = iter.next();
-							parserState.attributeValue(next.getName().getLocalPart(), next.getValue());
+						for (int i = 0; i < streamReader.getAttributeCount(); i++) {
+							parserState.attributeValue(streamReader.getAttributeLocalName(i), streamReader.getAttributeValue(i));
 						}
 
 						break;
@@ -249,27 +241,24 @@ public class XmlParser extends BaseParser /*implements IParser */{
 							heldComments.clear();
 						}
 						parserState.endingElement();
-//						if (parserState.isComplete()) {
-//							return parserState.getObject();
-//						}
 						break;
 					}
 					case XMLStreamConstants.CHARACTERS: {
-						parserState.string(nextEvent.asCharacters().getData());
+						parserState.string(streamReader.getText());
 						break;
 					}
 					case XMLStreamConstants.COMMENT: {
-						Comment comment = (Comment) nextEvent;
-						String commentText = comment.getText();
-						heldComments.add(commentText);
+						heldComments.add(streamReader.getText());
 						break;
 					}
 					}
 
-					parserState.xmlEvent(nextEvent);
+					if (parserState.isXmlEventRequired()) {
+						parserState.xmlEvent(XmlUtil.createXmlEvent(streamReader));
+					}
 
 				} catch (DataFormatException e) {
-					throw new DataFormatException("DataFormatException at [" + nextEvent.getLocation().toString() + "]: " + e.getMessage(), e);
+					throw new DataFormatException("DataFormatException at [" + streamReader.getLocation().toString() + "]: " + e.getMessage(), e);
 				}
 			}
 			return parserState.getObject();
@@ -1035,24 +1024,24 @@ public class XmlParser extends BaseParser /*implements IParser */{
 
 	@Override
 	public <T extends IBaseResource> Bundle parseBundle(Class<T> theResourceType, Reader theReader) {
-		XMLEventReader streamReader = createStreamReader(theReader);
+		XMLStreamReader streamReader = createStreamReader(theReader);
 
 		return parseBundle(streamReader, theResourceType);
 	}
 
-	private Bundle parseBundle(XMLEventReader theStreamReader, Class<? extends IBaseResource> theResourceType) {
+	private Bundle parseBundle(XMLStreamReader theStreamReader, Class<? extends IBaseResource> theResourceType) {
 		ParserState<Bundle> parserState = ParserState.getPreAtomInstance(this, myContext, theResourceType, false, getErrorHandler());
 		return doXmlLoop(theStreamReader, parserState);
 	}
 
-	private <T extends IBaseResource> T parseResource(Class<T> theResourceType, XMLEventReader theStreamReader) {
+	private <T extends IBaseResource> T parseResource(Class<T> theResourceType, XMLStreamReader theStreamReader) {
 		ParserState<T> parserState = ParserState.getPreResourceInstance(this, theResourceType, myContext, false, getErrorHandler());
 		return doXmlLoop(theStreamReader, parserState);
 	}
 
 	@Override
 	public TagList parseTagList(Reader theReader) {
-		XMLEventReader streamReader = createStreamReader(theReader);
+		XMLStreamReader streamReader = createStreamReader(theReader);
 
 		ParserState<TagList> parserState = ParserState.getPreTagListInstance(this, myContext, false, getErrorHandler());
 		return doXmlLoop(streamReader, parserState);
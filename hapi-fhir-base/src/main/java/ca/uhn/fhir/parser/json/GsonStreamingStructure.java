@@ -0,0 +1,413 @@
+package ca.uhn.fhir.parser.json;
+/*
+ * #%L
+ * HAPI FHIR - Core Library
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Set;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+import ca.uhn.fhir.parser.DataFormatException;
+
+/**
+ * A {@link JsonLikeStructure} which reads its input using the Gson streaming API
+ * ({@link JsonReader}).
+ * <p>
+ * Loading a document does not read it. A parser can take the positioned reader using
+ * {@link #takeReader()} and consume the document as a stream of tokens, so that memory
+ * use does not grow with the size of the document (this is what
+ * {@link ca.uhn.fhir.parser.JsonParser} does). Otherwise, the document is read into a
+ * compact tree the first time {@link #getRootObject()} or {@link #getRootArray()} is
+ * called. Unlike {@link GsonStructure}, no intermediate Gson <code>JsonElement</code>
+ * tree is created and each JSON node is represented by exactly one object.
+ * </p>
+ * <p>
+ * Writing is delegated to {@link GsonWriter}.
+ * </p>
+ */
+public class GsonStreamingStructure implements JsonLikeStructure {
+
+	private GsonWriter myJsonLikeWriter;
+	private JsonReader myReader;
+	private JsonLikeValue myRoot;
+
+	public GsonStreamingStructure() {
+		super();
+	}
+
+	@Override
+	public JsonLikeStructure getInstance() {
+		return new GsonStreamingStructure();
+	}
+
+	@Override
+	public JsonLikeArray getRootArray() throws DataFormatException {
+		readRoot();
+		if (myRoot != null && myRoot.isArray()) {
+			return myRoot.getAsArray();
+		}
+		throw new DataFormatException("Content must be a valid JSON Array. It must start with '['.");
+	}
+
+	@Override
+	public JsonLikeObject getRootObject() throws DataFormatException {
+		readRoot();
+		if (myRoot != null && myRoot.isObject()) {
+			return myRoot.getAsObject();
+		}
+		throw new DataFormatException("Content must be a valid JSON Object. It must start with '{'.");
+	}
+
+	@Override
+	public JsonLikeWriter getJsonLikeWriter() {
+		if (null == myJsonLikeWriter) {
+			myJsonLikeWriter = new GsonWriter();
+		}
+		return myJsonLikeWriter;
+	}
+
+	@Override
+	public JsonLikeWriter getJsonLikeWriter(Writer theWriter) {
+		if (null == myJsonLikeWriter) {
+			myJsonLikeWriter = new GsonWriter(theWriter);
+		}
+		return myJsonLikeWriter;
+	}
+
+	@Override
+	public void load(Reader theReader) throws DataFormatException {
+		load(theReader, false);
+	}
+
+	@Override
+	public void load(Reader theReader, boolean theAllowArray) throws DataFormatException {
+		PushbackReader pbr = new PushbackReader(theReader);
+		try {
+			while (true) {
+				int nextInt = pbr.read();
+				if (nextInt == -1) {
+					throw new DataFormatException("Did not find any content to parse");
+				}
+				if (nextInt == '{') {
+					pbr.unread(nextInt);
+					break;
+				}
+				if (Character.isWhitespace(nextInt)) {
+					continue;
+				}
+				if (theAllowArray) {
+					if (nextInt == '[') {
+						pbr.unread(nextInt);
+						break;
+					}
+					throw new DataFormatException("Content does not appear to be FHIR JSON, first non-whitespace character was: '" + (char) nextInt + "' (must be '{' or '[')");
+				}
+				throw new DataFormatException("Content does not appear to be FHIR JSON, first non-whitespace character was: '" + (char) nextInt + "' (must be '{')");
+			}
+		} catch (Exception e) {
+			throw new DataFormatException("Failed to parse JSON content, error was: " + e.getMessage(), e);
+		}
+
+		// Gson itself parses leniently, so we do too
+		myReader = new JsonReader(pbr);
+		myReader.setLenient(true);
+		myRoot = null;
+	}
+
+	private void readRoot() {
+		if (myReader == null) {
+			return;
+		}
+
+		JsonReader reader = myReader;
+		myReader = null;
+		try {
+			myRoot = readValue(reader);
+			endDocument(reader);
+		} catch (JsonSyntaxException e) {
+			throw new DataFormatException("Failed to parse JSON encoded FHIR content: " + e.getMessage(), e);
+		} catch (MalformedJsonException e) {
+			throw new DataFormatException("Failed to parse JSON encoded FHIR content: " + e.getMessage(), e);
+		} catch (Exception e) {
+			throw new DataFormatException("Failed to parse JSON content, error was: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Returns the reader for the loaded document, positioned before its root value, so
+	 * that the caller can consume the document as a stream of tokens. The caller should
+	 * call {@link #endDocument(JsonReader)} once it has read the root value.
+	 * <p>
+	 * Returns <code>null</code> if the document has already been taken, or has already
+	 * been read into a tree by {@link #getRootObject()} or {@link #getRootArray()}.
+	 * Once the reader has been taken, the tree is no longer available.
+	 * </p>
+	 */
+	public JsonReader takeReader() {
+		JsonReader retVal = myReader;
+		myReader = null;
+		return retVal;
+	}
+
+	/**
+	 * Fails if there is any content left after the root value
+	 */
+	public static void endDocument(JsonReader theReader) throws IOException {
+		if (theReader.peek() != JsonToken.END_DOCUMENT) {
+			throw new JsonSyntaxException("JSON document was not fully consumed.");
+		}
+	}
+
+	/**
+	 * Reads the remaining members of an object whose opening brace and first member name
+	 * have already been consumed, up to and including its closing brace
+	 */
+	public static JsonLikeObject readRemainingObject(JsonReader theReader, String theFirstName) throws IOException {
+		CompactObject retVal = new CompactObject();
+		retVal.put(theFirstName, readValue(theReader));
+		readMembers(theReader, retVal);
+		return retVal;
+	}
+
+	/**
+	 * Reads the remaining values of an array whose opening bracket has already been consumed,
+	 * up to and including its closing bracket
+	 */
+	public static JsonLikeArray readRemainingArray(JsonReader theReader) throws IOException {
+		CompactArray retVal = new CompactArray();
+		while (theReader.hasNext()) {
+			retVal.add(readValue(theReader));
+		}
+		theReader.endArray();
+		retVal.trimToSize();
+		return retVal;
+	}
+
+	private static void readMembers(JsonReader theReader, CompactObject theObject) throws IOException {
+		while (theReader.hasNext()) {
+			String name = theReader.nextName();
+			theObject.put(name, readValue(theReader));
+		}
+		theReader.endObject();
+		theObject.trimToSize();
+	}
+
+	/**
+	 * Reads the next value (including any nested objects and arrays) into a tree
+	 */
+	public static JsonLikeValue readValue(JsonReader theReader) throws IOException {
+		JsonToken token = theReader.peek();
+		switch (token) {
+		case BEGIN_OBJECT: {
+			CompactObject retVal = new CompactObject();
+			theReader.beginObject();
+			readMembers(theReader, retVal);
+			return retVal;
+		}
+		case BEGIN_ARRAY:
+			theReader.beginArray();
+			return readRemainingArray(theReader);
+		case STRING:
+			return new Scalar(JsonLikeValue.ScalarType.STRING, theReader.nextString());
+		case NUMBER:
+			// nextString() returns the number exactly as it appeared in the document
+			return new Scalar(JsonLikeValue.ScalarType.NUMBER, theReader.nextString());
+		case BOOLEAN:
+			return theReader.nextBoolean() ? Scalar.TRUE : Scalar.FALSE;
+		case NULL:
+			theReader.nextNull();
+			return JsonLikeValue.NULL;
+		default:
+			throw new JsonSyntaxException("Unexpected token " + token + " at " + theReader.getPath());
+		}
+	}
+
+	/**
+	 * Stores keys and values in parallel arrays. FHIR objects have a small
+	 * number of keys, so a linear scan is cheaper than a hash map both in
+	 * time and in memory.
+	 */
+	private static class CompactObject extends JsonLikeObject {
+		private int mySize;
+		private String[] myKeys = new String[8];
+		private JsonLikeValue[] myValues = new JsonLikeValue[8];
+
+		@Override
+		public JsonLikeValue get(String theKey) {
+			int idx = indexOf(theKey);
+			return idx != -1 ? myValues[idx] : null;
+		}
+
+		@Override
+		public Object getValue() {
+			return null;
+		}
+
+		private int indexOf(String theKey) {
+			for (int i = 0; i < mySize; i++) {
+				if (myKeys[i].equals(theKey)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		@Override
+		public Set<String> keySet() {
+			return new AbstractSet<String>() {
+				@Override
+				public Iterator<String> iterator() {
+					return Arrays.asList(myKeys).subList(0, mySize).iterator();
+				}
+
+				@Override
+				public int size() {
+					return mySize;
+				}
+			};
+		}
+
+		/**
+		 * As with Gson, if a key is repeated the last value wins
+		 */
+		void put(String theKey, JsonLikeValue theValue) {
+			int idx = indexOf(theKey);
+			if (idx != -1) {
+				myValues[idx] = theValue;
+				return;
+			}
+			if (mySize == myKeys.length) {
+				myKeys = Arrays.copyOf(myKeys, mySize * 2);
+				myValues = Arrays.copyOf(myValues, mySize * 2);
+			}
+			myKeys[mySize] = theKey;
+			myValues[mySize] = theValue;
+			mySize++;
+		}
+
+		void trimToSize() {
+			if (mySize < myKeys.length) {
+				myKeys = Arrays.copyOf(myKeys, mySize);
+				myValues = Arrays.copyOf(myValues, mySize);
+			}
+		}
+	}
+
+	private static class CompactArray extends JsonLikeArray {
+		private final ArrayList<JsonLikeValue> myValues = new ArrayList<JsonLikeValue>();
+
+		void add(JsonLikeValue theValue) {
+			myValues.add(theValue);
+		}
+
+		@Override
+		public JsonLikeValue get(int theIndex) {
+			return myValues.get(theIndex);
+		}
+
+		@Override
+		public Object getValue() {
+			return null;
+		}
+
+		@Override
+		public int size() {
+			return myValues.size();
+		}
+
+		void trimToSize() {
+			myValues.trimToSize();
+		}
+	}
+
+	private static class Scalar extends JsonLikeValue {
+		static final Scalar FALSE = new Scalar(ScalarType.BOOLEAN, "false");
+		static final Scalar TRUE = new Scalar(ScalarType.BOOLEAN, "true");
+
+		private final ScalarType myDataType;
+		private final String myText;
+
+		Scalar(ScalarType theDataType, String theText) {
+			myDataType = theDataType;
+			myText = theText;
+		}
+
+		@Override
+		public boolean getAsBoolean() {
+			if (myDataType == ScalarType.BOOLEAN) {
+				return Boolean.parseBoolean(myText);
+			}
+			return super.getAsBoolean();
+		}
+
+		@Override
+		public Number getAsNumber() {
+			if (myDataType == ScalarType.NUMBER) {
+				return new BigDecimal(myText);
+			}
+			return null;
+		}
+
+		@Override
+		public String getAsString() {
+			return myText;
+		}
+
+		@Override
+		public ScalarType getDataType() {
+			return myDataType;
+		}
+
+		@Override
+		public ValueType getJsonType() {
+			return ValueType.SCALAR;
+		}
+
+		@Override
+		public Object getValue() {
+			switch (myDataType) {
+			case BOOLEAN:
+				return Boolean.valueOf(getAsBoolean());
+			case NUMBER:
+				return getAsNumber();
+			case STRING:
+			default:
+				return myText;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return myText;
+		}
+	}
+
+}
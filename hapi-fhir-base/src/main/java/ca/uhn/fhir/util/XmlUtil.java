@@ -19,12 +19,20 @@ package ca.uhn.fhir.util;
  * limitations under the License.
  * #L%
  */
+import static org.apache.commons.lang3.StringUtils.defaultString;
+import static org.apache.commons.lang3.StringUtils.isEmpty;
+
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.xml.stream.*;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.XMLEvent;
 
 import org.apache.commons.lang3.StringEscapeUtils;
 import org.codehaus.stax2.XMLOutputFactory2;
@@ -43,6 +51,7 @@ import ca.uhn.fhir.util.jar.IDependencyLog;
  * This class contains code adapted from the Apache Axiom project.
  */
 public class XmlUtil {
+	private static volatile XMLEventFactory ourEventFactory;
 	private static XMLOutputFactory ourFragmentOutputFactory;
 	private static volatile boolean ourHaveLoggedStaxImplementation;
 	private static volatile XMLInputFactory ourInputFactory;
@@ -1537,6 +1546,60 @@ public class XmlUtil {
 		return outputFactory;
 	}
 
+	/**
+	 * Creates an {@link XMLEvent} for the event that the given cursor is currently positioned on. This
+	 * is used when parsing with an {@link XMLStreamReader} for the few places where the full event is
+	 * needed (e.g. XHTML narrative content), so that events aren't allocated for everything else.
+	 */
+	public static XMLEvent createXmlEvent(XMLStreamReader theReader) throws FactoryConfigurationError {
+		XMLEventFactory factory = getOrCreateEventFactory();
+		switch (theReader.getEventType()) {
+		case XMLStreamConstants.START_ELEMENT: {
+			int attributeCount = theReader.getAttributeCount();
+			List<Attribute> attributes = new ArrayList<Attribute>(attributeCount);
+			for (int i = 0; i < attributeCount; i++) {
+				String prefix = defaultString(theReader.getAttributePrefix(i));
+				String namespaceUri = defaultString(theReader.getAttributeNamespace(i));
+				attributes.add(factory.createAttribute(prefix, namespaceUri, theReader.getAttributeLocalName(i), theReader.getAttributeValue(i)));
+			}
+			int namespaceCount = theReader.getNamespaceCount();
+			List<Namespace> namespaces = new ArrayList<Namespace>(namespaceCount);
+			for (int i = 0; i < namespaceCount; i++) {
+				String prefix = theReader.getNamespacePrefix(i);
+				String namespaceUri = defaultString(theReader.getNamespaceURI(i));
+				if (isEmpty(prefix)) {
+					namespaces.add(factory.createNamespace(namespaceUri));
+				} else {
+					namespaces.add(factory.createNamespace(prefix, namespaceUri));
+				}
+			}
+			return factory.createStartElement(defaultString(theReader.getPrefix()), defaultString(theReader.getNamespaceURI()), theReader.getLocalName(), attributes.iterator(), namespaces.iterator());
+		}
+		case XMLStreamConstants.END_ELEMENT:
+			return factory.createEndElement(defaultString(theReader.getPrefix()), defaultString(theReader.getNamespaceURI()), theReader.getLocalName());
+		case XMLStreamConstants.CHARACTERS:
+			return factory.createCharacters(theReader.getText());
+		case XMLStreamConstants.SPACE:
+			return factory.createIgnorableSpace(theReader.getText());
+		case XMLStreamConstants.CDATA:
+			return factory.createCData(theReader.getText());
+		case XMLStreamConstants.COMMENT:
+			return factory.createComment(theReader.getText());
+		case XMLStreamConstants.PROCESSING_INSTRUCTION:
+			return factory.createProcessingInstruction(theReader.getPITarget(), theReader.getPIData());
+		case XMLStreamConstants.ENTITY_REFERENCE:
+			return factory.createEntityReference(theReader.getLocalName(), null);
+		case XMLStreamConstants.START_DOCUMENT:
+			return factory.createStartDocument(defaultString(theReader.getCharacterEncodingScheme(), "UTF-8"), defaultString(theReader.getVersion(), "1.0"));
+		case XMLStreamConstants.END_DOCUMENT:
+			return factory.createEndDocument();
+		case XMLStreamConstants.DTD:
+			return factory.createDTD(theReader.getText());
+		default:
+			throw new IllegalStateException("Unexpected XML event type: " + theReader.getEventType());
+		}
+	}
+
 	public static XMLEventWriter createXmlFragmentWriter(Writer theWriter) throws FactoryConfigurationError, XMLStreamException {
 		XMLOutputFactory outputFactory = getOrCreateFragmentOutputFactory();
 		XMLEventWriter retVal = outputFactory.createXMLEventWriter(theWriter);
@@ -1553,6 +1616,14 @@ public class XmlUtil {
 		return er;
 	}
 
+	public static XMLStreamReader createXmlStreamReader(Reader theReader) throws FactoryConfigurationError, XMLStreamException {
+		throwUnitTestExceptionIfConfiguredToDoSo();
+
+		XMLInputFactory inputFactory = getOrCreateInputFactory();
+		XMLStreamReader retVal = inputFactory.createXMLStreamReader(theReader);
+		return retVal;
+	}
+
 	public static XMLStreamWriter createXmlStreamWriter(Writer theWriter) throws FactoryConfigurationError, XMLStreamException {
 		throwUnitTestExceptionIfConfiguredToDoSo();
 		
@@ -1567,6 +1638,22 @@ public class XmlUtil {
 		return retVal;
 	}
 
+	private static XMLEventFactory getOrCreateEventFactory() throws FactoryConfigurationError {
+		XMLEventFactory retVal = ourEventFactory;
+		if (retVal == null) {
+			try {
+				// Detect if we're running with the Android lib, and force repackaged Woodstox to be used
+				Class.forName("ca.uhn.fhir.repackage.javax.xml.stream.XMLEventFactory");
+				System.setProperty("javax.xml.stream.XMLEventFactory", "com.ctc.wstx.stax.WstxEventFactory");
+			} catch (ClassNotFoundException e) {
+				// ok
+			}
+			retVal = XMLEventFactory.newInstance();
+			ourEventFactory = retVal;
+		}
+		return retVal;
+	}
+
 	private static XMLOutputFactory getOrCreateFragmentOutputFactory() throws FactoryConfigurationError {
 		XMLOutputFactory retVal = ourFragmentOutputFactory;
 		if (retVal == null) {
@@ -1,12 +1,20 @@
 package ca.uhn.fhir.parser.json;
 
+import static org.hamcrest.Matchers.containsString;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 import org.junit.Test;
 
+import ca.uhn.fhir.parser.DataFormatException;
+
 public class JsonLikeStructureTest {
 //	private static FhirContext ourCtx;
 //	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(JsonLikeStructureTest.class);
@@ -69,8 +77,54 @@ public class JsonLikeStructureTest {
 
 	@Test
 	public void testJsonAndDataTypes() {
+		assertJsonAndDataTypes(new GsonStructure());
+	}
+
+	@Test
+	public void testJsonAndDataTypesStreaming() {
+		assertJsonAndDataTypes(new GsonStreamingStructure());
+	}
+
+	@Test
+	public void testStreamingKeyOrderAndDuplicates() {
+		JsonLikeStructure jsonStructure = new GsonStreamingStructure();
+		jsonStructure.load(new StringReader("{\"b\":1,\"a\":2,\"b\":3,\"_a\":{}}"));
+
+		JsonLikeObject rootObject = jsonStructure.getRootObject();
+		assertEquals(Arrays.asList("b", "a", "_a"), new ArrayList<String>(rootObject.keySet()));
+		assertEquals("3", rootObject.get("b").getAsString());
+		assertNull(rootObject.get("c"));
+	}
+
+	@Test
+	public void testStreamingReaderIsTakenOnce() {
+		GsonStreamingStructure jsonStructure = new GsonStreamingStructure();
+		jsonStructure.load(new StringReader(TEST_STRUCTURELOADING_DATA));
+		assertNotNull(jsonStructure.takeReader());
+		assertNull(jsonStructure.takeReader());
+
+		// Once the document has been read into a tree, it can't be streamed any more
+		jsonStructure = new GsonStreamingStructure();
+		jsonStructure.load(new StringReader(TEST_STRUCTURELOADING_DATA));
+		assertEquals("Organization", jsonStructure.getRootObject().get("resourceType").getAsString());
+		assertNull(jsonStructure.takeReader());
+		assertEquals("Organization", jsonStructure.getRootObject().get("resourceType").getAsString());
+	}
+
+	@Test
+	public void testStreamingRejectsTrailingContent() {
+		JsonLikeStructure jsonStructure = new GsonStreamingStructure();
+		try {
+			jsonStructure.load(new StringReader("{\"a\":1} {\"b\":2}"));
+			fail();
+		} catch (DataFormatException e) {
+			assertThat(e.getMessage(), containsString("not fully consumed"));
+		}
+	}
+
+	private void assertJsonAndDataTypes(JsonLikeStructure theJsonStructure) {
 		StringReader reader = new StringReader(TEST_JSONTYPES_DATA);
-		JsonLikeStructure jsonStructure = new GsonStructure();
+		JsonLikeStructure jsonStructure = theJsonStructure;
 		jsonStructure.load(reader);
 		
 		JsonLikeObject rootObject = jsonStructure.getRootObject();
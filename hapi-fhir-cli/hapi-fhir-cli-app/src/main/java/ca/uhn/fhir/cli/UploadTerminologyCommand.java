@@ -3,6 +3,8 @@ package ca.uhn.fhir.cli;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
+import java.io.File;
+
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
@@ -52,7 +54,7 @@ public class UploadTerminologyCommand extends BaseCommand {
 		opt.setRequired(false);
 		options.addOption(opt);
 
-		opt = new Option("d", "data", true, "Local *.zip containing file to use to upload");
+		opt = new Option("d", "data", true, "Local *.zip containing file to use to upload (must be readable by the target server, which loads it directly from disk)");
 		opt.setRequired(false);
 		options.addOption(opt);
 
@@ -96,7 +98,15 @@ public class UploadTerminologyCommand extends BaseCommand {
 			Parameters p = new Parameters();
 			p.addParameter().setName("url").setValue(new UriType(termUrl));
 			for (String next : datafile) {
-				p.addParameter().setName("localfile").setValue(new StringType(next));
+				/*
+				 * The server reads the file directly from disk (so that it is never held in
+				 * memory), so it needs a path which does not depend on the working directory
+				 */
+				File file = new File(next);
+				if (!file.isFile()) {
+					throw new ParseException("Data file does not exist: " + next);
+				}
+				p.addParameter().setName("localfile").setValue(new StringType(file.getAbsolutePath()));
 			}
 			inputParameters = p;
 		} else {
@@ -37,9 +37,23 @@ import org.springframework.scheduling.concurrent.ConcurrentTaskScheduler;
 import org.springframework.scheduling.concurrent.ScheduledExecutorFactoryBean;
 import org.springframework.scheduling.config.ScheduledTaskRegistrar;
 
+import ca.uhn.fhir.jpa.dao.ForcedIdSvcImpl;
+import ca.uhn.fhir.jpa.dao.IForcedIdSvc;
+import ca.uhn.fhir.jpa.dao.IResourceBodyCacheSvc;
+import ca.uhn.fhir.jpa.dao.ITagDefinitionSvc;
+import ca.uhn.fhir.jpa.dao.ResourceBodyCacheSvcImpl;
+import ca.uhn.fhir.jpa.dao.TagDefinitionSvcImpl;
 import ca.uhn.fhir.jpa.search.DatabaseBackedPagingProvider;
+import ca.uhn.fhir.jpa.search.ISearchCoordinatorSvc;
+import ca.uhn.fhir.jpa.search.ISearchReuseSvc;
 import ca.uhn.fhir.jpa.search.IStaleSearchDeletingSvc;
+import ca.uhn.fhir.jpa.search.SearchCoordinatorSvcImpl;
+import ca.uhn.fhir.jpa.search.SearchReuseSvcImpl;
 import ca.uhn.fhir.jpa.search.StaleSearchDeletingSvcImpl;
+import ca.uhn.fhir.jpa.subscription.ISubscriptionMatcherSvc;
+import ca.uhn.fhir.jpa.subscription.SubscriptionMatcherSvcImpl;
+import ca.uhn.fhir.jpa.term.ITermValueSetMembershipSvc;
+import ca.uhn.fhir.jpa.term.TermValueSetMembershipSvcImpl;
 
 @Configuration
 @EnableScheduling
@@ -64,11 +78,46 @@ public class BaseConfig implements SchedulingConfigurer {
 		return retVal;
 	}
 
+	@Bean(autowire = Autowire.BY_TYPE)
+	public IForcedIdSvc forcedIdSvc() {
+		return new ForcedIdSvcImpl();
+	}
+
+	@Bean(autowire = Autowire.BY_TYPE)
+	public IResourceBodyCacheSvc resourceBodyCacheSvc() {
+		return new ResourceBodyCacheSvcImpl();
+	}
+
+	@Bean(autowire = Autowire.BY_TYPE)
+	public ISearchCoordinatorSvc searchCoordinatorSvc() {
+		return new SearchCoordinatorSvcImpl();
+	}
+
+	@Bean(autowire = Autowire.BY_TYPE)
+	public ISearchReuseSvc searchReuseSvc() {
+		return new SearchReuseSvcImpl();
+	}
+
 	@Bean(autowire=Autowire.BY_TYPE)
 	public IStaleSearchDeletingSvc staleSearchDeletingSvc() {
 		return new StaleSearchDeletingSvcImpl();
 	}
 
+	@Bean(autowire = Autowire.BY_TYPE)
+	public ISubscriptionMatcherSvc subscriptionMatcherSvc() {
+		return new SubscriptionMatcherSvcImpl();
+	}
+
+	@Bean(autowire = Autowire.BY_TYPE)
+	public ITagDefinitionSvc tagDefinitionSvc() {
+		return new TagDefinitionSvcImpl();
+	}
+
+	@Bean(autowire = Autowire.BY_TYPE)
+	public ITermValueSetMembershipSvc termValueSetMembershipSvc() {
+		return new TermValueSetMembershipSvcImpl();
+	}
+
 	@Bean()
 	public ScheduledExecutorFactoryBean scheduledExecutorService() {
 		ScheduledExecutorFactoryBean b = new ScheduledExecutorFactoryBean();
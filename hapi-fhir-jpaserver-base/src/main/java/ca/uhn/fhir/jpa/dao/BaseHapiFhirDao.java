@@ -23,7 +23,6 @@ import static org.apache.commons.lang3.StringUtils.defaultIfBlank;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
-import java.io.UnsupportedEncodingException;
 import java.text.Normalizer;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -38,7 +37,6 @@ import java.util.Set;
 import java.util.UUID;
 
 import javax.persistence.EntityManager;
-import javax.persistence.NoResultException;
 import javax.persistence.PersistenceContext;
 import javax.persistence.PersistenceContextType;
 import javax.persistence.Tuple;
@@ -52,7 +50,6 @@ import javax.xml.stream.events.XMLEvent;
 
 import org.apache.commons.lang3.NotImplementedException;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.Validate;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.utils.URLEncodedUtils;
 import org.hl7.fhir.dstu3.model.Bundle.HTTPVerb;
@@ -71,7 +68,6 @@ import org.hl7.fhir.instance.model.api.IPrimitiveType;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.transaction.PlatformTransactionManager;
 
-import com.google.common.base.Charsets;
 import com.google.common.collect.ArrayListMultimap;
 
 import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
@@ -108,7 +104,9 @@ import ca.uhn.fhir.jpa.entity.Search;
 import ca.uhn.fhir.jpa.entity.SearchTypeEnum;
 import ca.uhn.fhir.jpa.entity.TagDefinition;
 import ca.uhn.fhir.jpa.entity.TagTypeEnum;
+import ca.uhn.fhir.jpa.search.ISearchCoordinatorSvc;
 import ca.uhn.fhir.jpa.search.PersistedJpaBundleProvider;
+import ca.uhn.fhir.jpa.subscription.ISubscriptionMatcherSvc;
 import ca.uhn.fhir.jpa.util.DeleteConflict;
 import ca.uhn.fhir.model.api.IQueryParameterAnd;
 import ca.uhn.fhir.model.api.IQueryParameterType;
@@ -202,16 +200,25 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	@Autowired
 	protected IForcedIdDao myForcedIdDao;
 
+	@Autowired
+	private IForcedIdSvc myForcedIdSvc;
+
 	@Autowired
 	private PlatformTransactionManager myPlatformTransactionManager;
 
+	@Autowired
+	private IResourceBodyCacheSvc myResourceBodyCacheSvc;
+
 	@Autowired
 	private List<IFhirResourceDao<?>> myResourceDaos;
 
 	@Autowired
 	private IResourceHistoryTableDao myResourceHistoryTableDao;
 
-	private Map<Class<? extends IBaseResource>, IFhirResourceDao<?>> myResourceTypeToDao;
+	private volatile Map<Class<? extends IBaseResource>, IFhirResourceDao<?>> myResourceTypeToDao;
+
+	@Autowired
+	protected ISearchCoordinatorSvc mySearchCoordinatorSvc;
 
 	@Autowired
 	private ISearchDao mySearchDao;
@@ -225,6 +232,12 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	@Autowired
 	private ISearchResultDao mySearchResultDao;
 
+	@Autowired
+	private ISubscriptionMatcherSvc mySubscriptionMatcherSvc;
+
+	@Autowired
+	private ITagDefinitionSvc myTagDefinitionSvc;
+
 	protected void clearRequestAsProcessingSubRequest(ServletRequestDetails theRequestDetails) {
 		if (theRequestDetails != null) {
 			theRequestDetails.getUserData().remove(PROCESSING_SUB_REQUEST);
@@ -503,6 +516,33 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		}
 	}
 
+	/**
+	 * Returns the entity which holds the stored body for the given entity. This is the
+	 * entity itself, unless it is a history entry whose body is only stored in the
+	 * resource table (see {@link DaoConfig#setDeduplicateCurrentVersionBody(boolean)}).
+	 */
+	private BaseHasResource getBodySource(BaseHasResource theEntity) {
+		if (theEntity.getResource() != null || !(theEntity instanceof ResourceHistoryTable)) {
+			return theEntity;
+		}
+
+		ResourceHistoryTable history = (ResourceHistoryTable) theEntity;
+		ResourceTable current = myEntityManager.find(ResourceTable.class, history.getResourceId());
+		if (current != null && current.getVersion() == history.getVersion()) {
+			return current;
+		}
+
+		/*
+		 * The resource has been updated since this history entry was loaded, so the
+		 * body has been moved into the history table in the meantime
+		 */
+		myEntityManager.refresh(history);
+		if (history.getResource() == null) {
+			throw new InternalErrorException("No stored body found for " + history.getIdDt().getValue());
+		}
+		return history;
+	}
+
 	protected DaoConfig getConfig() {
 		return myConfig;
 	}
@@ -526,20 +566,23 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 
 	@SuppressWarnings("unchecked")
 	public <R extends IBaseResource> IFhirResourceDao<R> getDao(Class<R> theType) {
-		if (myResourceTypeToDao == null) {
-			myResourceTypeToDao = new HashMap<Class<? extends IBaseResource>, IFhirResourceDao<?>>();
+		Map<Class<? extends IBaseResource>, IFhirResourceDao<?>> resourceTypeToDao = myResourceTypeToDao;
+		if (resourceTypeToDao == null) {
+			// Populate a local map first, since this can be called from reindexing worker threads
+			resourceTypeToDao = new HashMap<Class<? extends IBaseResource>, IFhirResourceDao<?>>();
 			for (IFhirResourceDao<?> next : myResourceDaos) {
-				myResourceTypeToDao.put(next.getResourceType(), next);
+				resourceTypeToDao.put(next.getResourceType(), next);
 			}
 
 			if (this instanceof IFhirResourceDao<?>) {
 				IFhirResourceDao<?> thiz = (IFhirResourceDao<?>) this;
-				myResourceTypeToDao.put(thiz.getResourceType(), thiz);
+				resourceTypeToDao.put(thiz.getResourceType(), thiz);
 			}
 
+			myResourceTypeToDao = resourceTypeToDao;
 		}
 
-		return (IFhirResourceDao<R>) myResourceTypeToDao.get(theType);
+		return (IFhirResourceDao<R>) resourceTypeToDao.get(theType);
 	}
 
 	@Override
@@ -554,36 +597,7 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	}
 
 	protected TagDefinition getTag(TagTypeEnum theTagType, String theScheme, String theTerm, String theLabel) {
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<TagDefinition> cq = builder.createQuery(TagDefinition.class);
-		Root<TagDefinition> from = cq.from(TagDefinition.class);
-
-		//@formatter:off
-		if (isNotBlank(theScheme)) {
-			cq.where(
-				builder.and(
-					builder.equal(from.get("myTagType"), theTagType), 
-					builder.equal(from.get("mySystem"), theScheme), 
-					builder.equal(from.get("myCode"), theTerm))
-				);
-		} else {
-			cq.where(
-				builder.and(
-					builder.equal(from.get("myTagType"), theTagType), 
-					builder.isNull(from.get("mySystem")), 
-					builder.equal(from.get("myCode"), theTerm))
-				);
-		}
-		//@formatter:on
-
-		TypedQuery<TagDefinition> q = myEntityManager.createQuery(cq);
-		try {
-			return q.getSingleResult();
-		} catch (NoResultException e) {
-			TagDefinition retVal = new TagDefinition(theTagType, theScheme, theTerm, theLabel);
-			myEntityManager.persist(retVal);
-			return retVal;
-		}
+		return myTagDefinitionSvc.getOrCreateTag(theTagType, theScheme, theTerm, theLabel);
 	}
 
 	protected TagList getTags(Class<? extends IBaseResource> theResourceType, IIdType theResourceId) {
@@ -636,8 +650,12 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		search.setResourceType(resourceName);
 		search.setResourceId(theId);
 		search.setSearchType(SearchTypeEnum.HISTORY);
+		search.setKeysetPosition(0, null, null);
 
-		if (theSince != null) {
+		if (myConfig.getHistoryCountLookahead() != null) {
+			// Estimated by PersistedJpaBundleProvider as the results are paged through
+			search.setTotalCount(-1);
+		} else if (theSince != null) {
 			if (resourceName == null) {
 				search.setTotalCount(myResourceHistoryTableDao.countForAllResourceTypes(theSince));
 			} else if (theId == null) {
@@ -663,8 +681,10 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	@Override
 	public void injectDependenciesIntoBundleProvider(PersistedJpaBundleProvider theProvider) {
 		theProvider.setContext(getContext());
+		theProvider.setDaoConfig(myConfig);
 		theProvider.setEntityManager(myEntityManager);
 		theProvider.setPlatformTransactionManager(myPlatformTransactionManager);
+		theProvider.setSearchCoordinatorSvc(mySearchCoordinatorSvc);
 		theProvider.setSearchDao(mySearchDao);
 		theProvider.setSearchResultDao(mySearchResultDao);
 	}
@@ -748,14 +768,7 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		ResourceEncodingEnum encoding = myConfig.getResourceEncoding();
 		theEntity.setEncoding(encoding);
 		theEntity.setFhirVersion(myContext.getVersion().getVersion());
-		switch (encoding) {
-		case JSON:
-			theEntity.setResource(encoded.getBytes(Charsets.UTF_8));
-			break;
-		case JSONC:
-			theEntity.setResource(GZipUtil.compress(encoded));
-			break;
-		}
+		theEntity.setResource(ResourceEncodingUtil.encode(encoding, encoded, myConfig.getResourceEncodingDictionaryVersion()));
 
 		Set<TagDefinition> allDefs = new HashSet<TagDefinition>();
 
@@ -958,6 +971,23 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	}
 
 	@Override
+	/**
+	 * Translates any forced IDs among the given resource IDs in as few queries as possible,
+	 * so that looking them up one at a time afterwards (e.g. while extracting resource
+	 * links) does not need a query for each
+	 */
+	protected void preloadForcedIds(Collection<? extends IIdType> theIds) {
+		ArrayListMultimap<String, String> typeToForcedIds = ArrayListMultimap.create();
+		for (IIdType next : theIds) {
+			if (next.hasResourceType() && next.hasIdPart() && !next.hasBaseUrl() && !next.isLocal() && !isValidPid(next)) {
+				typeToForcedIds.put(next.getResourceType(), next.getIdPart());
+			}
+		}
+		for (String nextType : typeToForcedIds.keySet()) {
+			myForcedIdSvc.translateForcedIdsToPids(nextType, typeToForcedIds.get(nextType));
+		}
+	}
+
 	public <R extends IBaseResource> Set<Long> processMatchUrl(String theMatchUrl, Class<R> theResourceType) {
 		RuntimeResourceDefinition resourceDef = getContext().getResourceDefinition(theResourceType);
 
@@ -1037,19 +1067,7 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	@SuppressWarnings("unchecked")
 	@Override
 	public <R extends IBaseResource> R toResource(Class<R> theResourceType, BaseHasResource theEntity, boolean theForHistoryOperation) {
-		String resourceText = null;
-		switch (theEntity.getEncoding()) {
-		case JSON:
-			try {
-				resourceText = new String(theEntity.getResource(), "UTF-8");
-			} catch (UnsupportedEncodingException e) {
-				throw new Error("Should not happen", e);
-			}
-			break;
-		case JSONC:
-			resourceText = GZipUtil.decompress(theEntity.getResource());
-			break;
-		}
+		String resourceText = myResourceBodyCacheSvc.getResourceBody(getBodySource(theEntity));
 
 		/*
 		 * Use the appropriate custom type if one is specified in the context
@@ -1111,17 +1129,17 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	}
 
 	protected Long translateForcedIdToPid(String theResourceName, String theResourceId) {
-		return translateForcedIdToPids(new IdDt(theResourceName, theResourceId), myForcedIdDao).get(0);
+		return translateForcedIdToPids(new IdDt(theResourceName, theResourceId)).get(0);
 	}
 
 	protected List<Long> translateForcedIdToPids(IIdType theId) {
-		return translateForcedIdToPids(theId, myForcedIdDao);
+		return myForcedIdSvc.translateForcedIdToPids(theId);
 	}
 
 	protected String translatePidIdToForcedId(String theResourceType, Long theId) {
-		ForcedId forcedId = myForcedIdDao.findByResourcePid(theId);
+		String forcedId = myForcedIdSvc.translatePidToForcedId(theId);
 		if (forcedId != null) {
-			return forcedId.getResourceType() + '/' + forcedId.getForcedId();
+			return forcedId;
 		} else {
 			return theResourceType + '/' + theId.toString();
 		}
@@ -1153,6 +1171,16 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		}
 
 		if (theUpdateVersion) {
+			/*
+			 * If the body of the version being replaced is only stored in the resource
+			 * table, it needs to be copied into its history entry first. This is a bulk
+			 * update so that the history entry never has to be loaded. It is done even
+			 * if deduplication has been disabled since the body was moved, so that the
+			 * setting can be turned off again without losing any bodies.
+			 */
+			if (theEntity.getId() != null) {
+				myResourceHistoryTableDao.updateBodyIfMissing(theEntity.getId(), theEntity.getVersion(), theEntity.getEncoding(), theEntity.getResource());
+			}
 			theEntity.setVersion(theEntity.getVersion() + 1);
 		}
 
@@ -1245,7 +1273,20 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 				setUpdatedTime(uriParams, theUpdateTime);
 				setUpdatedTime(coordsParams, theUpdateTime);
 				setUpdatedTime(tokenParams, theUpdateTime);
-				
+
+				/*
+				 * Index rows which haven't changed are kept as they are. After this, the params*
+				 * collections hold only the rows to remove and the *Params collections hold
+				 * only the rows to add.
+				 */
+				Set<ResourceIndexedSearchParamString> allStringParams = retainUnchangedIndexRows(paramsString, stringParams);
+				Set<ResourceIndexedSearchParamToken> allTokenParams = retainUnchangedIndexRows(paramsToken, tokenParams);
+				Set<ResourceIndexedSearchParamNumber> allNumberParams = retainUnchangedIndexRows(paramsNumber, numberParams);
+				Set<ResourceIndexedSearchParamQuantity> allQuantityParams = retainUnchangedIndexRows(paramsQuantity, quantityParams);
+				Set<ResourceIndexedSearchParamDate> allDateParams = retainUnchangedIndexRows(paramsDate, dateParams);
+				Set<ResourceIndexedSearchParamUri> allUriParams = retainUnchangedIndexRows(paramsUri, uriParams);
+				Set<ResourceIndexedSearchParamCoords> allCoordsParams = retainUnchangedIndexRows(paramsCoords, coordsParams);
+
 				/*
 				 * Handle references within the resource that are match URLs, for example references like "Patient?identifier=foo". These match URLs are resolved and replaced with the ID of the
 				 * matching
@@ -1318,20 +1359,20 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 				} else {
 					theEntity.setLanguage(((IAnyResource) theResource).getLanguageElement().getValue());
 				}
-				theEntity.setParamsString(stringParams);
-				theEntity.setParamsStringPopulated(stringParams.isEmpty() == false);
-				theEntity.setParamsToken(tokenParams);
-				theEntity.setParamsTokenPopulated(tokenParams.isEmpty() == false);
-				theEntity.setParamsNumber(numberParams);
-				theEntity.setParamsNumberPopulated(numberParams.isEmpty() == false);
-				theEntity.setParamsQuantity(quantityParams);
-				theEntity.setParamsQuantityPopulated(quantityParams.isEmpty() == false);
-				theEntity.setParamsDate(dateParams);
-				theEntity.setParamsDatePopulated(dateParams.isEmpty() == false);
-				theEntity.setParamsUri(uriParams);
-				theEntity.setParamsUriPopulated(uriParams.isEmpty() == false);
-				theEntity.setParamsCoords(coordsParams);
-				theEntity.setParamsCoordsPopulated(coordsParams.isEmpty() == false);
+				theEntity.setParamsString(allStringParams);
+				theEntity.setParamsStringPopulated(allStringParams.isEmpty() == false);
+				theEntity.setParamsToken(allTokenParams);
+				theEntity.setParamsTokenPopulated(allTokenParams.isEmpty() == false);
+				theEntity.setParamsNumber(allNumberParams);
+				theEntity.setParamsNumberPopulated(allNumberParams.isEmpty() == false);
+				theEntity.setParamsQuantity(allQuantityParams);
+				theEntity.setParamsQuantityPopulated(allQuantityParams.isEmpty() == false);
+				theEntity.setParamsDate(allDateParams);
+				theEntity.setParamsDatePopulated(allDateParams.isEmpty() == false);
+				theEntity.setParamsUri(allUriParams);
+				theEntity.setParamsUriPopulated(allUriParams.isEmpty() == false);
+				theEntity.setParamsCoords(allCoordsParams);
+				theEntity.setParamsCoordsPopulated(allCoordsParams.isEmpty() == false);
 				theEntity.setResourceLinks(links);
 				theEntity.setHasLinks(links.isEmpty() == false);
 				theEntity.setIndexStatus(INDEX_STATUS_INDEXED);
@@ -1371,6 +1412,9 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		 */
 		if (theUpdateVersion) {
 			final ResourceHistoryTable historyEntry = theEntity.toHistory(null);
+			if (myConfig.isDeduplicateCurrentVersionBody()) {
+				historyEntry.setResource(null);
+			}
 
 			ourLog.info("Saving history entry {}", historyEntry.getIdDt());
 			myResourceHistoryTableDao.save(historyEntry);
@@ -1453,6 +1497,15 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 			populateResourceId(theResource, theEntity);
 		}
 
+		/*
+		 * Check the new version against subscription criteria
+		 */
+		if (myConfig.isSubscriptionEnabled() && myConfig.isSubscriptionMatchOnWrite()) {
+			if (thePerformIndexing && theUpdateVersion && theDeletedTimestampOrNull == null && theResource != null) {
+				mySubscriptionMatcherSvc.flagMatchingSubscriptions(this, theEntity);
+			}
+		}
+
 		return theEntity;
 	}
 
@@ -1676,6 +1729,41 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		return b.toString();
 	}
 
+	/**
+	 * Compares the index rows which currently exist for a resource against the newly extracted ones,
+	 * so that rows which haven't changed can be kept instead of being deleted and inserted again.
+	 * <p>
+	 * On return, <code>theExisting</code> contains only the rows which should be removed, <code>theNew</code>
+	 * contains only the rows which should be persisted, and the returned set contains every row which
+	 * will be present once the update is complete.
+	 * </p>
+	 */
+	static <T extends BaseResourceIndexedSearchParam> Set<T> retainUnchangedIndexRows(Collection<T> theExisting, Collection<T> theNew) {
+		Map<T, T> existing = new HashMap<T, T>();
+		for (T next : theExisting) {
+			existing.put(next, next);
+		}
+
+		Set<T> retVal = new HashSet<T>();
+		for (Iterator<T> newIter = theNew.iterator(); newIter.hasNext();) {
+			T next = newIter.next();
+			// The newly extracted row must be on the left side of the comparison, since
+			// values loaded from the database may be subclasses (e.g. Timestamp vs Date)
+			T match = existing.remove(next);
+			if (match != null) {
+				newIter.remove();
+				retVal.add(match);
+			} else {
+				retVal.add(next);
+			}
+		}
+
+		theExisting.clear();
+		theExisting.addAll(existing.values());
+
+		return retVal;
+	}
+
 	private static List<BaseCodingDt> toBaseCodingList(List<IBaseCoding> theSecurityLabels) {
 		ArrayList<BaseCodingDt> retVal = new ArrayList<BaseCodingDt>(theSecurityLabels.size());
 		for (IBaseCoding next : theSecurityLabels) {
@@ -1684,35 +1772,6 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		return retVal;
 	}
 
-	protected static Long translateForcedIdToPid(String theResourceName, String theResourceId, IForcedIdDao theForcedIdDao) {
-		return translateForcedIdToPids(new IdDt(theResourceName, theResourceId), theForcedIdDao).get(0);
-	}
-
-	static List<Long> translateForcedIdToPids(IIdType theId, IForcedIdDao theForcedIdDao) {
-		Validate.isTrue(theId.hasIdPart());
-
-		if (isValidPid(theId)) {
-			return Collections.singletonList(theId.getIdPartAsLong());
-		} else {
-			List<ForcedId> forcedId;
-			if (theId.hasResourceType()) {
-				forcedId = theForcedIdDao.findByTypeAndForcedId(theId.getResourceType(), theId.getIdPart());
-			} else {
-				forcedId = theForcedIdDao.findByForcedId(theId.getIdPart());
-			}
-
-			if (forcedId.isEmpty() == false) {
-				List<Long> retVal = new ArrayList<Long>(forcedId.size());
-				for (ForcedId next : forcedId) {
-					retVal.add(next.getResourcePid());
-				}
-				return retVal;
-			} else {
-				throw new ResourceNotFoundException(theId);
-			}
-		}
-	}
-
 	public static SearchParameterMap translateMatchUrl(IDao theCallingDao, FhirContext theContext, String theMatchUrl, RuntimeResourceDefinition resourceDef) {
 		SearchParameterMap paramMap = new SearchParameterMap();
 		List<NameValuePair> parameters = translateMatchUrl(theMatchUrl);
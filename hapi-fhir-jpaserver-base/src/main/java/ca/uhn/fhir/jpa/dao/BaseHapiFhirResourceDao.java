@@ -47,7 +47,11 @@ import ca.uhn.fhir.jpa.dao.data.IResourceTableDao;
 import ca.uhn.fhir.jpa.dao.data.ISearchResultDao;
 import ca.uhn.fhir.jpa.entity.*;
 import ca.uhn.fhir.jpa.interceptor.IJpaServerInterceptor;
+import ca.uhn.fhir.jpa.search.ISearchCoordinatorSvc;
+import ca.uhn.fhir.jpa.search.ISearchReuseSvc;
+import ca.uhn.fhir.jpa.search.PersistedJpaBundleProvider;
 import ca.uhn.fhir.jpa.term.IHapiTerminologySvc;
+import ca.uhn.fhir.jpa.term.ITermValueSetMembershipSvc;
 import ca.uhn.fhir.jpa.util.DeleteConflict;
 import ca.uhn.fhir.jpa.util.StopWatch;
 import ca.uhn.fhir.jpa.util.jsonpatch.JsonPatchUtils;
@@ -88,11 +92,15 @@ public abstract class BaseHapiFhirResourceDao<T extends IBaseResource> extends B
 	protected IFulltextSearchSvc mySearchDao;
 	@Autowired()
 	protected ISearchResultDao mySearchResultDao;
+	@Autowired
+	private ISearchReuseSvc mySearchReuseSvc;
 	private String mySecondaryPrimaryKeyParamName;
 	@Autowired
 	private ISearchParamRegistry mySerarchParamRegistry;
 	@Autowired()
 	protected IHapiTerminologySvc myTerminologySvc;
+	@Autowired()
+	protected ITermValueSetMembershipSvc myValueSetMembershipSvc;
 
 	@Override
 	public void addTag(IIdType theId, TagTypeEnum theTagType, String theScheme, String theTerm, String theLabel) {
@@ -956,9 +964,37 @@ public abstract class BaseHapiFhirResourceDao<T extends IBaseResource> extends B
 		ActionRequestDetails requestDetails = new ActionRequestDetails(theParams.getRequestDetails(), getContext(), getResourceName(), null);
 		notifyInterceptors(RestOperationTypeEnum.SEARCH_TYPE, requestDetails);
 
-		SearchBuilder builder = new SearchBuilder(getContext(), myEntityManager, myPlatformTransactionManager, mySearchDao, mySearchResultDao, this, myResourceIndexedSearchParamUriDao, myForcedIdDao,
-				myTerminologySvc, mySerarchParamRegistry);
+		String queryString = null;
+		if (theParams.isPersistResults() && myDaoConfig.getReuseCachedSearchResultsForMillis() > 0) {
+			queryString = theParams.toNormalizedQueryString(getContext());
+			Search reusable = mySearchReuseSvc.findReusableSearch(getResourceName(), queryString, theParams);
+			if (reusable != null) {
+				ourLog.info("Reusing search {} for {}{}", new Object[] { reusable.getUuid(), getResourceName(), queryString });
+				return new PersistedJpaBundleProvider(reusable.getUuid(), this);
+			}
+		}
+
+		// Unfiltered searches which are paged using a keyset don't need their results stored
+		boolean keysetPaging = theParams.isEmpty() && myDaoConfig.isKeysetPagingForUnfilteredSearches();
+		if (theParams.isPersistResults() && myDaoConfig.isLoadSearchResultsInBackground() && !keysetPaging) {
+			final SearchParameterMap params = theParams;
+			Search search = SearchBuilder.newSearchEntity(params, getResourceName(), queryString);
+			mySearchCoordinatorSvc.submitSearch(search, new ISearchCoordinatorSvc.IPidLoader() {
+				@Override
+				public void loadPids(ISearchCoordinatorSvc.IPidCallback theCallback) {
+					SearchBuilder builder = new SearchBuilder(getContext(), myEntityManager, myPlatformTransactionManager, mySearchDao, mySearchResultDao, BaseHapiFhirResourceDao.this,
+							myResourceIndexedSearchParamUriDao, myTerminologySvc, myValueSetMembershipSvc, mySerarchParamRegistry);
+					builder.setType(getResourceType(), getResourceName());
+					builder.loadOrderedPids(params, theCallback);
+				}
+			});
+			return new PersistedJpaBundleProvider(search.getUuid(), this);
+		}
+
+		SearchBuilder builder = new SearchBuilder(getContext(), myEntityManager, myPlatformTransactionManager, mySearchDao, mySearchResultDao, this, myResourceIndexedSearchParamUriDao,
+				myTerminologySvc, myValueSetMembershipSvc, mySerarchParamRegistry);
 		builder.setType(getResourceType(), getResourceName());
+		builder.setSearchQueryString(queryString);
 		return builder.search(theParams);
 	}
 
@@ -985,8 +1021,8 @@ public abstract class BaseHapiFhirResourceDao<T extends IBaseResource> extends B
 	public Set<Long> searchForIdsWithAndOr(SearchParameterMap theParams) {
 		theParams.setPersistResults(false);
 
-		SearchBuilder builder = new SearchBuilder(getContext(), myEntityManager, myPlatformTransactionManager, mySearchDao, mySearchResultDao, this, myResourceIndexedSearchParamUriDao, myForcedIdDao,
-				myTerminologySvc, mySerarchParamRegistry);
+		SearchBuilder builder = new SearchBuilder(getContext(), myEntityManager, myPlatformTransactionManager, mySearchDao, mySearchResultDao, this, myResourceIndexedSearchParamUriDao,
+				myTerminologySvc, myValueSetMembershipSvc, mySerarchParamRegistry);
 		builder.setType(getResourceType(), getResourceName());
 		builder.search(theParams);
 		return builder.doGetPids();
@@ -22,8 +22,18 @@ import static org.apache.commons.lang3.StringUtils.isBlank;
  * #L%
  */
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.persistence.Query;
 import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
@@ -31,6 +41,8 @@ import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Root;
 
+import org.apache.commons.lang3.time.DateUtils;
+import org.apache.commons.lang3.time.DurationFormatUtils;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.transaction.PlatformTransactionManager;
@@ -43,6 +55,7 @@ import org.springframework.transaction.support.TransactionTemplate;
 import ca.uhn.fhir.jpa.dao.data.IForcedIdDao;
 import ca.uhn.fhir.jpa.dao.data.ITermConceptDao;
 import ca.uhn.fhir.jpa.entity.ForcedId;
+import ca.uhn.fhir.jpa.entity.ResourceHistoryTable;
 import ca.uhn.fhir.jpa.entity.ResourceTable;
 import ca.uhn.fhir.jpa.util.ReindexFailureException;
 import ca.uhn.fhir.jpa.util.StopWatch;
@@ -52,24 +65,61 @@ import ca.uhn.fhir.model.primitive.InstantDt;
 import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
 import ca.uhn.fhir.rest.method.RequestDetails;
 import ca.uhn.fhir.rest.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import ca.uhn.fhir.rest.server.interceptor.IServerInterceptor.ActionRequestDetails;
 
 public abstract class BaseHapiFhirSystemDao<T, MT> extends BaseHapiFhirDao<IBaseResource> implements IFhirSystemDao<T, MT> {
 
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BaseHapiFhirSystemDao.class);
+	private static final int REINDEX_CHUNK_SIZE = 100;
+	private static final long REINDEX_RECOUNT_MILLIS = DateUtils.MILLIS_PER_MINUTE;
 
 	@Autowired
 	private IForcedIdDao myForcedIdDao;
 
+	private ThreadPoolExecutor myReindexExecutor;
+
 	private ReentrantLock myReindexLock = new ReentrantLock(false);
 
+	/**
+	 * The number of resources requiring reindexing when they were last counted, less the
+	 * number reindexed since, or <code>null</code> if they need to be counted again
+	 */
+	private volatile Long myReindexRemainingCount;
+
+	private long myReindexRemainingCountedMillis;
+
+	private volatile ReindexStatus myReindexStatus;
+
 	@Autowired
 	private ITermConceptDao myTermConceptDao;
 
 	@Autowired
 	private PlatformTransactionManager myTxManager;
 
+	private long countResourcesRequiringReindexing() {
+		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+		txTemplate.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRED);
+		return txTemplate.execute(new TransactionCallback<Long>() {
+			@Override
+			public Long doInTransaction(TransactionStatus theStatus) {
+				TypedQuery<Long> q = myEntityManager.createQuery("SELECT COUNT(t) FROM " + ResourceTable.class.getSimpleName() + " t WHERE t.myIndexStatus IS null", Long.class);
+				return q.getSingleResult();
+			}
+		});
+	}
+
+	@Transactional(propagation = Propagation.REQUIRED)
+	@Override
+	public int deduplicateCurrentVersionBodies() {
+		ourLog.info("Removing history table copies of current version bodies");
+		String q = "UPDATE " + ResourceHistoryTable.class.getSimpleName() + " h SET h.myResource = null WHERE h.myResource IS NOT NULL AND EXISTS (SELECT r.myId FROM " + ResourceTable.class.getSimpleName() + " r WHERE r.myId = h.myResourceId AND r.myVersion = h.myResourceVersion)";
+		int retVal = myEntityManager.createQuery(q).executeUpdate();
+		ourLog.info("Removed {} duplicate bodies", retVal);
+		return retVal;
+	}
+
 	@Transactional(propagation = Propagation.REQUIRED)
 	@Override
 	public void deleteAllTagsOnServer(RequestDetails theRequestDetails) {
@@ -81,69 +131,154 @@ public abstract class BaseHapiFhirSystemDao<T, MT> extends BaseHapiFhirDao<IBase
 	}
 
 	private int doPerformReindexingPass(final Integer theCount) {
+		StopWatch sw = new StopWatch();
+
+		final int maxResult = theCount != null ? Math.min(theCount, 2000) : 500;
+
 		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
 		txTemplate.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRED);
-		int retVal = doPerformReindexingPassForResources(theCount, txTemplate);
-		return retVal;
-	}
-
-	private int doPerformReindexingPassForResources(final Integer theCount, TransactionTemplate txTemplate) {
-		return txTemplate.execute(new TransactionCallback<Integer>() {
-			@SuppressWarnings("unchecked")
+		List<Long> pids = txTemplate.execute(new TransactionCallback<List<Long>>() {
 			@Override
-			public Integer doInTransaction(TransactionStatus theStatus) {
-				TypedQuery<ResourceTable> q = myEntityManager.createQuery("SELECT t FROM " + ResourceTable.class.getSimpleName() + " t WHERE t.myIndexStatus IS null", ResourceTable.class);
-
-				int maxResult = 500;
-				if (theCount != null) {
-					maxResult = Math.min(theCount, 2000);
-				}
+			public List<Long> doInTransaction(TransactionStatus theStatus) {
+				TypedQuery<Long> q = myEntityManager.createQuery("SELECT t.myId FROM " + ResourceTable.class.getSimpleName() + " t WHERE t.myIndexStatus IS null ORDER BY t.myId", Long.class);
 
 				q.setMaxResults(maxResult);
-				List<ResourceTable> resources = q.getResultList();
-				if (resources.isEmpty()) {
-					return 0;
-				}
+				return q.getResultList();
+			}
+		});
+		if (pids.isEmpty()) {
+			myReindexRemainingCount = 0L;
+			return 0;
+		}
+
+		/*
+		 * Split the pass into chunks of adjacent PIDs, each of which is reindexed in
+		 * its own transaction. The index status column is only set once a chunk
+		 * commits, so a pass which is interrupted (e.g. by a restart) resumes with
+		 * whatever hadn't been committed yet.
+		 */
+		int threadCount = getConfig().getReindexThreadCount();
+		int chunkSize = Math.max(1, Math.min(REINDEX_CHUNK_SIZE, (pids.size() + threadCount - 1) / threadCount));
+		List<List<Long>> chunks = new ArrayList<List<Long>>();
+		for (int i = 0; i < pids.size(); i += chunkSize) {
+			chunks.add(pids.subList(i, Math.min(i + chunkSize, pids.size())));
+		}
+		threadCount = Math.min(threadCount, chunks.size());
+
+		ourLog.info("Indexing {} resources in {} chunk(s) using {} thread(s)", new Object[] { pids.size(), chunks.size(), threadCount });
 
-				ourLog.info("Indexing {} resources", resources.size());
-
-				int count = 0;
-				long start = System.currentTimeMillis();
-
-				for (ResourceTable resourceTable : resources) {
-					try {
-						/*
-						 * This part is because from HAPI 1.5 - 1.6 we changed the format of forced ID to be "type/id" instead of just "id"
-						 */
-						ForcedId forcedId = resourceTable.getForcedId();
-						if (forcedId != null) {
-							if (isBlank(forcedId.getResourceType())) {
-								ourLog.info("Updating resource {} forcedId type to {}", forcedId.getForcedId(), resourceTable.getResourceType());
-								forcedId.setResourceType(resourceTable.getResourceType());
-								myForcedIdDao.save(forcedId);
-							}
+		int failures = 0;
+		if (threadCount == 1) {
+			for (List<Long> nextChunk : chunks) {
+				failures += doReindexChunk(nextChunk);
+			}
+		} else {
+			resizeReindexExecutor(threadCount);
+			List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+			try {
+				for (final List<Long> nextChunk : chunks) {
+					futures.add(myReindexExecutor.submit(new Callable<Integer>() {
+						@Override
+						public Integer call() {
+							return doReindexChunk(nextChunk);
 						}
+					}));
+				}
+				for (Future<Integer> nextFuture : futures) {
+					failures += nextFuture.get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InternalErrorException(e);
+			} catch (ExecutionException e) {
+				throw new InternalErrorException(e.getCause());
+			} finally {
+				for (Future<Integer> nextFuture : futures) {
+					nextFuture.cancel(true);
+				}
+			}
+		}
+
+		long delay = Math.max(1, sw.getMillis());
+		long remaining = updateReindexRemainingCount(pids.size(), maxResult);
+		ReindexStatus status = new ReindexStatus(pids.size(), failures, delay, new Date(), remaining);
+		myReindexStatus = status;
 
-						final IBaseResource resource = toResource(resourceTable, false);
+		String eta = DurationFormatUtils.formatDuration(status.getEstimatedMillisRemaining(), "HH:mm:ss");
+		ourLog.info("Indexed {} resources ({} failed) in {}ms - {} resources/sec - {} remaining, ETA {}", new Object[] { pids.size(), failures, delay, (long) status.getResourcesPerSecond(), remaining, eta });
 
-						@SuppressWarnings("rawtypes")
-						final IFhirResourceDao dao = getDao(resource.getClass());
+		if (failures > 0) {
+			return -1;
+		}
+		return pids.size();
+	}
 
-						dao.reindex(resource, resourceTable);
-					} catch (Exception e) {
-						ourLog.error("Failed to index resource {}: {}", new Object[] { resourceTable.getIdDt(), e.toString(), e });
-						throw new ReindexFailureException(resourceTable.getId());
+	/**
+	 * Reindexes the given resources in a single new transaction. If any resource
+	 * fails (including failures which only surface when the transaction is flushed
+	 * or committed, such as constraint violations), the chunk is rolled back and its
+	 * resources are retried one at a time so that only the resource(s) which actually
+	 * failed are marked as failed.
+	 * 
+	 * @return The number of resources which failed to reindex
+	 */
+	private int doReindexChunk(final List<Long> thePids) {
+		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+		txTemplate.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRES_NEW);
+		try {
+			txTemplate.execute(new TransactionCallback<Void>() {
+				@Override
+				public Void doInTransaction(TransactionStatus theStatus) {
+					TypedQuery<ResourceTable> q = myEntityManager.createQuery("SELECT t FROM " + ResourceTable.class.getSimpleName() + " t WHERE t.myId IN (:pids) AND t.myIndexStatus IS null", ResourceTable.class);
+					q.setParameter("pids", thePids);
+					for (ResourceTable resourceTable : q.getResultList()) {
+						doReindexResource(resourceTable);
 					}
-					count++;
+					return null;
 				}
+			});
+			return 0;
+		} catch (RuntimeException e) {
+			if (thePids.size() == 1) {
+				if (!(e instanceof ReindexFailureException)) {
+					ourLog.error("Failed to index resource with PID {}: {}", new Object[] { thePids.get(0), e.toString(), e });
+				}
+				markResourceAsIndexingFailed(thePids.get(0));
+				return 1;
+			}
+			ourLog.info("Failure in chunk of {} resources, retrying them individually", thePids.size());
+			int retVal = 0;
+			for (Long next : thePids) {
+				retVal += doReindexChunk(Collections.singletonList(next));
+			}
+			return retVal;
+		}
+	}
 
-				long delay = System.currentTimeMillis() - start;
-				long avg = (delay / resources.size());
-				ourLog.info("Indexed {} / {} resources in {}ms - Avg {}ms / resource", new Object[] { count, resources.size(), delay, avg });
-
-				return resources.size();
+	private void doReindexResource(ResourceTable resourceTable) {
+		try {
+			/*
+			 * This part is because from HAPI 1.5 - 1.6 we changed the format of forced ID to be "type/id" instead of just "id"
+			 */
+			ForcedId forcedId = resourceTable.getForcedId();
+			if (forcedId != null) {
+				if (isBlank(forcedId.getResourceType())) {
+					ourLog.info("Updating resource {} forcedId type to {}", forcedId.getForcedId(), resourceTable.getResourceType());
+					forcedId.setResourceType(resourceTable.getResourceType());
+					myForcedIdDao.save(forcedId);
+				}
 			}
-		});
+
+			final IBaseResource resource = toResource(resourceTable, false);
+
+			@SuppressWarnings("rawtypes")
+			final IFhirResourceDao dao = getDao(resource.getClass());
+
+			dao.reindex(resource, resourceTable);
+		} catch (Exception e) {
+			ourLog.error("Failed to index resource {}: {}", new Object[] { resourceTable.getIdDt(), e.toString(), e });
+			throw new ReindexFailureException(resourceTable.getId());
+		}
 	}
 
 	@Override
@@ -158,6 +293,11 @@ public abstract class BaseHapiFhirSystemDao<T, MT> extends BaseHapiFhirDao<IBase
 		return retVal;
 	}
 
+	@Override
+	public ReindexStatus getReindexStatus() {
+		return myReindexStatus;
+	}
+
 	@Override
 	public Map<String, Long> getResourceCounts() {
 		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
@@ -210,6 +350,7 @@ public abstract class BaseHapiFhirSystemDao<T, MT> extends BaseHapiFhirDao<IBase
 		retVal += myTermConceptDao.markAllForReindexing();
 		
 		ourLog.info("Done marking reindexing");
+		myReindexRemainingCount = null;
 		return retVal;
 	}
 
@@ -278,19 +419,64 @@ public abstract class BaseHapiFhirSystemDao<T, MT> extends BaseHapiFhirDao<IBase
 		}
 		try {
 			return doPerformReindexingPass(theCount);
-		} catch (ReindexFailureException e) {
-			ourLog.warn("Reindexing failed for resource {}", e.getResourceId());
-			markResourceAsIndexingFailed(e.getResourceId());
-			return -1;
 		} finally {
 			myReindexLock.unlock();
 		}
 	}
 
+	/**
+	 * Works out how many resources still need reindexing after a pass. A pass which found
+	 * fewer resources than it asked for has caught up, so nothing is counted. Otherwise the
+	 * database is only counted if it hasn't been for a while, since other code (e.g. saving
+	 * a SearchParameter) can mark resources for reindexing at any time, and in between the
+	 * count is reduced by the number of resources reindexed.
+	 */
+	private long updateReindexRemainingCount(int theProcessedCount, int theMaxResult) {
+		long now = System.currentTimeMillis();
+		Long previous = myReindexRemainingCount;
+		long retVal;
+		if (theProcessedCount < theMaxResult) {
+			retVal = 0;
+		} else if (previous == null || previous == 0 || now - myReindexRemainingCountedMillis > REINDEX_RECOUNT_MILLIS) {
+			retVal = countResourcesRequiringReindexing();
+			myReindexRemainingCountedMillis = now;
+		} else {
+			retVal = Math.max(0, previous - theProcessedCount);
+		}
+		myReindexRemainingCount = retVal;
+		return retVal;
+	}
+
+	/**
+	 * Resizes the worker pool if the configured thread count has changed since the
+	 * last pass
+	 */
+	private void resizeReindexExecutor(int theThreadCount) {
+		if (theThreadCount > myReindexExecutor.getMaximumPoolSize()) {
+			myReindexExecutor.setMaximumPoolSize(theThreadCount);
+			myReindexExecutor.setCorePoolSize(theThreadCount);
+		} else if (theThreadCount < myReindexExecutor.getMaximumPoolSize()) {
+			myReindexExecutor.setCorePoolSize(theThreadCount);
+			myReindexExecutor.setMaximumPoolSize(theThreadCount);
+		}
+	}
+
 	public void setTxManager(PlatformTransactionManager theTxManager) {
 		myTxManager = theTxManager;
 	}
 
+	@PostConstruct
+	public void startReindexExecutor() {
+		int threadCount = getConfig().getReindexThreadCount();
+		myReindexExecutor = new ThreadPoolExecutor(threadCount, threadCount, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(), new ReindexThreadFactory());
+		myReindexExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	@PreDestroy
+	public void stopReindexExecutor() {
+		myReindexExecutor.shutdownNow();
+	}
+
 	protected ResourceTable tryToLoadEntity(IdDt nextId) {
 		ResourceTable entity;
 		try {
@@ -302,5 +488,15 @@ public abstract class BaseHapiFhirSystemDao<T, MT> extends BaseHapiFhirDao<IBase
 		return entity;
 	}
 
+	private static class ReindexThreadFactory implements ThreadFactory {
+		private final AtomicInteger myThreadIndex = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable theRunnable) {
+			Thread retVal = new Thread(theRunnable, "reindex-" + myThreadIndex.incrementAndGet());
+			retVal.setDaemon(true);
+			return retVal;
+		}
+	}
 
 }
@@ -43,11 +43,23 @@ public class DaoConfig {
 	private boolean myAllowInlineMatchUrlReferences = false;
 
 	private boolean myAllowMultipleDelete;
+	// ***
+	// update setter javadoc if default changes
+	// ***
+	private boolean myDeduplicateCurrentVersionBody = false;
 	private boolean myDefaultSearchParamsCanBeOverridden = false;
 	// ***
 	// update setter javadoc if default changes
 	// ***
+	private boolean myDeferConceptFullTextIndexing = false;
+	// ***
+	// update setter javadoc if default changes
+	// ***
 	private int myDeferIndexingForCodesystemsOfSize = 2000;
+	// ***
+	// update setter javadoc if default changes
+	// ***
+	private Integer myDeferredConceptSaveBatchSize;
 	private boolean myDeleteStaleSearches = true;
 
 	// ***
@@ -55,27 +67,88 @@ public class DaoConfig {
 	// ***
 	private long myExpireSearchResultsAfterMillis = DateUtils.MILLIS_PER_HOUR;
 
+	// ***
+	// update setter javadoc if default changes
+	// ***
+	private long myExpireSearchResultsTimeBudgetMillis = DateUtils.MILLIS_PER_MINUTE;
+
 	private int myHardTagListLimit = 1000;
 
+	// ***
+	// update setter javadoc if default changes
+	// ***
+	private Integer myHistoryCountLookahead = null;
+
 	private int myIncludeLimit = 2000;
 
+	// ***
+	// update setter javadoc if default changes
+	// ***
+	private int myIncludeQueryChunkSize = 500;
+
 	// ***
 	// update setter javadoc if default changes
 	// ***
 	private boolean myIndexContainedResources = true;
 
 	private List<IServerInterceptor> myInterceptors;
+
+	// ***
+	// update setter javadoc if default changes
+	// ***
+	private int myKeysetPagingCountLookahead = 1000;
+
+	// ***
+	// update setter javadoc if default changes
+	// ***
+	private boolean myKeysetPagingForUnfilteredSearches = false;
+
+	// ***
+	// update setter javadoc if default changes
+	// ***
+	private boolean myLoadSearchResultsInBackground = false;
+
 	// ***
 	// update setter javadoc if default changes
 	// ***
 	private int myMaximumExpansionSize = 5000;
 
+	// ***
+	// update setter javadoc if default changes
+	// ***
+	private int myReindexThreadCount = 1;
+
+	// ***
+	// update setter javadoc if default changes
+	// ***
+	private long myResourceBodyCacheMaxChars = 0;
+
 	private ResourceEncodingEnum myResourceEncoding = ResourceEncodingEnum.JSONC;
 
+	// ***
+	// update setter javadoc if default changes
+	// ***
+	private int myResourceEncodingDictionaryVersion = DictionaryDeflateUtil.CURRENT_DICTIONARY_VERSION;
+
+	// ***
+	// update setter javadoc if default changes
+	// ***
+	private long myReuseCachedSearchResultsForMillis = 0;
+
 	private boolean mySchedulingDisabled;
 
+	// ***
+	// update setter javadoc if default changes
+	// ***
+	private boolean myStoreTokenModifierExpansions = false;
+
 	private boolean mySubscriptionEnabled;
 
+	// ***
+	// update setter javadoc if default changes
+	// ***
+	private boolean mySubscriptionMatchOnWrite = false;
+
 	private long mySubscriptionPollDelay = 1000;
 
 	private Long mySubscriptionPurgeInactiveAfterMillis;
@@ -94,6 +167,15 @@ public class DaoConfig {
 		return myDeferIndexingForCodesystemsOfSize;
 	}
 
+	/**
+	 * See {@link #setDeferredConceptSaveBatchSize(Integer)}
+	 * 
+	 * @since 2.4
+	 */
+	public Integer getDeferredConceptSaveBatchSize() {
+		return myDeferredConceptSaveBatchSize;
+	}
+
 	/**
 	 * Sets the number of milliseconds that search results for a given client search
 	 * should be preserved before being purged from the database.
@@ -114,6 +196,15 @@ public class DaoConfig {
 		return myExpireSearchResultsAfterMillis;
 	}
 
+	/**
+	 * See {@link #setExpireSearchResultsTimeBudgetMillis(long)}
+	 * 
+	 * @since 2.4
+	 */
+	public long getExpireSearchResultsTimeBudgetMillis() {
+		return myExpireSearchResultsTimeBudgetMillis;
+	}
+
 	/**
 	 * Gets the maximum number of results to return in a GetTags query (DSTU1 only)
 	 */
@@ -121,10 +212,26 @@ public class DaoConfig {
 		return myHardTagListLimit;
 	}
 
+	/**
+	 * See {@link #setHistoryCountLookahead(Integer)}
+	 * 
+	 * @since 2.4
+	 */
+	public Integer getHistoryCountLookahead() {
+		return myHistoryCountLookahead;
+	}
+
 	public int getIncludeLimit() {
 		return myIncludeLimit;
 	}
 
+	/**
+	 * See {@link #setIncludeQueryChunkSize(int)}
+	 */
+	public int getIncludeQueryChunkSize() {
+		return myIncludeQueryChunkSize;
+	}
+
 	/**
 	 * Returns the interceptors which will be notified of operations.
 	 * 
@@ -147,10 +254,46 @@ public class DaoConfig {
 		return myMaximumExpansionSize;
 	}
 
+	/**
+	 * See {@link #setReindexThreadCount(int)}
+	 * 
+	 * @since 2.4
+	 */
+	public int getReindexThreadCount() {
+		return myReindexThreadCount;
+	}
+
+	/**
+	 * See {@link #setResourceBodyCacheMaxChars(long)}
+	 * 
+	 * @since 2.4
+	 */
+	public long getResourceBodyCacheMaxChars() {
+		return myResourceBodyCacheMaxChars;
+	}
+
 	public ResourceEncodingEnum getResourceEncoding() {
 		return myResourceEncoding;
 	}
 
+	/**
+	 * See {@link #setResourceEncodingDictionaryVersion(int)}
+	 * 
+	 * @since 2.4
+	 */
+	public int getResourceEncodingDictionaryVersion() {
+		return myResourceEncodingDictionaryVersion;
+	}
+
+	/**
+	 * See {@link #setReuseCachedSearchResultsForMillis(long)}
+	 * 
+	 * @since 2.4
+	 */
+	public long getReuseCachedSearchResultsForMillis() {
+		return myReuseCachedSearchResultsForMillis;
+	}
+
 	public long getSubscriptionPollDelay() {
 		return mySubscriptionPollDelay;
 	}
@@ -214,6 +357,15 @@ public class DaoConfig {
 		return myAllowMultipleDelete;
 	}
 
+	/**
+	 * See {@link #setDeduplicateCurrentVersionBody(boolean)}
+	 * 
+	 * @since 2.4
+	 */
+	public boolean isDeduplicateCurrentVersionBody() {
+		return myDeduplicateCurrentVersionBody;
+	}
+
 	/**
 	 * If set to {@code true} the default search params (i.e. the search parameters that are
 	 * defined by the FHIR specification itself) may be overridden by uploading search
@@ -230,6 +382,15 @@ public class DaoConfig {
 		return myDefaultSearchParamsCanBeOverridden;
 	}
 
+	/**
+	 * See {@link #setDeferConceptFullTextIndexing(boolean)}
+	 * 
+	 * @since 2.4
+	 */
+	public boolean isDeferConceptFullTextIndexing() {
+		return myDeferConceptFullTextIndexing;
+	}
+
 	/**
 	 * If this is set to <code>false</code> (default is <code>true</code>) the stale search deletion
 	 * task will be disabled (meaning that search results will be retained in the database indefinitely). USE WITH CAUTION.
@@ -250,10 +411,46 @@ public class DaoConfig {
 		return myIndexContainedResources;
 	}
 
+	/**
+	 * See {@link #setKeysetPagingCountLookahead(int)}
+	 * 
+	 * @since 2.4
+	 */
+	public int getKeysetPagingCountLookahead() {
+		return myKeysetPagingCountLookahead;
+	}
+
+	/**
+	 * See {@link #setKeysetPagingForUnfilteredSearches(boolean)}
+	 * 
+	 * @since 2.4
+	 */
+	public boolean isKeysetPagingForUnfilteredSearches() {
+		return myKeysetPagingForUnfilteredSearches;
+	}
+
+	/**
+	 * See {@link #setLoadSearchResultsInBackground(boolean)}
+	 * 
+	 * @since 2.4
+	 */
+	public boolean isLoadSearchResultsInBackground() {
+		return myLoadSearchResultsInBackground;
+	}
+
 	public boolean isSchedulingDisabled() {
 		return mySchedulingDisabled;
 	}
 
+	/**
+	 * See {@link #setStoreTokenModifierExpansions(boolean)}
+	 * 
+	 * @since 2.4
+	 */
+	public boolean isStoreTokenModifierExpansions() {
+		return myStoreTokenModifierExpansions;
+	}
+
 	/**
 	 * See {@link #setSubscriptionEnabled(boolean)}
 	 */
@@ -261,6 +458,15 @@ public class DaoConfig {
 		return mySubscriptionEnabled;
 	}
 
+	/**
+	 * See {@link #setSubscriptionMatchOnWrite(boolean)}
+	 * 
+	 * @since 2.4
+	 */
+	public boolean isSubscriptionMatchOnWrite() {
+		return mySubscriptionMatchOnWrite;
+	}
+
 	/**
 	 * If set to <code>true</code> (default is <code>false</code>) the server will allow
 	 * resources to have references to external servers. For example if this server is
@@ -309,6 +515,30 @@ public class DaoConfig {
 		myAllowMultipleDelete = theAllowMultipleDelete;
 	}
 
+	/**
+	 * If set to <code>true</code> (default is <code>false</code>) the body of the current
+	 * version of each resource is only stored in the resource table (<code>HFJ_RESOURCE</code>),
+	 * and the history table (<code>HFJ_RES_VER</code>) only stores the bodies of previous
+	 * versions. The body is moved into the history table when the resource is next updated.
+	 * This roughly halves the space used by resource bodies, as well as the amount written
+	 * when a resource is created.
+	 * <p>
+	 * Existing databases must make the <code>HFJ_RES_VER.RES_TEXT</code> column nullable
+	 * before enabling this setting. Bodies which are already stored twice can then be
+	 * removed using {@link IFhirSystemDao#deduplicateCurrentVersionBodies()}.
+	 * </p>
+	 * <p>
+	 * This setting may be turned off again at any time. Missing history bodies are always
+	 * copied from the resource table when a resource is updated, regardless of this setting,
+	 * so current versions stored while it was enabled are not lost.
+	 * </p>
+	 * 
+	 * @since 2.4
+	 */
+	public void setDeduplicateCurrentVersionBody(boolean theDeduplicateCurrentVersionBody) {
+		myDeduplicateCurrentVersionBody = theDeduplicateCurrentVersionBody;
+	}
+
 	/**
 	 * If set to {@code true} the default search params (i.e. the search parameters that are
 	 * defined by the FHIR specification itself) may be overridden by uploading search
@@ -325,6 +555,24 @@ public class DaoConfig {
 		myDefaultSearchParamsCanBeOverridden = theDefaultSearchParamsCanBeOverridden;
 	}
 
+	/**
+	 * If set to <code>true</code>, the concepts of large code systems which are saved by
+	 * the background process (see {@link #setDeferIndexingForCodesystemsOfSize(int)}) are
+	 * not added to the full-text index as they are saved. Instead, they are indexed in bulk
+	 * by the background reindexing process, which starts as soon as all of the deferred
+	 * concepts and relationships have been saved. This makes saving much faster, but
+	 * hierarchy (e.g. <code>is-a</code>) filters in ValueSet expansions will not
+	 * include these concepts until they have been indexed.
+	 * <p>
+	 * Default is <code>false</code>
+	 * </p>
+	 * 
+	 * @since 2.4
+	 */
+	public void setDeferConceptFullTextIndexing(boolean theDeferConceptFullTextIndexing) {
+		myDeferConceptFullTextIndexing = theDeferConceptFullTextIndexing;
+	}
+
 	/**
 	 * When a code system is added that contains more than this number of codes,
 	 * the code system will be indexed later in an incremental process in order to
@@ -337,6 +585,26 @@ public class DaoConfig {
 		myDeferIndexingForCodesystemsOfSize = theDeferIndexingForCodesystemsOfSize;
 	}
 
+	/**
+	 * Sets the maximum number of concepts (or relationships between concepts) which are
+	 * saved in each pass of the background process which saves the concepts of large
+	 * code systems (see {@link #setDeferIndexingForCodesystemsOfSize(int)}), and the number
+	 * of concepts which are full-text indexed in each pass of the background reindexing
+	 * process. Larger batches load large code systems such as SNOMED CT much faster, at
+	 * the cost of longer database transactions.
+	 * <p>
+	 * Default is <code>null</code>, which means that the value of
+	 * {@link #getDeferIndexingForCodesystemsOfSize()} is used for saving, and that 1000
+	 * concepts are indexed in each reindexing pass.
+	 * </p>
+	 * 
+	 * @since 2.4
+	 */
+	public void setDeferredConceptSaveBatchSize(Integer theDeferredConceptSaveBatchSize) {
+		Validate.isTrue(theDeferredConceptSaveBatchSize == null || theDeferredConceptSaveBatchSize > 0, "theDeferredConceptSaveBatchSize must be null or > 0");
+		myDeferredConceptSaveBatchSize = theDeferredConceptSaveBatchSize;
+	}
+
 	/**
 	 * If this is set to <code>false</code> (default is <code>true</code>) the stale search deletion
 	 * task will be disabled (meaning that search results will be retained in the database indefinitely). USE WITH CAUTION.
@@ -368,6 +636,23 @@ public class DaoConfig {
 		myExpireSearchResultsAfterMillis = theExpireSearchResultsAfterMillis;
 	}
 
+	/**
+	 * Sets the maximum number of milliseconds that a single pass of the stale search
+	 * deleter may spend deleting expired searches. Searches and their results are
+	 * deleted in bounded batches, each in its own short transaction, and the pass stops
+	 * starting new batches once this time has elapsed. Any remaining expired searches
+	 * are deleted by the following passes.
+	 * <p>
+	 * Default is <code>60000</code> (1 minute)
+	 * </p>
+	 * 
+	 * @since 2.4
+	 */
+	public void setExpireSearchResultsTimeBudgetMillis(long theExpireSearchResultsTimeBudgetMillis) {
+		Validate.isTrue(theExpireSearchResultsTimeBudgetMillis > 0, "theExpireSearchResultsTimeBudgetMillis must be > 0");
+		myExpireSearchResultsTimeBudgetMillis = theExpireSearchResultsTimeBudgetMillis;
+	}
+
 	/**
 	 * Do not call this method, it exists only for legacy reasons. It
 	 * will be removed in a future version. Configure the page size on your
@@ -388,6 +673,30 @@ public class DaoConfig {
 		myHardTagListLimit = theHardTagListLimit;
 	}
 
+	/**
+	 * If set to a non-null value, the total number of results for a <code>_history</code>
+	 * operation is not counted when the operation is performed. Instead, each time the total is
+	 * requested it is estimated as the number of versions already paged through plus the number
+	 * of remaining versions, counting no more than this many of them. This means that the
+	 * total reported to clients is a lower bound until the last pages are reached, but the cost
+	 * of loading a page no longer depends on the size of the history table.
+	 * <p>
+	 * If more versions remain than are counted, the estimate is one higher than the number
+	 * counted, so clients are always offered a following page even if this is smaller than
+	 * their page size. It does not need to be larger than a page, but a larger value gives
+	 * clients a closer estimate.
+	 * </p>
+	 * <p>
+	 * Default is <code>null</code>, meaning that the total is counted exactly
+	 * </p>
+	 * 
+	 * @since 2.4
+	 */
+	public void setHistoryCountLookahead(Integer theHistoryCountLookahead) {
+		Validate.isTrue(theHistoryCountLookahead == null || theHistoryCountLookahead > 0, "theHistoryCountLookahead must be null or > 0");
+		myHistoryCountLookahead = theHistoryCountLookahead;
+	}
+
 	/**
 	 * This is the maximum number of resources that will be added to a single page of returned resources. Because of
 	 * includes with wildcards and other possibilities it is possible for a client to make requests that include very
@@ -397,6 +706,22 @@ public class DaoConfig {
 		myIncludeLimit = theIncludeLimit;
 	}
 
+	/**
+	 * The maximum number of resource PIDs which will be placed in the IN clause of a
+	 * single query when loading <code>_include</code> and <code>_revinclude</code> targets.
+	 * Larger sets of PIDs are split across several queries. Some databases (e.g. Oracle)
+	 * limit the size of an IN clause, so this should not be set above 1000.
+	 * <p>
+	 * Default is 500
+	 * </p>
+	 * 
+	 * @since 2.4
+	 */
+	public void setIncludeQueryChunkSize(int theIncludeQueryChunkSize) {
+		Validate.isTrue(theIncludeQueryChunkSize > 0, "theIncludeQueryChunkSize must be > 0");
+		myIncludeQueryChunkSize = theIncludeQueryChunkSize;
+	}
+
 	/**
 	 * Should contained IDs be indexed the same way that non-contained IDs are (default is
 	 * <code>true</code>)
@@ -430,23 +755,194 @@ public class DaoConfig {
 		myInterceptors = theInterceptors;
 	}
 
+	/**
+	 * Searches which are paged using a keyset (see {@link #setKeysetPagingForUnfilteredSearches(boolean)})
+	 * never count their total number of results. Instead, each time the total is requested
+	 * it is estimated as the number of resources already paged through plus the number of
+	 * remaining resources, counting no more than this many of them. If more resources remain
+	 * than are counted, the estimate is one higher than the number counted, so clients are
+	 * always offered a following page.
+	 * <p>
+	 * Default is <code>1000</code>
+	 * </p>
+	 * 
+	 * @since 2.4
+	 */
+	public void setKeysetPagingCountLookahead(int theKeysetPagingCountLookahead) {
+		Validate.isTrue(theKeysetPagingCountLookahead > 0, "theKeysetPagingCountLookahead must be > 0");
+		myKeysetPagingCountLookahead = theKeysetPagingCountLookahead;
+	}
+
+	/**
+	 * If set to <code>true</code>, searches which have no parameters other than
+	 * <code>_lastUpdated</code> (e.g. <code>GET /Patient</code>) and no sort will not have
+	 * their matching resource IDs stored in the database. Instead, only a small cursor
+	 * (the offset and resource ID of the last returned result) is stored with the search
+	 * and each page is loaded directly from the resource table using a keyset
+	 * (<code>RES_ID &gt; lastSeen</code>) query. This makes the time to return the first
+	 * page independent of the total number of matching resources.
+	 * <p>
+	 * Note that in this mode results are returned in order of resource ID, and resources
+	 * created or deleted after the initial search may be reflected in subsequent pages.
+	 * The total number of results is not counted either, but estimated as pages are loaded
+	 * (see {@link #setKeysetPagingCountLookahead(int)}).
+	 * </p>
+	 * <p>
+	 * Searches with any other parameters, or with a sort, are not affected by this setting.
+	 * </p>
+	 * <p>
+	 * Default is <code>false</code>
+	 * </p>
+	 * 
+	 * @since 2.4
+	 */
+	public void setKeysetPagingForUnfilteredSearches(boolean theKeysetPagingForUnfilteredSearches) {
+		myKeysetPagingForUnfilteredSearches = theKeysetPagingForUnfilteredSearches;
+	}
+
+	/**
+	 * If set to <code>true</code>, searches are run on a background thread, and the
+	 * search returns as soon as it has been registered. The matching resource IDs are
+	 * then stored in batches, and a page of results is returned as soon as the IDs for
+	 * that page are available instead of when all of them have been stored. Pages
+	 * requested from this server are served from memory while the IDs are still being
+	 * stored, and other servers wait until the IDs for the page have been stored.
+	 * <p>
+	 * Note that the search runs in its own transaction, so it will not see resources
+	 * written by an uncommitted transaction which performs the search.
+	 * </p>
+	 * <p>
+	 * Default is <code>false</code>
+	 * </p>
+	 * 
+	 * @since 2.4
+	 */
+	public void setLoadSearchResultsInBackground(boolean theLoadSearchResultsInBackground) {
+		myLoadSearchResultsInBackground = theLoadSearchResultsInBackground;
+	}
+
 	/**
 	 * Sets the maximum number of codes that will be added to a valueset expansion before
 	 * the operation will be failed as too costly
+	 * <p>
+	 * This also applies to a ConceptSet with filters on a code system stored in the
+	 * terminology tables, which is expanded for <code>$expand</code> and for token searches
+	 * using <code>:in</code>. Such an expansion which matches more codes than this fails,
+	 * where before 2.4 it was silently cut off after the first 1000 codes. Applies whether
+	 * or not expansions are stored (see {@link #setStoreTokenModifierExpansions(boolean)}).
+	 * </p>
 	 */
 	public void setMaximumExpansionSize(int theMaximumExpansionSize) {
 		Validate.isTrue(theMaximumExpansionSize > 0, "theMaximumExpansionSize must be > 0");
 		myMaximumExpansionSize = theMaximumExpansionSize;
 	}
 
+	/**
+	 * Sets the number of worker threads used by a reindexing pass. Resources needing
+	 * reindexing are split into chunks of adjacent resource IDs, and each chunk is
+	 * reindexed in its own transaction by one of these threads.
+	 * <p>
+	 * Default is <code>1</code>, meaning that reindexing happens in the calling thread
+	 * </p>
+	 * 
+	 * @since 2.4
+	 */
+	public void setReindexThreadCount(int theReindexThreadCount) {
+		Validate.isTrue(theReindexThreadCount > 0, "theReindexThreadCount must be > 0");
+		myReindexThreadCount = theReindexThreadCount;
+	}
+
+	/**
+	 * Sets the maximum total size (in characters) of the decompressed resource bodies
+	 * which are kept in memory so that frequently read resource versions do not need to
+	 * be decompressed from the database on every read. Entries are keyed by resource
+	 * ID and version, and the least recently used entries are evicted once the limit is
+	 * reached.
+	 * <p>
+	 * Default is <code>0</code>, which disables the cache
+	 * </p>
+	 * 
+	 * @since 2.4
+	 */
+	public void setResourceBodyCacheMaxChars(long theResourceBodyCacheMaxChars) {
+		Validate.isTrue(theResourceBodyCacheMaxChars >= 0, "theResourceBodyCacheMaxChars must be >= 0");
+		myResourceBodyCacheMaxChars = theResourceBodyCacheMaxChars;
+	}
+
 	public void setResourceEncoding(ResourceEncodingEnum theResourceEncoding) {
 		myResourceEncoding = theResourceEncoding;
 	}
 
+	/**
+	 * Sets the version of the compression dictionary used to store new resource bodies
+	 * when the resource encoding is {@link ResourceEncodingEnum#JSOND}. Versions other
+	 * than the built in one are trained from a server's own resources and must be
+	 * available to every server reading the database (see {@link DictionaryDeflateUtil}).
+	 * Bodies which were stored with an earlier version stay readable.
+	 * <p>
+	 * Default is <code>1</code>
+	 * </p>
+	 * 
+	 * @since 2.4
+	 */
+	public void setResourceEncodingDictionaryVersion(int theResourceEncodingDictionaryVersion) {
+		Validate.isTrue(theResourceEncodingDictionaryVersion >= 1 && theResourceEncodingDictionaryVersion <= 255, "theResourceEncodingDictionaryVersion must be between 1 and 255");
+		myResourceEncodingDictionaryVersion = theResourceEncodingDictionaryVersion;
+	}
+
+	/**
+	 * If a search is performed which is identical to a search that was performed within
+	 * this many milliseconds, and no resources of the searched type have been created,
+	 * updated or deleted since then, the results of the earlier search are returned
+	 * instead of running the search again. Searches are considered identical if they
+	 * have the same parameters, includes, sort and page size, regardless of the order
+	 * in which the parameters were given.
+	 * <p>
+	 * Searches are only reused within the first half of
+	 * {@link #setExpireSearchResultsAfterMillis(long)}, so that a client which is handed an
+	 * earlier search still has time to page through it before it expires. Searches which
+	 * are paged using a keyset (see {@link #setKeysetPagingForUnfilteredSearches(boolean)})
+	 * are never reused, since they store the position of the last page loaded.
+	 * </p>
+	 * <p>
+	 * Default is <code>0</code>, which disables reuse
+	 * </p>
+	 * 
+	 * @since 2.4
+	 */
+	public void setReuseCachedSearchResultsForMillis(long theReuseCachedSearchResultsForMillis) {
+		Validate.isTrue(theReuseCachedSearchResultsForMillis >= 0, "theReuseCachedSearchResultsForMillis must be >= 0");
+		myReuseCachedSearchResultsForMillis = theReuseCachedSearchResultsForMillis;
+	}
+
 	public void setSchedulingDisabled(boolean theSchedulingDisabled) {
 		mySchedulingDisabled = theSchedulingDisabled;
 	}
 
+	/**
+	 * If set to <code>true</code>, token searches using the <code>:in</code>, <code>:below</code>
+	 * and <code>:above</code> modifiers store the expanded set of codes in a membership table
+	 * (<code>TRM_VS_MEMBER</code>) and join against it, instead of adding one predicate per
+	 * code to the search query. Stored expansions are reused by later searches without
+	 * expanding the codes again for as long as the code system version, or for a ValueSet
+	 * stored in this server the ValueSet and the ValueSet and CodeSystem resources it may
+	 * depend on, have not changed. Expansions of other ValueSets are computed each time, and
+	 * only stored if their content has changed.
+	 * <p>
+	 * Older versions of an expansion are kept until they have been superseded for longer
+	 * than {@link #getExpireSearchResultsAfterMillis()}, and are then deleted along with
+	 * stale searches.
+	 * </p>
+	 * <p>
+	 * Default is <code>false</code>
+	 * </p>
+	 * 
+	 * @since 2.4
+	 */
+	public void setStoreTokenModifierExpansions(boolean theStoreTokenModifierExpansions) {
+		myStoreTokenModifierExpansions = theStoreTokenModifierExpansions;
+	}
+
 	/**
 	 * If set to true, the server will enable support for subscriptions. Subscriptions
 	 * will by default be handled via a polling task. Note that if this is enabled, you must also include Spring task scanning to your XML
@@ -456,6 +952,26 @@ public class DaoConfig {
 		mySubscriptionEnabled = theSubscriptionEnabled;
 	}
 
+	/**
+	 * If set to <code>true</code>, resources are checked against the criteria of all active
+	 * subscriptions as they are written, using the search index values extracted from the
+	 * resource, and matches are flagged for delivery immediately. In this mode the polling
+	 * task only searches for new matches for subscriptions whose criteria can't be evaluated
+	 * against the extracted index values (e.g. chained parameters, modifiers or
+	 * <code>_lastUpdated</code>).
+	 * <p>
+	 * This setting has no effect unless {@link #setSubscriptionEnabled(boolean) subscriptions are enabled}.
+	 * </p>
+	 * <p>
+	 * Default is <code>false</code>
+	 * </p>
+	 * 
+	 * @since 2.4
+	 */
+	public void setSubscriptionMatchOnWrite(boolean theSubscriptionMatchOnWrite) {
+		mySubscriptionMatchOnWrite = theSubscriptionMatchOnWrite;
+	}
+
 	public void setSubscriptionPollDelay(long theSubscriptionPollDelay) {
 		mySubscriptionPollDelay = theSubscriptionPollDelay;
 	}
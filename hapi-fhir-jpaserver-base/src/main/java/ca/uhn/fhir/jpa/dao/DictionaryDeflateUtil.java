@@ -0,0 +1,377 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.Validate;
+
+import com.google.common.base.Charsets;
+
+import ca.uhn.fhir.parser.DataFormatException;
+
+/**
+ * Compresses resource bodies using Deflate with a preset dictionary of text which
+ * commonly appears in FHIR JSON resources (element names, code system URLs, etc.).
+ * Small resources compress much better this way than with plain GZip, since each
+ * body does not need to repeat the common text before it can be referred back to.
+ * <p>
+ * The first byte of each compressed body is the version of the dictionary which was
+ * used to compress it. Dictionaries are never changed once released, so that existing
+ * data stays readable; an improved dictionary must be added as a new version.
+ * </p>
+ * <p>
+ * Version 1 is built in. Further versions are usually produced by
+ * {@link #trainDictionary(Collection, int)} on a sample of a server's own resources and
+ * saved with {@link #saveDictionary(byte[], int, File)}. The saved file is found
+ * automatically if it is placed on the classpath (at {@link #DICTIONARY_RESOURCE_PATH}),
+ * or it can be registered at startup with {@link #loadDictionary(int, InputStream)}. Every
+ * server reading the database must be able to load every version used to write it.
+ * Deflate records a checksum of the dictionary in each body, so a body is never decoded
+ * with the wrong dictionary for its version.
+ * </p>
+ */
+public class DictionaryDeflateUtil {
+
+	/**
+	 * The dictionary version used when compressing new bodies
+	 */
+	public static final int CURRENT_DICTIONARY_VERSION = 1;
+
+	/**
+	 * The classpath location of the file for each dictionary version after the first,
+	 * where <code>%d</code> is the version
+	 */
+	public static final String DICTIONARY_RESOURCE_PATH = "/ca/uhn/fhir/jpa/dao/jsond-dictionary-v%d.bin";
+
+	private static final int MAX_DICTIONARY_VERSION = 255;
+
+	//@formatter:off
+	private static final String DICTIONARY_V1 =
+		"\"contact\":[{\"telecom\":[{\"system\":\"email\",\"value\":\"" +
+		"\"communication\":[{\"language\":{\"coding\":[{\"system\":\"urn:ietf:bcp:47\",\"code\":\"" +
+		"\"maritalStatus\":{\"coding\":[{\"system\":\"http://hl7.org/fhir/v3/MaritalStatus\",\"code\":\"" +
+		"\"interpretation\":{\"coding\":[{\"system\":\"http://hl7.org/fhir/v2/0078\",\"code\":\"" +
+		"\"referenceRange\":[{\"low\":{\"value\":" +
+		"\"high\":{\"value\":" +
+		"\"performer\":[{\"reference\":\"Practitioner/" +
+		"\"managingOrganization\":{\"reference\":\"Organization/" +
+		"\"context\":{\"reference\":\"Encounter/" +
+		"\"encounter\":{\"reference\":\"Encounter/" +
+		"\"period\":{\"start\":\"" +
+		"\"end\":\"" +
+		"\"issued\":\"" +
+		"\"effectiveDateTime\":\"" +
+		"\"valueCodeableConcept\":{\"coding\":[{\"system\":\"" +
+		"\"valueQuantity\":{\"value\":" +
+		"\"unit\":\"" +
+		"\"system\":\"http://unitsofmeasure.org\",\"code\":\"" +
+		"\"category\":[{\"coding\":[{\"system\":\"http://hl7.org/fhir/observation-category\",\"code\":\"" +
+		"\"system\":\"http://loinc.org\",\"code\":\"" +
+		"\"system\":\"http://snomed.info/sct\",\"code\":\"" +
+		"\"valueString\":\"" +
+		"\"valueCode\":\"" +
+		"\"valueBoolean\":true" +
+		"\"valueDateTime\":\"" +
+		"\"extension\":[{\"url\":\"http://hl7.org/fhir/StructureDefinition/" +
+		"\"address\":[{\"use\":\"home\",\"line\":[\"" +
+		"\"city\":\"" +
+		"\"state\":\"" +
+		"\"postalCode\":\"" +
+		"\"country\":\"" +
+		"\"telecom\":[{\"system\":\"phone\",\"value\":\"" +
+		"\"use\":\"work\"" +
+		"\"use\":\"official\"" +
+		"\"gender\":\"female\"" +
+		"\"gender\":\"male\"" +
+		"\"birthDate\":\"" +
+		"\"active\":true" +
+		"\"name\":[{\"family\":\"" +
+		"\"given\":[\"" +
+		"\"prefix\":[\"" +
+		"\"identifier\":[{\"system\":\"" +
+		"\"type\":{\"coding\":[{\"system\":\"http://hl7.org/fhir/v2/0203\",\"code\":\"" +
+		"\"text\":{\"status\":\"generated\",\"div\":\"<div xmlns=\\\"http://www.w3.org/1999/xhtml\\\">" +
+		"</div>\"}" +
+		"\"status\":\"final\"" +
+		"\"status\":\"active\"" +
+		"\"subject\":{\"reference\":\"Patient/" +
+		"\"patient\":{\"reference\":\"Patient/" +
+		"\"reference\":\"" +
+		"\"display\":\"" +
+		"\"code\":{\"coding\":[{\"system\":\"" +
+		"\"coding\":[{\"system\":\"" +
+		"\"code\":\"" +
+		"\"value\":\"" +
+		"\"text\":\"" +
+		"\"meta\":{\"versionId\":\"" +
+		"\"lastUpdated\":\"" +
+		"\"profile\":[\"http://hl7.org/fhir/StructureDefinition/" +
+		"\"id\":\"" +
+		"{\"resourceType\":\"Observation\"," +
+		"{\"resourceType\":\"Patient\",";
+	//@formatter:on
+
+	private static final Map<Integer, byte[]> ourDictionaries = new ConcurrentHashMap<Integer, byte[]>();
+
+	private static final Pattern TRAINING_TOKEN_PATTERN = Pattern.compile("\"[a-zA-Z0-9_]+\":(?:\\[?\\{?\"[^\"]{0,64}\"?|[a-z]+)?");
+
+	static {
+		ourDictionaries.put(1, DICTIONARY_V1.getBytes(Charsets.UTF_8));
+	}
+
+	private static int checksum(byte[] theDictionary) {
+		Adler32 adler = new Adler32();
+		adler.update(theDictionary, 0, theDictionary.length);
+		return (int) adler.getValue();
+	}
+
+	public static byte[] compress(String theEncoded) {
+		return compress(theEncoded, CURRENT_DICTIONARY_VERSION);
+	}
+
+	/**
+	 * Compresses using the given dictionary version, which must be built in, registered
+	 * or available on the classpath
+	 */
+	public static byte[] compress(String theEncoded, int theVersion) {
+		return compress(theEncoded, theVersion, getDictionary(theVersion));
+	}
+
+	/**
+	 * Compresses using an arbitrary dictionary. This is intended for evaluating new
+	 * dictionaries (see {@link #trainDictionary(Collection, int)}), since bodies compressed
+	 * with a dictionary which has not been released can not be decompressed.
+	 */
+	static byte[] compress(String theEncoded, int theVersion, byte[] theDictionary) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		try {
+			deflater.setDictionary(theDictionary);
+			deflater.setInput(theEncoded.getBytes(Charsets.UTF_8));
+			deflater.finish();
+
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			os.write(theVersion);
+			byte[] buffer = new byte[4096];
+			while (!deflater.finished()) {
+				int count = deflater.deflate(buffer);
+				os.write(buffer, 0, count);
+			}
+			return os.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	public static String decompress(byte[] theResource) {
+		if (theResource.length == 0) {
+			throw new DataFormatException("Failed to decompress contents, no dictionary version present");
+		}
+		return decompress(theResource, getDictionary(theResource[0] & 0xFF));
+	}
+
+	static String decompress(byte[] theResource, byte[] theDictionary) {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(theResource, 1, theResource.length - 1);
+
+			ByteArrayOutputStream os = new ByteArrayOutputStream(theResource.length * 4);
+			byte[] buffer = new byte[4096];
+			while (!inflater.finished()) {
+				int count = inflater.inflate(buffer);
+				if (count == 0) {
+					if (inflater.needsDictionary()) {
+						if (inflater.getAdler() != checksum(theDictionary)) {
+							throw new DataFormatException("Failed to decompress contents, the dictionary for version " + (theResource[0] & 0xFF) + " is not the one the contents were compressed with");
+						}
+						inflater.setDictionary(theDictionary);
+						continue;
+					}
+					if (inflater.needsInput()) {
+						throw new DataFormatException("Failed to decompress contents, data is truncated");
+					}
+				}
+				os.write(buffer, 0, count);
+			}
+			return new String(os.toByteArray(), Charsets.UTF_8);
+		} catch (java.util.zip.DataFormatException e) {
+			throw new DataFormatException("Failed to decompress contents", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static byte[] getDictionary(int theVersion) {
+		byte[] retVal = ourDictionaries.get(theVersion);
+		if (retVal != null) {
+			return retVal;
+		}
+
+		InputStream is = DictionaryDeflateUtil.class.getResourceAsStream(String.format(DICTIONARY_RESOURCE_PATH, theVersion));
+		if (is == null) {
+			throw new DataFormatException("Unknown compression dictionary version: " + theVersion);
+		}
+		try {
+			loadDictionary(theVersion, is);
+		} finally {
+			IOUtils.closeQuietly(is);
+		}
+		return ourDictionaries.get(theVersion);
+	}
+
+	/**
+	 * Reads a dictionary which was written by {@link #saveDictionary(byte[], int, File)} and
+	 * registers it (see {@link #registerDictionary(int, byte[])}). The stream is not closed.
+	 */
+	public static void loadDictionary(int theVersion, InputStream theInputStream) {
+		try {
+			registerDictionary(theVersion, IOUtils.toByteArray(theInputStream));
+		} catch (IOException e) {
+			throw new DataFormatException("Failed to read compression dictionary version " + theVersion, e);
+		}
+	}
+
+	/**
+	 * Makes a dictionary available for compressing and decompressing bodies. Version 1 is
+	 * built in and can't be replaced, and a version which is already registered can only
+	 * be registered again with the same contents.
+	 */
+	public static void registerDictionary(int theVersion, byte[] theDictionary) {
+		Validate.isTrue(theVersion > 1 && theVersion <= MAX_DICTIONARY_VERSION, "theVersion must be between 2 and " + MAX_DICTIONARY_VERSION);
+		Validate.isTrue(theDictionary != null && theDictionary.length > 0, "theDictionary must not be empty");
+
+		byte[] existing = ourDictionaries.get(theVersion);
+		if (existing == null) {
+			synchronized (ourDictionaries) {
+				existing = ourDictionaries.get(theVersion);
+				if (existing == null) {
+					ourDictionaries.put(theVersion, theDictionary.clone());
+					return;
+				}
+			}
+		}
+		Validate.isTrue(Arrays.equals(existing, theDictionary), "A different dictionary is already registered as version " + theVersion);
+	}
+
+	/**
+	 * Writes a dictionary (usually one built by {@link #trainDictionary(Collection, int)})
+	 * to the given directory, named so that it is found when the directory is on the
+	 * classpath at {@link #DICTIONARY_RESOURCE_PATH}
+	 *
+	 * @return The file which was written
+	 */
+	public static File saveDictionary(byte[] theDictionary, int theVersion, File theDirectory) throws IOException {
+		Validate.isTrue(theVersion > 1 && theVersion <= MAX_DICTIONARY_VERSION, "theVersion must be between 2 and " + MAX_DICTIONARY_VERSION);
+		File retVal = new File(theDirectory, String.format(DICTIONARY_RESOURCE_PATH, theVersion).substring(1));
+		retVal.getParentFile().mkdirs();
+		OutputStream os = new FileOutputStream(retVal);
+		try {
+			os.write(theDictionary);
+		} finally {
+			IOUtils.closeQuietly(os);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Builds a candidate dictionary from a sample of encoded resources by collecting the
+	 * element names and short values which occur in the largest number of samples. The
+	 * most valuable fragments are placed at the end of the dictionary, since Deflate
+	 * can refer to those with the shortest distances.
+	 *
+	 * @param theSamples
+	 *           The encoded (JSON) resource bodies to train from
+	 * @param theMaxSize
+	 *           The maximum dictionary size in bytes (Deflate can only use the last 32KB)
+	 */
+	public static byte[] trainDictionary(Collection<String> theSamples, int theMaxSize) {
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (String nextSample : theSamples) {
+			Set<String> tokens = new HashSet<String>();
+			Matcher matcher = TRAINING_TOKEN_PATTERN.matcher(nextSample);
+			while (matcher.find()) {
+				tokens.add(matcher.group());
+			}
+			for (String nextToken : tokens) {
+				Integer count = counts.get(nextToken);
+				counts.put(nextToken, count == null ? 1 : count + 1);
+			}
+		}
+
+		List<Entry<String, Integer>> entries = new ArrayList<Entry<String, Integer>>();
+		for (Entry<String, Integer> next : counts.entrySet()) {
+			// A fragment seen only once is unlikely to occur in other resources
+			if (next.getValue() > 1) {
+				entries.add(next);
+			}
+		}
+		Collections.sort(entries, new Comparator<Entry<String, Integer>>() {
+			@Override
+			public int compare(Entry<String, Integer> theO1, Entry<String, Integer> theO2) {
+				long score1 = (long) theO1.getValue() * theO1.getKey().length();
+				long score2 = (long) theO2.getValue() * theO2.getKey().length();
+				return score1 < score2 ? 1 : (score1 > score2 ? -1 : 0);
+			}
+		});
+
+		List<byte[]> chosen = new ArrayList<byte[]>();
+		int size = 0;
+		for (Entry<String, Integer> next : entries) {
+			byte[] bytes = next.getKey().getBytes(Charsets.UTF_8);
+			if (size + bytes.length > theMaxSize) {
+				continue;
+			}
+			chosen.add(bytes);
+			size += bytes.length;
+		}
+
+		ByteArrayOutputStream os = new ByteArrayOutputStream(size);
+		for (int i = chosen.size() - 1; i >= 0; i--) {
+			byte[] next = chosen.get(i);
+			os.write(next, 0, next.length);
+		}
+		return os.toByteArray();
+	}
+
+}
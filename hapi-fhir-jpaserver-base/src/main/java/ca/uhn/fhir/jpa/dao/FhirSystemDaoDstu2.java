@@ -470,6 +470,7 @@ public class FhirSystemDaoDstu2 extends BaseHapiFhirSystemDao<Bundle, MetaDt> {
 		 */
 
 		FhirTerser terser = getContext().newTerser();
+		List<IdDt> referencedIds = new ArrayList<IdDt>();
 		for (DaoMethodOutcome nextOutcome : idToPersistedOutcome.values()) {
 			IResource nextResource = (IResource) nextOutcome.getResource();
 			if (nextResource == null) {
@@ -489,6 +490,20 @@ public class FhirSystemDaoDstu2 extends BaseHapiFhirSystemDao<Bundle, MetaDt> {
 				} else {
 					ourLog.debug(" * Reference [{}] does not exist in bundle", nextId);
 				}
+				referencedIds.add(nextRef.getReference());
+			}
+		}
+
+		/*
+		 * Resolve all client assigned IDs referred to by the bundle at once instead of
+		 * one at a time as each resource is indexed
+		 */
+		preloadForcedIds(referencedIds);
+
+		for (DaoMethodOutcome nextOutcome : idToPersistedOutcome.values()) {
+			IResource nextResource = (IResource) nextOutcome.getResource();
+			if (nextResource == null) {
+				continue;
 			}
 
 			InstantDt deletedInstantOrNull = ResourceMetadataKeyEnum.DELETED_AT.get(nextResource);
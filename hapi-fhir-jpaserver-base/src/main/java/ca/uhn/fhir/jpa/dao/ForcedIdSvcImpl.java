@@ -0,0 +1,240 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Lists;
+
+import ca.uhn.fhir.jpa.dao.data.IForcedIdDao;
+import ca.uhn.fhir.jpa.entity.ForcedId;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+
+/**
+ * Translates between forced IDs and PIDs, caching the results.
+ * <p>
+ * A translation which is loaded within a transaction may refer to a resource which
+ * was created by that same transaction, so it is only visible to that transaction
+ * until it commits. This means that a transaction which is rolled back never leaves
+ * a translation behind for an ID which may later be assigned to another resource.
+ * </p>
+ */
+public class ForcedIdSvcImpl implements IForcedIdSvc {
+
+	static final int MAX_CACHED_IDS = 100000;
+
+	/**
+	 * Kept well below the IN clause limits of the supported databases
+	 */
+	static final int MAX_IDS_PER_QUERY = 500;
+
+	//@formatter:off
+	private final Cache<String, Long> myForcedIdToPid = CacheBuilder
+		.newBuilder()
+		.maximumSize(MAX_CACHED_IDS)
+		.recordStats()
+		.build();
+	private final Cache<Long, Optional<String>> myPidToForcedId = CacheBuilder
+		.newBuilder()
+		.maximumSize(MAX_CACHED_IDS)
+		.recordStats()
+		.build();
+	//@formatter:on
+
+	@Autowired
+	private IForcedIdDao myForcedIdDao;
+
+	@Override
+	public void clearCache() {
+		myForcedIdToPid.invalidateAll();
+		myPidToForcedId.invalidateAll();
+	}
+
+	@Override
+	public CacheStats getCacheStats() {
+		return myForcedIdToPid.stats().plus(myPidToForcedId.stats());
+	}
+
+	/**
+	 * Returns the translations loaded by the current transaction, or <code>null</code>
+	 * if there is no current transaction
+	 */
+	private PendingTranslations getPendingTranslations() {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			return null;
+		}
+
+		PendingTranslations retVal = (PendingTranslations) TransactionSynchronizationManager.getResource(this);
+		if (retVal == null) {
+			final PendingTranslations pending = new PendingTranslations();
+			TransactionSynchronizationManager.bindResource(this, pending);
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int theStatus) {
+					TransactionSynchronizationManager.unbindResourceIfPossible(ForcedIdSvcImpl.this);
+					if (theStatus == STATUS_COMMITTED) {
+						myForcedIdToPid.putAll(pending.myForcedIdToPid);
+						myPidToForcedId.putAll(pending.myPidToForcedId);
+					}
+				}
+			});
+			retVal = pending;
+		}
+		return retVal;
+	}
+
+	private void putTranslation(PendingTranslations thePending, ForcedId theForcedId) {
+		String key = theForcedId.getResourceType() + '/' + theForcedId.getForcedId();
+		if (thePending != null) {
+			thePending.myForcedIdToPid.put(key, theForcedId.getResourcePid());
+			thePending.myPidToForcedId.put(theForcedId.getResourcePid(), Optional.of(key));
+		} else {
+			myForcedIdToPid.put(key, theForcedId.getResourcePid());
+			myPidToForcedId.put(theForcedId.getResourcePid(), Optional.of(key));
+		}
+	}
+
+	@Override
+	public List<Long> translateForcedIdToPids(IIdType theId) {
+		Validate.isTrue(theId.hasIdPart());
+
+		if (BaseHapiFhirDao.isValidPid(theId)) {
+			return Collections.singletonList(theId.getIdPartAsLong());
+		}
+
+		if (theId.hasResourceType()) {
+			Long pid = translateForcedIdsToPids(theId.getResourceType(), Collections.singleton(theId.getIdPart())).get(theId.getIdPart());
+			if (pid == null) {
+				throw new ResourceNotFoundException(theId);
+			}
+			return Collections.singletonList(pid);
+		}
+
+		List<ForcedId> forcedId = myForcedIdDao.findByForcedId(theId.getIdPart());
+		if (forcedId.isEmpty()) {
+			throw new ResourceNotFoundException(theId);
+		}
+		List<Long> retVal = new ArrayList<Long>(forcedId.size());
+		for (ForcedId next : forcedId) {
+			retVal.add(next.getResourcePid());
+		}
+		return retVal;
+	}
+
+	@Override
+	public Map<String, Long> translateForcedIdsToPids(String theResourceType, Collection<String> theForcedIds) {
+		Map<String, Long> retVal = new HashMap<String, Long>();
+		PendingTranslations pending = getPendingTranslations();
+
+		Set<String> toLoad = new LinkedHashSet<String>();
+		for (String next : theForcedIds) {
+			String key = theResourceType + '/' + next;
+			Long pid = pending != null ? pending.myForcedIdToPid.get(key) : null;
+			if (pid == null) {
+				pid = myForcedIdToPid.getIfPresent(key);
+			}
+			if (pid != null) {
+				retVal.put(next, pid);
+			} else {
+				toLoad.add(next);
+			}
+		}
+
+		for (List<String> nextChunk : Lists.partition(new ArrayList<String>(toLoad), MAX_IDS_PER_QUERY)) {
+			for (ForcedId nextForcedId : myForcedIdDao.findByTypeAndForcedIds(theResourceType, nextChunk)) {
+				retVal.put(nextForcedId.getForcedId(), nextForcedId.getResourcePid());
+				putTranslation(pending, nextForcedId);
+			}
+		}
+
+		return retVal;
+	}
+
+	@Override
+	public String translatePidToForcedId(Long thePid) {
+		return translatePidsToForcedIds(Collections.singleton(thePid)).get(thePid);
+	}
+
+	@Override
+	public Map<Long, String> translatePidsToForcedIds(Collection<Long> thePids) {
+		Map<Long, String> retVal = new HashMap<Long, String>();
+		PendingTranslations pending = getPendingTranslations();
+
+		Set<Long> toLoad = new LinkedHashSet<Long>();
+		for (Long next : thePids) {
+			Optional<String> forcedId = pending != null ? pending.myPidToForcedId.get(next) : null;
+			if (forcedId == null) {
+				forcedId = myPidToForcedId.getIfPresent(next);
+			}
+			if (forcedId == null) {
+				toLoad.add(next);
+			} else if (forcedId.isPresent()) {
+				retVal.put(next, forcedId.get());
+			}
+		}
+
+		for (List<Long> nextChunk : Lists.partition(new ArrayList<Long>(toLoad), MAX_IDS_PER_QUERY)) {
+			for (ForcedId nextForcedId : myForcedIdDao.findByResourcePids(nextChunk)) {
+				toLoad.remove(nextForcedId.getResourcePid());
+				retVal.put(nextForcedId.getResourcePid(), nextForcedId.getResourceType() + '/' + nextForcedId.getForcedId());
+				if (!isBlank(nextForcedId.getResourceType())) {
+					putTranslation(pending, nextForcedId);
+				}
+			}
+		}
+
+		// A resource which was created without a forced ID never gets one later
+		for (Long next : toLoad) {
+			if (pending != null) {
+				pending.myPidToForcedId.put(next, Optional.<String> absent());
+			} else {
+				myPidToForcedId.put(next, Optional.<String> absent());
+			}
+		}
+
+		return retVal;
+	}
+
+	private static class PendingTranslations {
+		private final Map<String, Long> myForcedIdToPid = new HashMap<String, Long>();
+		private final Map<Long, Optional<String>> myPidToForcedId = new HashMap<Long, Optional<String>>();
+	}
+
+}
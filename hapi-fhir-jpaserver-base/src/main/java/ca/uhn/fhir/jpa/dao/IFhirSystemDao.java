@@ -37,6 +37,15 @@ import ca.uhn.fhir.rest.server.IBundleProvider;
  */
 public interface IFhirSystemDao<T, MT> extends IDao {
 
+	/**
+	 * Removes the copy of each resource's current version body from the history table,
+	 * since it is also stored in the resource table. This is used to migrate existing data
+	 * after enabling {@link DaoConfig#setDeduplicateCurrentVersionBody(boolean)}.
+	 * 
+	 * @return Returns the number of history entries affected
+	 */
+	int deduplicateCurrentVersionBodies();
+
 	/**
 	 * Use with caution! This deletes everything!!
 	 * 
@@ -49,6 +58,13 @@ public interface IFhirSystemDao<T, MT> extends IDao {
 
 	public <R extends IBaseResource> IFhirResourceDao<R> getDao(Class<R> theType);
 
+	/**
+	 * Returns the progress of reindexing (throughput, remaining resources and estimated
+	 * time remaining) as of the most recent reindexing pass which found resources to
+	 * reindex, or <code>null</code> if there has been no such pass since startup
+	 */
+	ReindexStatus getReindexStatus();
+
 	Map<String, Long> getResourceCounts();
 
 	IBundleProvider history(Date theDate, Date theUntil, RequestDetails theRequestDetails);
@@ -68,6 +84,13 @@ public interface IFhirSystemDao<T, MT> extends IDao {
 	 */
 	MT metaGetOperation(RequestDetails theRequestDetails);
 
+	/**
+	 * Reindexes up to the given number of resources which are marked as needing reindexing.
+	 * Resources which fail to reindex are marked as failed without affecting the others.
+	 * 
+	 * @return Returns the number of resources processed, <code>-1</code> if any of them
+	 *         failed, or <code>null</code> if another pass was already in progress
+	 */
 	Integer performReindexingPass(Integer theCount);
 
 	T transaction(RequestDetails theRequestDetails, T theResources);
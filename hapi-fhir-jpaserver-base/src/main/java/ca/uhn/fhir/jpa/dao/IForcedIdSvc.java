@@ -0,0 +1,78 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import com.google.common.cache.CacheStats;
+
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+
+/**
+ * Translates between client-assigned (forced) resource IDs and resource PIDs.
+ * Forced IDs can not be changed once assigned, so translations are cached.
+ */
+public interface IForcedIdSvc {
+
+	/**
+	 * Discards all cached translations. This must be called if resources are
+	 * deleted from the database.
+	 */
+	void clearCache();
+
+	/**
+	 * Returns the hit/miss statistics for the caches
+	 */
+	CacheStats getCacheStats();
+
+	/**
+	 * Returns the PIDs of the resource with the given ID, which may be a PID or a
+	 * forced ID. If the ID has no resource type, more than one PID may be returned.
+	 * 
+	 * @throws ResourceNotFoundException
+	 *            If no resource has the given ID
+	 */
+	List<Long> translateForcedIdToPids(IIdType theId) throws ResourceNotFoundException;
+
+	/**
+	 * Translates many forced IDs of one resource type at once, using as few
+	 * queries as possible. Forced IDs which do not exist are not included in
+	 * the returned map.
+	 */
+	Map<String, Long> translateForcedIdsToPids(String theResourceType, Collection<String> theForcedIds);
+
+	/**
+	 * Returns the forced ID, as <code>[type]/[id]</code>, of the resource with the
+	 * given PID, or <code>null</code> if the resource does not have a forced ID
+	 */
+	String translatePidToForcedId(Long thePid);
+
+	/**
+	 * Translates many PIDs at once, using as few queries as possible. PIDs which
+	 * do not have a forced ID are not included in the returned map.
+	 */
+	Map<Long, String> translatePidsToForcedIds(Collection<Long> thePids);
+
+}
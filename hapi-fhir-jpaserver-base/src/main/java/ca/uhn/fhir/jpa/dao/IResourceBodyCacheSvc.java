@@ -0,0 +1,40 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.cache.CacheStats;
+
+import ca.uhn.fhir.jpa.entity.BaseHasResource;
+
+public interface IResourceBodyCacheSvc {
+
+	/**
+	 * Returns the decoded (i.e. decompressed) body of the given stored resource version,
+	 * using a cached copy if one is available
+	 */
+	String getResourceBody(BaseHasResource theEntity);
+
+	/**
+	 * Returns the hit/miss statistics for the cache
+	 */
+	CacheStats getStats();
+
+}
@@ -0,0 +1,52 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.cache.CacheStats;
+
+import ca.uhn.fhir.jpa.entity.TagDefinition;
+import ca.uhn.fhir.jpa.entity.TagTypeEnum;
+
+public interface ITagDefinitionSvc {
+
+	/**
+	 * Discards all cached tag definitions. This must be called if tag definitions are
+	 * deleted from the database.
+	 */
+	void clearCache();
+
+	/**
+	 * Returns the hit/miss statistics for the cache
+	 */
+	CacheStats getCacheStats();
+
+	/**
+	 * Returns the tag definition with the given type, system and code, creating
+	 * it if it does not already exist. Definitions are created in a separate
+	 * transaction so that they are immediately visible to other writers.
+	 * <p>
+	 * The returned entity is not attached to the current persistence context, but
+	 * may be used as the target of an association.
+	 * </p>
+	 */
+	TagDefinition getOrCreateTag(TagTypeEnum theTagType, String theScheme, String theTerm, String theLabel);
+
+}
@@ -0,0 +1,90 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Date;
+
+/**
+ * The progress of resource reindexing, as of the most recent reindexing pass
+ * 
+ * @see IFhirSystemDao#getReindexStatus()
+ */
+public class ReindexStatus {
+
+	private final int myLastPassFailedCount;
+	private final Date myLastPassFinished;
+	private final long myLastPassMillis;
+	private final int myLastPassResourceCount;
+	private final long myRemainingResourceCount;
+
+	public ReindexStatus(int theLastPassResourceCount, int theLastPassFailedCount, long theLastPassMillis, Date theLastPassFinished, long theRemainingResourceCount) {
+		myLastPassResourceCount = theLastPassResourceCount;
+		myLastPassFailedCount = theLastPassFailedCount;
+		myLastPassMillis = theLastPassMillis;
+		myLastPassFinished = theLastPassFinished;
+		myRemainingResourceCount = theRemainingResourceCount;
+	}
+
+	/**
+	 * Returns the estimated time in milliseconds needed to reindex the remaining resources
+	 * at the rate of the last pass
+	 */
+	public long getEstimatedMillisRemaining() {
+		return (long) (myRemainingResourceCount * 1000.0 / getResourcesPerSecond());
+	}
+
+	/**
+	 * Returns the number of resources in the last pass which failed to reindex
+	 */
+	public int getLastPassFailedCount() {
+		return myLastPassFailedCount;
+	}
+
+	public Date getLastPassFinished() {
+		return myLastPassFinished;
+	}
+
+	public long getLastPassMillis() {
+		return myLastPassMillis;
+	}
+
+	/**
+	 * Returns the number of resources processed by the last pass, including any which failed
+	 */
+	public int getLastPassResourceCount() {
+		return myLastPassResourceCount;
+	}
+
+	/**
+	 * Returns the number of resources still marked as needing reindexing. This is counted
+	 * in the database at most once a minute while reindexing is in progress, and estimated
+	 * in between by subtracting the resources processed since the last count, so resources
+	 * marked for reindexing in the meantime may not be included yet.
+	 */
+	public long getRemainingResourceCount() {
+		return myRemainingResourceCount;
+	}
+
+	public double getResourcesPerSecond() {
+		return myLastPassResourceCount * 1000.0 / Math.max(1, myLastPassMillis);
+	}
+
+}
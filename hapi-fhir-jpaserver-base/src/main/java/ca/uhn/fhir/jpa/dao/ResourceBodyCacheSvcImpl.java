@@ -0,0 +1,153 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Arrays;
+
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+
+import ca.uhn.fhir.jpa.entity.BaseHasResource;
+import ca.uhn.fhir.jpa.entity.ResourceEncodingEnum;
+import ca.uhn.fhir.jpa.entity.ResourceHistoryTable;
+
+/**
+ * Keeps the decompressed bodies of recently read resource versions in memory.
+ * <p>
+ * Entries are keyed by resource ID and version, and an entry is only used if the
+ * stored (compressed) bytes it was decoded from are identical to the bytes of the
+ * entity being read. A body which is rewritten without a version change, or which
+ * was cached by a transaction that was later rolled back, is therefore never served.
+ * </p>
+ */
+public class ResourceBodyCacheSvcImpl implements IResourceBodyCacheSvc {
+
+	private static final CacheStats EMPTY_STATS = new CacheStats(0, 0, 0, 0, 0, 0);
+
+	private volatile Cache<Key, Entry> myCache;
+	private volatile long myCacheMaxChars;
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+
+	private Cache<Key, Entry> getOrCreateCache(long theMaxChars) {
+		Cache<Key, Entry> retVal = myCache;
+		if (retVal != null && myCacheMaxChars == theMaxChars) {
+			return retVal;
+		}
+		synchronized (this) {
+			if (myCache == null || myCacheMaxChars != theMaxChars) {
+				//@formatter:off
+				myCache = CacheBuilder
+					.newBuilder()
+					.maximumWeight(theMaxChars)
+					.weigher(new EntryWeigher())
+					.recordStats()
+					.build();
+				//@formatter:on
+				myCacheMaxChars = theMaxChars;
+			}
+			return myCache;
+		}
+	}
+
+	@Override
+	public String getResourceBody(BaseHasResource theEntity) {
+		byte[] stored = theEntity.getResource();
+		long maxChars = myDaoConfig.getResourceBodyCacheMaxChars();
+		Long resourcePid = theEntity instanceof ResourceHistoryTable ? ((ResourceHistoryTable) theEntity).getResourceId() : theEntity.getId();
+		if (maxChars == 0 || resourcePid == null || theEntity.getEncoding() == ResourceEncodingEnum.JSON) {
+			return ResourceEncodingUtil.decode(theEntity.getEncoding(), stored);
+		}
+
+		Cache<Key, Entry> cache = getOrCreateCache(maxChars);
+		Key key = new Key(resourcePid, theEntity.getVersion(), Arrays.hashCode(stored));
+		Entry entry = cache.getIfPresent(key);
+		if (entry != null && Arrays.equals(entry.myStored, stored)) {
+			return entry.myBody;
+		}
+
+		String retVal = ResourceEncodingUtil.decode(theEntity.getEncoding(), stored);
+		cache.put(key, new Entry(stored, retVal));
+		return retVal;
+	}
+
+	@Override
+	public CacheStats getStats() {
+		Cache<Key, Entry> cache = myCache;
+		if (cache == null) {
+			return EMPTY_STATS;
+		}
+		return cache.stats();
+	}
+
+	private static class Entry {
+		private final String myBody;
+		private final byte[] myStored;
+
+		Entry(byte[] theStored, String theBody) {
+			myStored = theStored;
+			myBody = theBody;
+		}
+	}
+
+	private static class EntryWeigher implements Weigher<Key, Entry> {
+		@Override
+		public int weigh(Key theKey, Entry theValue) {
+			// The stored bytes are counted as half a char each
+			return theValue.myBody.length() + (theValue.myStored.length / 2);
+		}
+	}
+
+	private static class Key {
+		private final int myStoredHash;
+		private final long myResourcePid;
+		private final long myVersion;
+
+		Key(long theResourcePid, long theVersion, int theStoredHash) {
+			myResourcePid = theResourcePid;
+			myVersion = theVersion;
+			myStoredHash = theStoredHash;
+		}
+
+		@Override
+		public boolean equals(Object theObj) {
+			if (!(theObj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) theObj;
+			return myResourcePid == other.myResourcePid && myVersion == other.myVersion && myStoredHash == other.myStoredHash;
+		}
+
+		@Override
+		public int hashCode() {
+			int retVal = (int) (myResourcePid ^ (myResourcePid >>> 32));
+			retVal = 31 * retVal + (int) (myVersion ^ (myVersion >>> 32));
+			retVal = 31 * retVal + myStoredHash;
+			return retVal;
+		}
+	}
+
+}
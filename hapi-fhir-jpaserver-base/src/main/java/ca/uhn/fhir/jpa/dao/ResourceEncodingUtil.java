@@ -0,0 +1,61 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.base.Charsets;
+
+import ca.uhn.fhir.jpa.entity.ResourceEncodingEnum;
+
+/**
+ * Converts resource bodies between their encoded (JSON) form and the bytes stored
+ * for each {@link ResourceEncodingEnum}
+ */
+public class ResourceEncodingUtil {
+
+	public static String decode(ResourceEncodingEnum theEncoding, byte[] theStored) {
+		switch (theEncoding) {
+		case JSON:
+			return new String(theStored, Charsets.UTF_8);
+		case JSOND:
+			return DictionaryDeflateUtil.decompress(theStored);
+		case JSONC:
+		default:
+			return GZipUtil.decompress(theStored);
+		}
+	}
+
+	/**
+	 * @param theDictionaryVersion
+	 *           The dictionary version to compress with, if the encoding is {@link ResourceEncodingEnum#JSOND}
+	 */
+	public static byte[] encode(ResourceEncodingEnum theEncoding, String theEncoded, int theDictionaryVersion) {
+		switch (theEncoding) {
+		case JSON:
+			return theEncoded.getBytes(Charsets.UTF_8);
+		case JSOND:
+			return DictionaryDeflateUtil.compress(theEncoded, theDictionaryVersion);
+		case JSONC:
+		default:
+			return GZipUtil.compress(theEncoded);
+		}
+	}
+
+}
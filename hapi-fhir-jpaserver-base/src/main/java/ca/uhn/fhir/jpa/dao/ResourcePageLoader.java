@@ -0,0 +1,118 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+
+import com.google.common.collect.Lists;
+
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.jpa.entity.ForcedId;
+import ca.uhn.fhir.jpa.entity.ResourceEncodingEnum;
+import ca.uhn.fhir.jpa.entity.ResourceTable;
+import ca.uhn.fhir.jpa.entity.TagDefinition;
+
+/**
+ * Loads everything needed to build the resources on a page of search results using
+ * a fixed number of queries per {@link #MAX_PIDS_PER_QUERY} resources: one for the
+ * stored resource bodies (along with their forced IDs), and one for the tags of
+ * those which have any.
+ * <p>
+ * The returned {@link ResourceTable} instances are populated from the query results
+ * rather than being loaded as entities, so they are not attached to the persistence
+ * context and have none of their associations other than the forced ID and tags.
+ * They must only be used to build the resource (see
+ * {@link IDao#toResource(Class, ca.uhn.fhir.jpa.entity.BaseHasResource, boolean)}).
+ * </p>
+ */
+public class ResourcePageLoader {
+
+	static final int MAX_PIDS_PER_QUERY = 500;
+
+	//@formatter:off
+	private static final String RESOURCE_QUERY = "SELECT r.myId, r.myResourceType, r.myEncoding, r.myResource, r.myVersion, r.myUpdated, r.myPublished, r.myDeleted, "
+			+ "r.myFhirVersion, r.myHasTags, r.myTitle, f.myForcedId, f.myResourceType "
+			+ "FROM ResourceTable r LEFT JOIN r.myForcedId f WHERE r.myId IN (:pids)";
+	private static final String TAG_QUERY = "SELECT t.myResourceId, d FROM ResourceTag t JOIN t.myTag d WHERE t.myResourceId IN (:pids)";
+	//@formatter:on
+
+	public static List<ResourceTable> loadResources(EntityManager theEntityManager, Collection<Long> thePids) {
+		List<ResourceTable> retVal = new ArrayList<ResourceTable>(thePids.size());
+		for (List<Long> nextChunk : Lists.partition(new ArrayList<Long>(thePids), MAX_PIDS_PER_QUERY)) {
+			loadChunk(theEntityManager, nextChunk, retVal);
+		}
+		return retVal;
+	}
+
+	private static void loadChunk(EntityManager theEntityManager, List<Long> thePids, List<ResourceTable> theResults) {
+		TypedQuery<Object[]> q = theEntityManager.createQuery(RESOURCE_QUERY, Object[].class);
+		q.setParameter("pids", thePids);
+
+		Map<Long, ResourceTable> pidsWithTags = new HashMap<Long, ResourceTable>();
+		for (Object[] next : q.getResultList()) {
+			ResourceTable entity = new ResourceTable();
+			entity.setId((Long) next[0]);
+			entity.setResourceType((String) next[1]);
+			entity.setEncoding((ResourceEncodingEnum) next[2]);
+			entity.setResource((byte[]) next[3]);
+			entity.setVersion((Long) next[4]);
+			entity.setUpdated((Date) next[5]);
+			entity.setPublished((Date) next[6]);
+			entity.setDeleted((Date) next[7]);
+			entity.setFhirVersion((FhirVersionEnum) next[8]);
+			entity.setHasTags((Boolean) next[9]);
+			entity.setTitle((String) next[10]);
+			if (next[11] != null) {
+				ForcedId forcedId = new ForcedId();
+				forcedId.setForcedId((String) next[11]);
+				forcedId.setResourceType((String) next[12]);
+				forcedId.setResourcePid(entity.getId());
+				entity.setForcedId(forcedId);
+			}
+			if (entity.isHasTags()) {
+				pidsWithTags.put(entity.getId(), entity);
+			}
+			theResults.add(entity);
+		}
+
+		if (pidsWithTags.isEmpty()) {
+			return;
+		}
+
+		TypedQuery<Object[]> tagQuery = theEntityManager.createQuery(TAG_QUERY, Object[].class);
+		tagQuery.setParameter("pids", pidsWithTags.keySet());
+		for (Object[] next : tagQuery.getResultList()) {
+			ResourceTable entity = pidsWithTags.get(next[0]);
+			if (entity != null) {
+				entity.addTag((TagDefinition) next[1]);
+			}
+		}
+	}
+
+}
@@ -37,6 +37,7 @@ import javax.persistence.criteria.*;
 
 import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
 import org.apache.commons.lang3.tuple.Pair;
 import org.hl7.fhir.instance.model.api.IAnyResource;
 import org.hl7.fhir.instance.model.api.IBaseResource;
@@ -50,12 +51,13 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
 import ca.uhn.fhir.context.*;
-import ca.uhn.fhir.jpa.dao.data.IForcedIdDao;
 import ca.uhn.fhir.jpa.dao.data.IResourceIndexedSearchParamUriDao;
 import ca.uhn.fhir.jpa.dao.data.ISearchResultDao;
 import ca.uhn.fhir.jpa.entity.*;
+import ca.uhn.fhir.jpa.search.ISearchCoordinatorSvc;
 import ca.uhn.fhir.jpa.search.PersistedJpaBundleProvider;
 import ca.uhn.fhir.jpa.term.IHapiTerminologySvc;
+import ca.uhn.fhir.jpa.term.ITermValueSetMembershipSvc;
 import ca.uhn.fhir.jpa.term.VersionIndependentConcept;
 import ca.uhn.fhir.jpa.util.StopWatch;
 import ca.uhn.fhir.model.api.*;
@@ -80,27 +82,31 @@ import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import ca.uhn.fhir.util.UrlUtil;
 
 public class SearchBuilder {
+	private static final int FIRST_SORT_CHUNK_SIZE = 500;
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SearchBuilder.class);
 
 	private BaseHapiFhirDao<?> myCallingDao;
 	private FhirContext myContext;
 	private EntityManager myEntityManager;
-	private IForcedIdDao myForcedIdDao;
 	private SearchParameterMap myParams;
+	private ISearchCoordinatorSvc.IPidCallback myPidCallback;
 	private Collection<Long> myPids;
+	private boolean myPidsPublished;
 	private PlatformTransactionManager myPlatformTransactionManager;
 	private IResourceIndexedSearchParamUriDao myResourceIndexedSearchParamUriDao;
 	private String myResourceName;
 	private Class<? extends IBaseResource> myResourceType;
 	private IFulltextSearchSvc mySearchDao;
 	private Search mySearchEntity;
+	private String mySearchQueryString;
 	private ISearchResultDao mySearchResultDao;
 	private ISearchParamRegistry mySearchParamRegistry;
 
 	private IHapiTerminologySvc myTerminologySvc;
+	private ITermValueSetMembershipSvc myValueSetMembershipSvc;
 
 	public SearchBuilder(FhirContext theFhirContext, EntityManager theEntityManager, PlatformTransactionManager thePlatformTransactionManager, IFulltextSearchSvc theSearchDao, ISearchResultDao theSearchResultDao, BaseHapiFhirDao<?> theDao,
-			IResourceIndexedSearchParamUriDao theResourceIndexedSearchParamUriDao, IForcedIdDao theForcedIdDao, IHapiTerminologySvc theTerminologySvc, ISearchParamRegistry theSearchParamRegistry) {
+			IResourceIndexedSearchParamUriDao theResourceIndexedSearchParamUriDao, IHapiTerminologySvc theTerminologySvc, ITermValueSetMembershipSvc theValueSetMembershipSvc, ISearchParamRegistry theSearchParamRegistry) {
 		myContext = theFhirContext;
 		myEntityManager = theEntityManager;
 		myPlatformTransactionManager = thePlatformTransactionManager;
@@ -108,8 +114,8 @@ public class SearchBuilder {
 		mySearchResultDao = theSearchResultDao;
 		myCallingDao = theDao;
 		myResourceIndexedSearchParamUriDao = theResourceIndexedSearchParamUriDao;
-		myForcedIdDao = theForcedIdDao;
 		myTerminologySvc = theTerminologySvc;
+		myValueSetMembershipSvc = theValueSetMembershipSvc;
 		mySearchParamRegistry = theSearchParamRegistry;
 	}
 
@@ -132,11 +138,11 @@ public class SearchBuilder {
 
 		RuntimeSearchParam left = theParamDef.getCompositeOf().get(0);
 		IQueryParameterType leftValue = cp.getLeftValue();
-		predicates.add(createCompositeParamPart(builder, from, left, leftValue));
+		predicates.add(createCompositeParamPart(builder, cq, from, left, leftValue));
 
 		RuntimeSearchParam right = theParamDef.getCompositeOf().get(1);
 		IQueryParameterType rightValue = cp.getRightValue();
-		predicates.add(createCompositeParamPart(builder, from, right, rightValue));
+		predicates.add(createCompositeParamPart(builder, cq, from, right, rightValue));
 
 		createPredicateResourceId(builder, cq, predicates, from.get("myId").as(Long.class));
 		cq.where(builder.and(toArray(predicates)));
@@ -911,7 +917,7 @@ public class SearchBuilder {
 				}
 			}
 
-			Predicate singleCode = createPredicateToken(nextOr, theParamName, builder, from);
+			Predicate singleCode = createPredicateToken(nextOr, theParamName, builder, cq, from);
 			if (singleCode == null) {
 				doSetPids(new ArrayList<Long>());
 				return;
@@ -1023,7 +1029,79 @@ public class SearchBuilder {
 		doSetPids(new HashSet<Long>(q.getResultList()));
 	}
 
-	private Predicate createCompositeParamPart(CriteriaBuilder builder, Root<ResourceTable> from, RuntimeSearchParam left, IQueryParameterType leftValue) {
+	/**
+	 * Compiles all of the "simple" parameters in the map (string, token, date, number, quantity
+	 * and URI parameters without a :missing modifier) into a single statement against the
+	 * resource table, with one subquery per parameter ordered by estimated selectivity. This
+	 * lets the database perform the intersection instead of us doing it one parameter at
+	 * a time.
+	 *
+	 * @return Returns the parameters which could not be handled this way, and must still be processed individually
+	 */
+	private Map<String, List<List<? extends IQueryParameterType>>> addPredicatesCombined(SearchParameterMap theParams) {
+		Map<String, List<List<? extends IQueryParameterType>>> retVal = new LinkedHashMap<String, List<List<? extends IQueryParameterType>>>();
+
+		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+		Root<ResourceTable> from = cq.from(ResourceTable.class);
+		cq.select(from.get("myId").as(Long.class));
+
+		List<SelectivityPredicate> combined = new ArrayList<SelectivityPredicate>();
+		for (Entry<String, List<List<? extends IQueryParameterType>>> nextParamEntry : theParams.entrySet()) {
+			String nextParamName = nextParamEntry.getKey();
+
+			RuntimeSearchParam nextParamDef = null;
+			if (!nextParamName.startsWith("_")) {
+				nextParamDef = mySearchParamRegistry.getActiveSearchParam(myResourceName, nextParamName);
+			}
+
+			for (List<? extends IQueryParameterType> nextAnd : nextParamEntry.getValue()) {
+				Predicate predicate = null;
+				if (nextParamDef != null && nextAnd != null && nextAnd.isEmpty() == false) {
+					predicate = createPredicateIndexSubquery(builder, cq, from, nextParamDef, nextAnd);
+				}
+
+				if (predicate != null) {
+					combined.add(new SelectivityPredicate(estimateSelectivity(nextParamDef.getParamType(), nextAnd), predicate));
+				} else {
+					if (!retVal.containsKey(nextParamName)) {
+						retVal.put(nextParamName, new ArrayList<List<? extends IQueryParameterType>>());
+					}
+					retVal.get(nextParamName).add(nextAnd);
+				}
+			}
+		}
+
+		if (combined.isEmpty()) {
+			return retVal;
+		}
+
+		/*
+		 * Most databases will plan this themselves, but putting the most selective
+		 * clauses first helps the ones that don't
+		 */
+		Collections.sort(combined);
+
+		List<Predicate> predicates = new ArrayList<Predicate>();
+		predicates.add(builder.equal(from.get("myResourceType"), myResourceName));
+		predicates.add(builder.isNull(from.get("myDeleted")));
+		for (SelectivityPredicate next : combined) {
+			predicates.add(next.getPredicate());
+		}
+		createPredicateResourceId(builder, cq, predicates, from.get("myId").as(Long.class));
+		createPredicateLastUpdatedForResourceTable(builder, from, predicates);
+
+		cq.where(builder.and(toArray(predicates)));
+
+		ourLog.debug("Combined {} search parameter clauses into a single statement", combined.size());
+
+		TypedQuery<Long> q = myEntityManager.createQuery(cq);
+		doSetPids(new HashSet<Long>(q.getResultList()));
+
+		return retVal;
+	}
+
+	private Predicate createCompositeParamPart(CriteriaBuilder builder, AbstractQuery<?> theQuery, Root<ResourceTable> from, RuntimeSearchParam left, IQueryParameterType leftValue) {
 		Predicate retVal = null;
 		switch (left.getParamType()) {
 		case STRING: {
@@ -1033,7 +1111,7 @@ public class SearchBuilder {
 		}
 		case TOKEN: {
 			From<ResourceIndexedSearchParamToken, ResourceIndexedSearchParamToken> tokenJoin = from.join("myParamsToken", JoinType.INNER);
-			retVal = createPredicateToken(leftValue, left.getName(), builder, tokenJoin);
+			retVal = createPredicateToken(leftValue, left.getName(), builder, theQuery, tokenJoin);
 			break;
 		}
 		case DATE: {
@@ -1110,6 +1188,117 @@ public class SearchBuilder {
 		}
 	}
 
+	/**
+	 * Creates a predicate of the form <code>RES_ID IN (SELECT RES_ID FROM HFJ_SPIDX_xxx WHERE ...)</code>
+	 * for a single AND clause, or returns <code>null</code> if the clause needs special handling and
+	 * must be processed on its own
+	 */
+	private Predicate createPredicateIndexSubquery(CriteriaBuilder theBuilder, CriteriaQuery<?> theQuery, Root<ResourceTable> theFrom, RuntimeSearchParam theParamDef, List<? extends IQueryParameterType> theList) {
+		for (IQueryParameterType next : theList) {
+			if (next == null || next.getMissing() != null) {
+				return null;
+			}
+		}
+
+		String paramName = theParamDef.getName();
+		Subquery<Long> subQ = theQuery.subquery(Long.class);
+		List<Predicate> orPredicates = new ArrayList<Predicate>();
+		Root<? extends BaseResourceIndexedSearchParam> subQfrom;
+
+		switch (theParamDef.getParamType()) {
+		case TOKEN: {
+			Root<ResourceIndexedSearchParamToken> tokenFrom = subQ.from(ResourceIndexedSearchParamToken.class);
+			for (IQueryParameterType next : theList) {
+				if (next instanceof TokenParam && ((TokenParam) next).isText()) {
+					return null;
+				}
+				Predicate singleCode = createPredicateToken(next, paramName, theBuilder, subQ, tokenFrom);
+				if (singleCode == null) {
+					/*
+					 * The modifier expanded to no codes, so like addPredicateToken the search
+					 * matches nothing. Deferring the clause would expand the codes a second time.
+					 */
+					return theBuilder.disjunction();
+				}
+				orPredicates.add(singleCode);
+			}
+			subQfrom = tokenFrom;
+			break;
+		}
+		case STRING: {
+			Root<ResourceIndexedSearchParamString> stringFrom = subQ.from(ResourceIndexedSearchParamString.class);
+			for (IQueryParameterType next : theList) {
+				orPredicates.add(createPredicateString(next, paramName, theBuilder, stringFrom));
+			}
+			subQfrom = stringFrom;
+			break;
+		}
+		case DATE: {
+			Root<ResourceIndexedSearchParamDate> dateFrom = subQ.from(ResourceIndexedSearchParamDate.class);
+			for (IQueryParameterType next : theList) {
+				Predicate singleCode = createPredicateDate(theBuilder, dateFrom, next);
+				if (singleCode == null) {
+					return null;
+				}
+				orPredicates.add(singleCode);
+			}
+			subQfrom = dateFrom;
+			break;
+		}
+		case QUANTITY: {
+			Root<ResourceIndexedSearchParamQuantity> quantityFrom = subQ.from(ResourceIndexedSearchParamQuantity.class);
+			for (IQueryParameterType next : theList) {
+				orPredicates.add(createPredicateQuantity(theBuilder, quantityFrom, next));
+			}
+			subQfrom = quantityFrom;
+			break;
+		}
+		case NUMBER: {
+			Root<ResourceIndexedSearchParamNumber> numberFrom = subQ.from(ResourceIndexedSearchParamNumber.class);
+			for (IQueryParameterType next : theList) {
+				if (!(next instanceof NumberParam) || ((NumberParam) next).getValue() == null) {
+					return null;
+				}
+				NumberParam param = (NumberParam) next;
+				ParamPrefixEnum prefix = ObjectUtils.defaultIfNull(param.getPrefix(), ParamPrefixEnum.EQUAL);
+				Expression<BigDecimal> path = numberFrom.get("myValue");
+				orPredicates.add(createPredicateNumeric(theBuilder, param, prefix, param.getValue(), path, "invalidNumberPrefix", param.getValue().toPlainString()));
+			}
+			subQfrom = numberFrom;
+			break;
+		}
+		case URI: {
+			Root<ResourceIndexedSearchParamUri> uriFrom = subQ.from(ResourceIndexedSearchParamUri.class);
+			for (IQueryParameterType next : theList) {
+				if (!(next instanceof UriParam) || ((UriParam) next).getValue() == null) {
+					return null;
+				}
+				UriParam param = (UriParam) next;
+				Expression<String> path = uriFrom.get("myUri").as(String.class);
+				if (param.getQualifier() == UriParamQualifierEnum.ABOVE) {
+					// :above requires candidate URIs to be loaded, so it is handled separately
+					return null;
+				} else if (param.getQualifier() == UriParamQualifierEnum.BELOW) {
+					orPredicates.add(theBuilder.like(path, createLeftMatchLikeExpression(param.getValue())));
+				} else {
+					orPredicates.add(theBuilder.equal(path, param.getValue()));
+				}
+			}
+			subQfrom = uriFrom;
+			break;
+		}
+		default:
+			return null;
+		}
+
+		subQ.select(subQfrom.get("myResourcePid").as(Long.class));
+		Predicate subQtype = theBuilder.equal(subQfrom.get("myResourceType"), myResourceName);
+		Predicate subQname = theBuilder.equal(subQfrom.get("myParamName"), paramName);
+		subQ.where(theBuilder.and(subQtype, subQname, theBuilder.or(toArray(orPredicates))));
+
+		return theBuilder.in(theFrom.get("myId")).value(subQ);
+	}
+
 	private void createPredicateLastUpdatedForIndexedSearchParam(CriteriaBuilder builder, Root<? extends BaseResourceIndexedSearchParam> from, List<Predicate> predicates) {
 		DateRangeParam lastUpdated = myParams.getLastUpdatedAndRemove();
 		if (lastUpdated != null) {
@@ -1230,7 +1419,7 @@ public class SearchBuilder {
 	}
 
 	private void createPredicateResourceId(CriteriaBuilder builder, CriteriaQuery<?> cq, List<Predicate> thePredicates, Expression<Long> theExpression) {
-		if (myParams.isPersistResults()) {
+		if (isPersistResults()) {
 			if (mySearchEntity.getTotalCount() > -1) {
 				Subquery<Long> subQ = cq.subquery(Long.class);
 				Root<SearchResult> subQfrom = subQ.from(SearchResult.class);
@@ -1297,7 +1486,7 @@ public class SearchBuilder {
 		return orPredicates;
 	}
 
-	private Predicate createPredicateToken(IQueryParameterType theParameter, String theParamName, CriteriaBuilder theBuilder, From<ResourceIndexedSearchParamToken, ResourceIndexedSearchParamToken> theFrom) {
+	private Predicate createPredicateToken(IQueryParameterType theParameter, String theParamName, CriteriaBuilder theBuilder, AbstractQuery<?> theQuery, From<ResourceIndexedSearchParamToken, ResourceIndexedSearchParamToken> theFrom) {
 		String code;
 		String system;
 		TokenParamModifier modifier = null;
@@ -1330,14 +1519,33 @@ public class SearchBuilder {
 		 * Process token modifiers (:in, :below, :above)
 		 */
 
+		if (modifier == TokenParamModifier.ABOVE || modifier == TokenParamModifier.BELOW) {
+			system = determineSystemIfMissing(theParamName, code, system);
+		}
+
+		if ((modifier == TokenParamModifier.IN || modifier == TokenParamModifier.ABOVE || modifier == TokenParamModifier.BELOW) && myCallingDao.getConfig().isStoreTokenModifierExpansions()) {
+			TermValueSetExpansion expansion = myValueSetMembershipSvc.getOrCreateExpansion(modifier, system, code);
+			if (expansion != null) {
+				if (expansion.getNumMembers() == 0) {
+					return null;
+				}
+				Subquery<Long> memberQ = theQuery.subquery(Long.class);
+				Root<TermValueSetMember> memberFrom = memberQ.from(TermValueSetMember.class);
+				memberQ.select(memberFrom.get("myPid").as(Long.class));
+				Predicate expansionPredicate = theBuilder.equal(memberFrom.get("myExpansionPid"), expansion.getPid());
+				Predicate codePredicate = theBuilder.equal(memberFrom.get("myCode"), theFrom.get("myValue"));
+				Predicate systemPredicate = theBuilder.equal(memberFrom.get("mySystem"), theFrom.get("mySystem"));
+				memberQ.where(expansionPredicate, codePredicate, systemPredicate);
+				return theBuilder.exists(memberQ);
+			}
+		}
+
 		List<VersionIndependentConcept> codes = null;
 		if (modifier == TokenParamModifier.IN) {
 			codes = myTerminologySvc.expandValueSet(code);
 		} else if (modifier == TokenParamModifier.ABOVE) {
-			system = determineSystemIfMissing(theParamName, code, system);
 			codes = myTerminologySvc.findCodesAbove(system, code);
 		} else if (modifier == TokenParamModifier.BELOW) {
-			system = determineSystemIfMissing(theParamName, code, system);
 			codes = myTerminologySvc.findCodesBelow(system, code);
 		}
 		
@@ -1389,20 +1597,23 @@ public class SearchBuilder {
 		return createResourceLinkPathPredicate(myCallingDao, myContext, theParamName, from, myResourceType);
 	}
 
-	private TypedQuery<Long> createSearchAllByTypeQuery(DateRangeParam theLastUpdated) {
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
-		Root<ResourceTable> from = cq.from(ResourceTable.class);
-		cq.select(from.get("myId").as(Long.class));
+	private List<Predicate> createSearchAllByTypePredicates(CriteriaBuilder theBuilder, Root<ResourceTable> theFrom, DateRangeParam theLastUpdated) {
 		List<Predicate> predicates = new ArrayList<Predicate>();
-		predicates.add(builder.equal(from.get("myResourceType"), myResourceName));
-		predicates.add(builder.isNull(from.get("myDeleted")));
+		predicates.add(theBuilder.equal(theFrom.get("myResourceType"), myResourceName));
+		predicates.add(theBuilder.isNull(theFrom.get("myDeleted")));
 
 		if (theLastUpdated != null) {
-			predicates.addAll(createLastUpdatedPredicates(theLastUpdated, builder, from));
+			predicates.addAll(createLastUpdatedPredicates(theLastUpdated, theBuilder, theFrom));
 		}
+		return predicates;
+	}
 
-		cq.where(toArray(predicates));
+	private TypedQuery<Long> createSearchAllByTypeQuery(DateRangeParam theLastUpdated) {
+		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+		Root<ResourceTable> from = cq.from(ResourceTable.class);
+		cq.select(from.get("myId").as(Long.class));
+		cq.where(toArray(createSearchAllByTypePredicates(builder, from, theLastUpdated)));
 
 		TypedQuery<Long> query = myEntityManager.createQuery(cq);
 		return query;
@@ -1533,7 +1744,7 @@ public class SearchBuilder {
 	}
 
 	public Set<Long> doGetPids() {
-		if (myParams.isPersistResults()) {
+		if (isPersistResults()) {
 			HashSet<Long> retVal = new HashSet<Long>();
 
 			for (SearchResult next : mySearchResultDao.findWithSearchUuid(mySearchEntity)) {
@@ -1546,14 +1757,41 @@ public class SearchBuilder {
 		}
 	}
 
+	/**
+	 * Returns the matching PIDs in the order they should be returned. This may only
+	 * be called after {@link #search(SearchParameterMap)} for a search whose results
+	 * are not persisted.
+	 */
+	public List<Long> doGetOrderedPids() {
+		Validate.isTrue(!isPersistResults(), "Results are persisted for this search");
+		if (myPids == null) {
+			return new ArrayList<Long>();
+		}
+		return new ArrayList<Long>(myPids);
+	}
+
 	private boolean doHaveNoResults() {
-		if (myParams.isPersistResults()) {
+		if (isPersistResults()) {
 			return mySearchEntity.getTotalCount() == 0;
 		} else {
 			return myPids != null && myPids.isEmpty();
 		}
 	}
 
+	/**
+	 * Rather than storing every matching PID as a {@link SearchResult}, store only
+	 * a keyset cursor. Pages are then loaded on demand by {@link PersistedJpaBundleProvider},
+	 * which also estimates the total as it is needed, so nothing is counted here.
+	 */
+	private void doInitializeKeysetSearch() {
+		mySearchEntity.setResourceType(myResourceName);
+		mySearchEntity.setKeysetPosition(0, null);
+		mySearchEntity.setTotalCount(-1);
+		mySearchEntity = myEntityManager.merge(mySearchEntity);
+
+		myEntityManager.flush();
+	}
+
 	private void doInitializeSearch() {
 		if (mySearchEntity == null) {
 			reinitializeSearch();
@@ -1561,7 +1799,7 @@ public class SearchBuilder {
 	}
 
 	private IBundleProvider doReturnProvider() {
-		if (myParams.isPersistResults()) {
+		if (isPersistResults()) {
 			return new PersistedJpaBundleProvider(mySearchEntity.getUuid(), myCallingDao);
 		} else {
 			if (myPids == null) {
@@ -1573,7 +1811,7 @@ public class SearchBuilder {
 	}
 
 	private void doSetPids(Collection<Long> thePids) {
-		if (myParams.isPersistResults()) {
+		if (isPersistResults()) {
 			if (mySearchEntity.getTotalCount() != null) {
 				reinitializeSearch();
 			}
@@ -1615,6 +1853,48 @@ public class SearchBuilder {
 		doSetPids(resultList);
 	}
 
+	/**
+	 * Unfiltered, unsorted searches can be paged straight from the resource table
+	 * in PID order instead of storing every match
+	 */
+	private boolean isKeysetPagingApplicable(SearchParameterMap theParams) {
+		if (!isPersistResults()) {
+			return false;
+		}
+		if (theParams.getSort() != null && isNotBlank(theParams.getSort().getParamName())) {
+			return false;
+		}
+		return myCallingDao.getConfig().isKeysetPagingForUnfilteredSearches();
+	}
+
+	/**
+	 * Results are never persisted while they are being published to a callback, as the
+	 * callback is responsible for storing them
+	 */
+	private boolean isPersistResults() {
+		return myPidCallback == null && myParams.isPersistResults();
+	}
+
+	/**
+	 * Runs the search and passes the matching PIDs to the given callback, in the order they
+	 * should be returned. If the results are sorted, the PIDs are passed in chunks as each
+	 * one is sorted, so that the first pages can be returned before the whole sort has finished.
+	 * The results are never persisted by this method, regardless of
+	 * {@link SearchParameterMap#isPersistResults()}.
+	 */
+	public void loadOrderedPids(SearchParameterMap theParams, ISearchCoordinatorSvc.IPidCallback theCallback) {
+		myPidCallback = theCallback;
+		myPidsPublished = false;
+		try {
+			search(theParams);
+			if (!myPidsPublished) {
+				theCallback.addPids(doGetOrderedPids());
+			}
+		} finally {
+			myPidCallback = null;
+		}
+	}
+
 	private void loadResourcesByPid(Collection<Long> theIncludePids, List<IBaseResource> theResourceListToPopulate, Set<Long> theRevIncludedPids, boolean theForHistoryOperation) {
 		EntityManager entityManager = myEntityManager;
 		FhirContext context = myContext;
@@ -1623,6 +1903,38 @@ public class SearchBuilder {
 		loadResourcesByPid(theIncludePids, theResourceListToPopulate, theRevIncludedPids, theForHistoryOperation, entityManager, context, dao);
 	}
 
+	/**
+	 * Loads the sorted PIDs a chunk at a time, passing each chunk to the callback as soon
+	 * as it is loaded. Chunks start small so that the first page is available quickly, and
+	 * double in size so that the number of queries only grows logarithmically.
+	 */
+	private void loadSortedPidsInChunks(TypedQuery<Tuple> theQuery, LinkedHashSet<Long> theLoadPids) {
+		int firstResult = 0;
+		int chunkSize = FIRST_SORT_CHUNK_SIZE;
+		while (true) {
+			theQuery.setFirstResult(firstResult);
+			theQuery.setMaxResults(chunkSize);
+			List<Tuple> resultList = theQuery.getResultList();
+
+			List<Long> newPids = new ArrayList<Long>(resultList.size());
+			for (Tuple next : resultList) {
+				Long pid = next.get(0, Long.class);
+				if (theLoadPids.add(pid)) {
+					newPids.add(pid);
+				}
+			}
+			myPidCallback.addPids(newPids);
+
+			if (resultList.size() < chunkSize) {
+				return;
+			}
+			firstResult += chunkSize;
+			if (chunkSize < Integer.MAX_VALUE / 2) {
+				chunkSize *= 2;
+			}
+		}
+	}
+
 	private void processSort(final SearchParameterMap theParams) {
 
 		// Set<Long> loadPids = theLoadPids;
@@ -1645,12 +1957,20 @@ public class SearchBuilder {
 				LinkedHashSet<Long> loadPids = new LinkedHashSet<Long>();
 				cq.multiselect(from.get("myId").as(Long.class));
 				cq.where(toArray(predicates));
+				if (myPidCallback != null) {
+					// Ties are broken by PID so that the chunks don't overlap
+					orders.add(builder.asc(from.get("myId")));
+				}
 				cq.orderBy(orders);
 
 				TypedQuery<Tuple> query = myEntityManager.createQuery(cq);
 
-				for (Tuple next : query.getResultList()) {
-					loadPids.add(next.get(0, Long.class));
+				if (myPidCallback != null) {
+					loadSortedPidsInChunks(query, loadPids);
+				} else {
+					for (Tuple next : query.getResultList()) {
+						loadPids.add(next.get(0, Long.class));
+					}
 				}
 
 				ourLog.debug("Sort PID order is now: {}", loadPids);
@@ -1658,11 +1978,18 @@ public class SearchBuilder {
 				ArrayList<Long> pids = new ArrayList<Long>(loadPids);
 
 				// Any ressources which weren't matched by the sort get added to the bottom
+				List<Long> unmatchedPids = new ArrayList<Long>();
 				for (Long next : originalPids) {
 					if (loadPids.contains(next) == false) {
-						pids.add(next);
+						unmatchedPids.add(next);
 					}
 				}
+				pids.addAll(unmatchedPids);
+
+				if (myPidCallback != null) {
+					myPidCallback.addPids(unmatchedPids);
+					myPidsPublished = true;
+				}
 
 				doSetPids(pids);
 			}
@@ -1671,22 +1998,9 @@ public class SearchBuilder {
 	}
 
 	private void reinitializeSearch() {
-		mySearchEntity = new Search();
-		mySearchEntity.setUuid(UUID.randomUUID().toString());
-		mySearchEntity.setCreated(new Date());
-		mySearchEntity.setTotalCount(-1);
-		mySearchEntity.setPreferredPageSize(myParams.getCount());
-		mySearchEntity.setSearchType(myParams.getEverythingMode() != null ? SearchTypeEnum.EVERYTHING : SearchTypeEnum.SEARCH);
-		mySearchEntity.setLastUpdated(myParams.getLastUpdated());
+		mySearchEntity = newSearchEntity(myParams, myResourceName, mySearchQueryString);
 
-		for (Include next : myParams.getIncludes()) {
-			mySearchEntity.getIncludes().add(new SearchInclude(mySearchEntity, next.getValue(), false, next.isRecurse()));
-		}
-		for (Include next : myParams.getRevIncludes()) {
-			mySearchEntity.getIncludes().add(new SearchInclude(mySearchEntity, next.getValue(), true, next.isRecurse()));
-		}
-
-		if (myParams.isPersistResults()) {
+		if (isPersistResults()) {
 			myEntityManager.persist(mySearchEntity);
 			for (SearchInclude next : mySearchEntity.getIncludes()) {
 				myEntityManager.persist(next);
@@ -1708,7 +2022,7 @@ public class SearchBuilder {
 			Long pid = null;
 			if (theParams.get(BaseResource.SP_RES_ID) != null) {
 				StringParam idParm = (StringParam) theParams.get(BaseResource.SP_RES_ID).get(0).get(0);
-				pid = BaseHapiFhirDao.translateForcedIdToPid(myResourceName, idParm.getValue(), myForcedIdDao);
+				pid = myCallingDao.translateForcedIdToPid(myResourceName, idParm.getValue());
 			}
 
 			if (theParams.containsKey(Constants.PARAM_CONTENT) || theParams.containsKey(Constants.PARAM_TEXT)) {
@@ -1749,6 +2063,12 @@ public class SearchBuilder {
 
 		} else if (theParams.isEmpty()) {
 
+			if (isKeysetPagingApplicable(theParams)) {
+				doInitializeKeysetSearch();
+				ourLog.info(" {} on {} in {}ms using keyset paging", new Object[] { myResourceName, theParams, w.getMillisAndRestart() });
+				return doReturnProvider();
+			}
+
 			TypedQuery<Long> query = createSearchAllByTypeQuery(lu);
 			doSetPids(query.getResultList());
 
@@ -1816,7 +2136,12 @@ public class SearchBuilder {
 
 //		RuntimeResourceDefinition resourceDef = myContext.getResourceDefinition(myResourceType);
 
-		for (Entry<String, List<List<? extends IQueryParameterType>>> nextParamEntry : params.entrySet()) {
+		Map<String, List<List<? extends IQueryParameterType>>> remainingParams = addPredicatesCombined(params);
+		if (doHaveNoResults()) {
+			return;
+		}
+
+		for (Entry<String, List<List<? extends IQueryParameterType>>> nextParamEntry : remainingParams.entrySet()) {
 			String nextParamName = nextParamEntry.getKey();
 			if (nextParamName.equals(BaseResource.SP_RES_ID)) {
 
@@ -1828,6 +2153,12 @@ public class SearchBuilder {
 						if (nextValue == null || nextValue.size() == 0) {
 							continue;
 						} else {
+							List<IIdType> valueIds = new ArrayList<IIdType>(nextValue.size());
+							for (IQueryParameterType next : nextValue) {
+								valueIds.add(new IdDt(myResourceName, new IdDt(next.getValueAsQueryToken(myContext)).getIdPart()));
+							}
+							myCallingDao.preloadForcedIds(valueIds);
+
 							for (IQueryParameterType next : nextValue) {
 								String value = next.getValueAsQueryToken(myContext);
 								IIdType valueId = new IdDt(value);
@@ -1948,6 +2279,15 @@ public class SearchBuilder {
 
 	}
 	
+	/**
+	 * Sets the normalized query string which is stored with the search so that it
+	 * can be reused by later identical searches, or <code>null</code> if it should
+	 * not be reused
+	 */
+	public void setSearchQueryString(String theSearchQueryString) {
+		mySearchQueryString = theSearchQueryString;
+	}
+
 	public void setType(Class<? extends IBaseResource> theResourceType, String theResourceName) {
 		myResourceType = theResourceType;
 		myResourceName = theResourceName;
@@ -2001,7 +2341,7 @@ public class SearchBuilder {
 	 * returns <code>0.005</code> because we shold actually match values which are
 	 * <code>4 (+/-) 0.005</code> according to the FHIR specs.
 	 */
-	static BigDecimal calculateFuzzAmount(ParamPrefixEnum cmpValue, BigDecimal theValue) {
+	public static BigDecimal calculateFuzzAmount(ParamPrefixEnum cmpValue, BigDecimal theValue) {
 		if (cmpValue == ParamPrefixEnum.APPROXIMATE) {
 			return theValue.multiply(new BigDecimal(0.1));
 		} else {
@@ -2018,6 +2358,35 @@ public class SearchBuilder {
 		}
 	}
 
+	/**
+	 * Creates a query selecting the PIDs of the resources on the other end of any
+	 * link matching one of the given includes
+	 */
+	private static String createIncludeQuery(List<IncludeClause> theClauses, String theSearchFieldName, String theResultFieldName) {
+		StringBuilder sql = new StringBuilder();
+		sql.append("SELECT DISTINCT r.").append(theResultFieldName).append(" FROM ResourceLink r WHERE r.").append(theSearchFieldName).append(" IN (:target_pids)");
+
+		if (hasWildcardInclude(theClauses)) {
+			// A wildcard include matches every link
+			return sql.toString();
+		}
+
+		sql.append(" AND (");
+		for (int i = 0; i < theClauses.size(); i++) {
+			IncludeClause nextClause = theClauses.get(i);
+			if (i > 0) {
+				sql.append(" OR ");
+			}
+			sql.append("(r.mySourcePath IN (:src_paths").append(i).append(")");
+			if (nextClause.myTargetResourceTypes != null) {
+				sql.append(" AND r.myTargetResourceType IN (:target_resource_types").append(i).append(")");
+			}
+			sql.append(")");
+		}
+		sql.append(")");
+		return sql.toString();
+	}
+
 	private static List<Predicate> createLastUpdatedPredicates(final DateRangeParam theLastUpdated, CriteriaBuilder builder, From<?, ResourceTable> from) {
 		List<Predicate> lastUpdatedPredicates = new ArrayList<Predicate>();
 		if (theLastUpdated != null) {
@@ -2046,6 +2415,63 @@ public class SearchBuilder {
 		return type;
 	}
 
+	/**
+	 * Returns a rough estimate of how selective a single AND clause is likely to be, where
+	 * lower numbers mean fewer matching rows. This is only used to order the clauses of
+	 * a combined search statement, so it doesn't need to be precise.
+	 */
+	static int estimateSelectivity(RestSearchParameterTypeEnum theParamType, List<? extends IQueryParameterType> theList) {
+		int retVal;
+		switch (theParamType) {
+		case TOKEN:
+			retVal = 20;
+			for (IQueryParameterType next : theList) {
+				if (next instanceof TokenParam) {
+					TokenParam token = (TokenParam) next;
+					if (token.getModifier() != null) {
+						retVal = Math.max(retVal, 60);
+					} else if (isBlank(token.getValue())) {
+						retVal = Math.max(retVal, 80);
+					} else if (isBlank(token.getSystem())) {
+						retVal = Math.max(retVal, 30);
+					}
+				}
+			}
+			break;
+		case URI:
+			retVal = 20;
+			for (IQueryParameterType next : theList) {
+				if (next instanceof UriParam && ((UriParam) next).getQualifier() != null) {
+					retVal = Math.max(retVal, 50);
+				}
+			}
+			break;
+		case STRING:
+			retVal = 30;
+			for (IQueryParameterType next : theList) {
+				if (next instanceof StringParam && !((StringParam) next).isExact()) {
+					// Short prefixes match a lot of rows
+					int length = defaultString(((StringParam) next).getValue()).length();
+					retVal = Math.max(retVal, 50 - Math.min(length, 10));
+				}
+			}
+			break;
+		case QUANTITY:
+		case NUMBER:
+			retVal = 60;
+			break;
+		case DATE:
+			retVal = 70;
+			break;
+		default:
+			retVal = 90;
+			break;
+		}
+
+		// Every OR value widens the clause a bit
+		return retVal + (5 * (theList.size() - 1));
+	}
+
 	private static List<Long> filterResourceIdsByLastUpdated(EntityManager theEntityManager, final DateRangeParam theLastUpdated, Collection<Long> thePids) {
 		CriteriaBuilder builder = theEntityManager.getCriteriaBuilder();
 		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
@@ -2062,6 +2488,29 @@ public class SearchBuilder {
 		return resultList;
 	}
 
+	/**
+	 * Creates a new (not yet persisted) search entity, along with its includes
+	 */
+	public static Search newSearchEntity(SearchParameterMap theParams, String theResourceName, String theSearchQueryString) {
+		Search retVal = new Search();
+		retVal.setUuid(UUID.randomUUID().toString());
+		retVal.setCreated(new Date());
+		retVal.setTotalCount(-1);
+		retVal.setPreferredPageSize(theParams.getCount());
+		retVal.setSearchType(theParams.getEverythingMode() != null ? SearchTypeEnum.EVERYTHING : SearchTypeEnum.SEARCH);
+		retVal.setLastUpdated(theParams.getLastUpdated());
+		retVal.setResourceType(theResourceName);
+		retVal.setSearchQueryString(theSearchQueryString);
+
+		for (Include next : theParams.getIncludes()) {
+			retVal.getIncludes().add(new SearchInclude(retVal, next.getValue(), false, next.isRecurse()));
+		}
+		for (Include next : theParams.getRevIncludes()) {
+			retVal.getIncludes().add(new SearchInclude(retVal, next.getValue(), true, next.isRecurse()));
+		}
+		return retVal;
+	}
+
 	public static void loadResourcesByPid(Collection<Long> theIncludePids, List<IBaseResource> theResourceListToPopulate, Set<Long> theRevIncludedPids, boolean theForHistoryOperation, EntityManager entityManager, FhirContext context, IDao theDao) {
 		if (theIncludePids.isEmpty()) {
 			return;
@@ -2073,13 +2522,7 @@ public class SearchBuilder {
 			theResourceListToPopulate.add(null);
 		}
 
-		CriteriaBuilder builder = entityManager.getCriteriaBuilder();
-		CriteriaQuery<ResourceTable> cq = builder.createQuery(ResourceTable.class);
-		Root<ResourceTable> from = cq.from(ResourceTable.class);
-		cq.where(from.get("myId").in(theIncludePids));
-		TypedQuery<ResourceTable> q = entityManager.createQuery(cq);
-
-		for (ResourceTable next : q.getResultList()) {
+		for (ResourceTable next : ResourcePageLoader.loadResources(entityManager, theIncludePids)) {
 			Class<? extends IBaseResource> resourceType = context.getResourceDefinition(next.getResourceType()).getImplementingClass();
 			IBaseResource resource = (IBaseResource) theDao.toResource(resourceType, next, theForHistoryOperation);
 			Integer index = position.get(next.getId());
@@ -2106,12 +2549,27 @@ public class SearchBuilder {
 		}
 	}
 
+	private static boolean hasWildcardInclude(List<IncludeClause> theClauses) {
+		for (IncludeClause nextClause : theClauses) {
+			if (nextClause.myPaths == null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * THIS SHOULD RETURN HASHSET and not jsut Set because we add to it later (so it can't be Collections.emptySet())
+	 * <p>
+	 * All of the includes are loaded by a single query per round (split into chunks of
+	 * {@link DaoConfig#getIncludeQueryChunkSize()} PIDs) which selects only the PIDs
+	 * of the linked resources. No more than {@link DaoConfig#getIncludeLimit()}
+	 * resources are loaded.
+	 * </p>
 	 * 
 	 * @param theLastUpdated
 	 */
-	public static HashSet<Long> loadReverseIncludes(IDao theCallingDao, FhirContext theContext, EntityManager theEntityManager, Collection<Long> theMatches, Set<Include> theRevIncludes, boolean theReverseMode, DateRangeParam theLastUpdated) {
+	public static HashSet<Long> loadReverseIncludes(IDao theCallingDao, FhirContext theContext, EntityManager theEntityManager, Collection<Long> theMatches, Set<Include> theRevIncludes, boolean theReverseMode, DateRangeParam theLastUpdated, DaoConfig theDaoConfig) {
 		if (theMatches.size() == 0) {
 			return new HashSet<Long>();
 		}
@@ -2119,140 +2577,194 @@ public class SearchBuilder {
 			return new HashSet<Long>();
 		}
 		String searchFieldName = theReverseMode ? "myTargetResourcePid" : "mySourceResourcePid";
+		String resultFieldName = theReverseMode ? "mySourceResourcePid" : "myTargetResourcePid";
+
+		List<IncludeClause> clauses = new ArrayList<IncludeClause>();
+		for (Include nextInclude : theRevIncludes) {
+			IncludeClause nextClause = toIncludeClause(theCallingDao, theContext, nextInclude);
+			if (nextClause != null) {
+				clauses.add(nextClause);
+			}
+		}
+
+		if (clauses.isEmpty()) {
+			return new HashSet<Long>();
+		}
 
 		Collection<Long> nextRoundMatches = theMatches;
 		HashSet<Long> allAdded = new HashSet<Long>();
 		HashSet<Long> original = new HashSet<Long>(theMatches);
-		ArrayList<Include> includes = new ArrayList<Include>(theRevIncludes);
 
 		int roundCounts = 0;
+		int newCount = 0;
 		StopWatch w = new StopWatch();
 
 		boolean addedSomeThisRound;
+		boolean limitReached = false;
 		do {
 			roundCounts++;
 
 			HashSet<Long> pidsToInclude = new HashSet<Long>();
-			Set<Long> nextRoundOmit = new HashSet<Long>();
-
-			for (Iterator<Include> iter = includes.iterator(); iter.hasNext();) {
-				Include nextInclude = iter.next();
-				if (nextInclude.isRecurse() == false) {
-					iter.remove();
+			int newThisRound = 0;
+			String sql = createIncludeQuery(clauses, searchFieldName, resultFieldName);
+			boolean wildcard = hasWildcardInclude(clauses);
+			for (List<Long> nextChunk : Lists.partition(new ArrayList<Long>(nextRoundMatches), theDaoConfig.getIncludeQueryChunkSize())) {
+				int remaining = theDaoConfig.getIncludeLimit() - newCount - newThisRound;
+				if (remaining <= 0) {
+					limitReached = true;
+					break;
 				}
 
-				boolean matchAll = "*".equals(nextInclude.getValue());
-				if (matchAll) {
-					String sql;
-					sql = "SELECT r FROM ResourceLink r WHERE r." + searchFieldName + " IN (:target_pids)";
-					TypedQuery<ResourceLink> q = theEntityManager.createQuery(sql, ResourceLink.class);
-					q.setParameter("target_pids", nextRoundMatches);
-					List<ResourceLink> results = q.getResultList();
-					for (ResourceLink resourceLink : results) {
-						if (theReverseMode) {
-							// if (theEverythingModeEnum.isEncounter()) {
-							// if (resourceLink.getSourcePath().equals("Encounter.subject") ||
-							// resourceLink.getSourcePath().equals("Encounter.patient")) {
-							// nextRoundOmit.add(resourceLink.getSourceResourcePid());
-							// }
-							// }
-							pidsToInclude.add(resourceLink.getSourceResourcePid());
-						} else {
-							pidsToInclude.add(resourceLink.getTargetResourcePid());
-						}
+				TypedQuery<Long> q = theEntityManager.createQuery(sql, Long.class);
+				q.setParameter("target_pids", nextChunk);
+				// The query has no path or type parameters if any of the includes is a wildcard
+				for (int i = 0; i < clauses.size() && !wildcard; i++) {
+					IncludeClause nextClause = clauses.get(i);
+					q.setParameter("src_paths" + i, nextClause.myPaths);
+					if (nextClause.myTargetResourceTypes != null) {
+						q.setParameter("target_resource_types" + i, nextClause.myTargetResourceTypes);
 					}
-				} else {
-
-					List<String> paths;
-					RuntimeSearchParam param = null;
-					if (theContext.getVersion().getVersion() == FhirVersionEnum.DSTU1) {
-						paths = Collections.singletonList(nextInclude.getValue());
+				}
+				/*
+				 * Resources which are already known don't count against the limit, so leave
+				 * room for each of them to come back once as well
+				 */
+				long maxResults = (long) remaining + original.size() + allAdded.size() + pidsToInclude.size();
+				q.setMaxResults((int) Math.min(maxResults, Integer.MAX_VALUE));
+				for (Long next : q.getResultList()) {
+					if (next == null || pidsToInclude.contains(next)) {
+						continue;
+					}
+					if (original.contains(next) || allAdded.contains(next)) {
+						pidsToInclude.add(next);
+					} else if (newThisRound < remaining) {
+						pidsToInclude.add(next);
+						newThisRound++;
 					} else {
-						String resType = nextInclude.getParamType();
-						if (isBlank(resType)) {
-							continue;
-						}
-						RuntimeResourceDefinition def = theContext.getResourceDefinition(resType);
-						if (def == null) {
-							ourLog.warn("Unknown resource type in include/revinclude=" + nextInclude.getValue());
-							continue;
-						}
-
-						String paramName = nextInclude.getParamName();
-						if (isNotBlank(paramName)) {
-							param = theCallingDao.getSearchParamByName(def, paramName);
-						} else {
-							param = null;
-						}
-						if (param == null) {
-							ourLog.warn("Unknown param name in include/revinclude=" + nextInclude.getValue());
-							continue;
-						}
-
-						paths = param.getPathsSplit();
+						limitReached = true;
 					}
+				}
+			}
 
-					String targetResourceType = defaultString(nextInclude.getParamTargetType(), null);
-					for (String nextPath : paths) {
-						String sql;
-						boolean haveTargetTypesDefinedByParam = param != null && param.getTargets() != null && param.getTargets().isEmpty() == false;
-						if (targetResourceType != null) {
-							sql = "SELECT r FROM ResourceLink r WHERE r.mySourcePath = :src_path AND r." + searchFieldName + " IN (:target_pids) AND r.myTargetResourceType = :target_resource_type";
-						} else if (haveTargetTypesDefinedByParam) {
-							sql = "SELECT r FROM ResourceLink r WHERE r.mySourcePath = :src_path AND r." + searchFieldName + " IN (:target_pids) AND r.myTargetResourceType in (:target_resource_types)";
-						} else {
-							sql = "SELECT r FROM ResourceLink r WHERE r.mySourcePath = :src_path AND r." + searchFieldName + " IN (:target_pids)";
-						}
-						TypedQuery<ResourceLink> q = theEntityManager.createQuery(sql, ResourceLink.class);
-						q.setParameter("src_path", nextPath);
-						q.setParameter("target_pids", nextRoundMatches);
-						if (targetResourceType != null) {
-							q.setParameter("target_resource_type", targetResourceType);
-						} else if (haveTargetTypesDefinedByParam) {
-							q.setParameter("target_resource_types", param.getTargets());
-						}
-						List<ResourceLink> results = q.getResultList();
-						for (ResourceLink resourceLink : results) {
-							if (theReverseMode) {
-								Long pid = resourceLink.getSourceResourcePid();
-								if (pid != null) {
-									pidsToInclude.add(pid);
-								}
-							} else {
-								Long pid = resourceLink.getTargetResourcePid();
-								if (pid != null) {
-									pidsToInclude.add(pid);
-								}
-							}
-						}
-					}
+			for (Iterator<IncludeClause> iter = clauses.iterator(); iter.hasNext();) {
+				if (iter.next().myRecurse == false) {
+					iter.remove();
 				}
 			}
 
 			if (theLastUpdated != null && (theLastUpdated.getLowerBoundAsInstant() != null || theLastUpdated.getUpperBoundAsInstant() != null)) {
-				pidsToInclude = new HashSet<Long>(filterResourceIdsByLastUpdated(theEntityManager, theLastUpdated, pidsToInclude));
+				HashSet<Long> filtered = new HashSet<Long>();
+				for (List<Long> nextChunk : Lists.partition(new ArrayList<Long>(pidsToInclude), theDaoConfig.getIncludeQueryChunkSize())) {
+					filtered.addAll(filterResourceIdsByLastUpdated(theEntityManager, theLastUpdated, nextChunk));
+				}
+				pidsToInclude = filtered;
 			}
 			for (Long next : pidsToInclude) {
 				if (original.contains(next) == false && allAdded.contains(next) == false) {
 					theMatches.add(next);
+					newCount++;
 				}
 			}
 
-			pidsToInclude.removeAll(nextRoundOmit);
-
 			addedSomeThisRound = allAdded.addAll(pidsToInclude);
 			nextRoundMatches = pidsToInclude;
-		} while (includes.size() > 0 && nextRoundMatches.size() > 0 && addedSomeThisRound);
+		} while (clauses.size() > 0 && nextRoundMatches.size() > 0 && addedSomeThisRound && !limitReached);
 
+		if (limitReached) {
+			ourLog.warn("Stopped loading {} after reaching the limit of {} resources", theReverseMode ? "_revincludes" : "_includes", theDaoConfig.getIncludeLimit());
+		}
 		ourLog.info("Loaded {} {} in {} rounds and {} ms", new Object[] { allAdded.size(), theReverseMode ? "_revincludes" : "_includes", roundCounts, w.getMillisAndRestart() });
 
 		return allAdded;
 	}
 
+	/**
+	 * Returns <code>null</code> if the include can not match anything
+	 */
+	private static IncludeClause toIncludeClause(IDao theCallingDao, FhirContext theContext, Include theInclude) {
+		if ("*".equals(theInclude.getValue())) {
+			return new IncludeClause(theInclude.isRecurse(), null, null);
+		}
+
+		List<String> paths;
+		RuntimeSearchParam param = null;
+		if (theContext.getVersion().getVersion() == FhirVersionEnum.DSTU1) {
+			paths = Collections.singletonList(theInclude.getValue());
+		} else {
+			String resType = theInclude.getParamType();
+			if (isBlank(resType)) {
+				return null;
+			}
+			RuntimeResourceDefinition def = theContext.getResourceDefinition(resType);
+			if (def == null) {
+				ourLog.warn("Unknown resource type in include/revinclude=" + theInclude.getValue());
+				return null;
+			}
+
+			String paramName = theInclude.getParamName();
+			if (isNotBlank(paramName)) {
+				param = theCallingDao.getSearchParamByName(def, paramName);
+			}
+			if (param == null) {
+				ourLog.warn("Unknown param name in include/revinclude=" + theInclude.getValue());
+				return null;
+			}
+
+			paths = param.getPathsSplit();
+		}
+
+		Collection<String> targetResourceTypes = null;
+		String targetResourceType = defaultString(theInclude.getParamTargetType(), null);
+		if (targetResourceType != null) {
+			targetResourceTypes = Collections.singletonList(targetResourceType);
+		} else if (param != null && param.getTargets() != null && param.getTargets().isEmpty() == false) {
+			targetResourceTypes = param.getTargets();
+		}
+
+		return new IncludeClause(theInclude.isRecurse(), paths, targetResourceTypes);
+	}
+
 	static Predicate[] toArray(List<Predicate> thePredicates) {
 		return thePredicates.toArray(new Predicate[thePredicates.size()]);
 	}
 
+	private static class IncludeClause {
+		private final List<String> myPaths;
+		private final boolean myRecurse;
+		private final Collection<String> myTargetResourceTypes;
+
+		/**
+		 * @param thePaths
+		 *           The source paths to match, or <code>null</code> to match all links
+		 * @param theTargetResourceTypes
+		 *           The target resource types to match, or <code>null</code> to match any
+		 */
+		IncludeClause(boolean theRecurse, List<String> thePaths, Collection<String> theTargetResourceTypes) {
+			myRecurse = theRecurse;
+			myPaths = thePaths;
+			myTargetResourceTypes = theTargetResourceTypes;
+		}
+	}
+
+	private static class SelectivityPredicate implements Comparable<SelectivityPredicate> {
+		private final Predicate myPredicate;
+		private final int mySelectivity;
+
+		public SelectivityPredicate(int theSelectivity, Predicate thePredicate) {
+			mySelectivity = theSelectivity;
+			myPredicate = thePredicate;
+		}
+
+		@Override
+		public int compareTo(SelectivityPredicate theOther) {
+			return mySelectivity < theOther.mySelectivity ? -1 : (mySelectivity == theOther.mySelectivity ? 0 : 1);
+		}
+
+		public Predicate getPredicate() {
+			return myPredicate;
+		}
+	}
+
 	private final class BundleProviderInMemory implements IBundleProvider {
 		private final ArrayList<Long> myPids;
 
@@ -2284,9 +2796,9 @@ public class SearchBuilder {
 
 					Set<Long> revIncludedPids = new HashSet<Long>();
 					if (myParams.getEverythingMode() == null) {
-						revIncludedPids.addAll(loadReverseIncludes(myCallingDao, myContext, myEntityManager, pidsSubList, myParams.getRevIncludes(), true, myParams.getLastUpdated()));
+						revIncludedPids.addAll(loadReverseIncludes(myCallingDao, myContext, myEntityManager, pidsSubList, myParams.getRevIncludes(), true, myParams.getLastUpdated(), myCallingDao.getConfig()));
 					}
-					revIncludedPids.addAll(loadReverseIncludes(myCallingDao, myContext, myEntityManager, pidsSubList, myParams.getIncludes(), false, myParams.getLastUpdated()));
+					revIncludedPids.addAll(loadReverseIncludes(myCallingDao, myContext, myEntityManager, pidsSubList, myParams.getIncludes(), false, myParams.getLastUpdated(), myCallingDao.getConfig()));
 
 					// Execute the query and make sure we return distinct results
 					List<IBaseResource> resources = new ArrayList<IBaseResource>();
@@ -20,15 +20,20 @@ package ca.uhn.fhir.jpa.dao;
  * #L%
  */
 
+import static org.apache.commons.lang3.StringUtils.defaultString;
+
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Set;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.commons.lang3.builder.ToStringStyle;
 
+import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.model.api.IQueryParameterAnd;
 import ca.uhn.fhir.model.api.IQueryParameterOr;
 import ca.uhn.fhir.model.api.IQueryParameterType;
@@ -37,6 +42,7 @@ import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.method.RequestDetails;
 import ca.uhn.fhir.rest.param.DateRangeParam;
 import ca.uhn.fhir.rest.server.Constants;
+import ca.uhn.fhir.util.UrlUtil;
 
 public class SearchParameterMap extends LinkedHashMap<String, List<List<? extends IQueryParameterType>>> {
 
@@ -191,6 +197,70 @@ public class SearchParameterMap extends LinkedHashMap<String, List<List<? extend
 		mySort = theSort;
 	}
 
+	private static void addIncludes(List<String> theParts, String theParamName, Set<Include> theIncludes) {
+		List<String> values = new ArrayList<String>();
+		for (Include next : theIncludes) {
+			String name = next.isRecurse() ? theParamName + Constants.PARAM_INCLUDE_QUALIFIER_RECURSE : theParamName;
+			values.add(name + '=' + UrlUtil.escape(next.getValue()));
+		}
+		Collections.sort(values);
+		theParts.addAll(values);
+	}
+
+	/**
+	 * Returns a string describing everything about this search which affects its results.
+	 * Parameters and values are placed in a consistent order, so equivalent searches
+	 * produce the same string regardless of the order in which their parameters were
+	 * added. This is used to find earlier searches whose results can be reused.
+	 */
+	public String toNormalizedQueryString(FhirContext theContext) {
+		List<String> parts = new ArrayList<String>();
+
+		List<String> names = new ArrayList<String>(keySet());
+		Collections.sort(names);
+		for (String nextName : names) {
+			List<String> andValues = new ArrayList<String>();
+			for (List<? extends IQueryParameterType> nextOrList : get(nextName)) {
+				List<String> orValues = new ArrayList<String>();
+				for (IQueryParameterType nextOr : nextOrList) {
+					orValues.add(defaultString(nextOr.getQueryParameterQualifier()) + '=' + UrlUtil.escape(defaultString(nextOr.getValueAsQueryToken(theContext))));
+				}
+				Collections.sort(orValues);
+				andValues.add(UrlUtil.escape(nextName) + '[' + StringUtils.join(orValues, ',') + ']');
+			}
+			Collections.sort(andValues);
+			parts.addAll(andValues);
+		}
+
+		addIncludes(parts, Constants.PARAM_INCLUDE, getIncludes());
+		addIncludes(parts, Constants.PARAM_REVINCLUDE, getRevIncludes());
+
+		if (getLastUpdated() != null) {
+			DateRangeParam lastUpdated = getLastUpdated();
+			String lower = lastUpdated.getLowerBound() != null ? lastUpdated.getLowerBound().getValueAsQueryToken(theContext) : "";
+			String upper = lastUpdated.getUpperBound() != null ? lastUpdated.getUpperBound().getValueAsQueryToken(theContext) : "";
+			parts.add(Constants.PARAM_LASTUPDATED + '=' + UrlUtil.escape(lower) + ',' + UrlUtil.escape(upper));
+		}
+
+		// Sort order matters, so the sort specs are not reordered
+		List<String> sorts = new ArrayList<String>();
+		for (SortSpec next = getSort(); next != null; next = next.getChain()) {
+			sorts.add(UrlUtil.escape(next.getParamName()) + ':' + next.getOrder());
+		}
+		if (!sorts.isEmpty()) {
+			parts.add(Constants.PARAM_SORT + '=' + StringUtils.join(sorts, ','));
+		}
+
+		if (getCount() != null) {
+			parts.add(Constants.PARAM_COUNT + '=' + getCount());
+		}
+		if (getEverythingMode() != null) {
+			parts.add("$everything=" + getEverythingMode().name());
+		}
+
+		return '?' + StringUtils.join(parts, '&');
+	}
+
 	@Override
 	public String toString() {
 		ToStringBuilder b = new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE);
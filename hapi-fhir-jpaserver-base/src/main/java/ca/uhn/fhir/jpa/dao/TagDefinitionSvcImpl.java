@@ -0,0 +1,205 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+import javax.persistence.PersistenceException;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import ca.uhn.fhir.jpa.entity.TagDefinition;
+import ca.uhn.fhir.jpa.entity.TagTypeEnum;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+
+/**
+ * Caches tag definitions (tags, profiles and security labels) by type, system and code,
+ * since most resources being written carry one of a small number of them.
+ * <p>
+ * Tag definitions are never modified once created, so the cached entities are kept
+ * detached and only their IDs are used by the resources which refer to them. A
+ * definition which is not found is created in its own transaction. If another writer
+ * creates the same definition concurrently, the unique constraint on
+ * <code>HFJ_TAG_DEF</code> causes that insert to fail and the winner's row is read
+ * instead.
+ * </p>
+ */
+public class TagDefinitionSvcImpl implements ITagDefinitionSvc {
+
+	static final int MAX_CACHED_TAGS = 10000;
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(TagDefinitionSvcImpl.class);
+
+	//@formatter:off
+	private final Cache<Key, TagDefinition> myCache = CacheBuilder
+		.newBuilder()
+		.maximumSize(MAX_CACHED_TAGS)
+		.recordStats()
+		.build();
+	//@formatter:on
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	@Autowired
+	private PlatformTransactionManager myTxManager;
+
+	@Override
+	public void clearCache() {
+		myCache.invalidateAll();
+	}
+
+	private TagDefinition findOrCreateTag(TransactionTemplate theTxTemplate, final TagTypeEnum theTagType, final String theScheme, final String theTerm, final String theLabel, final boolean theCreate) {
+		return theTxTemplate.execute(new TransactionCallback<TagDefinition>() {
+			@Override
+			public TagDefinition doInTransaction(TransactionStatus theStatus) {
+				TagDefinition retVal = findTag(theTagType, theScheme, theTerm);
+				if (retVal == null && theCreate) {
+					retVal = new TagDefinition(theTagType, theScheme, theTerm, theLabel);
+					myEntityManager.persist(retVal);
+					myEntityManager.flush();
+				}
+				return retVal;
+			}
+		});
+	}
+
+	private TagDefinition findTag(TagTypeEnum theTagType, String theScheme, String theTerm) {
+		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+		CriteriaQuery<TagDefinition> cq = builder.createQuery(TagDefinition.class);
+		Root<TagDefinition> from = cq.from(TagDefinition.class);
+
+		//@formatter:off
+		if (isNotBlank(theScheme)) {
+			cq.where(
+				builder.and(
+					builder.equal(from.get("myTagType"), theTagType), 
+					builder.equal(from.get("mySystem"), theScheme), 
+					builder.equal(from.get("myCode"), theTerm))
+				);
+		} else {
+			cq.where(
+				builder.and(
+					builder.equal(from.get("myTagType"), theTagType), 
+					builder.isNull(from.get("mySystem")), 
+					builder.equal(from.get("myCode"), theTerm))
+				);
+		}
+		//@formatter:on
+
+		TypedQuery<TagDefinition> q = myEntityManager.createQuery(cq);
+		List<TagDefinition> results = q.getResultList();
+		return results.isEmpty() ? null : results.get(0);
+	}
+
+	@Override
+	public CacheStats getCacheStats() {
+		return myCache.stats();
+	}
+
+	@Override
+	public TagDefinition getOrCreateTag(TagTypeEnum theTagType, String theScheme, String theTerm, String theLabel) {
+		Key key = new Key(theTagType, isNotBlank(theScheme) ? theScheme : null, theTerm);
+		TagDefinition retVal = myCache.getIfPresent(key);
+		if (retVal != null) {
+			return retVal;
+		}
+
+		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+		txTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		try {
+			retVal = findOrCreateTag(txTemplate, theTagType, theScheme, theTerm, theLabel, true);
+		} catch (DataIntegrityViolationException e) {
+			ourLog.debug("Tag definition {} was created concurrently, loading it: {}", key, e.toString());
+			retVal = findOrCreateTag(txTemplate, theTagType, theScheme, theTerm, theLabel, false);
+		} catch (PersistenceException e) {
+			ourLog.debug("Tag definition {} was created concurrently, loading it: {}", key, e.toString());
+			retVal = findOrCreateTag(txTemplate, theTagType, theScheme, theTerm, theLabel, false);
+		}
+
+		if (retVal == null) {
+			throw new InternalErrorException("Failed to create or load tag definition " + key);
+		}
+
+		myCache.put(key, retVal);
+		return retVal;
+	}
+
+	private static class Key {
+		private final String myCode;
+		private final String mySystem;
+		private final TagTypeEnum myTagType;
+
+		Key(TagTypeEnum theTagType, String theSystem, String theCode) {
+			myTagType = theTagType;
+			mySystem = theSystem;
+			myCode = theCode;
+		}
+
+		@Override
+		public boolean equals(Object theObj) {
+			if (!(theObj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) theObj;
+			EqualsBuilder b = new EqualsBuilder();
+			b.append(myTagType, other.myTagType);
+			b.append(mySystem, other.mySystem);
+			b.append(myCode, other.myCode);
+			return b.isEquals();
+		}
+
+		@Override
+		public int hashCode() {
+			HashCodeBuilder b = new HashCodeBuilder();
+			b.append(myTagType);
+			b.append(mySystem);
+			b.append(myCode);
+			return b.toHashCode();
+		}
+
+		@Override
+		public String toString() {
+			return myTagType + " " + mySystem + "|" + myCode;
+		}
+	}
+
+}
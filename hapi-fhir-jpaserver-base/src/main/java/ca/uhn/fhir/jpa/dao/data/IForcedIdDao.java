@@ -1,5 +1,6 @@
 package ca.uhn.fhir.jpa.dao.data;
 
+import java.util.Collection;
 import java.util.List;
 
 /*
@@ -36,7 +37,13 @@ public interface IForcedIdDao extends JpaRepository<ForcedId, Long> {
 	@Query("SELECT f FROM ForcedId f WHERE myResourceType = :resource_type AND myForcedId = :forced_id")
 	public List<ForcedId> findByTypeAndForcedId(@Param("resource_type") String theResourceType, @Param("forced_id") String theForcedId);
 
+	@Query("SELECT f FROM ForcedId f WHERE myResourceType = :resource_type AND myForcedId IN (:forced_id)")
+	public List<ForcedId> findByTypeAndForcedIds(@Param("resource_type") String theResourceType, @Param("forced_id") Collection<String> theForcedIds);
+
 	@Query("SELECT f FROM ForcedId f WHERE f.myResourcePid = :resource_pid")
 	public ForcedId findByResourcePid(@Param("resource_pid") Long theResourcePid);
+
+	@Query("SELECT f FROM ForcedId f WHERE f.myResourcePid IN (:resource_pid)")
+	public List<ForcedId> findByResourcePids(@Param("resource_pid") Collection<Long> theResourcePids);
 	
 }
@@ -1,5 +1,6 @@
 package ca.uhn.fhir.jpa.dao.data;
 
+import java.util.Collection;
 import java.util.Date;
 
 import javax.persistence.TemporalType;
@@ -25,10 +26,12 @@ import javax.persistence.TemporalType;
  */
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.jpa.repository.Temporal;
 import org.springframework.data.repository.query.Param;
 
+import ca.uhn.fhir.jpa.entity.ResourceEncodingEnum;
 import ca.uhn.fhir.jpa.entity.ResourceHistoryTable;
 
 public interface IResourceHistoryTableDao extends JpaRepository<ResourceHistoryTable, Long> {
@@ -65,6 +68,11 @@ public interface IResourceHistoryTableDao extends JpaRepository<ResourceHistoryT
 		@Param("type") String theType
 		);
 
+	@Query("SELECT MAX(t.myUpdated) FROM ResourceHistoryTable t WHERE t.myResourceType IN (:types)")
+	Date findLastUpdatedForResourceTypes(
+		@Param("types") Collection<String> theTypes
+		);
+
 //	@Query("SELECT t FROM ResourceHistoryTable t WHERE t.myUpdated >= :cutoff ORDER BY t.myUpdated DESC")
 //	List<ResourceHistoryTable> findForAllResourceTypes(
 //		@Temporal(value=TemporalType.TIMESTAMP) @Param("cutoff") Date theCutoff, 
@@ -98,6 +106,10 @@ public interface IResourceHistoryTableDao extends JpaRepository<ResourceHistoryT
 
 	@Query("SELECT t FROM ResourceHistoryTable t WHERE t.myResourceId = :id AND t.myResourceVersion = :version")
 	ResourceHistoryTable findForIdAndVersion(@Param("id") long theId, @Param("version") long theVersion);
+
+	@Modifying
+	@Query("UPDATE ResourceHistoryTable t SET t.myResource = :body, t.myEncoding = :encoding WHERE t.myResourceId = :id AND t.myResourceVersion = :version AND t.myResource IS NULL")
+	int updateBodyIfMissing(@Param("id") long theId, @Param("version") long theVersion, @Param("encoding") ResourceEncodingEnum theEncoding, @Param("body") byte[] theBody);
 	
 	//@formatter:on
 }
@@ -1,6 +1,7 @@
 package ca.uhn.fhir.jpa.dao.data;
 
 import java.util.Collection;
+import java.util.List;
 
 /*
  * #%L
@@ -32,5 +33,8 @@ public interface IResourceIndexedSearchParamUriDao extends JpaRepository<Resourc
 	
 	@Query("SELECT DISTINCT p.myUri FROM ResourceIndexedSearchParamUri p WHERE p.myResourceType = :resource_type AND p.myParamName = :param_name")
 	public Collection<String> findAllByResourceTypeAndParamName(@Param("resource_type") String theResourceType, @Param("param_name") String theParamName);
+
+	@Query("SELECT DISTINCT p.myResourcePid FROM ResourceIndexedSearchParamUri p WHERE p.myResourceType = :resource_type AND p.myParamName = :param_name AND p.myUri = :uri")
+	public List<Long> findResourcePidsByUri(@Param("resource_type") String theResourceType, @Param("param_name") String theParamName, @Param("uri") String theUri);
 	
 }
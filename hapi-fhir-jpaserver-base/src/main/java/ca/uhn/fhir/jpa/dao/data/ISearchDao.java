@@ -2,6 +2,7 @@ package ca.uhn.fhir.jpa.dao.data;
 
 import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 
 /*
  * #%L
@@ -23,18 +24,46 @@ import java.util.Date;
  * #L%
  */
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 
 import ca.uhn.fhir.jpa.entity.Search;
+import ca.uhn.fhir.jpa.entity.SearchStatusEnum;
 
 public interface ISearchDao extends JpaRepository<Search, Long> {
 
 	@Query("SELECT s FROM Search s WHERE s.myUuid = :uuid")
 	public Search findByUuid(@Param("uuid") String theUuid);
 
+	@Modifying
+	@Query("DELETE FROM Search s WHERE s.myId IN (:pids)")
+	public int deleteByPids(@Param("pids") Collection<Long> theSearchPids);
+
+	@Query("SELECT s.myId FROM Search s WHERE s.myCreated < :cutoff ORDER BY s.myId ASC")
+	public List<Long> findPidsWhereCreatedBefore(@Param("cutoff") Date theCutoff, Pageable thePage);
+
 	@Query("SELECT s FROM Search s WHERE s.myCreated < :cutoff")
 	public Collection<Search> findWhereCreatedBefore(@Param("cutoff") Date theCutoff);
 
+	/**
+	 * Returns the matching searches, newest first
+	 */
+	@Query("SELECT s FROM Search s WHERE s.myResourceType = :type AND s.mySearchQueryStringHash = :hash AND s.myCreated > :cutoff ORDER BY s.myCreated DESC")
+	public List<Search> findWithQueryStringHash(@Param("type") String theResourceType, @Param("hash") int theHash, @Param("cutoff") Date theCreatedCutoff);
+
+	@Modifying
+	@Query("UPDATE Search s SET s.mySearchStatus = :status, s.myTotalCount = :total, s.myNumLoaded = :num_loaded WHERE s.myId = :pid")
+	public int updateSearchStatus(@Param("pid") Long theSearchPid, @Param("status") SearchStatusEnum theStatus, @Param("total") int theTotalCount, @Param("num_loaded") int theNumLoaded);
+
+	@Modifying
+	@Query("UPDATE Search s SET s.myKeysetOffset = :offset, s.myKeysetLastUpdated = :last_updated, s.myKeysetLastPid = :last_pid WHERE s.myId = :pid")
+	public int updateHistoryKeysetPosition(@Param("pid") Long theSearchPid, @Param("offset") Integer theOffset, @Param("last_updated") Date theLastUpdated, @Param("last_pid") Long theLastPid);
+
+	@Modifying
+	@Query("UPDATE Search s SET s.myKeysetOffset = :offset, s.myKeysetLastPid = :last_pid WHERE s.myId = :pid")
+	public int updateKeysetPosition(@Param("pid") Long theSearchPid, @Param("offset") Integer theOffset, @Param("last_pid") Long theLastPid);
+
 }
@@ -1,6 +1,7 @@
 package ca.uhn.fhir.jpa.dao.data;
 
 import java.util.Collection;
+import java.util.List;
 
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
@@ -44,4 +45,15 @@ public interface ISearchResultDao  extends JpaRepository<SearchResult, Long> {
 	@Modifying
 	@Query(value="DELETE FROM SearchResult r WHERE r.mySearchPid = :search")
 	void deleteForSearch(@Param("search") Long theSearchPid);
+
+	@Modifying
+	@Query(value="DELETE FROM SearchResult r WHERE r.mySearchPid IN (:searches)")
+	int deleteForSearches(@Param("searches") Collection<Long> theSearchPids);
+
+	@Modifying
+	@Query(value="DELETE FROM SearchResult r WHERE r.mySearchPid IN (:searches) AND r.myId <= :max_pid")
+	int deleteForSearchesUpTo(@Param("searches") Collection<Long> theSearchPids, @Param("max_pid") Long theMaxPid);
+
+	@Query(value="SELECT r.myId FROM SearchResult r WHERE r.mySearchPid IN (:searches) ORDER BY r.myId ASC")
+	List<Long> findPidsForSearches(@Param("searches") Collection<Long> theSearchPids, Pageable thePage);
 }
@@ -43,6 +43,9 @@ public interface ISubscriptionTableDao extends JpaRepository<SubscriptionTable,
 	@Query("UPDATE SubscriptionTable t SET t.myLastClientPoll = :last_client_poll")
 	public int updateLastClientPoll(@Param("last_client_poll") Date theLastClientPoll);
 
+	@Query("SELECT t FROM SubscriptionTable t JOIN FETCH t.mySubscriptionResource WHERE t.myStatus = :status")
+	public Collection<SubscriptionTable> findByStatus(@Param("status") String theStatus);
+
 	@Query("SELECT t FROM SubscriptionTable t WHERE t.myLastClientPoll < :cutoff OR (t.myLastClientPoll IS NULL AND t.myCreated < :cutoff)")
 	public Collection<SubscriptionTable> findInactiveBeforeCutoff(@Param("cutoff") Date theCutoff);
 
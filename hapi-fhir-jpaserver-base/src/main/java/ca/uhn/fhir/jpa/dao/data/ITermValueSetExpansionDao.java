@@ -0,0 +1,45 @@
+package ca.uhn.fhir.jpa.dao.data;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.TemporalType;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.Temporal;
+import org.springframework.data.repository.query.Param;
+
+import ca.uhn.fhir.jpa.entity.TermValueSetExpansion;
+
+public interface ITermValueSetExpansionDao extends JpaRepository<TermValueSetExpansion, Long> {
+
+	@Query("SELECT e FROM TermValueSetExpansion e WHERE e.myExpansionKey = :key AND e.myVersionKey = :version")
+	TermValueSetExpansion findByKeyAndVersion(@Param("key") String theExpansionKey, @Param("version") String theVersionKey);
+
+	@Query("SELECT e.myPid FROM TermValueSetExpansion e WHERE EXISTS (SELECT n.myPid FROM TermValueSetExpansion n WHERE n.myExpansionKey = e.myExpansionKey AND n.myPid > e.myPid AND n.myCreated < :cutoff)")
+	List<Long> findPidsSupersededBefore(@Temporal(value = TemporalType.TIMESTAMP) @Param("cutoff") Date theCutoff, Pageable thePageable);
+
+}
@@ -57,6 +57,7 @@ import ca.uhn.fhir.jpa.dao.data.ISubscriptionTableDao;
 import ca.uhn.fhir.jpa.entity.ResourceTable;
 import ca.uhn.fhir.jpa.entity.SubscriptionFlaggedResource;
 import ca.uhn.fhir.jpa.entity.SubscriptionTable;
+import ca.uhn.fhir.jpa.subscription.ISubscriptionMatcherSvc;
 import ca.uhn.fhir.model.dstu.valueset.QuantityCompararatorEnum;
 import ca.uhn.fhir.model.dstu2.valueset.SubscriptionStatusEnum;
 import ca.uhn.fhir.model.primitive.IdDt;
@@ -78,6 +79,9 @@ public class FhirResourceDaoSubscriptionDstu3 extends FhirResourceDaoDstu3<Subsc
 	@Autowired
 	private ISubscriptionFlaggedResourceDataDao mySubscriptionFlaggedResourceDataDao;
 
+	@Autowired
+	private ISubscriptionMatcherSvc mySubscriptionMatcherSvc;
+
 	@Autowired
 	private ISubscriptionTableDao mySubscriptionTableDao;
 
@@ -145,6 +149,10 @@ public class FhirResourceDaoSubscriptionDstu3 extends FhirResourceDaoDstu3<Subsc
 			retVal += txTemplate.execute(new TransactionCallback<Integer>() {
 				@Override
 				public Integer doInTransaction(TransactionStatus theStatus) {
+					if (getConfig().isSubscriptionMatchOnWrite() && mySubscriptionMatcherSvc.isMatchedOnWrite(FhirResourceDaoSubscriptionDstu3.this, nextSubscriptionTablePid)) {
+						// Matches are flagged as resources are written
+						return 0;
+					}
 					SubscriptionTable nextSubscriptionTable = mySubscriptionTableDao.findOne(nextSubscriptionTablePid);
 					return pollForNewUndeliveredResources(nextSubscriptionTable);
 				}
@@ -159,7 +167,13 @@ public class FhirResourceDaoSubscriptionDstu3 extends FhirResourceDaoDstu3<Subsc
 		RuntimeResourceDefinition resourceDef = validateCriteriaAndReturnResourceDefinition(subscription);
 		SearchParameterMap criteriaUrl = translateMatchUrl(this, getContext(), subscription.getCriteria(), resourceDef);
 
-		criteriaUrl = new SearchParameterMap();
+		/*
+		 * When matching on write, the only subscriptions which get polled are the ones whose
+		 * criteria can't be matched in memory, so the criteria have to be applied here
+		 */
+		if (!getConfig().isSubscriptionMatchOnWrite()) {
+			criteriaUrl = new SearchParameterMap();
+		}
 		long start = theSubscriptionTable.getMostRecentMatch().getTime();
 		long end = System.currentTimeMillis() - getConfig().getSubscriptionPollDelay();
 		if (end <= start) {
@@ -300,6 +314,7 @@ public class FhirResourceDaoSubscriptionDstu3 extends FhirResourceDaoDstu3<Subsc
 				createSubscriptionTable(retVal, resource);
 			}
 		}
+		mySubscriptionMatcherSvc.clearSubscriptionCache();
 		return retVal;
 	}
 
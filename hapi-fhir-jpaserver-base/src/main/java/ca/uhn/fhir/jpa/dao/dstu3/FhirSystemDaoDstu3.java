@@ -478,6 +478,7 @@ public class FhirSystemDaoDstu3 extends BaseHapiFhirSystemDao<Bundle, Meta> {
 		 */
 
 		FhirTerser terser = getContext().newTerser();
+		List<IIdType> referencedIds = new ArrayList<IIdType>();
 		for (DaoMethodOutcome nextOutcome : idToPersistedOutcome.values()) {
 			IBaseResource nextResource = nextOutcome.getResource();
 			if (nextResource == null) {
@@ -499,6 +500,20 @@ public class FhirSystemDaoDstu3 extends BaseHapiFhirSystemDao<Bundle, Meta> {
 				} else {
 					ourLog.debug(" * Reference [{}] does not exist in bundle", nextId);
 				}
+				referencedIds.add(nextRef.getReferenceElement());
+			}
+		}
+
+		/*
+		 * Resolve all client assigned IDs referred to by the bundle at once instead of
+		 * one at a time as each resource is indexed
+		 */
+		preloadForcedIds(referencedIds);
+
+		for (DaoMethodOutcome nextOutcome : idToPersistedOutcome.values()) {
+			IBaseResource nextResource = nextOutcome.getResource();
+			if (nextResource == null) {
+				continue;
 			}
 
 			IPrimitiveType<Date> deletedInstantOrNull = ResourceMetadataKeyEnum.DELETED_AT.get((IAnyResource) nextResource);
@@ -509,6 +524,10 @@ public class FhirSystemDaoDstu3 extends BaseHapiFhirSystemDao<Bundle, Meta> {
 			}
 		}
 
+		/*
+		 * The loop above must not flush per entry: the index rows for every entry are
+		 * written here in one flush so that they can be sent as JDBC batches
+		 */
 		myEntityManager.flush();
 
 		/*
@@ -24,6 +24,7 @@ import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
 import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.measure.unit.NonSI;
 import javax.measure.unit.Unit;
@@ -58,6 +59,10 @@ public class SearchParamExtractorDstu3 extends BaseSearchParamExtractor implemen
 
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SearchParamExtractorDstu3.class);
 
+	private volatile FHIRPathEngine myFhirPathEngine;
+
+	private final ConcurrentHashMap<String, List<ExpressionNode>> myParsedPaths = new ConcurrentHashMap<String, List<ExpressionNode>>();
+
 	@Autowired
 	private org.hl7.fhir.dstu3.hapi.validation.IValidationSupport myValidationSupport;
 	
@@ -686,13 +691,11 @@ public class SearchParamExtractorDstu3 extends BaseSearchParamExtractor implemen
 	 */
 	@Override
 	protected List<Object> extractValues(String thePaths, IBaseResource theResource) {
-		IWorkerContext worker = new org.hl7.fhir.dstu3.hapi.validation.HapiWorkerContext(getContext(), myValidationSupport);
-		FHIRPathEngine fp = new FHIRPathEngine(worker);
+		FHIRPathEngine fp = getFhirPathEngine();
 
 		List<Object> values = new ArrayList<Object>();
 		try {
-			String[] nextPathsSplit = SPLIT.split(thePaths);
-			for (String nextPath : nextPathsSplit) {
+			for (ExpressionNode nextPath : parsePaths(fp, thePaths)) {
 				List<Base> allValues = fp.evaluate((Base) theResource, nextPath);
 				if (allValues.isEmpty() == false) {
 					values.addAll(allValues);
@@ -704,6 +707,47 @@ public class SearchParamExtractorDstu3 extends BaseSearchParamExtractor implemen
 		return values;
 	}
 
+	/**
+	 * Creating a FHIRPathEngine is expensive (it indexes all of the structure definitions), so
+	 * a single instance is shared. Evaluating an already parsed expression does not modify the
+	 * engine's state other than the log used by the trace() function, so this is safe.
+	 */
+	private FHIRPathEngine getFhirPathEngine() {
+		FHIRPathEngine retVal = myFhirPathEngine;
+		if (retVal == null) {
+			IWorkerContext worker = new org.hl7.fhir.dstu3.hapi.validation.HapiWorkerContext(getContext(), myValidationSupport);
+			retVal = new FHIRPathEngine(worker);
+			myFhirPathEngine = retVal;
+		}
+		return retVal;
+	}
+
+	/**
+	 * Clears the cache of parsed search parameter paths. This is called when the
+	 * search parameter registry is refreshed.
+	 */
+	public void clearParsedPathCache() {
+		myParsedPaths.clear();
+	}
+
+	@VisibleForTesting
+	int getParsedPathCacheSize() {
+		return myParsedPaths.size();
+	}
+
+	private List<ExpressionNode> parsePaths(FHIRPathEngine theEngine, String thePaths) throws FHIRException {
+		List<ExpressionNode> retVal = myParsedPaths.get(thePaths);
+		if (retVal == null) {
+			String[] nextPathsSplit = SPLIT.split(thePaths);
+			retVal = new ArrayList<ExpressionNode>(nextPathsSplit.length);
+			for (String nextPath : nextPathsSplit) {
+				retVal.add(theEngine.parse(nextPath));
+			}
+			myParsedPaths.put(thePaths, retVal);
+		}
+		return retVal;
+	}
+
 	@Override
 	public List<PathAndRef> extractResourceLinks(IBaseResource theResource, RuntimeSearchParam theNextSpDef) {
 		ArrayList<PathAndRef> retVal = new ArrayList<PathAndRef>();
@@ -724,6 +768,7 @@ public class SearchParamExtractorDstu3 extends BaseSearchParamExtractor implemen
 	@VisibleForTesting
 	void setValidationSupportForTesting(org.hl7.fhir.dstu3.hapi.validation.IValidationSupport theValidationSupport) {
 		myValidationSupport = theValidationSupport;
+		myFhirPathEngine = null;
 	}
 
 	private static <T extends Enum<?>> String extractSystem(Enumeration<T> theBoundCode) {
@@ -58,6 +58,9 @@ public class SearchParamRegistryDstu3 extends BaseSearchParamRegistry {
 
 	private long myLastRefresh;
 
+	@Autowired
+	private SearchParamExtractorDstu3 mySearchParamExtractor;
+
 	@Autowired
 	private IFhirResourceDao<SearchParameter> mySpDao;
 
@@ -155,6 +158,7 @@ public class SearchParamRegistryDstu3 extends BaseSearchParamRegistry {
 			}
 
 			myActiveSearchParams = activeSearchParams;
+			mySearchParamExtractor.clearParsedPathCache();
 
 			myLastRefresh = System.currentTimeMillis();
 			ourLog.info("Refreshed search parameter cache in {}ms", sw.getMillis());
@@ -29,7 +29,10 @@ public enum ResourceEncodingEnum {
 	JSON,
 	
 	/** Json Compressed */
-	JSONC;
+	JSONC,
+
+	/** Json Compressed using a preset dictionary (see DictionaryDeflateUtil) */
+	JSOND;
 
 	public IParser newParser(FhirContext theContext) {
 		return theContext.newJsonParser();
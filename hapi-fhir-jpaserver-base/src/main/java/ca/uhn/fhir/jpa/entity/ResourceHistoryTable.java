@@ -24,6 +24,7 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
 
+import javax.persistence.AttributeOverride;
 import javax.persistence.CascadeType;
 import javax.persistence.Column;
 import javax.persistence.Entity;
@@ -49,6 +50,11 @@ import ca.uhn.fhir.rest.server.Constants;
 	@Index(name="IDX_RESVER_ID_DATE", columnList="RES_ID,RES_UPDATED"), 
 	@Index(name="IDX_RESVER_DATE", columnList="RES_UPDATED") 
 })
+/*
+ * The body may be null for the current version of a resource, since that is also
+ * stored in HFJ_RESOURCE (see DaoConfig#setDeduplicateCurrentVersionBody)
+ */
+@AttributeOverride(name = "myResource", column = @Column(name = "RES_TEXT", length = Integer.MAX_VALUE - 1, nullable = true))
 //@formatter:on
 public class ResourceHistoryTable extends BaseHasResource implements Serializable {
 
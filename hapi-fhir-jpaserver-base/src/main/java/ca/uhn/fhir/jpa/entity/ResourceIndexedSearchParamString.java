@@ -156,6 +156,7 @@ public class ResourceIndexedSearchParamString extends BaseResourceIndexedSearchP
 		b.append(getParamName(), obj.getParamName());
 		b.append(getResource(), obj.getResource());
 		b.append(getValueExact(), obj.getValueExact());
+		b.append(getValueNormalized(), obj.getValueNormalized());
 		return b.isEquals();
 	}
 
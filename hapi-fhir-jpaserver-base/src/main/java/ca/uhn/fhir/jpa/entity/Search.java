@@ -36,6 +36,7 @@ import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.Index;
+import javax.persistence.Lob;
 import javax.persistence.OneToMany;
 import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
@@ -51,7 +52,8 @@ import ca.uhn.fhir.rest.param.DateRangeParam;
 @Table(name = "HFJ_SEARCH", uniqueConstraints= {
 	@UniqueConstraint(name="IDX_SEARCH_UUID", columnNames="SEARCH_UUID")
 }, indexes= {
-	@Index(name="JDX_SEARCH_CREATED", columnList="CREATED")
+	@Index(name="JDX_SEARCH_CREATED", columnList="CREATED"),
+	@Index(name="IDX_SEARCH_RESTYPE_HASHS", columnList="RESOURCE_TYPE,SEARCH_QUERY_STRING_HASH,CREATED")
 })
 //@formatter:on
 public class Search implements Serializable {
@@ -71,6 +73,16 @@ public class Search implements Serializable {
 	@OneToMany(mappedBy="mySearch")
 	private Collection<SearchInclude> myIncludes;
 
+	@Column(name="KEYSET_LAST_PID", nullable=true)
+	private Long myKeysetLastPid;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name="KEYSET_LAST_UPDATED", nullable=true)
+	private Date myKeysetLastUpdated;
+
+	@Column(name="KEYSET_OFFSET", nullable=true)
+	private Integer myKeysetOffset;
+
 	@Temporal(TemporalType.TIMESTAMP)
 	@Column(name="LAST_UPDATED_HIGH", nullable=true, insertable=true, updatable=false)
 	private Date myLastUpdatedHigh;
@@ -79,6 +91,9 @@ public class Search implements Serializable {
 	@Column(name="LAST_UPDATED_LOW", nullable=true, insertable=true, updatable=false)
 	private Date myLastUpdatedLow;
 
+	@Column(name="NUM_LOADED", nullable=true)
+	private Integer myNumLoaded;
+
 	@Column(name="PREFERRED_PAGE_SIZE", nullable=true)
 	private Integer myPreferredPageSize;
 	
@@ -91,6 +106,17 @@ public class Search implements Serializable {
 	@OneToMany(mappedBy="mySearch")
 	private Collection<SearchResult> myResults;
 
+	@Lob
+	@Column(name="SEARCH_QUERY_STRING", nullable=true, updatable=false)
+	private String mySearchQueryString;
+
+	@Column(name="SEARCH_QUERY_STRING_HASH", nullable=true, updatable=false)
+	private Integer mySearchQueryStringHash;
+
+	@Enumerated(EnumType.ORDINAL)
+	@Column(name="SEARCH_STATUS", nullable=true)
+	private SearchStatusEnum mySearchStatus;
+
 	@Enumerated(EnumType.ORDINAL)
 	@Column(name="SEARCH_TYPE", nullable=false)
 	private SearchTypeEnum mySearchType;
@@ -116,6 +142,30 @@ public class Search implements Serializable {
 		return myIncludes;
 	}
 	
+	/**
+	 * For searches which are paged using a keyset, this is the resource ID
+	 * of the last result which was returned
+	 */
+	public Long getKeysetLastPid() {
+		return myKeysetLastPid;
+	}
+
+	/**
+	 * For history operations which are paged using a keyset, this is the
+	 * update time of the last version which was returned
+	 */
+	public Date getKeysetLastUpdated() {
+		return myKeysetLastUpdated;
+	}
+
+	/**
+	 * For searches which are paged using a keyset, this is the index of the
+	 * result immediately following {@link #getKeysetLastPid()}
+	 */
+	public Integer getKeysetOffset() {
+		return myKeysetOffset;
+	}
+
 	public Date getLastUpdatedHigh() {
 		return myLastUpdatedHigh;
 	}
@@ -132,6 +182,14 @@ public class Search implements Serializable {
 		}
 	}
 
+	/**
+	 * For searches which are loaded in the background, this is the number of
+	 * results which have been stored so far
+	 */
+	public Integer getNumLoaded() {
+		return myNumLoaded;
+	}
+
 	public Integer getPreferredPageSize() {
 		return myPreferredPageSize;
 	}
@@ -144,6 +202,27 @@ public class Search implements Serializable {
 		return myResourceType;
 	}
 
+	/**
+	 * The normalized query string of the search (see
+	 * {@link ca.uhn.fhir.jpa.dao.SearchParameterMap#toNormalizedQueryString(ca.uhn.fhir.context.FhirContext)}),
+	 * or <code>null</code> if this search can not be reused
+	 */
+	public String getSearchQueryString() {
+		return mySearchQueryString;
+	}
+
+	public Integer getSearchQueryStringHash() {
+		return mySearchQueryStringHash;
+	}
+
+	/**
+	 * Returns <code>null</code> for searches which were not loaded in the background,
+	 * whose results were all stored before the search was returned
+	 */
+	public SearchStatusEnum getSearchStatus() {
+		return mySearchStatus;
+	}
+
 	public SearchTypeEnum getSearchType() {
 		return mySearchType;
 	}
@@ -157,9 +236,35 @@ public class Search implements Serializable {
 		return myUuid;
 	}
 
+	/**
+	 * Returns <code>true</code> if the results for this search are not stored as
+	 * {@link SearchResult} rows, but are instead loaded page by page using a keyset
+	 */
+	public boolean isKeysetPaging() {
+		return myKeysetOffset != null;
+	}
+
+	/**
+	 * Returns <code>true</code> if this search is still being loaded in the background
+	 */
+	public boolean isLoading() {
+		return mySearchStatus == SearchStatusEnum.LOADING;
+	}
+
 	public void setCreated(Date theCreated) {
 		myCreated = theCreated;
 	}
+
+	public void setKeysetPosition(Integer theOffset, Date theLastUpdated, Long theLastPid) {
+		myKeysetOffset = theOffset;
+		myKeysetLastUpdated = theLastUpdated;
+		myKeysetLastPid = theLastPid;
+	}
+
+	public void setKeysetPosition(Integer theOffset, Long theLastPid) {
+		setKeysetPosition(theOffset, null, theLastPid);
+	}
+
 	public void setLastUpdated(Date theLowerBound, Date theUpperBound) {
 		myLastUpdatedLow = theLowerBound;
 		myLastUpdatedHigh = theUpperBound;
@@ -175,6 +280,10 @@ public class Search implements Serializable {
 		}
 	}
 
+	public void setNumLoaded(Integer theNumLoaded) {
+		myNumLoaded = theNumLoaded;
+	}
+
 	public void setPreferredPageSize(Integer thePreferredPageSize) {
 		myPreferredPageSize = thePreferredPageSize;
 	}
@@ -188,6 +297,18 @@ public class Search implements Serializable {
 		myResourceType = theResourceType;
 	}
 
+	/**
+	 * Also sets the hash which is used to find this search
+	 */
+	public void setSearchQueryString(String theSearchQueryString) {
+		mySearchQueryString = theSearchQueryString;
+		mySearchQueryStringHash = theSearchQueryString != null ? theSearchQueryString.hashCode() : null;
+	}
+
+	public void setSearchStatus(SearchStatusEnum theSearchStatus) {
+		mySearchStatus = theSearchStatus;
+	}
+
 	public void setSearchType(SearchTypeEnum theSearchType) {
 		mySearchType = theSearchType;
 	}
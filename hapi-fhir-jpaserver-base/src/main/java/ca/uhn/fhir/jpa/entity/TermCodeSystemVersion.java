@@ -49,6 +49,9 @@ import ca.uhn.fhir.util.CoverageIgnore;
 public class TermCodeSystemVersion implements Serializable {
 	private static final long serialVersionUID = 1L;
 
+	@Column(name = "CLOSURE_BUILT", nullable = true)
+	private Boolean myClosureBuilt;
+
 	@OneToMany(fetch = FetchType.LAZY, mappedBy = "myCodeSystem")
 	private Collection<TermConcept> myConcepts;
 
@@ -129,6 +132,19 @@ public class TermCodeSystemVersion implements Serializable {
 		return myResourceVersionId;
 	}
 
+	/**
+	 * Returns <code>true</code> if the concepts of this version were stored along with
+	 * their {@link TermConceptClosure ancestor/descendant closure}. Versions stored by
+	 * older releases do not have one.
+	 */
+	public boolean isClosureBuilt() {
+		return Boolean.TRUE.equals(myClosureBuilt);
+	}
+
+	public void setClosureBuilt(boolean theClosureBuilt) {
+		myClosureBuilt = theClosureBuilt;
+	}
+
 	public void setResource(ResourceTable theResource) {
 		myResource = theResource;
 	}
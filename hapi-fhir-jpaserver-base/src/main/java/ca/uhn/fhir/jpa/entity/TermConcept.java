@@ -173,6 +173,16 @@ public class TermConcept implements Serializable {
 		return b.isEquals();
 	}
 
+	/**
+	 * Returns the PIDs of all concepts above this one, found by walking the (in memory)
+	 * parent links. All of the parents must already have been saved.
+	 */
+	public Set<Long> getAncestorPids() {
+		Set<Long> retVal = new HashSet<Long>();
+		parentPids(this, retVal);
+		return retVal;
+	}
+
 	public Collection<TermConceptParentChildLink> getChildren() {
 		if (myChildren == null) {
 			myChildren = new ArrayList<TermConceptParentChildLink>();
@@ -234,9 +244,8 @@ public class TermConcept implements Serializable {
 	@PrePersist
 	public void prePersist() {
 		if (myParentPids == null) {
-			Set<Long> parentPids = new HashSet<Long>();
+			Set<Long> parentPids = getAncestorPids();
 			TermConcept entity = this;
-			parentPids(entity, parentPids);
 			entity.setParentPids(parentPids);
 	
 			ourLog.trace("Code {}/{} has parents {}", entity.getId(), entity.getCode(), entity.getParentPidsAsString());
@@ -0,0 +1,116 @@
+package ca.uhn.fhir.jpa.entity;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.persistence.UniqueConstraint;
+
+/**
+ * A stored expansion of a token search modifier (<code>:in</code>, <code>:above</code> or
+ * <code>:below</code>). The codes themselves are stored as {@link TermValueSetMember} rows,
+ * so that searches can join against them instead of listing every code in the query.
+ */
+//@formatter:off
+@Entity
+@Table(name = "TRM_VS_EXPANSION", uniqueConstraints = {
+	@UniqueConstraint(name = "IDX_VS_EXPANSION_KEY_VER", columnNames = { "EXPANSION_KEY", "VERSION_KEY" })
+})
+//@formatter:on
+public class TermValueSetExpansion implements Serializable {
+	public static final int MAX_KEY_LENGTH = 500;
+	public static final int MAX_VERSION_LENGTH = 100;
+
+	private static final long serialVersionUID = 1L;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "CREATED", nullable = false, updatable = false)
+	private Date myCreated;
+
+	@Column(name = "EXPANSION_KEY", length = MAX_KEY_LENGTH, nullable = false, updatable = false)
+	private String myExpansionKey;
+
+	@Column(name = "NUM_MEMBERS", nullable = false)
+	private int myNumMembers;
+
+	@Id()
+	@SequenceGenerator(name = "SEQ_VS_EXPANSION_PID", sequenceName = "SEQ_VS_EXPANSION_PID")
+	@GeneratedValue(strategy = GenerationType.AUTO, generator = "SEQ_VS_EXPANSION_PID")
+	@Column(name = "PID")
+	private Long myPid;
+
+	@Column(name = "VERSION_KEY", length = MAX_VERSION_LENGTH, nullable = false, updatable = false)
+	private String myVersionKey;
+
+	public Date getCreated() {
+		return myCreated;
+	}
+
+	/**
+	 * Identifies what was expanded, e.g. <code>below http://snomed.info/sct|123</code>
+	 */
+	public String getExpansionKey() {
+		return myExpansionKey;
+	}
+
+	public int getNumMembers() {
+		return myNumMembers;
+	}
+
+	public Long getPid() {
+		return myPid;
+	}
+
+	/**
+	 * Identifies the version of the content the expansion was made from (the code
+	 * system version, or a hash of the expanded codes)
+	 */
+	public String getVersionKey() {
+		return myVersionKey;
+	}
+
+	public void setCreated(Date theCreated) {
+		myCreated = theCreated;
+	}
+
+	public void setExpansionKey(String theExpansionKey) {
+		myExpansionKey = theExpansionKey;
+	}
+
+	public void setNumMembers(int theNumMembers) {
+		myNumMembers = theNumMembers;
+	}
+
+	public void setVersionKey(String theVersionKey) {
+		myVersionKey = theVersionKey;
+	}
+
+}
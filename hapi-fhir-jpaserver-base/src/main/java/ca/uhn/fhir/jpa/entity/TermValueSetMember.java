@@ -0,0 +1,91 @@
+package ca.uhn.fhir.jpa.entity;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.Serializable;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.ForeignKey;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+
+//@formatter:off
+@Entity
+@Table(name = "TRM_VS_MEMBER", indexes = {
+	@Index(name = "IDX_VS_MEMBER_EXP_CODE", columnList = "EXPANSION_PID,VSM_CODE,VSM_SYSTEM")
+})
+//@formatter:on
+public class TermValueSetMember implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	@Column(name = "VSM_CODE", length = ResourceIndexedSearchParamToken.MAX_LENGTH, nullable = false, updatable = false)
+	private String myCode;
+
+	@ManyToOne()
+	@JoinColumn(name = "EXPANSION_PID", nullable = false, updatable = false, referencedColumnName = "PID", foreignKey = @ForeignKey(name = "FK_VS_MEMBER_EXPANSION"))
+	private TermValueSetExpansion myExpansion;
+
+	@Column(name = "EXPANSION_PID", insertable = false, updatable = false)
+	private Long myExpansionPid;
+
+	@Id()
+	@SequenceGenerator(name = "SEQ_VS_MEMBER_PID", sequenceName = "SEQ_VS_MEMBER_PID")
+	@GeneratedValue(strategy = GenerationType.AUTO, generator = "SEQ_VS_MEMBER_PID")
+	@Column(name = "PID")
+	private Long myPid;
+
+	@Column(name = "VSM_SYSTEM", length = ResourceIndexedSearchParamToken.MAX_LENGTH, nullable = true, updatable = false)
+	private String mySystem;
+
+	public TermValueSetMember() {
+		super();
+	}
+
+	public TermValueSetMember(TermValueSetExpansion theExpansion, String theSystem, String theCode) {
+		myExpansion = theExpansion;
+		mySystem = theSystem;
+		myCode = theCode;
+	}
+
+	public String getCode() {
+		return myCode;
+	}
+
+	public TermValueSetExpansion getExpansion() {
+		return myExpansion;
+	}
+
+	public Long getPid() {
+		return myPid;
+	}
+
+	public String getSystem() {
+		return mySystem;
+	}
+
+}
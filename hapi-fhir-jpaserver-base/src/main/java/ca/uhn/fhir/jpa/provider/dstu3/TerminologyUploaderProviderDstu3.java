@@ -23,14 +23,12 @@ package ca.uhn.fhir.jpa.provider.dstu3;
 import static org.apache.commons.lang3.StringUtils.defaultString;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
-import java.io.FileInputStream;
-import java.io.IOException;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
 
-import org.apache.commons.io.IOUtils;
 import org.hl7.fhir.dstu3.model.Attachment;
 import org.hl7.fhir.dstu3.model.IntegerType;
 import org.hl7.fhir.dstu3.model.Parameters;
@@ -44,7 +42,6 @@ import ca.uhn.fhir.jpa.term.IHapiTerminologyLoaderSvc.UploadStatistics;
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
 import ca.uhn.fhir.rest.method.RequestDetails;
-import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 
 public class TerminologyUploaderProviderDstu3 extends BaseJpaProvider {
@@ -70,37 +67,39 @@ public class TerminologyUploaderProviderDstu3 extends BaseJpaProvider {
 		
 		startRequest(theServletRequest);
 		try {
-			List<byte[]> data = new ArrayList<byte[]>();
+			String url = theUrl != null ? theUrl.getValueAsString() : null;
+			url = defaultString(url);
+
+			UploadStatistics stats;
 			if (theLocalFile != null && theLocalFile.size() > 0) {
+				List<File> files = new ArrayList<File>();
 				for (StringType nextLocalFile : theLocalFile) {
 					if (isNotBlank(nextLocalFile.getValue())) {
 						ourLog.info("Reading in local file: {}", nextLocalFile.getValue());
-						try {
-							byte[] nextData = IOUtils.toByteArray(new FileInputStream(nextLocalFile.getValue()));
-							data.add(nextData);
-						} catch (IOException e) {
-							throw new InternalErrorException(e);
-						}
+						files.add(new File(nextLocalFile.getValue()));
 					}
 				}
+				if (IHapiTerminologyLoaderSvc.SCT_URL.equals(url)) {
+					stats = myTerminologyLoaderSvc.loadSnomedCtFiles(files, theRequestDetails);
+				} else if (IHapiTerminologyLoaderSvc.LOINC_URL.equals(url)) {
+					stats = myTerminologyLoaderSvc.loadLoincFiles(files, theRequestDetails);
+				} else {
+					throw new InvalidRequestException("Unknown URL: " + url);
+				}
 			} else if (thePackage == null || thePackage.getData() == null || thePackage.getData().length == 0) {
 				throw new InvalidRequestException("No 'localfile' or 'package' parameter, or package had no data");
 			} else {
-				data = new ArrayList<byte[]>();
+				List<byte[]> data = new ArrayList<byte[]>();
 				data.add(thePackage.getData());
 				thePackage.setData(null);
-			}
-			
-			String url = theUrl != null ? theUrl.getValueAsString() : null;
-			url = defaultString(url);
 
-			UploadStatistics stats;
-			if (IHapiTerminologyLoaderSvc.SCT_URL.equals(url)) {
-				stats = myTerminologyLoaderSvc.loadSnomedCt((data), theRequestDetails);
-			} else if (IHapiTerminologyLoaderSvc.LOINC_URL.equals(url)) {
+				if (IHapiTerminologyLoaderSvc.SCT_URL.equals(url)) {
+					stats = myTerminologyLoaderSvc.loadSnomedCt((data), theRequestDetails);
+				} else if (IHapiTerminologyLoaderSvc.LOINC_URL.equals(url)) {
 					stats = myTerminologyLoaderSvc.loadLoinc((data), theRequestDetails);
-			} else {
-				throw new InvalidRequestException("Unknown URL: " + url);
+				} else {
+					throw new InvalidRequestException("Unknown URL: " + url);
+				}
 			}
 			
 			Parameters retVal = new Parameters();
@@ -0,0 +1,84 @@
+package ca.uhn.fhir.jpa.search;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Collection;
+import java.util.List;
+
+import ca.uhn.fhir.jpa.entity.Search;
+
+/**
+ * Runs searches in the background, storing their results in batches as
+ * {@link ca.uhn.fhir.jpa.entity.SearchResult} rows so that pages can be returned
+ * before all of the results have been stored
+ * 
+ * @see ca.uhn.fhir.jpa.dao.DaoConfig#setLoadSearchResultsInBackground(boolean)
+ */
+public interface ISearchCoordinatorSvc {
+
+	/**
+	 * Returns the PIDs of the results from <code>theFromIndex</code> (inclusive) to
+	 * <code>theToIndex</code> (exclusive), waiting for them to be found if needed.
+	 * Returns <code>null</code> if the search is not being loaded by this server, once
+	 * the requested results have been stored and can be read from the database.
+	 */
+	List<Long> getResourcePids(String theUuid, int theFromIndex, int theToIndex);
+
+	/**
+	 * Returns the total number of results, waiting for the search to find them if needed
+	 */
+	int getTotalCount(String theUuid);
+
+	/**
+	 * Stores the given new search with a status of {@link ca.uhn.fhir.jpa.entity.SearchStatusEnum#LOADING},
+	 * and starts calling <code>thePidLoader</code> on a background thread to find the
+	 * PIDs of its results. This method returns once the search has been stored.
+	 */
+	void submitSearch(Search theSearch, IPidLoader thePidLoader);
+
+	/**
+	 * Receives the PIDs of a search's results as they are found
+	 */
+	interface IPidCallback {
+
+		/**
+		 * Adds the next PIDs, which follow the ones already added in the order the
+		 * results should be returned
+		 */
+		void addPids(Collection<Long> thePids);
+
+	}
+
+	/**
+	 * Finds the PIDs of a search's results
+	 */
+	interface IPidLoader {
+
+		/**
+		 * Passes the PIDs of the results to <code>theCallback</code> in order. This should
+		 * be done in several calls where possible, so that the first pages can be returned
+		 * before every result has been found.
+		 */
+		void loadPids(IPidCallback theCallback);
+
+	}
+
+}
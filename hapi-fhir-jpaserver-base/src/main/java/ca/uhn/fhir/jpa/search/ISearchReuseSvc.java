@@ -0,0 +1,52 @@
+package ca.uhn.fhir.jpa.search;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import com.google.common.cache.CacheStats;
+
+import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.jpa.entity.Search;
+
+/**
+ * Finds earlier searches whose results can be returned for a new search, instead
+ * of running the search again
+ * 
+ * @see ca.uhn.fhir.jpa.dao.DaoConfig#setReuseCachedSearchResultsForMillis(long)
+ */
+public interface ISearchReuseSvc {
+
+	/**
+	 * Returns the number of searches which reused an earlier search (hits), and the
+	 * number which could not (misses). Searches made while reuse is disabled are not
+	 * counted.
+	 */
+	CacheStats getCacheStats();
+
+	/**
+	 * Returns a search of the given type which was created recently with the same
+	 * normalized query string (see {@link SearchParameterMap#toNormalizedQueryString(ca.uhn.fhir.context.FhirContext)}),
+	 * and whose results have not been affected by any writes since, or
+	 * <code>null</code> if there is no such search
+	 */
+	Search findReusableSearch(String theResourceType, String theQueryString, SearchParameterMap theParams);
+
+}
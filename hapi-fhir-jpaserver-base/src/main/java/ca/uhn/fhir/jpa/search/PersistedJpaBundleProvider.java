@@ -39,6 +39,7 @@ import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionTemplate;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.dao.DaoConfig;
 import ca.uhn.fhir.jpa.dao.IDao;
 import ca.uhn.fhir.jpa.dao.SearchBuilder;
 import ca.uhn.fhir.jpa.dao.data.ISearchDao;
@@ -51,11 +52,14 @@ public final class PersistedJpaBundleProvider implements IBundleProvider {
 
 	private FhirContext myContext;
 	private IDao myDao;
+	private DaoConfig myDaoConfig;
 	private EntityManager myEntityManager;
 	private PlatformTransactionManager myPlatformTransactionManager;
+	private ISearchCoordinatorSvc mySearchCoordinatorSvc;
 	private ISearchDao mySearchDao;
 	private Search mySearchEntity;
 	private ISearchResultDao mySearchResultDao;
+	private Integer myTotalCount;
 	private String myUuid;
 
 	public PersistedJpaBundleProvider(String theSearchUuid, IDao theDao) {
@@ -63,43 +67,151 @@ public final class PersistedJpaBundleProvider implements IBundleProvider {
 		myDao = theDao;
 	}
 
-	protected List<IBaseResource> doHistoryInTransaction(int theFromIndex, int theToIndex) {
-		List<ResourceHistoryTable> results;
-
-		CriteriaBuilder cb = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<ResourceHistoryTable> q = cb.createQuery(ResourceHistoryTable.class);
-		Root<ResourceHistoryTable> from = q.from(ResourceHistoryTable.class);
+	private List<Predicate> createHistoryPredicates(CriteriaBuilder theCb, Root<ResourceHistoryTable> theFrom, boolean theContinueFromCursor) {
 		List<Predicate> predicates = new ArrayList<Predicate>();
-		
+
 		if (mySearchEntity.getResourceType() == null) {
 			// All resource types
 		} else if (mySearchEntity.getResourceId() == null) {
-			predicates.add(cb.equal(from.get("myResourceType"), mySearchEntity.getResourceType()));
+			predicates.add(theCb.equal(theFrom.get("myResourceType"), mySearchEntity.getResourceType()));
 		} else {
-			predicates.add(cb.equal(from.get("myResourceId"), mySearchEntity.getResourceId()));
+			predicates.add(theCb.equal(theFrom.get("myResourceId"), mySearchEntity.getResourceId()));
 		}
 
 		if (mySearchEntity.getLastUpdatedLow() != null) {
-			predicates.add(cb.greaterThanOrEqualTo(from.get("myUpdated").as(Date.class), mySearchEntity.getLastUpdatedLow()));
+			predicates.add(theCb.greaterThanOrEqualTo(theFrom.get("myUpdated").as(Date.class), mySearchEntity.getLastUpdatedLow()));
 		}
 		if (mySearchEntity.getLastUpdatedHigh() != null) {
-			predicates.add(cb.lessThanOrEqualTo(from.get("myUpdated").as(Date.class), mySearchEntity.getLastUpdatedHigh()));
+			predicates.add(theCb.lessThanOrEqualTo(theFrom.get("myUpdated").as(Date.class), mySearchEntity.getLastUpdatedHigh()));
 		}
-		
+
+		if (theContinueFromCursor) {
+			Date lastUpdated = mySearchEntity.getKeysetLastUpdated();
+			Long lastPid = mySearchEntity.getKeysetLastPid();
+			Predicate olderUpdate = theCb.lessThan(theFrom.get("myUpdated").as(Date.class), lastUpdated);
+			Predicate sameUpdateLowerPid = theCb.and(theCb.equal(theFrom.get("myUpdated"), lastUpdated), theCb.lessThan(theFrom.get("myId").as(Long.class), lastPid));
+			predicates.add(theCb.or(olderUpdate, sameUpdateLowerPid));
+		}
+
+		return predicates;
+	}
+
+	private List<Predicate> createKeysetPredicates(CriteriaBuilder theCb, Root<ResourceTable> theFrom, boolean theContinueFromCursor) {
+		List<Predicate> predicates = new ArrayList<Predicate>();
+		predicates.add(theCb.equal(theFrom.get("myResourceType"), mySearchEntity.getResourceType()));
+		predicates.add(theCb.isNull(theFrom.get("myDeleted")));
+
+		if (mySearchEntity.getLastUpdatedLow() != null) {
+			predicates.add(theCb.greaterThanOrEqualTo(theFrom.get("myUpdated").as(Date.class), mySearchEntity.getLastUpdatedLow()));
+		}
+		if (mySearchEntity.getLastUpdatedHigh() != null) {
+			predicates.add(theCb.lessThanOrEqualTo(theFrom.get("myUpdated").as(Date.class), mySearchEntity.getLastUpdatedHigh()));
+		}
+
+		if (theContinueFromCursor && mySearchEntity.getKeysetLastPid() != null) {
+			predicates.add(theCb.greaterThan(theFrom.get("myId").as(Long.class), mySearchEntity.getKeysetLastPid()));
+		}
+
+		return predicates;
+	}
+
+	/**
+	 * Estimates the number of results for a search which is paged using a keyset, whose total
+	 * is never counted, by counting at most {@link DaoConfig#getKeysetPagingCountLookahead()}
+	 * resources past the stored cursor. If there are more resources than that, one is added
+	 * to the estimate so that a following page is always advertised.
+	 */
+	protected int doEstimateKeysetSizeInTransaction() {
+		boolean continueFromCursor = mySearchEntity.getKeysetLastPid() != null;
+
+		CriteriaBuilder cb = myEntityManager.getCriteriaBuilder();
+		CriteriaQuery<Long> q = cb.createQuery(Long.class);
+		Root<ResourceTable> from = q.from(ResourceTable.class);
+		q.select(from.get("myId").as(Long.class));
+		List<Predicate> predicates = createKeysetPredicates(cb, from, continueFromCursor);
+		q.where(predicates.toArray(new Predicate[predicates.size()]));
+
+		TypedQuery<Long> query = myEntityManager.createQuery(q);
+		int lookahead = myDaoConfig.getKeysetPagingCountLookahead();
+		query.setMaxResults(lookahead + 1);
+		int remaining = query.getResultList().size();
+
+		int offset = continueFromCursor ? mySearchEntity.getKeysetOffset() : 0;
+		if (remaining > lookahead) {
+			return offset + lookahead + 1;
+		}
+		return offset + remaining;
+	}
+
+	/**
+	 * Estimates the number of results for a history operation whose total was not counted
+	 * up front, by counting at most {@link DaoConfig#getHistoryCountLookahead()} versions
+	 * past the stored keyset cursor. If there are more versions than that, one is added to
+	 * the estimate so that a following page is always advertised.
+	 */
+	protected int doEstimateHistorySizeInTransaction() {
+		boolean continueFromCursor = isContinueFromHistoryCursor();
+
+		CriteriaBuilder cb = myEntityManager.getCriteriaBuilder();
+		CriteriaQuery<Long> q = cb.createQuery(Long.class);
+		Root<ResourceHistoryTable> from = q.from(ResourceHistoryTable.class);
+		q.select(from.get("myId").as(Long.class));
+		List<Predicate> predicates = createHistoryPredicates(cb, from, continueFromCursor);
+		if (predicates.size() > 0) {
+			q.where(predicates.toArray(new Predicate[predicates.size()]));
+		}
+
+		TypedQuery<Long> query = myEntityManager.createQuery(q);
+		int lookahead = myDaoConfig.getHistoryCountLookahead();
+		query.setMaxResults(lookahead + 1);
+		int remaining = query.getResultList().size();
+
+		int offset = continueFromCursor ? mySearchEntity.getKeysetOffset() : 0;
+		if (remaining > lookahead) {
+			return offset + lookahead + 1;
+		}
+		return offset + remaining;
+	}
+
+	/**
+	 * Loads a page of a history operation. Versions are returned newest first (ties are
+	 * broken by the version PID), so if the requested page immediately follows the last page
+	 * that was returned, the stored (update time, PID) cursor is used instead of an offset
+	 * and the page costs the same however deep it is.
+	 */
+	protected List<IBaseResource> doHistoryInTransaction(int theFromIndex, int theToIndex) {
+		List<ResourceHistoryTable> results;
+
+		boolean continueFromCursor = isContinueFromHistoryCursor() && mySearchEntity.getKeysetOffset().intValue() == theFromIndex;
+
+		CriteriaBuilder cb = myEntityManager.getCriteriaBuilder();
+		CriteriaQuery<ResourceHistoryTable> q = cb.createQuery(ResourceHistoryTable.class);
+		Root<ResourceHistoryTable> from = q.from(ResourceHistoryTable.class);
+		List<Predicate> predicates = createHistoryPredicates(cb, from, continueFromCursor);
+
 		if (predicates.size() > 0) {
 			q.where(predicates.toArray(new Predicate[predicates.size()]));
 		}
 		
-		q.orderBy(cb.desc(from.get("myUpdated")));
+		q.orderBy(cb.desc(from.get("myUpdated")), cb.desc(from.get("myId")));
 		
 		TypedQuery<ResourceHistoryTable> query = myEntityManager.createQuery(q);
 
 		if (theToIndex - theFromIndex > 0) {
-			query.setFirstResult(theFromIndex);
+			if (!continueFromCursor) {
+				query.setFirstResult(theFromIndex);
+			}
 			query.setMaxResults(theToIndex - theFromIndex);
 		}
 		
 		results = query.getResultList();
+
+		if (results.size() > 0 && mySearchEntity.isKeysetPaging()) {
+			ResourceHistoryTable last = results.get(results.size() - 1);
+			Integer nextOffset = theFromIndex + results.size();
+			mySearchDao.updateHistoryKeysetPosition(mySearchEntity.getId(), nextOffset, last.getUpdatedDate(), last.getId());
+			mySearchEntity.setKeysetPosition(nextOffset, last.getUpdatedDate(), last.getId());
+		}
 		
 		ArrayList<IBaseResource> retVal = new ArrayList<IBaseResource>();
 		for (ResourceHistoryTable next : results) {
@@ -112,6 +224,40 @@ public final class PersistedJpaBundleProvider implements IBundleProvider {
 		return retVal;
 	}
 
+	/**
+	 * Loads a page of PIDs for a search which is paged using a keyset. If the requested
+	 * page immediately follows the last page that was returned, the stored cursor is used
+	 * (<code>RES_ID &gt; lastPid</code>), otherwise we fall back to an offset query.
+	 */
+	protected List<Long> doLoadKeysetPageInTransaction(int theFromIndex, int theToIndex) {
+		CriteriaBuilder cb = myEntityManager.getCriteriaBuilder();
+		CriteriaQuery<Long> q = cb.createQuery(Long.class);
+		Root<ResourceTable> from = q.from(ResourceTable.class);
+		q.select(from.get("myId").as(Long.class));
+
+		boolean continueFromCursor = mySearchEntity.getKeysetOffset().intValue() == theFromIndex;
+		List<Predicate> predicates = createKeysetPredicates(cb, from, continueFromCursor);
+		q.where(predicates.toArray(new Predicate[predicates.size()]));
+		q.orderBy(cb.asc(from.get("myId")));
+
+		TypedQuery<Long> query = myEntityManager.createQuery(q);
+		if (!continueFromCursor) {
+			query.setFirstResult(theFromIndex);
+		}
+		query.setMaxResults(theToIndex - theFromIndex);
+
+		List<Long> retVal = query.getResultList();
+
+		if (retVal.size() > 0) {
+			Integer nextOffset = theFromIndex + retVal.size();
+			Long lastPid = retVal.get(retVal.size() - 1);
+			mySearchDao.updateKeysetPosition(mySearchEntity.getId(), nextOffset, lastPid);
+			mySearchEntity.setKeysetPosition(nextOffset, lastPid);
+		}
+
+		return retVal;
+	}
+
 	protected List<IBaseResource> doSearchOrEverythingInTransaction(final int theFromIndex, final int theToIndex) {
 
 		Pageable page = toPage(theFromIndex, theToIndex);
@@ -119,11 +265,22 @@ public final class PersistedJpaBundleProvider implements IBundleProvider {
 			return Collections.emptyList();
 		}
 
-		Page<SearchResult> search = mySearchResultDao.findWithSearchUuid(mySearchEntity, page);
+		List<Long> pidsSubList = null;
+		if (mySearchEntity.isLoading()) {
+			pidsSubList = mySearchCoordinatorSvc.getResourcePids(myUuid, theFromIndex, theToIndex);
+		}
+
+		if (pidsSubList != null) {
+			// The search is still being loaded by this server
+		} else if (mySearchEntity.isKeysetPaging()) {
+			pidsSubList = doLoadKeysetPageInTransaction(theFromIndex, theToIndex);
+		} else {
+			Page<SearchResult> search = mySearchResultDao.findWithSearchUuid(mySearchEntity, page);
 
-		List<Long> pidsSubList = new ArrayList<Long>();
-		for (SearchResult next : search) {
-			pidsSubList.add(next.getResourcePid());
+			pidsSubList = new ArrayList<Long>();
+			for (SearchResult next : search) {
+				pidsSubList.add(next.getResourcePid());
+			}
 		}
 
 		// Load includes
@@ -131,9 +288,9 @@ public final class PersistedJpaBundleProvider implements IBundleProvider {
 
 		Set<Long> revIncludedPids = new HashSet<Long>();
 		if (mySearchEntity.getSearchType() == SearchTypeEnum.SEARCH) {
-			revIncludedPids.addAll(SearchBuilder.loadReverseIncludes(myDao, myContext, myEntityManager, pidsSubList, mySearchEntity.toRevIncludesList(), true, mySearchEntity.getLastUpdated()));
+			revIncludedPids.addAll(SearchBuilder.loadReverseIncludes(myDao, myContext, myEntityManager, pidsSubList, mySearchEntity.toRevIncludesList(), true, mySearchEntity.getLastUpdated(), myDaoConfig));
 		}
-		revIncludedPids.addAll(SearchBuilder.loadReverseIncludes(myDao, myContext, myEntityManager, pidsSubList, mySearchEntity.toIncludesList(), false, mySearchEntity.getLastUpdated()));
+		revIncludedPids.addAll(SearchBuilder.loadReverseIncludes(myDao, myContext, myEntityManager, pidsSubList, mySearchEntity.toIncludesList(), false, mySearchEntity.getLastUpdated(), myDaoConfig));
 
 		// Execute the query and make sure we return distinct results
 		List<IBaseResource> resources = new ArrayList<IBaseResource>();
@@ -214,6 +371,10 @@ public final class PersistedJpaBundleProvider implements IBundleProvider {
 		return myUuid;
 	}
 
+	private boolean isContinueFromHistoryCursor() {
+		return mySearchEntity.isKeysetPaging() && mySearchEntity.getKeysetLastPid() != null && mySearchEntity.getKeysetLastUpdated() != null;
+	}
+
 	@Override
 	public Integer preferredPageSize() {
 		ensureSearchEntityLoaded();
@@ -224,6 +385,10 @@ public final class PersistedJpaBundleProvider implements IBundleProvider {
 		myContext = theContext;
 	}
 
+	public void setDaoConfig(DaoConfig theDaoConfig) {
+		myDaoConfig = theDaoConfig;
+	}
+
 	public void setEntityManager(EntityManager theEntityManager) {
 		myEntityManager = theEntityManager;
 	}
@@ -232,6 +397,10 @@ public final class PersistedJpaBundleProvider implements IBundleProvider {
 		myPlatformTransactionManager = thePlatformTransactionManager;
 	}
 
+	public void setSearchCoordinatorSvc(ISearchCoordinatorSvc theSearchCoordinatorSvc) {
+		mySearchCoordinatorSvc = theSearchCoordinatorSvc;
+	}
+
 	public void setSearchDao(ISearchDao theSearchDao) {
 		mySearchDao = theSearchDao;
 	}
@@ -243,6 +412,27 @@ public final class PersistedJpaBundleProvider implements IBundleProvider {
 	@Override
 	public int size() {
 		ensureSearchEntityLoaded();
+		if (mySearchEntity.isLoading() && mySearchEntity.getTotalCount() < 0) {
+			if (myTotalCount == null) {
+				myTotalCount = mySearchCoordinatorSvc.getTotalCount(myUuid);
+			}
+			return myTotalCount;
+		}
+		if (mySearchEntity.getTotalCount() < 0 && (mySearchEntity.getSearchType() == SearchTypeEnum.HISTORY || mySearchEntity.isKeysetPaging())) {
+			if (myTotalCount == null) {
+				TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+				myTotalCount = template.execute(new TransactionCallback<Integer>() {
+					@Override
+					public Integer doInTransaction(TransactionStatus theStatus) {
+						if (mySearchEntity.getSearchType() == SearchTypeEnum.HISTORY) {
+							return doEstimateHistorySizeInTransaction();
+						}
+						return doEstimateKeysetSizeInTransaction();
+					}
+				});
+			}
+			return myTotalCount;
+		}
 		return Math.max(0, mySearchEntity.getTotalCount());
 	}
 
@@ -0,0 +1,382 @@
+package ca.uhn.fhir.jpa.search;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+
+import org.apache.commons.lang3.time.DateUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+
+import ca.uhn.fhir.jpa.dao.data.ISearchDao;
+import ca.uhn.fhir.jpa.dao.data.ISearchResultDao;
+import ca.uhn.fhir.jpa.entity.Search;
+import ca.uhn.fhir.jpa.entity.SearchInclude;
+import ca.uhn.fhir.jpa.entity.SearchResult;
+import ca.uhn.fhir.jpa.entity.SearchStatusEnum;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+
+/**
+ * Each search is run on a thread from a fixed size pool, in its own transaction.
+ * The PIDs of the results are kept in memory as the search finds them, so that a
+ * page requested from this server can be returned as soon as the results for that
+ * page have been found. They are also stored in batches of {@link #RESULT_BATCH_SIZE},
+ * and the number of stored results is recorded with the search after each batch, so
+ * that other servers can return a page as soon as the results for that page have been
+ * stored.
+ * <p>
+ * If every thread is busy, up to {@link #MAX_QUEUED_SEARCHES} searches wait for
+ * one to become free. Beyond that, searches are run on the thread which submits them.
+ * </p>
+ */
+public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SearchCoordinatorSvcImpl.class);
+
+	static final int MAX_QUEUED_SEARCHES = 100;
+
+	static final int MAX_THREADS = 10;
+
+	private static final long MAX_WAIT_MILLIS = 10 * DateUtils.MILLIS_PER_MINUTE;
+
+	private static final long POLL_DELAY_MILLIS = 100;
+
+	static final int RESULT_BATCH_SIZE = 500;
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	private ThreadPoolExecutor myExecutor;
+
+	private final ConcurrentHashMap<String, SearchTask> myIdToSearchTask = new ConcurrentHashMap<String, SearchTask>();
+
+	@Autowired
+	private ISearchDao mySearchDao;
+
+	@Autowired
+	private ISearchResultDao mySearchResultDao;
+
+	@Autowired
+	private PlatformTransactionManager myTransactionManager;
+
+	/**
+	 * Waits until the given search has finished running, if it is being run by this server
+	 */
+	@VisibleForTesting
+	public void awaitSearchCompletion(String theUuid) throws InterruptedException {
+		SearchTask task = myIdToSearchTask.get(theUuid);
+		if (task != null && !task.myCompletionLatch.await(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+			throw new InternalErrorException("Timed out waiting for search " + theUuid);
+		}
+	}
+
+	/**
+	 * Waits until the search has finished, or at least <code>theCount</code> of its
+	 * results have been stored
+	 */
+	private Search awaitStoredResults(final String theUuid, int theCount) {
+		TransactionTemplate txTemplate = newTransactionTemplate();
+		long deadline = System.currentTimeMillis() + MAX_WAIT_MILLIS;
+		while (true) {
+			Search search = txTemplate.execute(new TransactionCallback<Search>() {
+				@Override
+				public Search doInTransaction(TransactionStatus theStatus) {
+					return mySearchDao.findByUuid(theUuid);
+				}
+			});
+
+			if (search == null) {
+				throw new ResourceGoneException("Search ID \"" + theUuid + "\" does not exist and may have expired");
+			}
+			if (search.getSearchStatus() == SearchStatusEnum.FAILED) {
+				throw new InternalErrorException("Search " + theUuid + " failed");
+			}
+			if (!search.isLoading()) {
+				return search;
+			}
+			if (search.getNumLoaded() >= theCount) {
+				return search;
+			}
+
+			if (System.currentTimeMillis() > deadline) {
+				throw new InternalErrorException("Timed out waiting for search " + theUuid);
+			}
+			try {
+				Thread.sleep(POLL_DELAY_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InternalErrorException(e);
+			}
+		}
+	}
+
+	@Override
+	public List<Long> getResourcePids(String theUuid, int theFromIndex, int theToIndex) {
+		SearchTask task = myIdToSearchTask.get(theUuid);
+		if (task != null) {
+			return task.awaitPids(theFromIndex, theToIndex);
+		}
+
+		awaitStoredResults(theUuid, theToIndex);
+		return null;
+	}
+
+	@Override
+	public int getTotalCount(String theUuid) {
+		SearchTask task = myIdToSearchTask.get(theUuid);
+		if (task != null) {
+			return task.awaitTotalCount();
+		}
+		return Math.max(0, awaitStoredResults(theUuid, Integer.MAX_VALUE).getTotalCount());
+	}
+
+	private TransactionTemplate newTransactionTemplate() {
+		TransactionTemplate retVal = new TransactionTemplate(myTransactionManager);
+		retVal.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		return retVal;
+	}
+
+	@PostConstruct
+	public void start() {
+		myExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(MAX_QUEUED_SEARCHES), new SearchThreadFactory(), new ThreadPoolExecutor.CallerRunsPolicy());
+		myExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	@PreDestroy
+	public void stop() {
+		myExecutor.shutdownNow();
+	}
+
+	@Override
+	public void submitSearch(final Search theSearch, IPidLoader thePidLoader) {
+		theSearch.setSearchStatus(SearchStatusEnum.LOADING);
+		theSearch.setNumLoaded(0);
+
+		newTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+				myEntityManager.persist(theSearch);
+				for (SearchInclude next : theSearch.getIncludes()) {
+					myEntityManager.persist(next);
+				}
+			}
+		});
+
+		SearchTask task = new SearchTask(theSearch, thePidLoader);
+		myIdToSearchTask.put(theSearch.getUuid(), task);
+		myExecutor.execute(task);
+	}
+
+	private void updateSearchStatus(final Long theSearchPid, final SearchStatusEnum theStatus, final int theTotalCount, final int theNumLoaded) {
+		newTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus theTxStatus) {
+				mySearchDao.updateSearchStatus(theSearchPid, theStatus, theTotalCount, theNumLoaded);
+			}
+		});
+	}
+
+	/**
+	 * The PIDs are only added by the thread running the task, but may be read by any
+	 * thread, so access to them is synchronized on the task
+	 */
+	private class SearchTask implements Runnable, IPidCallback {
+
+		private boolean myComplete;
+		private final CountDownLatch myCompletionLatch = new CountDownLatch(1);
+		private RuntimeException myFailure;
+		private int myNumStored;
+		private final IPidLoader myPidLoader;
+		private final List<Long> myPids = new ArrayList<Long>();
+		private final Long mySearchPid;
+		private final String myUuid;
+
+		SearchTask(Search theSearch, IPidLoader thePidLoader) {
+			mySearchPid = theSearch.getId();
+			myUuid = theSearch.getUuid();
+			myPidLoader = thePidLoader;
+		}
+
+		@Override
+		public void addPids(Collection<Long> thePids) {
+			if (thePids.isEmpty()) {
+				return;
+			}
+			synchronized (this) {
+				myPids.addAll(thePids);
+				notifyAll();
+			}
+			storeResults(false);
+		}
+
+		/**
+		 * Waits until the results from <code>theFromIndex</code> to <code>theToIndex</code>
+		 * have been found, or the search has finished
+		 */
+		synchronized List<Long> awaitPids(int theFromIndex, int theToIndex) {
+			awaitCondition(theToIndex);
+			int from = Math.min(theFromIndex, myPids.size());
+			int to = Math.min(theToIndex, myPids.size());
+			return new ArrayList<Long>(myPids.subList(from, to));
+		}
+
+		synchronized int awaitTotalCount() {
+			awaitCondition(Integer.MAX_VALUE);
+			return myPids.size();
+		}
+
+		private void awaitCondition(int theCount) {
+			long deadline = System.currentTimeMillis() + MAX_WAIT_MILLIS;
+			while (!myComplete && myFailure == null && myPids.size() < theCount) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					throw new InternalErrorException("Timed out waiting for search " + myUuid);
+				}
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InternalErrorException(e);
+				}
+			}
+			if (!myComplete && myPids.size() < theCount) {
+				throw new InternalErrorException("Search " + myUuid + " failed: " + myFailure.getMessage(), myFailure);
+			}
+		}
+
+		private void loadPids() {
+			newTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
+				@Override
+				protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+					myPidLoader.loadPids(SearchTask.this);
+				}
+			});
+		}
+
+		@Override
+		public void run() {
+			try {
+				loadPids();
+				synchronized (this) {
+					myComplete = true;
+					notifyAll();
+				}
+				ourLog.debug("Search {} found {} results", myUuid, myPids.size());
+
+				storeResults(true);
+			} catch (RuntimeException e) {
+				ourLog.error("Failed to load search " + myUuid, e);
+				synchronized (this) {
+					myFailure = e;
+					notifyAll();
+				}
+				try {
+					updateSearchStatus(mySearchPid, SearchStatusEnum.FAILED, -1, 0);
+				} catch (RuntimeException e2) {
+					ourLog.error("Failed to mark search " + myUuid + " as failed", e2);
+				}
+			} finally {
+				myIdToSearchTask.remove(myUuid);
+				myCompletionLatch.countDown();
+			}
+		}
+
+		/**
+		 * Stores each full batch of results which hasn't been stored yet, and once the
+		 * search is complete, the remaining results and the total
+		 */
+		private void storeResults(boolean theComplete) {
+			final int total = theComplete ? myPids.size() : -1;
+			boolean finished = false;
+
+			for (final List<Long> nextBatch : Lists.partition(myPids.subList(myNumStored, myPids.size()), RESULT_BATCH_SIZE)) {
+				if (!theComplete && nextBatch.size() < RESULT_BATCH_SIZE) {
+					// Wait for more results before storing a partial batch
+					break;
+				}
+
+				final int firstIndex = myNumStored;
+				final int newNumStored = myNumStored + nextBatch.size();
+				final SearchStatusEnum status = newNumStored == total ? SearchStatusEnum.FINISHED : SearchStatusEnum.LOADING;
+
+				// Each batch is stored in the same transaction as the updated count
+				newTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
+					@Override
+					protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+						Search search = myEntityManager.getReference(Search.class, mySearchPid);
+						List<SearchResult> results = new ArrayList<SearchResult>(nextBatch.size());
+						int index = firstIndex;
+						for (Long next : nextBatch) {
+							SearchResult result = new SearchResult(search);
+							result.setResourcePid(next);
+							result.setOrder(index++);
+							results.add(result);
+						}
+						mySearchResultDao.save(results);
+						mySearchDao.updateSearchStatus(mySearchPid, status, total, newNumStored);
+					}
+				});
+
+				myNumStored = newNumStored;
+				finished = status == SearchStatusEnum.FINISHED;
+			}
+
+			if (theComplete && !finished) {
+				updateSearchStatus(mySearchPid, SearchStatusEnum.FINISHED, total, myNumStored);
+			}
+		}
+	}
+
+	private static class SearchThreadFactory implements ThreadFactory {
+		private final AtomicInteger myThreadIndex = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable theRunnable) {
+			Thread retVal = new Thread(theRunnable, "search-" + myThreadIndex.incrementAndGet());
+			retVal.setDaemon(true);
+			return retVal;
+		}
+	}
+
+}
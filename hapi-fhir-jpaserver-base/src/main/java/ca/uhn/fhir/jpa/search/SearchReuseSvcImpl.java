@@ -0,0 +1,154 @@
+package ca.uhn.fhir.jpa.search;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+import javax.persistence.TypedQuery;
+
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.google.common.cache.CacheStats;
+
+import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.jpa.dao.data.ISearchDao;
+import ca.uhn.fhir.jpa.entity.Search;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.param.HasParam;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+
+/**
+ * A search is reused if it has the same resource type and normalized query string
+ * as the new search, was created within {@link DaoConfig#getReuseCachedSearchResultsForMillis()}
+ * (and within half of {@link DaoConfig#getExpireSearchResultsAfterMillis()}, so that it doesn't
+ * expire while the client is still paging through it), is not paged using a keyset, and no
+ * resource which could affect its results has been written since it was created.
+ * For most searches these are the resources of the searched type, but for searches
+ * with chained or <code>_has</code> parameters a write to a resource of any type
+ * prevents reuse.
+ * <p>
+ * Note that a write which had not been committed when the earlier search ran, but
+ * which has an earlier timestamp than that search, is not detected. Such a write can
+ * be missing from the reused results until the reuse period has passed.
+ * </p>
+ */
+public class SearchReuseSvcImpl implements ISearchReuseSvc {
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SearchReuseSvcImpl.class);
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	private final AtomicLong myHitCount = new AtomicLong();
+
+	private final AtomicLong myMissCount = new AtomicLong();
+
+	@Autowired
+	private ISearchDao mySearchDao;
+
+	@Override
+	public Search findReusableSearch(String theResourceType, String theQueryString, SearchParameterMap theParams) {
+		long reuseMillis = myDaoConfig.getReuseCachedSearchResultsForMillis();
+		if (reuseMillis == 0) {
+			return null;
+		}
+		if (myDaoConfig.isExpireSearchResults()) {
+			// Searches expire by their creation date, so only hand out a search which has at least
+			// half of its lifetime left, leaving the client time to page through it
+			reuseMillis = Math.min(reuseMillis, myDaoConfig.getExpireSearchResultsAfterMillis() / 2);
+		}
+		Date cutoff = new Date(System.currentTimeMillis() - reuseMillis);
+
+		boolean dependsOnOtherTypes = isDependentOnOtherTypes(theParams);
+		for (Search next : mySearchDao.findWithQueryStringHash(theResourceType, theQueryString.hashCode(), cutoff)) {
+			if (!theQueryString.equals(next.getSearchQueryString())) {
+				continue;
+			}
+
+			// A keyset search stores the position of the last page loaded, so it can't be shared
+			if (next.isKeysetPaging()) {
+				continue;
+			}
+
+			// Candidates are newest first, so if this one is out of date the rest are too
+			if (hasWritesSince(dependsOnOtherTypes ? null : theResourceType, next.getCreated())) {
+				break;
+			}
+
+			ourLog.debug("Reusing search {} created at {}", next.getUuid(), next.getCreated());
+			myHitCount.incrementAndGet();
+			return next;
+		}
+
+		myMissCount.incrementAndGet();
+		return null;
+	}
+
+	@Override
+	public CacheStats getCacheStats() {
+		return new CacheStats(myHitCount.get(), myMissCount.get(), 0, 0, 0, 0);
+	}
+
+	private boolean hasWritesSince(String theResourceTypeOrNull, Date theSince) {
+		String sql = "SELECT r.myId FROM ResourceTable r WHERE r.myUpdated >= :since";
+		if (theResourceTypeOrNull != null) {
+			sql = sql + " AND r.myResourceType = :type";
+		}
+		TypedQuery<Long> q = myEntityManager.createQuery(sql, Long.class);
+		q.setParameter("since", theSince);
+		if (theResourceTypeOrNull != null) {
+			q.setParameter("type", theResourceTypeOrNull);
+		}
+		q.setMaxResults(1);
+		return !q.getResultList().isEmpty();
+	}
+
+	private static boolean isDependentOnOtherTypes(SearchParameterMap theParams) {
+		if (theParams.getEverythingMode() != null) {
+			return true;
+		}
+		for (List<List<? extends IQueryParameterType>> nextAndList : theParams.values()) {
+			for (List<? extends IQueryParameterType> nextOrList : nextAndList) {
+				for (IQueryParameterType next : nextOrList) {
+					if (next instanceof HasParam) {
+						return true;
+					}
+					if (next instanceof ReferenceParam && isNotBlank(((ReferenceParam) next).getChain())) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+}
@@ -20,16 +20,18 @@ package ca.uhn.fhir.jpa.search;
  * #L%
  */
 
-import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 
 import org.apache.commons.lang3.time.DateUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionCallbackWithoutResult;
 import org.springframework.transaction.support.TransactionTemplate;
 
@@ -37,14 +39,31 @@ import ca.uhn.fhir.jpa.dao.DaoConfig;
 import ca.uhn.fhir.jpa.dao.data.ISearchDao;
 import ca.uhn.fhir.jpa.dao.data.ISearchIncludeDao;
 import ca.uhn.fhir.jpa.dao.data.ISearchResultDao;
-import ca.uhn.fhir.jpa.entity.Search;
+import ca.uhn.fhir.jpa.term.ITermValueSetMembershipSvc;
 
 /**
  * Deletes old searches
+ * <p>
+ * Expired searches are deleted in batches of {@link #SEARCH_BATCH_SIZE}, in order of
+ * PID. The results of each batch are deleted first, using set based deletes which each
+ * remove at most {@link #RESULT_BATCH_SIZE} rows (all rows up to a given result PID),
+ * and then the includes and the searches themselves are deleted. Every delete runs in
+ * its own short transaction so that locks are not held for long, and each pass stops
+ * once {@link DaoConfig#getExpireSearchResultsTimeBudgetMillis()} has elapsed.
+ * </p>
+ * <p>
+ * Stored token modifier expansions which were superseded by a newer version before the
+ * same cutoff are deleted too, since no search which could still be joining against them
+ * is still running.
+ * </p>
  */
 public class StaleSearchDeletingSvcImpl implements IStaleSearchDeletingSvc {
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(StaleSearchDeletingSvcImpl.class);
 
+	static final int RESULT_BATCH_SIZE = 10000;
+
+	static final int SEARCH_BATCH_SIZE = 100;
+
 	@Autowired
 	private ISearchDao mySearchDao;
 
@@ -60,6 +79,9 @@ public class StaleSearchDeletingSvcImpl implements IStaleSearchDeletingSvc {
 	@Autowired
 	private PlatformTransactionManager myTransactionManager;
 
+	@Autowired
+	private ITermValueSetMembershipSvc myValueSetMembershipSvc;
+
 	@Scheduled(fixedDelay = 10 * DateUtils.MILLIS_PER_SECOND)
 	@Transactional(propagation = Propagation.NOT_SUPPORTED)
 	@Override
@@ -74,32 +96,76 @@ public class StaleSearchDeletingSvcImpl implements IStaleSearchDeletingSvc {
 	@Override
 	@Transactional(propagation = Propagation.NOT_SUPPORTED)
 	public void pollForStaleSearchesAndDeleteThem() {
-		Date cutoff = new Date(System.currentTimeMillis() - myDaoConfig.getExpireSearchResultsAfterMillis());
+		long start = System.currentTimeMillis();
+		long deadline = start + myDaoConfig.getExpireSearchResultsTimeBudgetMillis();
+		final Date cutoff = new Date(start - myDaoConfig.getExpireSearchResultsAfterMillis());
 		ourLog.debug("Searching for searches which are before {}", cutoff);
 
-		Collection<Search> toDelete = mySearchDao.findWhereCreatedBefore(cutoff);
-		if (!toDelete.isEmpty()) {
+		TransactionTemplate tt = new TransactionTemplate(myTransactionManager);
+		int searchCount = 0;
+		long resultCount = 0;
+		boolean outOfTime = false;
+		while (!outOfTime) {
+			final List<Long> searchPids = tt.execute(new TransactionCallback<List<Long>>() {
+				@Override
+				public List<Long> doInTransaction(TransactionStatus theStatus) {
+					return mySearchDao.findPidsWhereCreatedBefore(cutoff, new PageRequest(0, SEARCH_BATCH_SIZE));
+				}
+			});
+			if (searchPids.isEmpty()) {
+				break;
+			}
 
-			for (final Search next : toDelete) {
-				deleteSearch(next);
+			int deletedResults;
+			do {
+				deletedResults = tt.execute(new TransactionCallback<Integer>() {
+					@Override
+					public Integer doInTransaction(TransactionStatus theStatus) {
+						return deleteResultBatch(searchPids);
+					}
+				});
+				resultCount += deletedResults;
+				outOfTime = System.currentTimeMillis() >= deadline;
+			} while (deletedResults == RESULT_BATCH_SIZE && !outOfTime);
+
+			if (deletedResults == RESULT_BATCH_SIZE) {
+				// Ran out of time before all of the results were deleted
+				break;
 			}
 
-			ourLog.info("Deleted {} searches, {} remaining", toDelete.size(), mySearchDao.count());
+			tt.execute(new TransactionCallbackWithoutResult() {
+				@Override
+				protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+					mySearchIncludeDao.deleteForSearches(searchPids);
+					mySearchDao.deleteByPids(searchPids);
+				}
+			});
+			searchCount += searchPids.size();
+			outOfTime = System.currentTimeMillis() >= deadline;
+		}
+
+		if (searchCount > 0 || resultCount > 0) {
+			long elapsed = Math.max(1, System.currentTimeMillis() - start);
+			long rowsPerSecond = (searchCount + resultCount) * DateUtils.MILLIS_PER_SECOND / elapsed;
+			ourLog.info("Deleted {} searches and {} search results in {}ms ({} rows/sec){}", new Object[] { searchCount, resultCount, elapsed, rowsPerSecond, outOfTime ? ", more remain" : "" });
+		}
+
+		if (!outOfTime) {
+			myValueSetMembershipSvc.deleteSupersededExpansions(cutoff);
 		}
 	}
 
-	protected void deleteSearch(final Search next) {
-		TransactionTemplate tt = new TransactionTemplate(myTransactionManager);
-		tt.execute(new TransactionCallbackWithoutResult() {
-			@Override
-			protected void doInTransactionWithoutResult(TransactionStatus theArg0) {
-				Search searchToDelete = mySearchDao.findOne(next.getId());
-				ourLog.info("Expiring stale search {} / {}", searchToDelete.getId(), searchToDelete.getUuid());
-				mySearchIncludeDao.deleteForSearch(searchToDelete.getId());
-				mySearchResultDao.deleteForSearch(searchToDelete.getId());
-				mySearchDao.delete(searchToDelete);
-			}
-		});
+	/**
+	 * Deletes up to {@link #RESULT_BATCH_SIZE} results belonging to the given searches
+	 * 
+	 * @return The number of results deleted
+	 */
+	private int deleteResultBatch(List<Long> theSearchPids) {
+		List<Long> lastPid = mySearchResultDao.findPidsForSearches(theSearchPids, new PageRequest(RESULT_BATCH_SIZE - 1, 1));
+		if (lastPid.isEmpty()) {
+			return mySearchResultDao.deleteForSearches(theSearchPids);
+		}
+		return mySearchResultDao.deleteForSearchesUpTo(theSearchPids, lastPid.get(0));
 	}
 
 }
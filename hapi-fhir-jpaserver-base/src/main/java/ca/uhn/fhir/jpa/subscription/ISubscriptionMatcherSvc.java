@@ -0,0 +1,59 @@
+package ca.uhn.fhir.jpa.subscription;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import ca.uhn.fhir.jpa.dao.IDao;
+import ca.uhn.fhir.jpa.entity.ResourceTable;
+
+public interface ISubscriptionMatcherSvc {
+
+	/**
+	 * Discards the cached subscription criteria. This must be called whenever a
+	 * subscription is created, updated or deleted.
+	 */
+	void clearSubscriptionCache();
+
+	/**
+	 * Checks a resource which has just been written and indexed against the criteria of
+	 * all active subscriptions, and flags it for delivery to each subscription it matches.
+	 * 
+	 * @param theCallingDao
+	 *           The DAO for the resource type being written
+	 * @param theEntity
+	 *           The entity, with its search indexes populated
+	 * @return The number of subscriptions which matched
+	 */
+	int flagMatchingSubscriptions(IDao theCallingDao, ResourceTable theEntity);
+
+	/**
+	 * Returns <code>true</code> if the given subscription is active and its criteria are
+	 * evaluated by {@link #flagMatchingSubscriptions(IDao, ResourceTable)} as resources
+	 * are written. Subscriptions for which this returns <code>false</code> must still be
+	 * polled.
+	 * 
+	 * @param theCallingDao
+	 *           The subscription DAO
+	 * @param theSubscriptionTablePid
+	 *           The PID of the subscription's {@link ca.uhn.fhir.jpa.entity.SubscriptionTable} row
+	 */
+	boolean isMatchedOnWrite(IDao theCallingDao, Long theSubscriptionTablePid);
+
+}
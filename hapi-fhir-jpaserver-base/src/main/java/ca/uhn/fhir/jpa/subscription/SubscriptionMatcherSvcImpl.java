@@ -0,0 +1,570 @@
+package ca.uhn.fhir.jpa.subscription;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+
+import org.apache.commons.lang3.ObjectUtils;
+import org.apache.commons.lang3.time.DateUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.jpa.dao.BaseHapiFhirDao;
+import ca.uhn.fhir.jpa.dao.IDao;
+import ca.uhn.fhir.jpa.dao.SearchBuilder;
+import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.jpa.dao.data.ISubscriptionFlaggedResourceDataDao;
+import ca.uhn.fhir.jpa.dao.data.ISubscriptionTableDao;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamDate;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamNumber;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamQuantity;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamString;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamToken;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamUri;
+import ca.uhn.fhir.jpa.entity.ResourceLink;
+import ca.uhn.fhir.jpa.entity.ResourceTable;
+import ca.uhn.fhir.jpa.entity.SubscriptionFlaggedResource;
+import ca.uhn.fhir.jpa.entity.SubscriptionTable;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.model.base.composite.BaseQuantityDt;
+import ca.uhn.fhir.model.dstu.resource.BaseResource;
+import ca.uhn.fhir.model.dstu2.valueset.SubscriptionStatusEnum;
+import ca.uhn.fhir.model.primitive.IdDt;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.param.NumberParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import ca.uhn.fhir.rest.param.QuantityParam;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.param.UriParam;
+
+/**
+ * Matches newly written resources against subscription criteria using the search
+ * index rows which were just extracted for the resource, instead of searching the
+ * database for each subscription.
+ * <p>
+ * The active subscriptions and their parsed criteria are cached, and the cache is
+ * cleared whenever a subscription is written (and at least once a minute, so that
+ * subscriptions written by other servers sharing the database are picked up). Writing
+ * a resource therefore doesn't query the database unless the cache needs to be
+ * reloaded.
+ * </p>
+ * <p>
+ * Criteria which can't be evaluated this way (e.g. chained references, modifiers
+ * or <code>_lastUpdated</code>) are never evaluated as resources are written. Those
+ * subscriptions are left to the polling task instead (see
+ * {@link #isMatchedOnWrite(IDao, Long)}).
+ * </p>
+ */
+public class SubscriptionMatcherSvcImpl implements ISubscriptionMatcherSvc {
+	private static final long MAX_CACHE_AGE_MILLIS = DateUtils.MILLIS_PER_MINUTE;
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SubscriptionMatcherSvcImpl.class);
+	private static final EnumSet<ParamPrefixEnum> SUPPORTED_NUMERIC_PREFIXES = EnumSet.of(ParamPrefixEnum.GREATERTHAN, ParamPrefixEnum.GREATERTHAN_OR_EQUALS, ParamPrefixEnum.LESSTHAN, ParamPrefixEnum.LESSTHAN_OR_EQUALS, ParamPrefixEnum.APPROXIMATE, ParamPrefixEnum.EQUAL, ParamPrefixEnum.NOT_EQUAL);
+
+	private volatile ActiveSubscriptions myActiveSubscriptions;
+
+	private long myCacheGeneration;
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	@Autowired
+	private ISubscriptionFlaggedResourceDataDao mySubscriptionFlaggedResourceDataDao;
+
+	@Autowired
+	private ISubscriptionTableDao mySubscriptionTableDao;
+
+	@Override
+	public void clearSubscriptionCache() {
+		invalidateCache();
+
+		/*
+		 * A concurrent write could reload the cache before the subscription change
+		 * is committed, so clear it again once it has been
+		 */
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int theStatus) {
+					invalidateCache();
+				}
+			});
+		}
+	}
+
+	@Override
+	public int flagMatchingSubscriptions(IDao theCallingDao, ResourceTable theEntity) {
+		List<ParsedCriteria> subscriptions = getActiveSubscriptions(theCallingDao).myCriteria;
+		if (subscriptions.isEmpty()) {
+			return 0;
+		}
+
+		List<SubscriptionFlaggedResource> flags = new ArrayList<SubscriptionFlaggedResource>();
+		for (ParsedCriteria nextCriteria : subscriptions) {
+			if (!nextCriteria.myMatchInMemory || !nextCriteria.myResourceType.equals(theEntity.getResourceType())) {
+				continue;
+			}
+			if (!matches(theCallingDao, nextCriteria, theEntity)) {
+				continue;
+			}
+
+			ourLog.info("Resource {} matches subscription {}", theEntity.getIdDt().toUnqualified(), nextCriteria.mySubscriptionId);
+
+			SubscriptionFlaggedResource nextFlag = new SubscriptionFlaggedResource();
+			nextFlag.setResource(theEntity);
+			nextFlag.setSubscription(myEntityManager.getReference(SubscriptionTable.class, nextCriteria.mySubscriptionTablePid));
+			nextFlag.setVersion(theEntity.getVersion());
+			flags.add(nextFlag);
+		}
+
+		if (!flags.isEmpty()) {
+			mySubscriptionFlaggedResourceDataDao.save(flags);
+		}
+		return flags.size();
+	}
+
+	private ActiveSubscriptions getActiveSubscriptions(IDao theCallingDao) {
+		ActiveSubscriptions retVal = myActiveSubscriptions;
+		if (retVal != null && System.currentTimeMillis() - retVal.myLoaded < MAX_CACHE_AGE_MILLIS) {
+			return retVal;
+		}
+
+		long generation;
+		synchronized (this) {
+			generation = myCacheGeneration;
+		}
+
+		List<ParsedCriteria> criteria = new ArrayList<ParsedCriteria>();
+		for (SubscriptionTable nextSubscription : mySubscriptionTableDao.findByStatus(SubscriptionStatusEnum.ACTIVE.getCode())) {
+			ParsedCriteria nextCriteria = parseCriteria(theCallingDao, nextSubscription);
+			if (nextCriteria != null) {
+				criteria.add(nextCriteria);
+			}
+		}
+		retVal = new ActiveSubscriptions(criteria);
+		ourLog.debug("Loaded {} active subscriptions", criteria.size());
+
+		synchronized (this) {
+			// Don't cache what we loaded if a subscription was written in the meantime
+			if (myCacheGeneration == generation) {
+				myActiveSubscriptions = retVal;
+			}
+		}
+		return retVal;
+	}
+
+	private synchronized void invalidateCache() {
+		myCacheGeneration++;
+		myActiveSubscriptions = null;
+	}
+
+	@Override
+	public boolean isMatchedOnWrite(IDao theCallingDao, Long theSubscriptionTablePid) {
+		ParsedCriteria criteria = getActiveSubscriptions(theCallingDao).myCriteriaByPid.get(theSubscriptionTablePid);
+		return criteria != null && criteria.myMatchInMemory;
+	}
+
+	private ParsedCriteria parseCriteria(IDao theCallingDao, SubscriptionTable theSubscription) {
+		ResourceTable subscriptionEntity = theSubscription.getSubscriptionResource();
+		FhirContext context = theCallingDao.getContext();
+		IBaseResource subscription = theCallingDao.toResource(subscriptionEntity, false);
+		@SuppressWarnings("rawtypes")
+		List<IPrimitiveType> criteria = context.newTerser().getValues(subscription, "Subscription.criteria", IPrimitiveType.class);
+		String criteriaString = criteria.isEmpty() ? null : criteria.get(0).getValueAsString();
+		if (isBlank(criteriaString) || criteriaString.indexOf('?') < 1) {
+			return null;
+		}
+
+		String resourceType = criteriaString.substring(0, criteriaString.indexOf('?'));
+		ParsedCriteria retVal;
+		try {
+			RuntimeResourceDefinition resourceDef = context.getResourceDefinition(resourceType);
+			SearchParameterMap params = BaseHapiFhirDao.translateMatchUrl(theCallingDao, context, criteriaString, resourceDef);
+			retVal = new ParsedCriteria(theSubscription.getId(), subscriptionEntity.getIdDt().toUnqualifiedVersionless(), resourceType, params);
+		} catch (Exception e) {
+			ourLog.warn("Unable to parse criteria for subscription {}: {}", theSubscription.getId(), e.toString());
+			return null;
+		}
+
+		/*
+		 * Work out once whether each parameter can be evaluated in memory
+		 */
+		boolean matchInMemory = params.getLastUpdated() == null;
+		RuntimeResourceDefinition resourceDef = context.getResourceDefinition(resourceType);
+		for (Entry<String, List<List<? extends IQueryParameterType>>> nextParam : params.entrySet()) {
+			String paramName = nextParam.getKey();
+			RuntimeSearchParam searchParam = theCallingDao.getSearchParamByName(resourceDef, paramName);
+			if (searchParam != null) {
+				retVal.mySearchParams.put(paramName, searchParam);
+			}
+			for (List<? extends IQueryParameterType> nextAnd : nextParam.getValue()) {
+				for (IQueryParameterType nextOr : nextAnd) {
+					if (!canMatchInMemory(paramName, searchParam, nextOr)) {
+						matchInMemory = false;
+					}
+				}
+			}
+		}
+		retVal.myMatchInMemory = matchInMemory;
+
+		if (!matchInMemory) {
+			ourLog.info("Criteria for subscription {} can't be matched in memory, it will be polled instead: {}", retVal.mySubscriptionId, criteriaString);
+		}
+		return retVal;
+	}
+
+	private boolean matches(IDao theCallingDao, ParsedCriteria theCriteria, ResourceTable theEntity) {
+		for (Entry<String, List<List<? extends IQueryParameterType>>> nextParam : theCriteria.myParams.entrySet()) {
+			String paramName = nextParam.getKey();
+			RuntimeSearchParam searchParam = theCriteria.mySearchParams.get(paramName);
+			for (List<? extends IQueryParameterType> nextAnd : nextParam.getValue()) {
+				boolean matched = false;
+				for (IQueryParameterType nextOr : nextAnd) {
+					if (matches(theCallingDao, paramName, searchParam, nextOr, theEntity)) {
+						matched = true;
+						break;
+					}
+				}
+				if (!matched) {
+					return false;
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Must only be called for parameters which {@link #canMatchInMemory(String, RuntimeSearchParam, IQueryParameterType)} accepts
+	 */
+	private boolean matches(IDao theCallingDao, String theParamName, RuntimeSearchParam theSearchParam, IQueryParameterType theParam, ResourceTable theEntity) {
+		if (BaseResource.SP_RES_ID.equals(theParamName)) {
+			String id = theParam.getValueAsQueryToken(theCallingDao.getContext());
+			return theEntity.getIdDt().getIdPart().equals(id);
+		}
+
+		switch (theSearchParam.getParamType()) {
+		case TOKEN: {
+			String system = ((TokenParam) theParam).getSystem();
+			String value = ((TokenParam) theParam).getValue();
+			for (ResourceIndexedSearchParamToken next : theEntity.getParamsToken()) {
+				if (!theParamName.equals(next.getParamName())) {
+					continue;
+				}
+				if (isNotBlank(value) && !value.equals(next.getValue())) {
+					continue;
+				}
+				if (system == null || (system.isEmpty() && isBlank(next.getSystem())) || system.equals(next.getSystem())) {
+					return true;
+				}
+			}
+			return false;
+		}
+		case STRING: {
+			StringParam string = (StringParam) theParam;
+			String normalized = BaseHapiFhirDao.normalizeString(string.getValue());
+			for (ResourceIndexedSearchParamString next : theEntity.getParamsString()) {
+				if (!theParamName.equals(next.getParamName())) {
+					continue;
+				}
+				if (string.isExact()) {
+					if (string.getValue().equals(next.getValueExact())) {
+						return true;
+					}
+				} else if (next.getValueNormalized() != null && next.getValueNormalized().startsWith(normalized)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		case URI: {
+			String uri = ((UriParam) theParam).getValue();
+			for (ResourceIndexedSearchParamUri next : theEntity.getParamsUri()) {
+				if (theParamName.equals(next.getParamName()) && uri.equals(next.getUri())) {
+					return true;
+				}
+			}
+			return false;
+		}
+		case REFERENCE: {
+			ReferenceParam reference = (ReferenceParam) theParam;
+			List<String> paths = theSearchParam.getPathsSplit();
+			for (ResourceLink next : theEntity.getResourceLinks()) {
+				if (!paths.contains(next.getSourcePath()) || next.getTargetResource() == null) {
+					continue;
+				}
+				IdDt targetId = next.getTargetResource().getIdDt();
+				if (reference.hasResourceType() && !reference.getResourceType().equals(targetId.getResourceType())) {
+					continue;
+				}
+				if (reference.getIdPart().equals(targetId.getIdPart())) {
+					return true;
+				}
+			}
+			return false;
+		}
+		case DATE: {
+			DateRangeParam range = theParam instanceof DateParam ? new DateRangeParam((DateParam) theParam) : (DateRangeParam) theParam;
+			for (ResourceIndexedSearchParamDate next : theEntity.getParamsDate()) {
+				if (theParamName.equals(next.getParamName()) && matchesDateRange(range, next.getValueLow(), next.getValueHigh())) {
+					return true;
+				}
+			}
+			return false;
+		}
+		case NUMBER: {
+			NumberParam number = (NumberParam) theParam;
+			ParamPrefixEnum prefix = ObjectUtils.defaultIfNull(number.getPrefix(), ParamPrefixEnum.EQUAL);
+			for (ResourceIndexedSearchParamNumber next : theEntity.getParamsNumber()) {
+				if (theParamName.equals(next.getParamName()) && matchesNumber(prefix, number.getValue(), next.getValue())) {
+					return true;
+				}
+			}
+			return false;
+		}
+		case QUANTITY: {
+			QuantityCriterion quantity = QuantityCriterion.fromParam(theParam);
+			for (ResourceIndexedSearchParamQuantity next : theEntity.getParamsQuantity()) {
+				if (!theParamName.equals(next.getParamName())) {
+					continue;
+				}
+				if (isNotBlank(quantity.mySystem) && !quantity.mySystem.equals(next.getSystem())) {
+					continue;
+				}
+				if (isNotBlank(quantity.myUnits) && !quantity.myUnits.equals(next.getUnits())) {
+					continue;
+				}
+				if (matchesNumber(quantity.myPrefix, quantity.myValue, next.getValue())) {
+					return true;
+				}
+			}
+			return false;
+		}
+		default:
+			throw new IllegalStateException("Can not match parameter of type " + theSearchParam.getParamType() + " in memory");
+		}
+	}
+
+	private static boolean canMatchInMemory(String theParamName, RuntimeSearchParam theSearchParam, IQueryParameterType theParam) {
+		if (theParam.getMissing() != null) {
+			return false;
+		}
+		if (BaseResource.SP_RES_ID.equals(theParamName)) {
+			return true;
+		}
+		if (theSearchParam == null) {
+			return false;
+		}
+
+		switch (theSearchParam.getParamType()) {
+		case TOKEN:
+			return theParam instanceof TokenParam && ((TokenParam) theParam).getModifier() == null;
+		case STRING:
+			return theParam instanceof StringParam && !((StringParam) theParam).isContains();
+		case URI:
+			return theParam instanceof UriParam && ((UriParam) theParam).getQualifier() == null;
+		case REFERENCE: {
+			if (!(theParam instanceof ReferenceParam)) {
+				return false;
+			}
+			ReferenceParam reference = (ReferenceParam) theParam;
+			return isBlank(reference.getChain()) && isBlank(reference.getBaseUrl()) && isNotBlank(reference.getIdPart());
+		}
+		case DATE:
+			if (theParam instanceof DateParam) {
+				return !((DateParam) theParam).isEmpty();
+			}
+			if (theParam instanceof DateRangeParam) {
+				return !((DateRangeParam) theParam).isEmpty();
+			}
+			return false;
+		case NUMBER: {
+			if (!(theParam instanceof NumberParam) || ((NumberParam) theParam).getValue() == null) {
+				return false;
+			}
+			ParamPrefixEnum prefix = ObjectUtils.defaultIfNull(((NumberParam) theParam).getPrefix(), ParamPrefixEnum.EQUAL);
+			return SUPPORTED_NUMERIC_PREFIXES.contains(prefix);
+		}
+		case QUANTITY: {
+			QuantityCriterion quantity = QuantityCriterion.fromParam(theParam);
+			return quantity != null && quantity.myValue != null && SUPPORTED_NUMERIC_PREFIXES.contains(quantity.myPrefix);
+		}
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * This mirrors the predicate which the search builder uses for date parameters
+	 */
+	private static boolean matchesDateRange(DateRangeParam theRange, Date theValueLow, Date theValueHigh) {
+		Date lowerBound = theRange.getLowerBoundAsInstant();
+		if (lowerBound != null) {
+			boolean lowAfter = isOnOrAfter(theValueLow, lowerBound);
+			boolean highAfter = isOnOrAfter(theValueHigh, lowerBound);
+			ParamPrefixEnum prefix = theRange.getLowerBound().getPrefix();
+			boolean matched;
+			if (prefix == ParamPrefixEnum.STARTS_AFTER || prefix == ParamPrefixEnum.EQUAL) {
+				matched = lowAfter;
+			} else {
+				matched = lowAfter || highAfter;
+			}
+			if (!matched) {
+				return false;
+			}
+		}
+
+		Date upperBound = theRange.getUpperBoundAsInstant();
+		if (upperBound != null) {
+			boolean lowBefore = isOnOrAfter(upperBound, theValueLow);
+			boolean highBefore = isOnOrAfter(upperBound, theValueHigh);
+			ParamPrefixEnum prefix = theRange.getUpperBound().getPrefix();
+			boolean matched;
+			if (prefix == ParamPrefixEnum.ENDS_BEFORE || prefix == ParamPrefixEnum.EQUAL) {
+				matched = highBefore;
+			} else {
+				matched = lowBefore || highBefore;
+			}
+			if (!matched) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * This mirrors the predicate which the search builder uses for number and quantity parameters
+	 */
+	private static boolean matchesNumber(ParamPrefixEnum thePrefix, BigDecimal theValue, BigDecimal theIndexedValue) {
+		if (theIndexedValue == null) {
+			return false;
+		}
+		switch (thePrefix) {
+		case GREATERTHAN:
+			return theIndexedValue.compareTo(theValue) > 0;
+		case GREATERTHAN_OR_EQUALS:
+			return theIndexedValue.compareTo(theValue) >= 0;
+		case LESSTHAN:
+			return theIndexedValue.compareTo(theValue) < 0;
+		case LESSTHAN_OR_EQUALS:
+			return theIndexedValue.compareTo(theValue) <= 0;
+		case APPROXIMATE:
+		case EQUAL:
+		case NOT_EQUAL:
+			BigDecimal mul = SearchBuilder.calculateFuzzAmount(thePrefix, theValue);
+			BigDecimal low = theValue.subtract(mul, MathContext.DECIMAL64);
+			BigDecimal high = theValue.add(mul, MathContext.DECIMAL64);
+			boolean inRange = theIndexedValue.compareTo(low) >= 0 && theIndexedValue.compareTo(high) <= 0;
+			return thePrefix == ParamPrefixEnum.NOT_EQUAL ? !inRange : inRange;
+		default:
+			return false;
+		}
+	}
+
+	private static boolean isOnOrAfter(Date theDate, Date theOther) {
+		return theDate != null && theOther != null && theDate.getTime() >= theOther.getTime();
+	}
+
+	private static class ActiveSubscriptions {
+		private final List<ParsedCriteria> myCriteria;
+		private final Map<Long, ParsedCriteria> myCriteriaByPid;
+		private final long myLoaded = System.currentTimeMillis();
+
+		ActiveSubscriptions(List<ParsedCriteria> theCriteria) {
+			myCriteria = Collections.unmodifiableList(theCriteria);
+			myCriteriaByPid = new HashMap<Long, ParsedCriteria>();
+			for (ParsedCriteria next : theCriteria) {
+				myCriteriaByPid.put(next.mySubscriptionTablePid, next);
+			}
+		}
+	}
+
+	private static class ParsedCriteria {
+		private boolean myMatchInMemory;
+		private final SearchParameterMap myParams;
+		private final String myResourceType;
+		private final Map<String, RuntimeSearchParam> mySearchParams = new HashMap<String, RuntimeSearchParam>();
+		private final IdDt mySubscriptionId;
+		private final Long mySubscriptionTablePid;
+
+		ParsedCriteria(Long theSubscriptionTablePid, IdDt theSubscriptionId, String theResourceType, SearchParameterMap theParams) {
+			mySubscriptionTablePid = theSubscriptionTablePid;
+			mySubscriptionId = theSubscriptionId;
+			myResourceType = theResourceType;
+			myParams = theParams;
+		}
+	}
+
+	private static class QuantityCriterion {
+		private final ParamPrefixEnum myPrefix;
+		private final String mySystem;
+		private final String myUnits;
+		private final BigDecimal myValue;
+
+		private QuantityCriterion(String theSystem, String theUnits, ParamPrefixEnum thePrefix, BigDecimal theValue) {
+			mySystem = theSystem;
+			myUnits = theUnits;
+			myPrefix = ObjectUtils.defaultIfNull(thePrefix, ParamPrefixEnum.EQUAL);
+			myValue = theValue;
+		}
+
+		/**
+		 * Returns <code>null</code> if the parameter isn't a quantity
+		 */
+		static QuantityCriterion fromParam(IQueryParameterType theParam) {
+			if (theParam instanceof BaseQuantityDt) {
+				BaseQuantityDt param = (BaseQuantityDt) theParam;
+				ParamPrefixEnum prefix = ParamPrefixEnum.forDstu1Value(param.getComparatorElement().getValueAsString());
+				return new QuantityCriterion(param.getSystemElement().getValueAsString(), param.getUnitsElement().getValueAsString(), prefix, param.getValueElement().getValue());
+			} else if (theParam instanceof QuantityParam) {
+				QuantityParam param = (QuantityParam) theParam;
+				return new QuantityCriterion(param.getSystem(), param.getUnits(), param.getPrefix(), param.getValue());
+			}
+			return null;
+		}
+	}
+
+}
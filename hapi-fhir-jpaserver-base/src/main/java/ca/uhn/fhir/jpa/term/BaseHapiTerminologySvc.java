@@ -26,6 +26,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -37,6 +38,7 @@ import javax.persistence.PersistenceContextType;
 
 import org.apache.commons.lang3.Validate;
 import org.apache.commons.lang3.time.DateUtils;
+import org.hibernate.search.jpa.Search;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
@@ -58,11 +60,13 @@ import ca.uhn.fhir.jpa.dao.BaseHapiFhirDao;
 import ca.uhn.fhir.jpa.dao.DaoConfig;
 import ca.uhn.fhir.jpa.dao.data.ITermCodeSystemDao;
 import ca.uhn.fhir.jpa.dao.data.ITermCodeSystemVersionDao;
+import ca.uhn.fhir.jpa.dao.data.ITermConceptClosureDao;
 import ca.uhn.fhir.jpa.dao.data.ITermConceptDao;
 import ca.uhn.fhir.jpa.dao.data.ITermConceptParentChildLinkDao;
 import ca.uhn.fhir.jpa.entity.TermCodeSystem;
 import ca.uhn.fhir.jpa.entity.TermCodeSystemVersion;
 import ca.uhn.fhir.jpa.entity.TermConcept;
+import ca.uhn.fhir.jpa.entity.TermConceptClosure;
 import ca.uhn.fhir.jpa.entity.TermConceptParentChildLink;
 import ca.uhn.fhir.jpa.entity.TermConceptParentChildLink.RelationshipTypeEnum;
 import ca.uhn.fhir.jpa.util.StopWatch;
@@ -72,6 +76,12 @@ import ca.uhn.fhir.util.ObjectUtil;
 import ca.uhn.fhir.util.ValidateUtil;
 
 public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
+	/**
+	 * Deferred saves are flushed (and the persistence context cleared) after this many
+	 * concepts or relationships, so that large batches are written using JDBC batches and
+	 * don't build up an ever growing persistence context
+	 */
+	private static final int DEFERRED_SAVE_FLUSH_INTERVAL = 500;
 	private static boolean ourForceSaveDeferredAlwaysForUnitTest;
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BaseHapiTerminologySvc.class);
 	private static final Object PLACEHOLDER_OBJECT = new Object();
@@ -82,21 +92,28 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 	@Autowired
 	private ITermCodeSystemVersionDao myCodeSystemVersionDao;
 
+	@Autowired
+	private ITermConceptClosureDao myConceptClosureDao;
+
 	@Autowired
 	protected ITermConceptDao myConceptDao;
 
-	private List<TermConceptParentChildLink> myConceptLinksToSaveLater = new ArrayList<TermConceptParentChildLink>();
+	private List<TermConceptParentChildLink> myConceptLinksToSaveLater = new LinkedList<TermConceptParentChildLink>();
 
 	@Autowired
 	private ITermConceptParentChildLinkDao myConceptParentChildLinkDao;
 
-	private List<TermConcept> myConceptsToSaveLater = new ArrayList<TermConcept>();
+	private List<TermConcept> myConceptsToSaveLater = new LinkedList<TermConcept>();
 
 	@Autowired
 	protected FhirContext myContext;
 
 	@Autowired
-	private DaoConfig myDaoConfig;
+	protected DaoConfig myDaoConfig;
+
+	private int myDeferredConceptsSaved;
+	private int myDeferredLinksSaved;
+	private StopWatch myDeferredSaveStopwatch;
 
 	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
 	protected EntityManager myEntityManager;
@@ -111,8 +128,7 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		boolean retVal = theSetToPopulate.add(theConcept);
 		if (retVal) {
 			if (theSetToPopulate.size() >= myDaoConfig.getMaximumExpansionSize()) {
-				String msg = myContext.getLocalizer().getMessage(BaseHapiTerminologySvc.class, "expansionTooLarge", myDaoConfig.getMaximumExpansionSize());
-				throw new InvalidRequestException(msg);
+				throw newExpansionTooLargeException();
 			}
 		}
 		return retVal;
@@ -128,6 +144,7 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 				retVal += ensureParentsSaved(nextParent.getParents());
 				if (nextParent.getId() == null) {
 					myConceptDao.saveAndFlush(nextParent);
+					saveConceptClosure(nextParent);
 					retVal++;
 					ourLog.debug("Saved parent code {} and got id {}", nextParent.getCode(), nextParent.getId());
 				}
@@ -185,7 +202,21 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		Set<TermConcept> retVal = new HashSet<TermConcept>();
 		retVal.add(concept);
 
-		fetchParents(concept, retVal);
+		if (concept.getCodeSystem().isClosureBuilt()) {
+			/*
+			 * A full page means there may be more rows, so the expansion is refused
+			 * rather than silently cut off
+			 */
+			List<TermConcept> ancestors = myConceptClosureDao.findAncestors(concept.getId(), new PageRequest(0, myDaoConfig.getMaximumExpansionSize()));
+			if (retVal.size() + ancestors.size() >= myDaoConfig.getMaximumExpansionSize()) {
+				throw newExpansionTooLargeException();
+			}
+			for (TermConcept next : ancestors) {
+				addToSet(retVal, next);
+			}
+		} else {
+			fetchParents(concept, retVal);
+		}
 
 		ourLog.info("Fetched {} codes above code {} in {}ms", new Object[] { retVal.size(), theCode, stopwatch.elapsed(TimeUnit.MILLISECONDS) });
 		return retVal;
@@ -226,7 +257,21 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		Set<TermConcept> retVal = new HashSet<TermConcept>();
 		retVal.add(concept);
 
-		fetchChildren(concept, retVal);
+		if (concept.getCodeSystem().isClosureBuilt()) {
+			/*
+			 * A full page means there may be more rows, so the expansion is refused
+			 * rather than silently cut off
+			 */
+			List<TermConcept> descendants = myConceptClosureDao.findDescendants(concept.getId(), new PageRequest(0, myDaoConfig.getMaximumExpansionSize()));
+			if (retVal.size() + descendants.size() >= myDaoConfig.getMaximumExpansionSize()) {
+				throw newExpansionTooLargeException();
+			}
+			for (TermConcept next : descendants) {
+				addToSet(retVal, next);
+			}
+		} else {
+			fetchChildren(concept, retVal);
+		}
 
 		ourLog.info("Fetched {} codes below code {} in {}ms", new Object[] { retVal.size(), theCode, stopwatch.elapsed(TimeUnit.MILLISECONDS) });
 		return retVal;
@@ -267,6 +312,31 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		return cs;
 	}
 
+	private void flushAndClearDeferredSaves() {
+		myEntityManager.flush();
+		Search.getFullTextEntityManager(myEntityManager).flushToIndexes();
+		myEntityManager.clear();
+	}
+
+	private int getDeferredSaveBatchSize() {
+		Integer retVal = myDaoConfig.getDeferredConceptSaveBatchSize();
+		if (retVal == null) {
+			retVal = myDaoConfig.getDeferIndexingForCodesystemsOfSize();
+		}
+		return retVal;
+	}
+
+	@Override
+	public boolean isDeferredSavePending() {
+		// Not synchronized, since saveDeferred() holds the lock for a long time
+		return !myConceptsToSaveLater.isEmpty() || !myConceptLinksToSaveLater.isEmpty();
+	}
+
+	private InvalidRequestException newExpansionTooLargeException() {
+		String msg = myContext.getLocalizer().getMessage(BaseHapiTerminologySvc.class, "expansionTooLarge", myDaoConfig.getMaximumExpansionSize());
+		return new InvalidRequestException(msg);
+	}
+
 	private void persistChildren(TermConcept theConcept, TermCodeSystemVersion theCodeSystem, IdentityHashMap<TermConcept, Object> theConceptsStack, int theTotalConcepts) {
 		if (theConceptsStack.put(theConcept, PLACEHOLDER_OBJECT) != null) {
 			return;
@@ -322,7 +392,7 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		tt.execute(new TransactionCallbackWithoutResult() {
 			@Override
 			protected void doInTransactionWithoutResult(TransactionStatus theArg0) {
-				int maxResult = 1000;
+				int maxResult = myDaoConfig.getDeferredConceptSaveBatchSize() != null ? myDaoConfig.getDeferredConceptSaveBatchSize() : 1000;
 				Page<TermConcept> concepts = myConceptDao.findResourcesRequiringReindexing(new PageRequest(0, maxResult));
 				if (concepts.hasContent() == false) {
 					myNextReindexPass = System.currentTimeMillis() + DateUtils.MILLIS_PER_MINUTE;
@@ -341,9 +411,13 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 
 				for (TermConcept nextConcept : concepts) {
 					
-					StringBuilder parentsBuilder = new StringBuilder();
-					createParentsString(parentsBuilder, nextConcept.getId());
-					nextConcept.setParentPids(parentsBuilder.toString());
+					if (nextConcept.getCodeSystem().isClosureBuilt()) {
+						nextConcept.setParentPids(new HashSet<Long>(myConceptClosureDao.findAncestorPids(nextConcept.getId())));
+					} else {
+						StringBuilder parentsBuilder = new StringBuilder();
+						createParentsString(parentsBuilder, nextConcept.getId());
+						nextConcept.setParentPids(parentsBuilder.toString());
+					}
 					
 					saveConcept(nextConcept);
 					count++;
@@ -383,6 +457,14 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 	}
 
 	private int saveConcept(TermConcept theConcept) {
+		return saveConcept(theConcept, true);
+	}
+
+	/**
+	 * @param theIndex If <code>false</code>, a newly saved concept is left for the reindexing
+	 * process to add to the full-text index
+	 */
+	private int saveConcept(TermConcept theConcept, boolean theIndex) {
 		int retVal = 0;
 	
 		/*
@@ -394,15 +476,37 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		}
 		
 		if (theConcept.getId() == null || theConcept.getIndexStatus() == null) {
+			boolean isNew = theConcept.getId() == null;
 			retVal++;
-			theConcept.setIndexStatus(BaseHapiFhirDao.INDEX_STATUS_INDEXED);
+			theConcept.setIndexStatus(theIndex || !isNew ? BaseHapiFhirDao.INDEX_STATUS_INDEXED : null);
 			myConceptDao.save(theConcept);
+			if (isNew) {
+				saveConceptClosure(theConcept);
+			}
 		}
 		
 		ourLog.trace("Saved {} and got PID {}", theConcept.getCode(), theConcept.getId());
 		return retVal;
 	}
 	
+	/**
+	 * Stores a closure row for each ancestor of a newly saved concept. Since a concept's
+	 * parents are always saved before it is, the closure is complete as soon as all of
+	 * the concepts have been saved, even if some of the links are still deferred.
+	 */
+	private void saveConceptClosure(TermConcept theConcept) {
+		Set<Long> ancestorPids = theConcept.getAncestorPids();
+		if (ancestorPids.isEmpty()) {
+			return;
+		}
+
+		List<TermConceptClosure> rows = new ArrayList<TermConceptClosure>(ancestorPids.size());
+		for (Long nextAncestorPid : ancestorPids) {
+			rows.add(new TermConceptClosure(theConcept.getCodeSystem().getPid(), nextAncestorPid, theConcept.getId()));
+		}
+		myConceptClosureDao.save(rows);
+	}
+
 	private void saveConceptLink(TermConceptParentChildLink next) {
 		if (next.getId() == null) {
 			myConceptParentChildLinkDao.save(next);
@@ -420,43 +524,93 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 			return;
 		}
 		
+		if (myDeferredSaveStopwatch == null) {
+			myDeferredSaveStopwatch = new StopWatch();
+		}
+
+		int batchSize = getDeferredSaveBatchSize();
+		boolean index = !myDaoConfig.isDeferConceptFullTextIndexing();
 		int codeCount = 0, relCount = 0;
 		StopWatch stopwatch = new StopWatch();
 		
-		int count = Math.min(myDaoConfig.getDeferIndexingForCodesystemsOfSize(), myConceptsToSaveLater.size());
+		int count = Math.min(batchSize, myConceptsToSaveLater.size());
 		ourLog.info("Saving {} deferred concepts...", count);
+		int sinceFlush = 0;
 		while (codeCount < count && myConceptsToSaveLater.size() > 0) {
 			TermConcept next = myConceptsToSaveLater.remove(0);
-			codeCount += saveConcept(next);
+			codeCount += saveConcept(next, index);
+			if (++sinceFlush >= DEFERRED_SAVE_FLUSH_INTERVAL) {
+				flushAndClearDeferredSaves();
+				sinceFlush = 0;
+			}
 		}
 
 		if (codeCount > 0) {
-			ourLog.info("Saved {} deferred concepts ({} codes remain and {} relationships remain) in {}ms ({}ms / code)", new Object[] {codeCount, myConceptsToSaveLater.size(), myConceptLinksToSaveLater.size(), stopwatch.getMillis(), stopwatch.getMillisPerOperation(codeCount)});
+			myDeferredConceptsSaved += codeCount;
+			ourLog.info("Saved {} deferred concepts ({} codes remain and {} relationships remain) in {}ms ({} codes / sec)", new Object[] {codeCount, myConceptsToSaveLater.size(), myConceptLinksToSaveLater.size(), stopwatch.getMillis(), (int) stopwatch.getOperationsPerSecond(codeCount)});
 		}
 		
 		if (codeCount == 0) {
-			count = Math.min(myDaoConfig.getDeferIndexingForCodesystemsOfSize(), myConceptLinksToSaveLater.size());
+			count = Math.min(batchSize, myConceptLinksToSaveLater.size());
 			ourLog.info("Saving {} deferred concept relationships...", count);
-			while (relCount < count && myConceptLinksToSaveLater.size() > 0) {
-				TermConceptParentChildLink next = myConceptLinksToSaveLater.remove(0);
-				
-				if (myConceptDao.findOne(next.getChild().getId()) == null || myConceptDao.findOne(next.getParent().getId()) == null) {
-					ourLog.warn("Not inserting link from child {} to parent {} because it appears to have been deleted", next.getParent().getCode(), next.getChild().getCode());
-					continue;
+			while (count > 0) {
+				List<TermConceptParentChildLink> chunk = new ArrayList<TermConceptParentChildLink>();
+				while (chunk.size() < DEFERRED_SAVE_FLUSH_INTERVAL && count > 0) {
+					chunk.add(myConceptLinksToSaveLater.remove(0));
+					count--;
+				}
+				relCount += saveDeferredConceptLinks(chunk);
+				if (count > 0) {
+					flushAndClearDeferredSaves();
 				}
-				
-				saveConceptLink(next);
-				relCount++;
 			}
 		}
 		
 		if (relCount > 0) {
-			ourLog.info("Saved {} deferred relationships ({} remain) in {}ms ({}ms / code)", new Object[] {relCount, myConceptLinksToSaveLater.size(), stopwatch.getMillis(), stopwatch.getMillisPerOperation(codeCount)});
+			myDeferredLinksSaved += relCount;
+			ourLog.info("Saved {} deferred relationships ({} remain) in {}ms ({} relationships / sec)", new Object[] {relCount, myConceptLinksToSaveLater.size(), stopwatch.getMillis(), (int) stopwatch.getOperationsPerSecond(relCount)});
 		}
 		
 		if ((myConceptsToSaveLater.size() + myConceptLinksToSaveLater.size()) == 0) {
-			ourLog.info("All deferred concepts and relationships have now been synchronized to the database");
+			ourLog.info("All deferred concepts and relationships have now been synchronized to the database - Saved {} concepts and {} relationships in {}ms ({} codes / sec)", new Object[] {myDeferredConceptsSaved, myDeferredLinksSaved, myDeferredSaveStopwatch.getMillis(), (int) myDeferredSaveStopwatch.getOperationsPerSecond(myDeferredConceptsSaved)});
+			myDeferredSaveStopwatch = null;
+			myDeferredConceptsSaved = 0;
+			myDeferredLinksSaved = 0;
+			if (!index) {
+				// Start indexing the newly saved concepts straight away
+				myNextReindexPass = 0;
+			}
+		}
+	}
+
+	/**
+	 * Saves a chunk of deferred links, checking that the concepts at both ends still exist
+	 * (the code system may have been replaced since the links were queued) using a single
+	 * query for the whole chunk
+	 */
+	private int saveDeferredConceptLinks(List<TermConceptParentChildLink> theLinks) {
+		Set<Long> pids = new HashSet<Long>();
+		for (TermConceptParentChildLink next : theLinks) {
+			pids.add(next.getChild().getId());
+			pids.add(next.getParent().getId());
+		}
+		pids.remove(null);
+		Set<Long> existingPids = new HashSet<Long>();
+		if (!pids.isEmpty()) {
+			existingPids.addAll(myConceptDao.findExistingPids(pids));
 		}
+
+		int retVal = 0;
+		for (TermConceptParentChildLink next : theLinks) {
+			if (!existingPids.contains(next.getChild().getId()) || !existingPids.contains(next.getParent().getId())) {
+				ourLog.warn("Not inserting link from child {} to parent {} because it appears to have been deleted", next.getChild().getCode(), next.getParent().getCode());
+				continue;
+			}
+
+			saveConceptLink(next);
+			retVal++;
+		}
+		return retVal;
 	}
 	
 	@Override
@@ -482,12 +636,14 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		ourLog.info("Deleting old code system versions");
 		for (TermCodeSystemVersion next : existing) {
 			ourLog.info(" * Deleting code system version {}", next.getPid());
+			myConceptClosureDao.deleteByCodeSystemVersion(next.getPid());
 			myConceptParentChildLinkDao.deleteByCodeSystemVersion(next.getPid());
 			myConceptDao.deleteByCodeSystemVersion(next.getPid());
 		}
 
 		ourLog.info("Flushing...");
 		
+		myConceptClosureDao.flush();
 		myConceptParentChildLinkDao.flush();
 		myConceptDao.flush();
 
@@ -526,6 +682,7 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 
 		ourLog.info("Saving version containing {} concepts", totalCodeCount);
 
+		theCodeSystemVersion.setClosureBuilt(true);
 		TermCodeSystemVersion codeSystemVersion = myCodeSystemVersionDao.saveAndFlush(theCodeSystemVersion);
 
 		ourLog.info("Saving code system");
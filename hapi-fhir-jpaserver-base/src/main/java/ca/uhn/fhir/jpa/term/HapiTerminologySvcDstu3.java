@@ -74,6 +74,7 @@ import ca.uhn.fhir.util.CoverageIgnore;
 import ca.uhn.fhir.util.UrlUtil;
 
 public class HapiTerminologySvcDstu3 extends BaseHapiTerminologySvc implements IValidationSupport, IHapiTerminologySvcDstu3 {
+	private static final int EXPANSION_PAGE_SIZE = 1000;
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(HapiTerminologySvcDstu3.class);
 
 	@Autowired
@@ -248,20 +249,36 @@ public class HapiTerminologySvcDstu3 extends BaseHapiTerminologySvc implements I
 
 			Query luceneQuery = bool.createQuery();
 			FullTextQuery jpaQuery = em.createFullTextQuery(luceneQuery, TermConcept.class);
-			jpaQuery.setMaxResults(1000);
 
 			StopWatch sw = new StopWatch();
-			
-			@SuppressWarnings("unchecked")
-			List<TermConcept> result = jpaQuery.getResultList();
-			
-			ourLog.info("Expansion completed in {}ms", sw.getMillis());
-			
-			for (TermConcept nextConcept : result) {
-				addCodeIfNotAlreadyAdded(system, retVal, addedCodes, nextConcept);
+
+			/*
+			 * Load every match a page at a time instead of truncating the expansion, since
+			 * token searches using :in would otherwise silently miss codes
+			 */
+			int resultSize = jpaQuery.getResultSize();
+			if (resultSize > myDaoConfig.getMaximumExpansionSize()) {
+				String msg = myContext.getLocalizer().getMessage(BaseHapiTerminologySvc.class, "expansionTooLarge", myDaoConfig.getMaximumExpansionSize());
+				throw new InvalidRequestException(msg);
 			}
+			for (int fromIndex = 0; fromIndex < resultSize; fromIndex += EXPANSION_PAGE_SIZE) {
+				jpaQuery.setFirstResult(fromIndex);
+				jpaQuery.setMaxResults(EXPANSION_PAGE_SIZE);
+
+				@SuppressWarnings("unchecked")
+				List<TermConcept> result = jpaQuery.getResultList();
+				if (result.isEmpty()) {
+					break;
+				}
+
+				for (TermConcept nextConcept : result) {
+					addCodeIfNotAlreadyAdded(system, retVal, addedCodes, nextConcept);
+				}
+			}
+
+			ourLog.info("Expansion completed in {}ms", sw.getMillis());
 
-			retVal.setTotal(jpaQuery.getResultSize());
+			retVal.setTotal(resultSize);
 		}
 
 		if (!haveIncludeCriteria) {
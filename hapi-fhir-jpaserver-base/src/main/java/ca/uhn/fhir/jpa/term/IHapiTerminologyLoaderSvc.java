@@ -20,6 +20,7 @@ package ca.uhn.fhir.jpa.term;
  * #L%
  */
 
+import java.io.File;
 import java.util.List;
 
 import ca.uhn.fhir.rest.method.RequestDetails;
@@ -29,10 +30,39 @@ public interface IHapiTerminologyLoaderSvc {
 	String LOINC_URL = "http://loinc.org";
 	String SCT_URL = "http://snomed.info/sct";
 
+	/**
+	 * Loads LOINC from ZIP archives which are held in memory. Prefer
+	 * {@link #loadLoincFiles(List, RequestDetails)} where the archives are available as files.
+	 */
 	UploadStatistics loadLoinc(List<byte[]> theZipBytes, RequestDetails theRequestDetails);
 
+	/**
+	 * Loads LOINC from ZIP archives on disk. Each file in the archives is read once,
+	 * directly from the archive, so the archives are never held in memory.
+	 * <p>
+	 * The memory needed is that of the concept hierarchy being built (a few hundred
+	 * bytes per concept and relationship), which is released as the concepts are saved
+	 * to the database in batches of {@link ca.uhn.fhir.jpa.dao.DaoConfig#setDeferIndexingForCodesystemsOfSize(int)}
+	 * in the background. Progress (records processed, records per second and heap in
+	 * use) is logged for each file read.
+	 * </p>
+	 */
+	UploadStatistics loadLoincFiles(List<File> theZipFiles, RequestDetails theRequestDetails);
+
+	/**
+	 * Loads SNOMED CT from ZIP archives which are held in memory. Prefer
+	 * {@link #loadSnomedCtFiles(List, RequestDetails)} where the archives are available as files.
+	 */
 	UploadStatistics loadSnomedCt(List<byte[]> theZipBytes, RequestDetails theRequestDetails);
 
+	/**
+	 * Loads SNOMED CT (an RF2 "Full" release) from ZIP archives on disk. Memory use is
+	 * as described for {@link #loadLoincFiles(List, RequestDetails)}: for the
+	 * International release the heap must hold one concept per active concept ID (around
+	 * 300,000) along with its "is a" relationships, but not the release files themselves.
+	 */
+	UploadStatistics loadSnomedCtFiles(List<File> theZipFiles, RequestDetails theRequestDetails);
+
 	public static class UploadStatistics {
 		private final int myConceptCount;
 
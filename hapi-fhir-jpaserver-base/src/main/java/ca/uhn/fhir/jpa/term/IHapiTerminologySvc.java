@@ -48,6 +48,12 @@ public interface IHapiTerminologySvc {
 
 	List<TermConcept> findCodes(String theSystem);
 
+	/**
+	 * Returns <code>true</code> if concepts or relationships from a code system upload
+	 * are still waiting to be saved by {@link #saveDeferred()}
+	 */
+	boolean isDeferredSavePending();
+
 	void saveDeferred();
 
 	/**
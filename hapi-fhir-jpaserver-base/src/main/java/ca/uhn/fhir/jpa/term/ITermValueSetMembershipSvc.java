@@ -0,0 +1,60 @@
+package ca.uhn.fhir.jpa.term;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.util.Date;
+
+import ca.uhn.fhir.jpa.entity.TermValueSetExpansion;
+import ca.uhn.fhir.rest.param.TokenParamModifier;
+
+/**
+ * Stores the expansions of the token search modifiers <code>:in</code>, <code>:above</code>
+ * and <code>:below</code> as rows in a membership table, so that searches can join against
+ * them instead of listing every matching code in the query
+ * 
+ * @see ca.uhn.fhir.jpa.dao.DaoConfig#setStoreTokenModifierExpansions(boolean)
+ */
+public interface ITermValueSetMembershipSvc {
+
+	/**
+	 * Deletes the stored expansions which were superseded by a newer version of the same
+	 * expansion before the given time
+	 * 
+	 * @return The number of expansions deleted
+	 */
+	int deleteSupersededExpansions(Date theCutoff);
+
+	/**
+	 * Returns the stored expansion for the given modifier and token, storing it first if
+	 * there is no current one. Returns <code>null</code> if the token is too long to be
+	 * used as a key, in which case the caller should expand the codes itself.
+	 * 
+	 * @param theModifier
+	 *           {@link TokenParamModifier#IN}, {@link TokenParamModifier#ABOVE} or {@link TokenParamModifier#BELOW}
+	 * @param theSystem
+	 *           The code system (ignored for {@link TokenParamModifier#IN})
+	 * @param theCode
+	 *           The code, or the ValueSet URL for {@link TokenParamModifier#IN}
+	 */
+	TermValueSetExpansion getOrCreateExpansion(TokenParamModifier theModifier, String theSystem, String theCode);
+
+}
@@ -0,0 +1,293 @@
+package ca.uhn.fhir.jpa.term;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import static org.apache.commons.lang3.StringUtils.defaultString;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import ca.uhn.fhir.jpa.dao.data.IResourceHistoryTableDao;
+import ca.uhn.fhir.jpa.dao.data.IResourceIndexedSearchParamUriDao;
+import ca.uhn.fhir.jpa.dao.data.ITermCodeSystemDao;
+import ca.uhn.fhir.jpa.dao.data.ITermCodeSystemVersionDao;
+import ca.uhn.fhir.jpa.dao.data.ITermValueSetExpansionDao;
+import ca.uhn.fhir.jpa.dao.data.ITermValueSetMemberDao;
+import ca.uhn.fhir.jpa.entity.ResourceTable;
+import ca.uhn.fhir.jpa.entity.TermCodeSystem;
+import ca.uhn.fhir.jpa.entity.TermValueSetExpansion;
+import ca.uhn.fhir.jpa.entity.TermValueSetMember;
+import ca.uhn.fhir.jpa.util.StopWatch;
+import ca.uhn.fhir.rest.param.TokenParamModifier;
+
+/**
+ * Each expansion is keyed by the modifier and token, and by a version key which changes
+ * whenever the expansion might. When a stored expansion has a version key which can be
+ * computed without expanding the codes, it is reused without expanding them again:
+ * <ul>
+ * <li>For <code>:above</code> and <code>:below</code> on a code system which is stored in
+ * the terminology tables, the version key is the PID of the current code system version.</li>
+ * <li>For <code>:in</code> on a ValueSet resource stored in this server, the version key is
+ * the ValueSet's PID and version, along with the time of the last change to any ValueSet or
+ * CodeSystem resource and the PID of the newest code system version, since the ValueSet
+ * may include codes from any of these.</li>
+ * </ul>
+ * Otherwise (built-in ValueSets and code systems, and any expansion while concepts are
+ * still being saved) the codes are expanded each time and the version key is a hash of
+ * them, so that only the first search with a given expansion stores it.
+ * <p>
+ * Storing a new version of an expansion does not delete the older versions, as a search
+ * running at the same time may be joining against them. They are deleted by
+ * {@link #deleteSupersededExpansions(Date)} once the newer version is old enough that no
+ * search can still be using them.
+ * </p>
+ */
+public class TermValueSetMembershipSvcImpl implements ITermValueSetMembershipSvc {
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(TermValueSetMembershipSvcImpl.class);
+
+	static final int DELETE_BATCH_SIZE = 100;
+
+	private static final int SAVE_BATCH_SIZE = 1000;
+
+	/**
+	 * The ValueSet search parameter which holds its URL
+	 */
+	private static final String VALUESET_URL_PARAM = "url";
+
+	@Autowired
+	private ITermCodeSystemDao myCodeSystemDao;
+
+	@Autowired
+	private ITermCodeSystemVersionDao myCodeSystemVersionDao;
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	@Autowired
+	private ITermValueSetExpansionDao myExpansionDao;
+
+	@Autowired
+	private ITermValueSetMemberDao myMemberDao;
+
+	@Autowired
+	private IResourceHistoryTableDao myResourceHistoryTableDao;
+
+	@Autowired
+	private IResourceIndexedSearchParamUriDao myResourceIndexedSearchParamUriDao;
+
+	@Autowired
+	private PlatformTransactionManager myPlatformTransactionManager;
+
+	@Autowired
+	private IHapiTerminologySvc myTerminologySvc;
+
+	@Override
+	public int deleteSupersededExpansions(final Date theCutoff) {
+		TransactionTemplate txTemplate = newTransactionTemplate();
+		int retVal = 0;
+		while (true) {
+			List<Long> pids = txTemplate.execute(new TransactionCallback<List<Long>>() {
+				@Override
+				public List<Long> doInTransaction(TransactionStatus theStatus) {
+					return myExpansionDao.findPidsSupersededBefore(theCutoff, new PageRequest(0, DELETE_BATCH_SIZE));
+				}
+			});
+
+			// Each expansion is deleted in its own transaction, as it may have many members
+			for (final Long next : pids) {
+				txTemplate.execute(new TransactionCallbackWithoutResult() {
+					@Override
+					protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+						myMemberDao.deleteForExpansion(next);
+						myExpansionDao.delete(next);
+					}
+				});
+			}
+			retVal += pids.size();
+
+			if (pids.size() < DELETE_BATCH_SIZE) {
+				break;
+			}
+		}
+
+		if (retVal > 0) {
+			ourLog.info("Deleted {} superseded expansions", retVal);
+		}
+		return retVal;
+	}
+
+	private List<VersionIndependentConcept> expand(TokenParamModifier theModifier, String theSystem, String theCode) {
+		switch (theModifier) {
+		case IN:
+			return myTerminologySvc.expandValueSet(theCode);
+		case ABOVE:
+			return myTerminologySvc.findCodesAbove(theSystem, theCode);
+		case BELOW:
+			return myTerminologySvc.findCodesBelow(theSystem, theCode);
+		default:
+			throw new IllegalArgumentException("Can not expand modifier " + theModifier);
+		}
+	}
+
+	@Override
+	public TermValueSetExpansion getOrCreateExpansion(TokenParamModifier theModifier, String theSystem, String theCode) {
+		String key;
+		if (theModifier == TokenParamModifier.IN) {
+			key = theModifier.getValue() + " " + theCode;
+		} else {
+			key = theModifier.getValue() + " " + defaultString(theSystem) + "|" + theCode;
+		}
+		if (key.length() > TermValueSetExpansion.MAX_KEY_LENGTH) {
+			return null;
+		}
+
+		String versionKey = null;
+		if (!myTerminologySvc.isDeferredSavePending()) {
+			if (theModifier == TokenParamModifier.IN) {
+				versionKey = getValueSetVersionKey(theCode);
+			} else {
+				TermCodeSystem cs = myCodeSystemDao.findByCodeSystemUri(theSystem);
+				if (cs != null && cs.getCurrentVersion() != null) {
+					versionKey = "csv " + cs.getCurrentVersion().getPid();
+				}
+			}
+			if (versionKey != null) {
+				TermValueSetExpansion existing = myExpansionDao.findByKeyAndVersion(key, versionKey);
+				if (existing != null) {
+					return existing;
+				}
+			}
+		}
+
+		List<VersionIndependentConcept> codes = expand(theModifier, theSystem, theCode);
+		if (versionKey == null) {
+			versionKey = "sha256 " + hash(codes);
+			TermValueSetExpansion existing = myExpansionDao.findByKeyAndVersion(key, versionKey);
+			if (existing != null) {
+				return existing;
+			}
+		}
+
+		try {
+			return storeExpansion(key, versionKey, codes);
+		} catch (DataIntegrityViolationException e) {
+			// Another search stored the same expansion at the same time
+			ourLog.debug("Expansion {} version {} was stored concurrently", key, versionKey);
+			return myExpansionDao.findByKeyAndVersion(key, versionKey);
+		}
+	}
+
+	/**
+	 * Returns the version key for the ValueSet with the given URL, or <code>null</code> if
+	 * it is not stored in this server (or more than one ValueSet has the URL)
+	 */
+	private String getValueSetVersionKey(String theUrl) {
+		List<Long> pids = myResourceIndexedSearchParamUriDao.findResourcePidsByUri("ValueSet", VALUESET_URL_PARAM, theUrl);
+		if (pids.size() != 1) {
+			return null;
+		}
+		ResourceTable valueSet = myEntityManager.find(ResourceTable.class, pids.get(0));
+		if (valueSet == null || valueSet.getDeleted() != null) {
+			return null;
+		}
+
+		Date lastUpdated = myResourceHistoryTableDao.findLastUpdatedForResourceTypes(Arrays.asList("ValueSet", "CodeSystem"));
+		Long codeSystemVersionPid = myCodeSystemVersionDao.findMaxPid();
+		return "vs " + valueSet.getId() + "/" + valueSet.getVersion() + " " + (lastUpdated != null ? lastUpdated.getTime() : 0) + " csv " + codeSystemVersionPid;
+	}
+
+	private TransactionTemplate newTransactionTemplate() {
+		TransactionTemplate retVal = new TransactionTemplate(myPlatformTransactionManager);
+		retVal.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		return retVal;
+	}
+
+	private TermValueSetExpansion storeExpansion(final String theKey, final String theVersionKey, final List<VersionIndependentConcept> theCodes) {
+		return newTransactionTemplate().execute(new TransactionCallback<TermValueSetExpansion>() {
+			@Override
+			public TermValueSetExpansion doInTransaction(TransactionStatus theStatus) {
+				StopWatch sw = new StopWatch();
+
+				TermValueSetExpansion expansion = new TermValueSetExpansion();
+				expansion.setCreated(new Date());
+				expansion.setExpansionKey(theKey);
+				expansion.setVersionKey(theVersionKey);
+				expansion.setNumMembers(theCodes.size());
+				expansion = myExpansionDao.saveAndFlush(expansion);
+
+				Long expansionPid = expansion.getPid();
+				int count = 0;
+				for (VersionIndependentConcept next : theCodes) {
+					TermValueSetExpansion expansionRef = myEntityManager.getReference(TermValueSetExpansion.class, expansionPid);
+					myEntityManager.persist(new TermValueSetMember(expansionRef, next.getSystem(), next.getCode()));
+					count++;
+					if (count % SAVE_BATCH_SIZE == 0) {
+						myEntityManager.flush();
+						myEntityManager.clear();
+					}
+				}
+				myEntityManager.flush();
+				myEntityManager.clear();
+
+				ourLog.info("Stored expansion {} ({} codes) in {}ms", new Object[] { theKey, theCodes.size(), sw.getMillis() });
+				return myEntityManager.find(TermValueSetExpansion.class, expansionPid);
+			}
+		});
+	}
+
+	private static String hash(List<VersionIndependentConcept> theCodes) {
+		List<String> values = new ArrayList<String>(theCodes.size());
+		for (VersionIndependentConcept next : theCodes) {
+			values.add(defaultString(next.getSystem()) + "|" + next.getCode());
+		}
+		Collections.sort(values);
+
+		Hasher hasher = Hashing.sha256().newHasher();
+		for (String next : values) {
+			hasher.putString(next, Charsets.UTF_8);
+			hasher.putByte((byte) 0);
+		}
+		return hasher.hash().toString();
+	}
+
+}
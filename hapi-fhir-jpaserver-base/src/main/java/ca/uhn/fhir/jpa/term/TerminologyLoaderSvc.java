@@ -24,12 +24,15 @@ import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -38,12 +41,14 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
 import org.apache.commons.csv.QuoteMode;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.input.BOMInputStream;
 import org.apache.commons.lang3.StringUtils;
@@ -58,11 +63,13 @@ import ca.uhn.fhir.jpa.entity.TermConcept;
 import ca.uhn.fhir.jpa.entity.TermConceptParentChildLink;
 import ca.uhn.fhir.jpa.entity.TermConceptParentChildLink.RelationshipTypeEnum;
 import ca.uhn.fhir.jpa.util.Counter;
+import ca.uhn.fhir.jpa.util.StopWatch;
 import ca.uhn.fhir.rest.method.RequestDetails;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 
 public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
+	private static final Set<String> IGNORED_SCT_RELATIONSHIP_TYPES;
 	private static final int LOG_INCREMENT = 100000;
 
 	public static final String LOINC_FILE = "loinc.csv";
@@ -73,9 +80,30 @@ public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
 	public static final String SCT_FILE_CONCEPT = "Terminology/sct2_Concept_Full_";
 	public static final String SCT_FILE_DESCRIPTION = "Terminology/sct2_Description_Full-en";
 	public static final String SCT_FILE_RELATIONSHIP = "Terminology/sct2_Relationship_Full";
+
+	static {
+		Set<String> ignoredTypes = new HashSet<String>();
+		ignoredTypes.add("Method (attribute)");
+		ignoredTypes.add("Direct device (attribute)");
+		ignoredTypes.add("Has focus (attribute)");
+		ignoredTypes.add("Access instrument");
+		ignoredTypes.add("Procedure site (attribute)");
+		ignoredTypes.add("Causative agent (attribute)");
+		ignoredTypes.add("Course (attribute)");
+		ignoredTypes.add("Finding site (attribute)");
+		ignoredTypes.add("Has definitional manifestation (attribute)");
+		IGNORED_SCT_RELATIONSHIP_TYPES = Collections.unmodifiableSet(ignoredTypes);
+	}
+
 	@Autowired
 	private IHapiTerminologySvc myTermSvc;
 
+	private static void closeAll(List<IZipContents> theZips) {
+		for (IZipContents next : theZips) {
+			next.close();
+		}
+	}
+
 	private void dropCircularRefs(TermConcept theConcept, ArrayList<String> theChain, Map<String, TermConcept> theCode2concept, Counter theCircularCounter) {
 		
 		theChain.add(theConcept.getCode());
@@ -109,23 +137,16 @@ public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
 
 	}
 
-	private void extractFiles(List<byte[]> theZipBytes, List<String> theExpectedFilenameFragments) {
+	private void extractFiles(List<IZipContents> theZips, List<String> theExpectedFilenameFragments) {
 		Set<String> foundFragments = new HashSet<String>();
 
-		for (byte[] nextZipBytes : theZipBytes) {
-			ZipInputStream zis = new ZipInputStream(new BufferedInputStream(new ByteArrayInputStream(nextZipBytes)));
-			try {
-				for (ZipEntry nextEntry; (nextEntry = zis.getNextEntry()) != null;) {
-					for (String next : theExpectedFilenameFragments) {
-						if (nextEntry.getName().contains(next)) {
-							foundFragments.add(next);
-						}
+		for (IZipContents nextZip : theZips) {
+			for (String nextEntryName : nextZip.getEntryNames()) {
+				for (String next : theExpectedFilenameFragments) {
+					if (nextEntryName.contains(next)) {
+						foundFragments.add(next);
 					}
 				}
-			} catch (IOException e) {
-				throw new InternalErrorException(e);
-			} finally {
-				IOUtils.closeQuietly(zis);
 			}
 		}
 
@@ -148,64 +169,63 @@ public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
 		return retVal;
 	}
 
-	private TermConcept getOrCreateConcept(TermCodeSystemVersion codeSystemVersion, Map<String, TermConcept> id2concept, String id) {
-		TermConcept concept = id2concept.get(id);
+	private TermConcept getOrCreateConcept(TermCodeSystemVersion codeSystemVersion, Map<String, TermConcept> code2concept, String code) {
+		TermConcept concept = code2concept.get(code);
 		if (concept == null) {
 			concept = new TermConcept();
-			id2concept.put(id, concept);
+			concept.setCode(code);
+			code2concept.put(code, concept);
 			concept.setCodeSystem(codeSystemVersion);
 		}
 		return concept;
 	}
 
-	private void iterateOverZipFile(List<byte[]> theZipBytes, String fileNamePart, IRecordHandler handler, char theDelimiter, QuoteMode theQuoteMode) {
+	private void iterateOverZipFile(List<IZipContents> theZips, String fileNamePart, IRecordHandler handler, char theDelimiter, QuoteMode theQuoteMode) {
 		boolean found = false;
 
-		for (byte[] nextZipBytes : theZipBytes) {
-			ZipInputStream zis = new ZipInputStream(new BufferedInputStream(new ByteArrayInputStream(nextZipBytes)));
-			try {
-				for (ZipEntry nextEntry; (nextEntry = zis.getNextEntry()) != null;) {
-					ZippedFileInputStream inputStream = new ZippedFileInputStream(zis);
-
-					String nextFilename = nextEntry.getName();
-					if (nextFilename.contains(fileNamePart)) {
-						ourLog.info("Processing file {}", nextFilename);
-						found = true;
-
-						Reader reader = null;
-						CSVParser parsed = null;
-						try {
-							reader = new InputStreamReader(new BOMInputStream(zis), Charsets.UTF_8);
-							CSVFormat format = CSVFormat.newFormat(theDelimiter).withFirstRecordAsHeader();
-							if (theQuoteMode != null) {
-								format = format.withQuote('"').withQuoteMode(theQuoteMode);
-							}
-							parsed = new CSVParser(reader, format);
-							Iterator<CSVRecord> iter = parsed.iterator();
-							ourLog.debug("Header map: {}", parsed.getHeaderMap());
-
-							int count = 0;
-							int logIncrement = LOG_INCREMENT;
-							int nextLoggedCount = 0;
-							while (iter.hasNext()) {
-								CSVRecord nextRecord = iter.next();
-								handler.accept(nextRecord);
-								count++;
-								if (count >= nextLoggedCount) {
-									ourLog.info(" * Processed {} records in {}", count, nextFilename);
-									nextLoggedCount += logIncrement;
-								}
+		for (IZipContents nextZip : theZips) {
+			for (String nextFilename : nextZip.getEntryNames()) {
+				if (nextFilename.contains(fileNamePart)) {
+					ourLog.info("Processing file {}", nextFilename);
+					found = true;
+
+					Reader reader = null;
+					CSVParser parsed = null;
+					try {
+						reader = new InputStreamReader(new BOMInputStream(nextZip.openEntry(nextFilename)), Charsets.UTF_8);
+						CSVFormat format = CSVFormat.newFormat(theDelimiter).withFirstRecordAsHeader();
+						if (theQuoteMode != null) {
+							format = format.withQuote('"').withQuoteMode(theQuoteMode);
+						}
+						parsed = new CSVParser(reader, format);
+						Iterator<CSVRecord> iter = parsed.iterator();
+						ourLog.debug("Header map: {}", parsed.getHeaderMap());
+
+						StopWatch sw = new StopWatch();
+						int count = 0;
+						int logIncrement = LOG_INCREMENT;
+						int nextLoggedCount = 0;
+						while (iter.hasNext()) {
+							CSVRecord nextRecord = iter.next();
+							handler.accept(nextRecord);
+							count++;
+							if (count >= nextLoggedCount) {
+								ourLog.info(" * Processed {} records in {}", count, nextFilename);
+								nextLoggedCount += logIncrement;
 							}
-
-						} catch (IOException e) {
-							throw new InternalErrorException(e);
 						}
+
+						Runtime runtime = Runtime.getRuntime();
+						long usedMb = (runtime.totalMemory() - runtime.freeMemory()) / FileUtils.ONE_MB;
+						ourLog.info("Finished {} - {} records in {}ms ({} records/sec), heap in use is {}MB", new Object[] { nextFilename, count, sw.getMillis(), (long) (count / Math.max(0.001, sw.getMillis() / 1000.0)), usedMb });
+
+					} catch (IOException e) {
+						throw new InternalErrorException(e);
+					} finally {
+						IOUtils.closeQuietly(parsed);
+						IOUtils.closeQuietly(reader);
 					}
 				}
-			} catch (IOException e) {
-				throw new InternalErrorException(e);
-			} finally {
-				IOUtils.closeQuietly(zis);
 			}
 		}
 
@@ -215,37 +235,78 @@ public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
 
 	@Override
 	public UploadStatistics loadLoinc(List<byte[]> theZipBytes, RequestDetails theRequestDetails) {
+		return loadLoinc(toZipContents(theZipBytes), theRequestDetails);
+	}
+
+	private UploadStatistics loadLoinc(List<IZipContents> theZips, RequestDetails theRequestDetails) {
 		List<String> expectedFilenameFragments = Arrays.asList(LOINC_FILE, LOINC_HIERARCHY_FILE);
 
-		extractFiles(theZipBytes, expectedFilenameFragments);
+		extractFiles(theZips, expectedFilenameFragments);
 
 		ourLog.info("Beginning LOINC processing");
 
-		return processLoincFiles(theZipBytes, theRequestDetails);
+		return processLoincFiles(theZips, theRequestDetails);
+	}
+
+	@Override
+	public UploadStatistics loadLoincFiles(List<File> theZipFiles, RequestDetails theRequestDetails) {
+		List<IZipContents> zips = openZipFiles(theZipFiles);
+		try {
+			return loadLoinc(zips, theRequestDetails);
+		} finally {
+			closeAll(zips);
+		}
 	}
 
 	@Override
 	public UploadStatistics loadSnomedCt(List<byte[]> theZipBytes, RequestDetails theRequestDetails) {
+		return loadSnomedCt(toZipContents(theZipBytes), theRequestDetails);
+	}
+
+	private UploadStatistics loadSnomedCt(List<IZipContents> theZips, RequestDetails theRequestDetails) {
 		List<String> expectedFilenameFragments = Arrays.asList(SCT_FILE_DESCRIPTION, SCT_FILE_RELATIONSHIP, SCT_FILE_CONCEPT);
 
-		extractFiles(theZipBytes, expectedFilenameFragments);
+		extractFiles(theZips, expectedFilenameFragments);
 
 		ourLog.info("Beginning SNOMED CT processing");
 
-		return processSnomedCtFiles(theZipBytes, theRequestDetails);
+		return processSnomedCtFiles(theZips, theRequestDetails);
+	}
+
+	@Override
+	public UploadStatistics loadSnomedCtFiles(List<File> theZipFiles, RequestDetails theRequestDetails) {
+		List<IZipContents> zips = openZipFiles(theZipFiles);
+		try {
+			return loadSnomedCt(zips, theRequestDetails);
+		} finally {
+			closeAll(zips);
+		}
+	}
+
+	private List<IZipContents> openZipFiles(List<File> theZipFiles) {
+		List<IZipContents> retVal = new ArrayList<IZipContents>();
+		for (File next : theZipFiles) {
+			try {
+				retVal.add(new FileZipContents(new ZipFile(next)));
+			} catch (IOException e) {
+				closeAll(retVal);
+				throw new InvalidRequestException("Failed to open ZIP file " + next.getAbsolutePath() + ": " + e.getMessage());
+			}
+		}
+		return retVal;
 	}
 
-	UploadStatistics processLoincFiles(List<byte[]> theZipBytes, RequestDetails theRequestDetails) {
+	UploadStatistics processLoincFiles(List<IZipContents> theZips, RequestDetails theRequestDetails) {
 		final TermCodeSystemVersion codeSystemVersion = new TermCodeSystemVersion();
 		final Map<String, TermConcept> code2concept = new HashMap<String, TermConcept>();
 
 		IRecordHandler handler = new LoincHandler(codeSystemVersion, code2concept);
-		iterateOverZipFile(theZipBytes, LOINC_FILE, handler, ',', QuoteMode.NON_NUMERIC);
+		iterateOverZipFile(theZips, LOINC_FILE, handler, ',', QuoteMode.NON_NUMERIC);
 
 		handler = new LoincHierarchyHandler(codeSystemVersion, code2concept);
-		iterateOverZipFile(theZipBytes, LOINC_HIERARCHY_FILE, handler, ',', QuoteMode.NON_NUMERIC);
+		iterateOverZipFile(theZips, LOINC_HIERARCHY_FILE, handler, ',', QuoteMode.NON_NUMERIC);
 
-		theZipBytes.clear();
+		closeAll(theZips);
 		
 		for (Iterator<Entry<String, TermConcept>> iter = code2concept.entrySet().iterator(); iter.hasNext();) {
 			Entry<String, TermConcept> next = iter.next();
@@ -274,27 +335,26 @@ public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
 		myTermSvc.setProcessDeferred(true);
 	}
 
-	UploadStatistics processSnomedCtFiles(List<byte[]> theZipBytes, RequestDetails theRequestDetails) {
+	UploadStatistics processSnomedCtFiles(List<IZipContents> theZips, RequestDetails theRequestDetails) {
 		final TermCodeSystemVersion codeSystemVersion = new TermCodeSystemVersion();
-		final Map<String, TermConcept> id2concept = new HashMap<String, TermConcept>();
 		final Map<String, TermConcept> code2concept = new HashMap<String, TermConcept>();
 		final Set<String> validConceptIds = new HashSet<String>();
 
 		IRecordHandler handler = new SctHandlerConcept(validConceptIds);
-		iterateOverZipFile(theZipBytes, SCT_FILE_CONCEPT, handler, '\t', null);
+		iterateOverZipFile(theZips, SCT_FILE_CONCEPT, handler, '\t', null);
 
 		ourLog.info("Have {} valid concept IDs", validConceptIds.size());
 
-		handler = new SctHandlerDescription(validConceptIds, code2concept, id2concept, codeSystemVersion);
-		iterateOverZipFile(theZipBytes, SCT_FILE_DESCRIPTION, handler, '\t', null);
+		handler = new SctHandlerDescription(validConceptIds, code2concept, codeSystemVersion);
+		iterateOverZipFile(theZips, SCT_FILE_DESCRIPTION, handler, '\t', null);
 
 		ourLog.info("Got {} concepts, cloning map", code2concept.size());
 		final HashMap<String, TermConcept> rootConcepts = new HashMap<String, TermConcept>(code2concept);
 
 		handler = new SctHandlerRelationship(codeSystemVersion, rootConcepts, code2concept);
-		iterateOverZipFile(theZipBytes, SCT_FILE_RELATIONSHIP, handler, '\t', null);
+		iterateOverZipFile(theZips, SCT_FILE_RELATIONSHIP, handler, '\t', null);
 
-		theZipBytes.clear();
+		closeAll(theZips);
 
 		ourLog.info("Looking for root codes");
 		for (Iterator<Entry<String, TermConcept>> iter = rootConcepts.entrySet().iterator(); iter.hasNext(); ) {
@@ -325,10 +385,127 @@ public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
 		myTermSvc = theTermSvc;
 	}
 
+	private static List<IZipContents> toZipContents(List<byte[]> theZipBytes) {
+		List<IZipContents> retVal = new ArrayList<IZipContents>();
+		for (byte[] next : theZipBytes) {
+			retVal.add(new ByteArrayZipContents(theZipBytes, next));
+		}
+		return retVal;
+	}
+
+	/**
+	 * One of the ZIP archives making up a terminology release
+	 */
+	interface IZipContents {
+
+		/**
+		 * Releases the archive. Calling this more than once has no effect.
+		 */
+		void close();
+
+		List<String> getEntryNames();
+
+		/**
+		 * Returns a stream over the contents of the given entry, which the caller must close
+		 */
+		InputStream openEntry(String theEntryName) throws IOException;
+
+	}
+
 	private interface IRecordHandler {
 		void accept(CSVRecord theRecord);
 	}
 
+	/**
+	 * An archive held in memory. Entries can only be reached by reading through the
+	 * archive from the start. Closing it clears the list of archives it was passed in,
+	 * so that the bytes can be freed while the concepts are being stored.
+	 */
+	private static class ByteArrayZipContents implements IZipContents {
+		private byte[] myBytes;
+		private List<String> myEntryNames;
+		private final List<byte[]> myOwner;
+
+		public ByteArrayZipContents(List<byte[]> theOwner, byte[] theBytes) {
+			myOwner = theOwner;
+			myBytes = theBytes;
+		}
+
+		@Override
+		public void close() {
+			if (myBytes != null) {
+				myBytes = null;
+				myOwner.clear();
+			}
+		}
+
+		@Override
+		public List<String> getEntryNames() {
+			if (myEntryNames == null) {
+				List<String> entryNames = new ArrayList<String>();
+				ZipInputStream zis = new ZipInputStream(new BufferedInputStream(new ByteArrayInputStream(myBytes)));
+				try {
+					for (ZipEntry nextEntry; (nextEntry = zis.getNextEntry()) != null;) {
+						entryNames.add(nextEntry.getName());
+					}
+				} catch (IOException e) {
+					throw new InternalErrorException(e);
+				} finally {
+					IOUtils.closeQuietly(zis);
+				}
+				myEntryNames = entryNames;
+			}
+			return myEntryNames;
+		}
+
+		@Override
+		public InputStream openEntry(String theEntryName) throws IOException {
+			ZipInputStream zis = new ZipInputStream(new BufferedInputStream(new ByteArrayInputStream(myBytes)));
+			for (ZipEntry nextEntry; (nextEntry = zis.getNextEntry()) != null;) {
+				if (nextEntry.getName().equals(theEntryName)) {
+					return zis;
+				}
+			}
+			IOUtils.closeQuietly(zis);
+			throw new IOException("No entry named " + theEntryName);
+		}
+	}
+
+	/**
+	 * An archive on disk. Each entry is read directly from its position in the file, so
+	 * the archive is never held in memory.
+	 */
+	private static class FileZipContents implements IZipContents {
+		private final ZipFile myZipFile;
+
+		public FileZipContents(ZipFile theZipFile) {
+			myZipFile = theZipFile;
+		}
+
+		@Override
+		public void close() {
+			try {
+				myZipFile.close();
+			} catch (IOException e) {
+				ourLog.warn("Failed to close " + myZipFile.getName(), e);
+			}
+		}
+
+		@Override
+		public List<String> getEntryNames() {
+			List<String> retVal = new ArrayList<String>();
+			for (Enumeration<? extends ZipEntry> iter = myZipFile.entries(); iter.hasMoreElements();) {
+				retVal.add(iter.nextElement().getName());
+			}
+			return retVal;
+		}
+
+		@Override
+		public InputStream openEntry(String theEntryName) throws IOException {
+			return new BufferedInputStream(myZipFile.getInputStream(myZipFile.getEntry(theEntryName)));
+		}
+	}
+
 	public class LoincHandler implements IRecordHandler {
 
 		private final Map<String, TermConcept> myCode2Concept;
@@ -423,22 +600,23 @@ public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
 		}
 	}
 
+	/**
+	 * Creates one concept for each valid concept ID, with the term of the last active
+	 * description found for it as its display
+	 */
 	private final class SctHandlerDescription implements IRecordHandler {
 		private final Map<String, TermConcept> myCode2concept;
 		private final TermCodeSystemVersion myCodeSystemVersion;
-		private final Map<String, TermConcept> myId2concept;
 		private Set<String> myValidConceptIds;
 
-		private SctHandlerDescription(Set<String> theValidConceptIds, Map<String, TermConcept> theCode2concept, Map<String, TermConcept> theId2concept, TermCodeSystemVersion theCodeSystemVersion) {
+		private SctHandlerDescription(Set<String> theValidConceptIds, Map<String, TermConcept> theCode2concept, TermCodeSystemVersion theCodeSystemVersion) {
 			myCode2concept = theCode2concept;
-			myId2concept = theId2concept;
 			myCodeSystemVersion = theCodeSystemVersion;
 			myValidConceptIds = theValidConceptIds;
 		}
 
 		@Override
 		public void accept(CSVRecord theRecord) {
-			String id = theRecord.get("id");
 			boolean active = "1".equals(theRecord.get("active"));
 			if (!active) {
 				return;
@@ -450,10 +628,8 @@ public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
 
 			String term = theRecord.get("term");
 
-			TermConcept concept = getOrCreateConcept(myCodeSystemVersion, myId2concept, id);
-			concept.setCode(conceptId);
+			TermConcept concept = getOrCreateConcept(myCodeSystemVersion, myCode2concept, conceptId);
 			concept.setDisplay(term);
-			myCode2concept.put(conceptId, concept);
 		}
 	}
 
@@ -470,17 +646,6 @@ public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
 
 		@Override
 		public void accept(CSVRecord theRecord) {
-			Set<String> ignoredTypes = new HashSet<String>();
-			ignoredTypes.add("Method (attribute)");
-			ignoredTypes.add("Direct device (attribute)");
-			ignoredTypes.add("Has focus (attribute)");
-			ignoredTypes.add("Access instrument");
-			ignoredTypes.add("Procedure site (attribute)");
-			ignoredTypes.add("Causative agent (attribute)");
-			ignoredTypes.add("Course (attribute)");
-			ignoredTypes.add("Finding site (attribute)");
-			ignoredTypes.add("Has definitional manifestation (attribute)");
-
 			String sourceId = theRecord.get("sourceId");
 			String destinationId = theRecord.get("destinationId");
 			String typeId = theRecord.get("typeId");
@@ -494,12 +659,6 @@ public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
 					RelationshipTypeEnum relationshipType = RelationshipTypeEnum.ISA;
 					if (!sourceId.equals(destinationId)) {
 						if (active) {
-							TermConceptParentChildLink link = new TermConceptParentChildLink();
-							link.setChild(sourceConcept);
-							link.setParent(targetConcept);
-							link.setRelationshipType(relationshipType);
-							link.setCodeSystem(myCodeSystemVersion);
-	
 							targetConcept.addChild(sourceConcept, relationshipType);
 						} else {
 							// not active, so we're removing any existing links
@@ -513,7 +672,7 @@ public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
 							}
 						}
 					}
-				} else if (ignoredTypes.contains(typeConcept.getDisplay())) {
+				} else if (IGNORED_SCT_RELATIONSHIP_TYPES.contains(typeConcept.getDisplay())) {
 					// ignore
 				} else {
 					// ourLog.warn("Unknown relationship type: {}/{}", typeId, typeConcept.getDisplay());
@@ -523,23 +682,4 @@ public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
 
 	}
 
-	private static class ZippedFileInputStream extends InputStream {
-
-		private ZipInputStream is;
-
-		public ZippedFileInputStream(ZipInputStream is) {
-			this.is = is;
-		}
-
-		@Override
-		public void close() throws IOException {
-			is.closeEntry();
-		}
-
-		@Override
-		public int read() throws IOException {
-			return is.read();
-		}
-	}
-
 }
@@ -67,4 +67,8 @@ public class StopWatch {
 		return ((double)getMillis()) / Math.max(1.0, theNumOperations);
 	}
 	
+	public double getOperationsPerSecond(long theNumOperations) {
+		return ((double)theNumOperations * 1000.0) / Math.max(1.0, getMillis());
+	}
+	
 }
@@ -0,0 +1,58 @@
+package ca.uhn.fhir.jpa.config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+
+/**
+ * Records the SQL of each JDBC statement Hibernate prepares while capturing is
+ * turned on. When inserts are batched, a statement is prepared once per batch
+ * rather than once per row.
+ */
+public class CapturingStatementInspector implements StatementInspector {
+
+	private static final long serialVersionUID = 1L;
+
+	private volatile boolean myCapturing;
+	private final List<String> myStatements = new ArrayList<String>();
+
+	public synchronized void clear() {
+		myStatements.clear();
+	}
+
+	/**
+	 * Returns the number of captured statements which start with the given prefix (ignoring case)
+	 */
+	public synchronized int countStatementsStartingWith(String thePrefix) {
+		int retVal = 0;
+		for (String next : myStatements) {
+			if (next.regionMatches(true, 0, thePrefix, 0, thePrefix.length())) {
+				retVal++;
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Returns a copy of the captured statements
+	 */
+	public synchronized List<String> getStatements() {
+		return new ArrayList<String>(myStatements);
+	}
+
+	@Override
+	public String inspect(String theSql) {
+		if (myCapturing) {
+			synchronized (this) {
+				myStatements.add(theSql.trim());
+			}
+		}
+		return theSql;
+	}
+
+	public void setCapturing(boolean theCapturing) {
+		myCapturing = theCapturing;
+	}
+
+}
@@ -27,6 +27,11 @@ public class TestDstu3Config extends BaseJavaConfigDstu3 {
 		return new DaoConfig();
 	}
 
+	@Bean()
+	public CapturingStatementInspector capturingStatementInspector() {
+		return new CapturingStatementInspector();
+	}
+
 	@Bean()
 	public DataSource dataSource() {
 		BasicDataSource retVal = new BasicDataSource();
@@ -52,12 +57,15 @@ public class TestDstu3Config extends BaseJavaConfigDstu3 {
 		retVal.setPackagesToScan("ca.uhn.fhir.jpa.entity");
 		retVal.setPersistenceProvider(new HibernatePersistenceProvider());
 		retVal.setJpaProperties(jpaProperties());
+		retVal.getJpaPropertyMap().put("hibernate.session_factory.statement_inspector", capturingStatementInspector());
 		return retVal;
 	}
 
 	private Properties jpaProperties() {
 		Properties extraProperties = new Properties();
 		extraProperties.put("hibernate.jdbc.batch_size", "50");
+		extraProperties.put("hibernate.order_inserts", "true");
+		extraProperties.put("hibernate.order_updates", "true");
 		extraProperties.put("hibernate.format_sql", "false");
 		extraProperties.put("hibernate.show_sql", "false");
 		extraProperties.put("hibernate.hbm2ddl.auto", "update");
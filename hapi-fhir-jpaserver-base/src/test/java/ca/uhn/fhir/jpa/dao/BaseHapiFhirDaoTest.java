@@ -1,16 +1,30 @@
 package ca.uhn.fhir.jpa.dao;
 
+import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import org.junit.AfterClass;
 import org.junit.Test;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamDate;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamToken;
 import ca.uhn.fhir.model.dstu2.composite.PeriodDt;
 import ca.uhn.fhir.model.dstu2.resource.Condition;
 import ca.uhn.fhir.model.dstu2.resource.Observation;
@@ -56,6 +70,43 @@ public class BaseHapiFhirDaoTest  extends BaseJpaTest {
 		assertEquals("杨浩", BaseHapiFhirDao.normalizeString("杨浩"));
 	}
 
+	@Test
+	public void testRetainUnchangedIndexRows() {
+		ResourceIndexedSearchParamToken existingA = new ResourceIndexedSearchParamToken("code", "http://foo", "A");
+		ResourceIndexedSearchParamToken existingB = new ResourceIndexedSearchParamToken("code", "http://foo", "B");
+		List<ResourceIndexedSearchParamToken> existing = new ArrayList<ResourceIndexedSearchParamToken>(Arrays.asList(existingA, existingB));
+
+		ResourceIndexedSearchParamToken newB = new ResourceIndexedSearchParamToken("code", "http://foo", "B");
+		ResourceIndexedSearchParamToken newC = new ResourceIndexedSearchParamToken("code", "http://foo", "C");
+		Set<ResourceIndexedSearchParamToken> extracted = new HashSet<ResourceIndexedSearchParamToken>(Arrays.asList(newB, newC));
+
+		Set<ResourceIndexedSearchParamToken> all = BaseHapiFhirDao.retainUnchangedIndexRows(existing, extracted);
+
+		assertThat(existing, containsInAnyOrder(existingA));
+		assertThat(extracted, containsInAnyOrder(newC));
+		assertEquals(2, all.size());
+		assertTrue(all.contains(newC));
+		for (ResourceIndexedSearchParamToken next : all) {
+			if ("B".equals(next.getValue())) {
+				assertSame(existingB, next);
+			}
+		}
+	}
+
+	@Test
+	public void testRetainUnchangedIndexRowsWithTimestamps() {
+		Date low = new Date(1000000L);
+		Date high = new Date(2000000L);
+		ResourceIndexedSearchParamDate existingDate = new ResourceIndexedSearchParamDate("date", new Timestamp(low.getTime()), new Timestamp(high.getTime()));
+		List<ResourceIndexedSearchParamDate> existing = new ArrayList<ResourceIndexedSearchParamDate>(Arrays.asList(existingDate));
+		Set<ResourceIndexedSearchParamDate> extracted = new HashSet<ResourceIndexedSearchParamDate>(Arrays.asList(new ResourceIndexedSearchParamDate("date", low, high)));
+
+		Set<ResourceIndexedSearchParamDate> all = BaseHapiFhirDao.retainUnchangedIndexRows(existing, extracted);
+
+		assertTrue(existing.isEmpty());
+		assertTrue(extracted.isEmpty());
+		assertThat(all, containsInAnyOrder(existingDate));
+	}
 
 	@Override
 	protected FhirContext getContext() {
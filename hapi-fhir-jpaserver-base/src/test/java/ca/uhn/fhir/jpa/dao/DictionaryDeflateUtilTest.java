@@ -0,0 +1,141 @@
+package ca.uhn.fhir.jpa.dao;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.util.TestUtil;
+
+public class DictionaryDeflateUtilTest {
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(DictionaryDeflateUtilTest.class);
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+	private static String createObservation(int theIndex) {
+		return "{\"resourceType\":\"Observation\",\"id\":\"" + theIndex + "\",\"meta\":{\"versionId\":\"1\",\"lastUpdated\":\"2017-03-01T10:00:00.000-05:00\"},\"status\":\"final\",\"code\":{\"coding\":[{\"system\":\"http://loinc.org\",\"code\":\"29463-7\",\"display\":\"Body Weight\"}]},\"subject\":{\"reference\":\"Patient/"
+				+ (theIndex * 7) + "\"},\"effectiveDateTime\":\"2017-03-01\",\"valueQuantity\":{\"value\":" + (60 + theIndex % 40) + ",\"unit\":\"kg\",\"system\":\"http://unitsofmeasure.org\",\"code\":\"kg\"}}";
+	}
+
+	@Test
+	public void testBenchmark() {
+		List<String> samples = new ArrayList<String>();
+		for (int i = 0; i < 50; i++) {
+			samples.add(createObservation(i));
+		}
+
+		String report = ResourceEncodingBenchmark.run(samples);
+		assertThat(report, containsString("JSONC"));
+		assertThat(report, containsString("JSOND (trained)"));
+	}
+
+	@Test
+	public void testCompressSmallerThanGzip() {
+		String input = createObservation(1);
+
+		byte[] gzip = GZipUtil.compress(input);
+		byte[] dictionary = DictionaryDeflateUtil.compress(input);
+		ourLog.info("Raw {} bytes, GZip {} bytes, dictionary {} bytes", input.length(), gzip.length, dictionary.length);
+
+		assertThat(dictionary.length, lessThan(gzip.length));
+		assertEquals(DictionaryDeflateUtil.CURRENT_DICTIONARY_VERSION, dictionary[0]);
+		assertEquals(input, DictionaryDeflateUtil.decompress(dictionary));
+	}
+
+	@Test
+	public void testDecompressUnknownDictionaryVersion() {
+		byte[] compressed = DictionaryDeflateUtil.compress(createObservation(1));
+		compressed[0] = (byte) 200;
+		try {
+			DictionaryDeflateUtil.decompress(compressed);
+			fail();
+		} catch (DataFormatException e) {
+			assertEquals("Unknown compression dictionary version: 200", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testDecompressWithWrongDictionary() {
+		byte[] compressed = DictionaryDeflateUtil.compress(createObservation(1));
+		try {
+			DictionaryDeflateUtil.decompress(compressed, "\"status\":\"final\"".getBytes(Charsets.UTF_8));
+			fail();
+		} catch (DataFormatException e) {
+			assertEquals("Failed to decompress contents, the dictionary for version 1 is not the one the contents were compressed with", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testRoundTripNonAscii() {
+		String input = "{\"resourceType\":\"Patient\",\"name\":[{\"family\":\"Ménière\",\"given\":[\"Zoë\"]}]}";
+		assertEquals(input, DictionaryDeflateUtil.decompress(DictionaryDeflateUtil.compress(input)));
+	}
+
+	@Test
+	public void testSaveAndLoadTrainedDictionary() throws Exception {
+		List<String> samples = new ArrayList<String>();
+		for (int i = 0; i < 100; i++) {
+			samples.add(createObservation(i));
+		}
+		byte[] dictionary = DictionaryDeflateUtil.trainDictionary(samples, 1024);
+
+		File file = DictionaryDeflateUtil.saveDictionary(dictionary, 250, new File("target/dictionaries"));
+		assertEquals("jsond-dictionary-v250.bin", file.getName());
+		FileInputStream is = new FileInputStream(file);
+		try {
+			DictionaryDeflateUtil.loadDictionary(250, is);
+		} finally {
+			is.close();
+		}
+
+		String input = createObservation(1000);
+		byte[] compressed = DictionaryDeflateUtil.compress(input, 250);
+		assertEquals(250, compressed[0] & 0xFF);
+		assertEquals(input, DictionaryDeflateUtil.decompress(compressed));
+
+		// Released versions can't be changed
+		try {
+			DictionaryDeflateUtil.registerDictionary(250, "\"status\":\"final\"".getBytes(Charsets.UTF_8));
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertEquals("A different dictionary is already registered as version 250", e.getMessage());
+		}
+		try {
+			DictionaryDeflateUtil.registerDictionary(1, dictionary);
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertEquals("theVersion must be between 2 and 255", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testTrainDictionary() {
+		List<String> samples = new ArrayList<String>();
+		for (int i = 0; i < 100; i++) {
+			samples.add(createObservation(i));
+		}
+
+		byte[] dictionary = DictionaryDeflateUtil.trainDictionary(samples, 1024);
+		assertThat(dictionary.length, lessThan(1025));
+		assertThat(new String(dictionary), containsString("\"system\":\"http://loinc.org\""));
+
+		String input = createObservation(1000);
+		byte[] compressed = DictionaryDeflateUtil.compress(input, 0, dictionary);
+		assertThat(compressed.length, lessThan(GZipUtil.compress(input).length));
+		assertEquals(input, DictionaryDeflateUtil.decompress(compressed, dictionary));
+	}
+
+}
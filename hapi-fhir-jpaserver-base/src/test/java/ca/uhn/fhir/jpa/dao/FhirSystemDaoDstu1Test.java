@@ -55,16 +55,20 @@ public class FhirSystemDaoDstu1Test extends BaseJpaTest {
 	private static AnnotationConfigApplicationContext ourCtx;
 	private static EntityManager ourEntityManager;
 	private static FhirContext ourFhirContext;
+	private static IForcedIdSvc ourForcedIdSvc;
 	private static IFhirResourceDao<Location> ourLocationDao;
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(FhirSystemDaoDstu1Test.class);
 	private static IFhirResourceDao<Observation> ourObservationDao;
 	private static IFhirResourceDao<Patient> ourPatientDao;
 	private static IFhirSystemDao<List<IResource>, MetaDt> ourSystemDao;
+	private static ITagDefinitionSvc ourTagDefinitionSvc;
 	private static PlatformTransactionManager ourTxManager;
 
 	@Before
 	public void before() {
 		super.purgeDatabase(ourEntityManager, ourTxManager);
+		ourTagDefinitionSvc.clearCache();
+		ourForcedIdSvc.clearCache();
 	}
 
 	@Override
@@ -493,6 +497,8 @@ public class FhirSystemDaoDstu1Test extends BaseJpaTest {
 		ourSystemDao = ourCtx.getBean("mySystemDaoDstu1", IFhirSystemDao.class);
 		ourEntityManager = ourCtx.getBean(EntityManager.class);
 		ourTxManager = ourCtx.getBean(PlatformTransactionManager.class);
+		ourTagDefinitionSvc = ourCtx.getBean(ITagDefinitionSvc.class);
+		ourForcedIdSvc = ourCtx.getBean(IForcedIdSvc.class);
 	}
 
 }
@@ -0,0 +1,146 @@
+package ca.uhn.fhir.jpa.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+
+import com.google.common.base.Charsets;
+
+import ca.uhn.fhir.jpa.entity.ResourceEncodingEnum;
+import ca.uhn.fhir.jpa.entity.ResourceTable;
+
+/**
+ * Compares the storage encodings on a sample of the resources stored in
+ * <code>HFJ_RESOURCE</code>, reporting the compression ratio and the decode
+ * throughput of each. A dictionary trained on half of the sample is also evaluated
+ * against the other half, in order to judge whether a new dictionary version would
+ * be worthwhile.
+ * <p>
+ * This lives with the tests since the server never uses it. Against a real database
+ * it must be called within a transaction, e.g.
+ * </p>
+ * <pre>
+ * String report = new TransactionTemplate(txManager).execute(new TransactionCallback&lt;String&gt;() {
+ *    public String doInTransaction(TransactionStatus theStatus) {
+ *       return ResourceEncodingBenchmark.run(entityManager, 10000);
+ *    }
+ * });
+ * </pre>
+ * <p>
+ * If the trained dictionary is worthwhile, it can be released as a new version by
+ * saving it with {@link DictionaryDeflateUtil#saveDictionary(byte[], int, java.io.File)}.
+ * </p>
+ */
+public class ResourceEncodingBenchmark {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ResourceEncodingBenchmark.class);
+
+	private static final int DECODE_PASSES = 5;
+
+	private static final int TRAINED_DICTIONARY_SIZE = 32 * 1024;
+
+	private static void appendResult(StringBuilder theReport, String theName, long theRawBytes, List<byte[]> theStored, Decoder theDecoder) {
+		long storedBytes = 0;
+		for (byte[] next : theStored) {
+			storedBytes += next.length;
+		}
+
+		// Warm up, then time several passes over the whole sample
+		for (byte[] next : theStored) {
+			theDecoder.decode(next);
+		}
+		long start = System.nanoTime();
+		for (int pass = 0; pass < DECODE_PASSES; pass++) {
+			for (byte[] next : theStored) {
+				theDecoder.decode(next);
+			}
+		}
+		long elapsedNanos = Math.max(1, System.nanoTime() - start);
+		double mbPerSecond = ((double) theRawBytes * DECODE_PASSES / (1024 * 1024)) / (elapsedNanos / 1000000000.0);
+
+		theReport.append(String.format("%-22s stored %,12d bytes  ratio %6.2f  decode %8.1f MB/s%n", theName, storedBytes, (double) theRawBytes / Math.max(1, storedBytes), mbPerSecond));
+	}
+
+	/**
+	 * Benchmarks the given encoded (JSON) resource bodies
+	 */
+	public static String run(List<String> theCorpus) {
+		List<String> trainingSet = new ArrayList<String>();
+		List<String> testSet = new ArrayList<String>();
+		for (int i = 0; i < theCorpus.size(); i++) {
+			if (i % 2 == 0) {
+				trainingSet.add(theCorpus.get(i));
+			} else {
+				testSet.add(theCorpus.get(i));
+			}
+		}
+		final byte[] trainedDictionary = DictionaryDeflateUtil.trainDictionary(trainingSet, TRAINED_DICTIONARY_SIZE);
+
+		long rawBytes = 0;
+		List<byte[]> json = new ArrayList<byte[]>();
+		List<byte[]> jsonc = new ArrayList<byte[]>();
+		List<byte[]> jsond = new ArrayList<byte[]>();
+		List<byte[]> jsondTrained = new ArrayList<byte[]>();
+		for (String next : testSet) {
+			byte[] bytes = next.getBytes(Charsets.UTF_8);
+			rawBytes += bytes.length;
+			json.add(bytes);
+			jsonc.add(GZipUtil.compress(next));
+			jsond.add(DictionaryDeflateUtil.compress(next));
+			jsondTrained.add(DictionaryDeflateUtil.compress(next, 0, trainedDictionary));
+		}
+
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("%,d resources (%,d bytes of JSON), trained dictionary is %,d bytes from %,d resources%n", testSet.size(), rawBytes, trainedDictionary.length, trainingSet.size()));
+		appendResult(report, "JSON", rawBytes, json, new Decoder() {
+			@Override
+			public String decode(byte[] theStored) {
+				return ResourceEncodingUtil.decode(ResourceEncodingEnum.JSON, theStored);
+			}
+		});
+		appendResult(report, "JSONC", rawBytes, jsonc, new Decoder() {
+			@Override
+			public String decode(byte[] theStored) {
+				return GZipUtil.decompress(theStored);
+			}
+		});
+		appendResult(report, "JSOND (v" + DictionaryDeflateUtil.CURRENT_DICTIONARY_VERSION + ")", rawBytes, jsond, new Decoder() {
+			@Override
+			public String decode(byte[] theStored) {
+				return DictionaryDeflateUtil.decompress(theStored);
+			}
+		});
+		appendResult(report, "JSOND (trained)", rawBytes, jsondTrained, new Decoder() {
+			@Override
+			public String decode(byte[] theStored) {
+				return DictionaryDeflateUtil.decompress(theStored, trainedDictionary);
+			}
+		});
+
+		ourLog.info("Resource encoding benchmark:\n{}", report);
+		return report.toString();
+	}
+
+	/**
+	 * Benchmarks up to <code>theMaxResources</code> of the most recently stored
+	 * (non-deleted) resources
+	 */
+	public static String run(EntityManager theEntityManager, int theMaxResources) {
+		TypedQuery<ResourceTable> q = theEntityManager.createQuery("SELECT r FROM ResourceTable r WHERE r.myDeleted IS NULL ORDER BY r.myId DESC", ResourceTable.class);
+		q.setMaxResults(theMaxResources);
+
+		List<String> corpus = new ArrayList<String>();
+		for (ResourceTable next : q.getResultList()) {
+			corpus.add(ResourceEncodingUtil.decode(next.getEncoding(), next.getResource()));
+			theEntityManager.detach(next);
+		}
+		return run(corpus);
+	}
+
+	private interface Decoder {
+		String decode(byte[] theStored);
+	}
+
+}
@@ -5,11 +5,17 @@ import static org.junit.Assert.*;
 
 import java.math.BigDecimal;
 import java.math.MathContext;
+import java.util.Arrays;
+import java.util.Collections;
 
 import org.junit.AfterClass;
 import org.junit.Test;
 
+import ca.uhn.fhir.rest.method.RestSearchParameterTypeEnum;
+import ca.uhn.fhir.rest.param.DateParam;
 import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.util.TestUtil;
 
 public class SearchBuilderTest {
@@ -94,6 +100,22 @@ public class SearchBuilderTest {
 		assertThat(out.toPlainString(), startsWith("0.0000000005000000"));
 	}
 
+	@Test
+	public void testEstimateSelectivity() {
+		int tokenWithSystem = SearchBuilder.estimateSelectivity(RestSearchParameterTypeEnum.TOKEN, Collections.singletonList(new TokenParam("http://foo", "123")));
+		int tokenNoSystem = SearchBuilder.estimateSelectivity(RestSearchParameterTypeEnum.TOKEN, Collections.singletonList(new TokenParam(null, "123")));
+		int tokenTwoValues = SearchBuilder.estimateSelectivity(RestSearchParameterTypeEnum.TOKEN, Arrays.asList(new TokenParam("http://foo", "123"), new TokenParam("http://foo", "456")));
+		int stringShort = SearchBuilder.estimateSelectivity(RestSearchParameterTypeEnum.STRING, Collections.singletonList(new StringParam("A")));
+		int stringLong = SearchBuilder.estimateSelectivity(RestSearchParameterTypeEnum.STRING, Collections.singletonList(new StringParam("ABCDEFGHIJKL")));
+		int date = SearchBuilder.estimateSelectivity(RestSearchParameterTypeEnum.DATE, Collections.singletonList(new DateParam("2011-01-01")));
+
+		assertTrue(tokenWithSystem < tokenNoSystem);
+		assertTrue(tokenWithSystem < tokenTwoValues);
+		assertTrue(stringLong < stringShort);
+		assertTrue(tokenNoSystem < date);
+		assertTrue(stringShort < date);
+	}
+
 	@Test
 	public void testCalculateMultiplierApprox() {
 		BigDecimal in = new BigDecimal("200");
@@ -33,7 +33,9 @@ import ca.uhn.fhir.jpa.dao.IFhirResourceDaoPatient;
 import ca.uhn.fhir.jpa.dao.IFhirResourceDaoSubscription;
 import ca.uhn.fhir.jpa.dao.IFhirResourceDaoValueSet;
 import ca.uhn.fhir.jpa.dao.IFhirSystemDao;
+import ca.uhn.fhir.jpa.dao.IForcedIdSvc;
 import ca.uhn.fhir.jpa.dao.IFulltextSearchSvc;
+import ca.uhn.fhir.jpa.dao.ITagDefinitionSvc;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamString;
 import ca.uhn.fhir.jpa.entity.ResourceTable;
 import ca.uhn.fhir.jpa.provider.JpaSystemProviderDstu2;
@@ -84,6 +86,8 @@ public abstract class BaseJpaDstu2Test extends BaseJpaTest {
 	@Qualifier("myFhirContextDstu2")
 	protected FhirContext myFhirCtx;
 	@Autowired
+	protected IForcedIdSvc myForcedIdSvc;
+	@Autowired
 	@Qualifier("myImmunizationDaoDstu2")
 	protected IFhirResourceDao<Immunization> myImmunizationDao;
 	protected IServerInterceptor myInterceptor;
@@ -143,6 +147,8 @@ public abstract class BaseJpaDstu2Test extends BaseJpaTest {
 	@Qualifier("mySystemProviderDstu2")
 	protected JpaSystemProviderDstu2 mySystemProvider;
 	@Autowired
+	protected ITagDefinitionSvc myTagDefinitionSvc;
+	@Autowired
 	protected PlatformTransactionManager myTxManager;
 	@Autowired
 	@Qualifier("myValueSetDaoDstu2")
@@ -168,6 +174,8 @@ public abstract class BaseJpaDstu2Test extends BaseJpaTest {
 	public void beforePurgeDatabase() {
 		final EntityManager entityManager = this.myEntityManager;
 		purgeDatabase(entityManager, myTxManager);
+		myTagDefinitionSvc.clearCache();
+		myForcedIdSvc.clearCache();
 	}
 
 	@Before
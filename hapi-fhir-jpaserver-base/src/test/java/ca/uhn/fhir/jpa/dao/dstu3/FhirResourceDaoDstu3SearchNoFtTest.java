@@ -3,12 +3,15 @@ package ca.uhn.fhir.jpa.dao.dstu3;
 import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.containsInRelativeOrder;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.hasItems;
 import static org.hamcrest.Matchers.not;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -18,17 +21,20 @@ import java.io.IOException;
 import java.math.BigDecimal;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 
 import javax.servlet.http.HttpServletRequest;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.DateUtils;
 import org.hl7.fhir.dstu3.model.*;
 import org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent;
 import org.hl7.fhir.dstu3.model.Bundle.BundleType;
 import org.hl7.fhir.dstu3.model.Bundle.HTTPVerb;
 import org.hl7.fhir.dstu3.model.ContactPoint.ContactPointSystem;
 import org.hl7.fhir.dstu3.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.dstu3.model.Patient.LinkType;
 import org.hl7.fhir.dstu3.model.Subscription.SubscriptionChannelType;
 import org.hl7.fhir.dstu3.model.Subscription.SubscriptionStatus;
 import org.hl7.fhir.instance.model.api.IAnyResource;
@@ -44,12 +50,17 @@ import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionTemplate;
 
+import ca.uhn.fhir.jpa.config.CapturingStatementInspector;
 import ca.uhn.fhir.jpa.dao.BaseHapiFhirDao;
 import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.SearchBuilder;
 import ca.uhn.fhir.jpa.dao.SearchParameterMap;
 import ca.uhn.fhir.jpa.dao.SearchParameterMap.EverythingModeEnum;
 import ca.uhn.fhir.jpa.entity.*;
+import ca.uhn.fhir.jpa.search.ISearchCoordinatorSvc;
 import ca.uhn.fhir.jpa.search.IStaleSearchDeletingSvc;
+import ca.uhn.fhir.jpa.search.PersistedJpaBundleProvider;
+import ca.uhn.fhir.jpa.search.SearchCoordinatorSvcImpl;
 import ca.uhn.fhir.model.api.IQueryParameterType;
 import ca.uhn.fhir.model.api.Include;
 import ca.uhn.fhir.model.dstu.valueset.QuantityCompararatorEnum;
@@ -59,6 +70,7 @@ import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.param.*;
 import ca.uhn.fhir.rest.server.Constants;
 import ca.uhn.fhir.rest.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.util.TestUtil;
 
@@ -402,6 +414,62 @@ public class FhirResourceDaoDstu3SearchNoFtTest extends BaseJpaDstu3Test {
 		assertTrue(patients.size() >= 2);
 	}
 
+	@Test
+	public void testSearchAllWithKeysetPaging() {
+		myDaoConfig.setKeysetPagingForUnfilteredSearches(true);
+
+		List<IIdType> ids = new ArrayList<IIdType>();
+		for (int i = 0; i < 5; i++) {
+			Patient patient = new Patient();
+			patient.addName().setFamily("Tester" + i);
+			ids.add(myPatientDao.create(patient, mySrd).getId().toUnqualifiedVersionless());
+		}
+
+		IBundleProvider results = myPatientDao.search(new SearchParameterMap());
+		assertEquals(5, results.size());
+
+		List<IIdType> actual = new ArrayList<IIdType>();
+		actual.addAll(toUnqualifiedVersionlessIds(results.getResources(0, 2)));
+		actual.addAll(toUnqualifiedVersionlessIds(results.getResources(2, 4)));
+		actual.addAll(toUnqualifiedVersionlessIds(results.getResources(4, 6)));
+		assertEquals(ids, actual);
+
+		// Pages which don't follow the last one fall back to offset paging
+		assertEquals(ids.subList(1, 3), toUnqualifiedVersionlessIds(results.getResources(1, 3)));
+		assertEquals(ids.subList(3, 5), toUnqualifiedVersionlessIds(results.getResources(3, 5)));
+	}
+
+	@Test
+	public void testSearchAllWithKeysetPagingEstimatesTotal() {
+		myDaoConfig.setKeysetPagingForUnfilteredSearches(true);
+		myDaoConfig.setKeysetPagingCountLookahead(2);
+
+		List<IIdType> ids = new ArrayList<IIdType>();
+		for (int i = 0; i < 5; i++) {
+			Patient patient = new Patient();
+			patient.addName().setFamily("Tester" + i);
+			ids.add(myPatientDao.create(patient, mySrd).getId().toUnqualifiedVersionless());
+		}
+
+		// The total isn't counted up front
+		myStatementInspector.clear();
+		myStatementInspector.setCapturing(true);
+		String uuid = ((PersistedJpaBundleProvider) myPatientDao.search(new SearchParameterMap())).getUuid();
+		myStatementInspector.setCapturing(false);
+		for (String next : myStatementInspector.getStatements()) {
+			assertThat(next.toLowerCase(), not(containsString("count(")));
+		}
+
+		// The estimate grows as the cursor moves through the results
+		int[] expectedSizes = new int[] { 3, 5, 5 };
+		List<IIdType> actual = new ArrayList<IIdType>();
+		for (int i = 0; i < expectedSizes.length; i++) {
+			IBundleProvider results = new PersistedJpaBundleProvider(uuid, myPatientDao);
+			assertEquals(expectedSizes[i], results.size());
+			actual.addAll(toUnqualifiedVersionlessIds(results.getResources(i * 2, Math.min(i * 2 + 2, 5))));
+		}
+		assertEquals(ids, actual);
+	}
 
 	@Test
 	public void testHasParameter() {
@@ -1099,6 +1167,76 @@ public class FhirResourceDaoDstu3SearchNoFtTest extends BaseJpaDstu3Test {
 		assertThat(toUnqualifiedVersionlessIds(myPatientDao.search(map)), containsInAnyOrder(id1a));
 	}
 
+	@Test
+	public void testSearchLoadedInBackground() throws Exception {
+		String methodName = "testSearchLoadedInBackground";
+		List<IIdType> ids = new ArrayList<IIdType>();
+		for (int i = 0; i < 5; i++) {
+			Patient patient = new Patient();
+			patient.addName().setFamily(methodName).addGiven("Given" + i);
+			ids.add(myPatientDao.create(patient, mySrd).getId().toUnqualifiedVersionless());
+		}
+
+		myDaoConfig.setLoadSearchResultsInBackground(true);
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringParam(methodName));
+		params.setSort(new SortSpec(Patient.SP_GIVEN, SortOrderEnum.DESC));
+		PersistedJpaBundleProvider provider = (PersistedJpaBundleProvider) myPatientDao.search(params);
+		assertEquals(5, provider.size());
+		assertEquals(Arrays.asList(ids.get(4), ids.get(3)), toUnqualifiedVersionlessIds(provider.getResources(0, 2)));
+
+		// Once stored, the results are read from the database
+		((SearchCoordinatorSvcImpl) mySearchCoordinatorSvc).awaitSearchCompletion(provider.getUuid());
+		Search search = mySearchEntityDao.findByUuid(provider.getUuid());
+		assertEquals(SearchStatusEnum.FINISHED, search.getSearchStatus());
+		assertEquals(5, search.getNumLoaded().intValue());
+
+		provider = new PersistedJpaBundleProvider(provider.getUuid(), myPatientDao);
+		assertEquals(5, provider.size());
+		assertEquals(Arrays.asList(ids.get(2), ids.get(1), ids.get(0)), toUnqualifiedVersionlessIds(provider.getResources(2, 5)));
+	}
+
+	@Test
+	public void testSearchPageReturnedBeforeSearchFinishes() throws Exception {
+		String methodName = "testSearchPageReturnedBeforeSearchFinishes";
+		final List<Long> pids = new ArrayList<Long>();
+		for (int i = 0; i < 3; i++) {
+			Patient patient = new Patient();
+			patient.addName().setFamily(methodName);
+			pids.add(myPatientDao.create(patient, mySrd).getId().getIdPartAsLong());
+		}
+
+		final CountDownLatch finishLatch = new CountDownLatch(1);
+		Search search = SearchBuilder.newSearchEntity(new SearchParameterMap(), "Patient", null);
+		mySearchCoordinatorSvc.submitSearch(search, new ISearchCoordinatorSvc.IPidLoader() {
+			@Override
+			public void loadPids(ISearchCoordinatorSvc.IPidCallback theCallback) {
+				theCallback.addPids(pids.subList(0, 2));
+				try {
+					finishLatch.await();
+				} catch (InterruptedException e) {
+					throw new InternalErrorException(e);
+				}
+				theCallback.addPids(pids.subList(2, 3));
+			}
+		});
+
+		try {
+			// The first page only needs the first two results
+			assertEquals(pids.subList(0, 2), mySearchCoordinatorSvc.getResourcePids(search.getUuid(), 0, 2));
+			assertEquals(SearchStatusEnum.LOADING, mySearchEntityDao.findByUuid(search.getUuid()).getSearchStatus());
+		} finally {
+			finishLatch.countDown();
+		}
+
+		assertEquals(3, mySearchCoordinatorSvc.getTotalCount(search.getUuid()));
+		((SearchCoordinatorSvcImpl) mySearchCoordinatorSvc).awaitSearchCompletion(search.getUuid());
+		search = mySearchEntityDao.findByUuid(search.getUuid());
+		assertEquals(SearchStatusEnum.FINISHED, search.getSearchStatus());
+		assertEquals(3, search.getNumLoaded().intValue());
+		assertEquals(3, search.getTotalCount().intValue());
+	}
+
 	@Test
 	public void testSearchNameParam() {
 		IIdType id1;
@@ -1463,6 +1601,93 @@ public class FhirResourceDaoDstu3SearchNoFtTest extends BaseJpaDstu3Test {
 
 	}
 
+	@Test
+	public void testSearchReusesIdenticalSearch() {
+		String methodName = "testSearchReusesIdenticalSearch";
+		myDaoConfig.setReuseCachedSearchResultsForMillis(DateUtils.MILLIS_PER_MINUTE);
+
+		Patient patient = new Patient();
+		patient.addName().setFamily(methodName).addGiven("John");
+		IIdType pid1 = myPatientDao.create(patient, mySrd).getId().toUnqualifiedVersionless();
+		patient = new Patient();
+		patient.addName().setFamily(methodName).addGiven("Jane");
+		IIdType pid2 = myPatientDao.create(patient, mySrd).getId().toUnqualifiedVersionless();
+
+		long hits = mySearchReuseSvc.getCacheStats().hitCount();
+		long misses = mySearchReuseSvc.getCacheStats().missCount();
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringParam(methodName));
+		params.add(Patient.SP_GIVEN, new StringOrListParam().addOr(new StringParam("John")).addOr(new StringParam("Jane")));
+		PersistedJpaBundleProvider first = (PersistedJpaBundleProvider) myPatientDao.search(params);
+		assertThat(toUnqualifiedVersionlessIds(first), containsInAnyOrder(pid1, pid2));
+
+		// Same search, with the parameters and values in a different order
+		params = new SearchParameterMap();
+		params.add(Patient.SP_GIVEN, new StringOrListParam().addOr(new StringParam("Jane")).addOr(new StringParam("John")));
+		params.add(Patient.SP_FAMILY, new StringParam(methodName));
+		PersistedJpaBundleProvider second = (PersistedJpaBundleProvider) myPatientDao.search(params);
+		assertEquals(first.getUuid(), second.getUuid());
+		assertEquals(hits + 1, mySearchReuseSvc.getCacheStats().hitCount());
+		assertEquals(misses + 1, mySearchReuseSvc.getCacheStats().missCount());
+
+		// A different search is not reused
+		params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringParam(methodName));
+		PersistedJpaBundleProvider third = (PersistedJpaBundleProvider) myPatientDao.search(params);
+		assertThat(third.getUuid(), not(first.getUuid()));
+
+		// Nor is a search made before a write to the same resource type
+		patient = new Patient();
+		patient.addName().setFamily(methodName).addGiven("John");
+		IIdType pid3 = myPatientDao.create(patient, mySrd).getId().toUnqualifiedVersionless();
+
+		params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringParam(methodName));
+		params.add(Patient.SP_GIVEN, new StringOrListParam().addOr(new StringParam("John")).addOr(new StringParam("Jane")));
+		PersistedJpaBundleProvider fourth = (PersistedJpaBundleProvider) myPatientDao.search(params);
+		assertThat(fourth.getUuid(), not(first.getUuid()));
+		assertThat(toUnqualifiedVersionlessIds(fourth), containsInAnyOrder(pid1, pid2, pid3));
+		assertEquals(hits + 1, mySearchReuseSvc.getCacheStats().hitCount());
+		assertEquals(misses + 3, mySearchReuseSvc.getCacheStats().missCount());
+	}
+
+	@Test
+	public void testSearchReuseSkipsKeysetSearch() {
+		myDaoConfig.setReuseCachedSearchResultsForMillis(DateUtils.MILLIS_PER_MINUTE);
+		myDaoConfig.setKeysetPagingForUnfilteredSearches(true);
+
+		Patient patient = new Patient();
+		patient.addName().setFamily("testSearchReuseSkipsKeysetSearch");
+		myPatientDao.create(patient, mySrd);
+
+		PersistedJpaBundleProvider first = (PersistedJpaBundleProvider) myPatientDao.search(new SearchParameterMap());
+		PersistedJpaBundleProvider second = (PersistedJpaBundleProvider) myPatientDao.search(new SearchParameterMap());
+		assertThat(second.getUuid(), not(first.getUuid()));
+	}
+
+	@Test
+	public void testSearchReuseSkipsSearchCloseToExpiry() throws Exception {
+		String methodName = "testSearchReuseSkipsSearchCloseToExpiry";
+		myDaoConfig.setReuseCachedSearchResultsForMillis(DateUtils.MILLIS_PER_MINUTE);
+		myDaoConfig.setExpireSearchResultsAfterMillis(2000);
+
+		Patient patient = new Patient();
+		patient.addName().setFamily(methodName);
+		myPatientDao.create(patient, mySrd);
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringParam(methodName));
+		PersistedJpaBundleProvider first = (PersistedJpaBundleProvider) myPatientDao.search(params);
+
+		// More than half of the expiry period has passed, so the search isn't handed out again
+		Thread.sleep(1500);
+		params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringParam(methodName));
+		PersistedJpaBundleProvider second = (PersistedJpaBundleProvider) myPatientDao.search(params);
+		assertThat(second.getUuid(), not(first.getUuid()));
+	}
+
 	@Test
 	public void testSearchStringParam() throws Exception {
 		IIdType pid1;
@@ -1508,12 +1733,27 @@ public class FhirResourceDaoDstu3SearchNoFtTest extends BaseJpaDstu3Test {
 
 	@After
 	public final void after() {
+		myStatementInspector.setCapturing(false);
+		myStatementInspector.clear();
 		myDaoConfig.setExpireSearchResults(new DaoConfig().isExpireSearchResults());
 		myDaoConfig.setExpireSearchResultsAfterMillis(new DaoConfig().getExpireSearchResultsAfterMillis());
+		myDaoConfig.setExpireSearchResultsTimeBudgetMillis(new DaoConfig().getExpireSearchResultsTimeBudgetMillis());
+		myDaoConfig.setIncludeLimit(new DaoConfig().getIncludeLimit());
+		myDaoConfig.setIncludeQueryChunkSize(new DaoConfig().getIncludeQueryChunkSize());
+		myDaoConfig.setKeysetPagingCountLookahead(new DaoConfig().getKeysetPagingCountLookahead());
+		myDaoConfig.setKeysetPagingForUnfilteredSearches(new DaoConfig().isKeysetPagingForUnfilteredSearches());
+		myDaoConfig.setLoadSearchResultsInBackground(new DaoConfig().isLoadSearchResultsInBackground());
+		myDaoConfig.setReuseCachedSearchResultsForMillis(new DaoConfig().getReuseCachedSearchResultsForMillis());
 	}
 	
+	@Autowired
+	protected ISearchCoordinatorSvc mySearchCoordinatorSvc;
+
 	@Autowired
 	protected IStaleSearchDeletingSvc myStaleSearchDeletingSvc;
+
+	@Autowired
+	private CapturingStatementInspector myStatementInspector;
 	
 
 	@Test
@@ -1580,6 +1820,33 @@ public class FhirResourceDaoDstu3SearchNoFtTest extends BaseJpaDstu3Test {
 		assertThat(toUnqualifiedVersionlessIds(bundleProvider), not(containsInAnyOrder(pid1, pid2)));
 	}
 
+	@Test
+	public void testSearchPagesExpiryInBatches() throws Exception {
+		Patient patient = new Patient();
+		patient.addName().setFamily("EXPIRE");
+		myPatientDao.create(patient, mySrd);
+
+		for (int i = 0; i < 150; i++) {
+			SearchParameterMap params = new SearchParameterMap();
+			params.add(Patient.SP_FAMILY, new StringParam("EXPIRE"));
+			assertEquals(1, myPatientDao.search(params).size());
+		}
+		long searchCount = mySearchEntityDao.count();
+		assertThat(searchCount, greaterThan(100L));
+
+		Thread.sleep(20);
+		myDaoConfig.setExpireSearchResultsAfterMillis(10);
+
+		// A pass always deletes at least one batch, even if it has no time to spare
+		myDaoConfig.setExpireSearchResultsTimeBudgetMillis(1);
+		myStaleSearchDeletingSvc.pollForStaleSearchesAndDeleteThem();
+		assertEquals(searchCount - 100, mySearchEntityDao.count());
+
+		myDaoConfig.setExpireSearchResultsTimeBudgetMillis(DateUtils.MILLIS_PER_MINUTE);
+		myStaleSearchDeletingSvc.pollForStaleSearchesAndDeleteThem();
+		assertEquals(0, mySearchEntityDao.count());
+	}
+
 	@Test
 	public void testSearchStringParamReallyLong() {
 		String methodName = "testSearchStringParamReallyLong";
@@ -1921,6 +2188,79 @@ public class FhirResourceDaoDstu3SearchNoFtTest extends BaseJpaDstu3Test {
 		}
 	}
 
+	@Test
+	public void testSearchWithIncludesChunkedAndLimited() {
+		String methodName = "testSearchWithIncludesChunkedAndLimited";
+		for (int i = 0; i < 5; i++) {
+			Organization org = new Organization();
+			org.setName(methodName + i);
+			IIdType orgId = myOrganizationDao.create(org, mySrd).getId().toUnqualifiedVersionless();
+
+			Practitioner pract = new Practitioner();
+			pract.addName().setFamily(methodName + i);
+			IIdType practId = myPractitionerDao.create(pract, mySrd).getId().toUnqualifiedVersionless();
+
+			Patient patient = new Patient();
+			patient.addName().setFamily(methodName);
+			patient.getManagingOrganization().setReferenceElement(orgId);
+			patient.addGeneralPractitioner().setReferenceElement(practId);
+			myPatientDao.create(patient, mySrd);
+		}
+
+		// Both includes are loaded together, two patients at a time
+		myDaoConfig.setIncludeQueryChunkSize(2);
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringParam(methodName));
+		params.addInclude(Patient.INCLUDE_ORGANIZATION);
+		params.addInclude(Patient.INCLUDE_GENERAL_PRACTITIONER);
+		List<IIdType> resources = toUnqualifiedVersionlessIds(myPatientDao.search(params));
+		assertEquals(15, resources.size());
+
+		myDaoConfig.setIncludeLimit(3);
+		params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringParam(methodName));
+		params.addInclude(Patient.INCLUDE_ORGANIZATION);
+		params.addInclude(Patient.INCLUDE_GENERAL_PRACTITIONER);
+		resources = toUnqualifiedVersionlessIds(myPatientDao.search(params));
+		assertEquals(8, resources.size());
+	}
+
+	@Test
+	public void testSearchWithIncludesLimitIgnoresResourcesAlreadyFound() {
+		String methodName = "testSearchWithIncludesLimitIgnoresResourcesAlreadyFound";
+
+		Patient other = new Patient();
+		other.addName().setFamily(methodName + "Other");
+		IIdType otherId = myPatientDao.create(other, mySrd).getId().toUnqualifiedVersionless();
+
+		// This patient is both a search match and the target of the other matches' links
+		Patient linked = new Patient();
+		linked.addName().setFamily(methodName);
+		linked.addLink().setType(LinkType.SEEALSO).setOther(new Reference(otherId));
+		IIdType linkedId = myPatientDao.create(linked, mySrd).getId().toUnqualifiedVersionless();
+
+		List<IIdType> expected = new ArrayList<IIdType>();
+		expected.add(otherId);
+		expected.add(linkedId);
+		for (int i = 0; i < 4; i++) {
+			Patient patient = new Patient();
+			patient.addName().setFamily(methodName);
+			patient.addLink().setType(LinkType.SEEALSO).setOther(new Reference(linkedId));
+			expected.add(myPatientDao.create(patient, mySrd).getId().toUnqualifiedVersionless());
+		}
+
+		/*
+		 * Only one of the linked patients wasn't already a match, so a limit of one
+		 * is enough to include it
+		 */
+		myDaoConfig.setIncludeLimit(1);
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringParam(methodName).setExact(true));
+		params.addInclude(Patient.INCLUDE_LINK);
+		List<IIdType> resources = toUnqualifiedVersionlessIds(myPatientDao.search(params));
+		assertThat(resources, containsInAnyOrder(expected.toArray(new IIdType[0])));
+	}
+
 	@SuppressWarnings("unused")
 	@Test
 	public void testSearchWithIncludesParameterNoRecurse() {
@@ -2047,6 +2387,33 @@ public class FhirResourceDaoDstu3SearchNoFtTest extends BaseJpaDstu3Test {
 		}
 	}
 
+	@Test
+	public void testSearchWithIncludesStarAndParameter() {
+		String methodName = "testSearchWithIncludesStarAndParameter";
+		Organization parentOrg = new Organization();
+		parentOrg.setName(methodName + "_O1Parent");
+		IIdType parentOrgId = myOrganizationDao.create(parentOrg, mySrd).getId().toUnqualifiedVersionless();
+
+		Organization org = new Organization();
+		org.setName(methodName + "_O1");
+		org.setPartOf(new Reference(parentOrgId));
+		IIdType orgId = myOrganizationDao.create(org, mySrd).getId().toUnqualifiedVersionless();
+
+		Patient patient = new Patient();
+		patient.addName().setFamily(methodName);
+		patient.getManagingOrganization().setReferenceElement(orgId);
+		IIdType patientId = myPatientDao.create(patient, mySrd).getId().toUnqualifiedVersionless();
+
+		// The wildcard is only used in the first round, and the limit is large enough to overflow
+		myDaoConfig.setIncludeLimit(Integer.MAX_VALUE);
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringParam(methodName));
+		params.addInclude(new Include("*").asNonRecursive());
+		params.addInclude(Organization.INCLUDE_PARTOF.asRecursive());
+		List<IIdType> resources = toUnqualifiedVersionlessIds(myPatientDao.search(params));
+		assertThat(resources, containsInAnyOrder(patientId, orgId, parentOrgId));
+	}
+
 	@Test
 	public void testSearchWithIncludesStarRecurse() {
 		String methodName = "testSearchWithIncludes";
@@ -2308,6 +2675,116 @@ public class FhirResourceDaoDstu3SearchNoFtTest extends BaseJpaDstu3Test {
 
 	}
 
+	@Test
+	public void testSearchWithMultipleParametersRunsOneStatement() {
+		String methodName = "testSearchWithMultipleParametersRunsOneStatement";
+
+		Patient patient = new Patient();
+		patient.addIdentifier().setSystem("urn:system").setValue(methodName);
+		patient.addName().setFamily(methodName);
+		patient.setGender(AdministrativeGender.MALE);
+		patient.setBirthDateElement(new DateType("2011-01-01"));
+		IIdType id1 = myPatientDao.create(patient, mySrd).getId().toUnqualifiedVersionless();
+
+		patient = new Patient();
+		patient.addIdentifier().setSystem("urn:system").setValue(methodName);
+		patient.addName().setFamily(methodName);
+		patient.setGender(AdministrativeGender.FEMALE);
+		patient.setBirthDateElement(new DateType("2011-01-01"));
+		myPatientDao.create(patient, mySrd);
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_IDENTIFIER, new TokenParam("urn:system", methodName));
+		params.add(Patient.SP_FAMILY, new StringParam(methodName));
+		params.add(Patient.SP_GENDER, new TokenParam(null, "male"));
+		params.add(Patient.SP_BIRTHDATE, new DateParam("2011-01-01"));
+
+		myStatementInspector.clear();
+		myStatementInspector.setCapturing(true);
+		List<IIdType> actual = toUnqualifiedVersionlessIds(myPatientDao.search(params));
+		myStatementInspector.setCapturing(false);
+		assertThat(actual, contains(id1));
+
+		// All four parameters are matched by a single query against the index tables
+		int indexQueries = 0;
+		for (String next : myStatementInspector.getStatements()) {
+			String sql = next.toLowerCase();
+			if (sql.startsWith("select") && sql.contains("hfj_spidx_")) {
+				indexQueries++;
+			}
+		}
+		assertEquals(myStatementInspector.getStatements().toString(), 1, indexQueries);
+	}
+
+	@Test
+	public void testSearchWithResourceMetadata() {
+		String methodName = "testSearchWithResourceMetadata";
+
+		Organization org = new Organization();
+		org.setId("Organization/" + methodName);
+		org.setName(methodName);
+		org.getMeta().addTag("urn:tags", methodName + "Tag", "Tag Label");
+		org.getMeta().addSecurity("urn:security", methodName + "Security", null);
+		org.getMeta().addProfile("http://" + methodName);
+		myOrganizationDao.update(org, mySrd);
+		org.setName(methodName + "2");
+		myOrganizationDao.update(org, mySrd);
+
+		org = new Organization();
+		org.setName(methodName);
+		IIdType noTagsId = myOrganizationDao.create(org, mySrd).getId().toUnqualifiedVersionless();
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Organization.SP_NAME, new StringParam(methodName));
+		IBundleProvider results = myOrganizationDao.search(params);
+		results.size();
+
+		myStatementInspector.clear();
+		myStatementInspector.setCapturing(true);
+		List<IBaseResource> resources = results.getResources(0, 2);
+		myStatementInspector.setCapturing(false);
+		assertEquals(2, resources.size());
+
+		/*
+		 * The page is built from one query for the resources (with their forced IDs) and
+		 * one for their tags, however many resources and tags there are
+		 */
+		List<String> resourceQueries = new ArrayList<String>();
+		for (String next : myStatementInspector.getStatements()) {
+			String sql = next.toLowerCase();
+			if (sql.startsWith("select") && (sql.contains("hfj_resource ") || sql.contains("hfj_res_ver ") || sql.contains("hfj_forced_id ") || sql.contains("hfj_res_tag ") || sql.contains("hfj_tag_def "))) {
+				resourceQueries.add(next);
+			}
+		}
+		assertEquals(resourceQueries.toString(), 2, resourceQueries.size());
+
+		Organization withTags = null;
+		Organization withoutTags = null;
+		for (IBaseResource next : resources) {
+			if (next.getIdElement().getIdPart().equals(methodName)) {
+				withTags = (Organization) next;
+			} else {
+				withoutTags = (Organization) next;
+			}
+		}
+
+		assertEquals("Organization/" + methodName + "/_history/2", withTags.getIdElement().toUnqualified().getValue());
+		assertEquals("2", withTags.getMeta().getVersionId());
+		assertNotNull(withTags.getMeta().getLastUpdated());
+		assertEquals(1, withTags.getMeta().getTag().size());
+		assertEquals(methodName + "Tag", withTags.getMeta().getTag().get(0).getCode());
+		assertEquals("Tag Label", withTags.getMeta().getTag().get(0).getDisplay());
+		assertEquals(1, withTags.getMeta().getSecurity().size());
+		assertEquals(methodName + "Security", withTags.getMeta().getSecurity().get(0).getCode());
+		assertEquals(1, withTags.getMeta().getProfile().size());
+		assertEquals("http://" + methodName, withTags.getMeta().getProfile().get(0).getValue());
+
+		assertEquals(noTagsId.getIdPart(), withoutTags.getIdElement().getIdPart());
+		assertEquals("1", withoutTags.getMeta().getVersionId());
+		assertEquals(0, withoutTags.getMeta().getTag().size());
+		assertEquals(0, withoutTags.getMeta().getProfile().size());
+	}
+
 	@Test
 	public void testSearchWithSecurityAndProfileParams() {
 		String methodName = "testSearchWithSecurityAndProfileParams";
@@ -80,6 +80,8 @@ public class FhirResourceDaoDstu3SearchWithLuceneDisabledTest extends BaseJpaTes
 	@Autowired
 	private FhirContext myFhirCtx;
 	@Autowired
+	private IForcedIdSvc myForcedIdSvc;
+	@Autowired
 	@Qualifier("myImmunizationDaoDstu3")
 	private IFhirResourceDao<Immunization> myImmunizationDao;
 	@Autowired
@@ -137,6 +139,8 @@ public class FhirResourceDaoDstu3SearchWithLuceneDisabledTest extends BaseJpaTes
 	@Qualifier("mySystemProviderDstu3")
 	private JpaSystemProviderDstu3 mySystemProvider;
 
+	@Autowired
+	protected ITagDefinitionSvc myTagDefinitionSvc;
 	@Autowired
 	protected PlatformTransactionManager myTxManager;
 
@@ -149,6 +153,8 @@ public class FhirResourceDaoDstu3SearchWithLuceneDisabledTest extends BaseJpaTes
 	public void beforePurgeDatabase() {
 		final EntityManager entityManager = this.myEntityManager;
 		purgeDatabase(entityManager, myTxManager);
+		myTagDefinitionSvc.clearCache();
+		myForcedIdSvc.clearCache();
 	}
 
 	@Before
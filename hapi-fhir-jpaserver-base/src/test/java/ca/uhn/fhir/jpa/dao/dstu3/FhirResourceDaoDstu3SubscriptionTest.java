@@ -19,19 +19,23 @@ import java.util.List;
 
 import javax.persistence.TypedQuery;
 
+import org.hl7.fhir.dstu3.model.DateTimeType;
 import org.hl7.fhir.dstu3.model.Observation;
 import org.hl7.fhir.dstu3.model.Observation.ObservationStatus;
 import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Quantity;
 import org.hl7.fhir.dstu3.model.Subscription;
 import org.hl7.fhir.dstu3.model.Subscription.SubscriptionChannelType;
 import org.hl7.fhir.dstu3.model.Subscription.SubscriptionStatus;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import ca.uhn.fhir.jpa.dao.DaoConfig;
 import ca.uhn.fhir.jpa.dao.SearchParameterMap;
 import ca.uhn.fhir.jpa.dao.data.ISubscriptionFlaggedResourceDataDao;
 import ca.uhn.fhir.jpa.dao.data.ISubscriptionTableDao;
@@ -58,6 +62,12 @@ public class FhirResourceDaoDstu3SubscriptionTest extends BaseJpaDstu3Test {
 	@Autowired
 	private ISubscriptionTableDao mySubscriptionTableDao;
 
+	@After
+	public void after() {
+		myDaoConfig.setSubscriptionMatchOnWrite(new DaoConfig().isSubscriptionMatchOnWrite());
+		myDaoConfig.setSubscriptionPollDelay(new DaoConfig().getSubscriptionPollDelay());
+	}
+
 	@Before
 	public void beforeEnableSubscription() {
 		myDaoConfig.setSubscriptionEnabled(true);
@@ -304,6 +314,132 @@ public class FhirResourceDaoDstu3SubscriptionTest extends BaseJpaDstu3Test {
 
 	}
 
+	@Test
+	public void testSubscriptionResourcesFlaggedOnWrite() throws Exception {
+		myDaoConfig.setSubscriptionMatchOnWrite(true);
+
+		Patient p = new Patient();
+		p.addName().setFamily("testSubscriptionResourcesFlaggedOnWrite");
+		IIdType pId = myPatientDao.create(p, mySrd).getId().toUnqualifiedVersionless();
+
+		Subscription subs = new Subscription();
+		subs.getChannel().setType(SubscriptionChannelType.WEBSOCKET);
+		subs.setCriteria("Observation?subject=Patient/" + pId.getIdPart());
+		subs.setStatus(SubscriptionStatus.ACTIVE);
+		Long subsSubject = mySubscriptionDao.getSubscriptionTablePidForSubscriptionResource(mySubscriptionDao.create(subs, mySrd).getId());
+
+		subs = new Subscription();
+		subs.getChannel().setType(SubscriptionChannelType.WEBSOCKET);
+		subs.setCriteria("Observation?code=http://foo|bar&status=final");
+		subs.setStatus(SubscriptionStatus.ACTIVE);
+		Long subsCode = mySubscriptionDao.getSubscriptionTablePidForSubscriptionResource(mySubscriptionDao.create(subs, mySrd).getId());
+
+		subs = new Subscription();
+		subs.getChannel().setType(SubscriptionChannelType.WEBSOCKET);
+		subs.setCriteria("Observation?date=gt2010-01-01");
+		subs.setStatus(SubscriptionStatus.ACTIVE);
+		Long subsDate = mySubscriptionDao.getSubscriptionTablePidForSubscriptionResource(mySubscriptionDao.create(subs, mySrd).getId());
+
+		subs = new Subscription();
+		subs.getChannel().setType(SubscriptionChannelType.WEBSOCKET);
+		subs.setCriteria("Observation?value-quantity=gt5|http://unitsofmeasure.org|mg");
+		subs.setStatus(SubscriptionStatus.ACTIVE);
+		Long subsQuantity = mySubscriptionDao.getSubscriptionTablePidForSubscriptionResource(mySubscriptionDao.create(subs, mySrd).getId());
+
+		Observation obs = new Observation();
+		obs.getSubject().setReferenceElement(pId);
+		obs.setStatus(ObservationStatus.FINAL);
+		IIdType obsId1 = myObservationDao.create(obs, mySrd).getId().toUnqualifiedVersionless();
+
+		obs = new Observation();
+		obs.getCode().addCoding().setSystem("http://foo").setCode("bar");
+		obs.setStatus(ObservationStatus.FINAL);
+		obs.setEffective(new DateTimeType("2011-01-01"));
+		obs.setValue(new Quantity().setValue(10).setSystem("http://unitsofmeasure.org").setCode("mg"));
+		IIdType obsId2 = myObservationDao.create(obs, mySrd).getId().toUnqualifiedVersionless();
+
+		obs = new Observation();
+		obs.getCode().addCoding().setSystem("http://foo").setCode("bar");
+		obs.setStatus(ObservationStatus.PRELIMINARY);
+		obs.setEffective(new DateTimeType("2001-01-01"));
+		obs.setValue(new Quantity().setValue(2).setSystem("http://unitsofmeasure.org").setCode("mg"));
+		myObservationDao.create(obs, mySrd);
+
+		assertEquals(4, mySubscriptionFlaggedResourceDataDao.count());
+		assertEquals(0, mySubscriptionDao.pollForNewUndeliveredResources());
+
+		assertThat(toUnqualifiedVersionlessIds(mySubscriptionDao.getUndeliveredResourcesAndPurge(subsSubject)), contains(obsId1));
+		assertThat(toUnqualifiedVersionlessIds(mySubscriptionDao.getUndeliveredResourcesAndPurge(subsCode)), contains(obsId2));
+		assertThat(toUnqualifiedVersionlessIds(mySubscriptionDao.getUndeliveredResourcesAndPurge(subsDate)), contains(obsId2));
+		assertThat(toUnqualifiedVersionlessIds(mySubscriptionDao.getUndeliveredResourcesAndPurge(subsQuantity)), contains(obsId2));
+
+		/*
+		 * Make sure that reindexing doesn't trigger
+		 */
+		mySystemDao.markAllResourcesForReindexing();
+		mySystemDao.performReindexingPass(100);
+		assertEquals(0, mySubscriptionFlaggedResourceDataDao.count());
+	}
+
+	@Test
+	public void testSubscriptionResourcesFlaggedOnWriteCriteriaNotMatchedInMemoryArePolled() throws Exception {
+		myDaoConfig.setSubscriptionMatchOnWrite(true);
+		myDaoConfig.setSubscriptionPollDelay(0);
+
+		String methodName = "testSubscriptionResourcesFlaggedOnWriteCriteriaNotMatchedInMemoryArePolled";
+		Patient p = new Patient();
+		p.addName().setFamily(methodName);
+		IIdType pId = myPatientDao.create(p, mySrd).getId().toUnqualifiedVersionless();
+
+		// Chained parameters can't be matched in memory
+		Subscription subs = new Subscription();
+		subs.getChannel().setType(SubscriptionChannelType.WEBSOCKET);
+		subs.setCriteria("Observation?subject.family=" + methodName);
+		subs.setStatus(SubscriptionStatus.ACTIVE);
+		Long subsChained = mySubscriptionDao.getSubscriptionTablePidForSubscriptionResource(mySubscriptionDao.create(subs, mySrd).getId());
+
+		subs = new Subscription();
+		subs.getChannel().setType(SubscriptionChannelType.WEBSOCKET);
+		subs.setCriteria("Observation?subject=Patient/" + pId.getIdPart());
+		subs.setStatus(SubscriptionStatus.ACTIVE);
+		IIdType subsSubjectId = mySubscriptionDao.create(subs, mySrd).getId().toUnqualifiedVersionless();
+		Long subsSubject = mySubscriptionDao.getSubscriptionTablePidForSubscriptionResource(subsSubjectId);
+
+		Thread.sleep(100);
+
+		Observation obs = new Observation();
+		obs.getSubject().setReferenceElement(pId);
+		obs.setStatus(ObservationStatus.FINAL);
+		IIdType obsId1 = myObservationDao.create(obs, mySrd).getId().toUnqualifiedVersionless();
+
+		obs = new Observation();
+		obs.setStatus(ObservationStatus.FINAL);
+		myObservationDao.create(obs, mySrd);
+
+		Thread.sleep(100);
+
+		// Only the subscription which can be matched in memory is flagged on write
+		assertEquals(1, mySubscriptionFlaggedResourceDataDao.count());
+		assertEquals(1, mySubscriptionDao.pollForNewUndeliveredResources());
+
+		assertThat(toUnqualifiedVersionlessIds(mySubscriptionDao.getUndeliveredResourcesAndPurge(subsChained)), contains(obsId1));
+		assertThat(toUnqualifiedVersionlessIds(mySubscriptionDao.getUndeliveredResourcesAndPurge(subsSubject)), contains(obsId1));
+
+		/*
+		 * Deactivating a subscription takes effect straight away
+		 */
+		subs.setId(subsSubjectId);
+		subs.setStatus(SubscriptionStatus.OFF);
+		mySubscriptionDao.update(subs, mySrd);
+
+		obs = new Observation();
+		obs.getSubject().setReferenceElement(pId);
+		obs.setStatus(ObservationStatus.FINAL);
+		myObservationDao.create(obs, mySrd);
+
+		assertThat(toUnqualifiedVersionlessIds(mySubscriptionDao.getUndeliveredResourcesAndPurge(subsSubject)), empty());
+	}
+
 	@Test
 	public void testSubscriptionResourcesAppear() throws Exception {
 		myDaoConfig.setSubscriptionPollDelay(0);
@@ -3,11 +3,14 @@ package ca.uhn.fhir.jpa.dao.dstu3;
 import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.containsStringIgnoringCase;
 import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.startsWith;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import java.util.Set;
 
@@ -31,6 +34,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 
 import ca.uhn.fhir.jpa.dao.BaseHapiFhirSystemDao;
 import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.entity.TermValueSetExpansion;
 import ca.uhn.fhir.jpa.dao.IFhirResourceDaoCodeSystem.LookupCodeResult;
 import ca.uhn.fhir.jpa.dao.SearchParameterMap;
 import ca.uhn.fhir.jpa.entity.ResourceTable;
@@ -39,9 +43,11 @@ import ca.uhn.fhir.jpa.entity.TermConcept;
 import ca.uhn.fhir.jpa.entity.TermConceptParentChildLink.RelationshipTypeEnum;
 import ca.uhn.fhir.jpa.term.BaseHapiTerminologySvc;
 import ca.uhn.fhir.jpa.term.IHapiTerminologySvc;
+import ca.uhn.fhir.jpa.term.ITermValueSetMembershipSvc;
 import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.param.TokenParamModifier;
+import ca.uhn.fhir.rest.param.UriParam;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import ca.uhn.fhir.util.TestUtil;
@@ -57,9 +63,15 @@ public class FhirResourceDaoDstu3TerminologyTest extends BaseJpaDstu3Test {
 	@Autowired
 	private IHapiTerminologySvc myHapiTerminologySvc;
 
+	@Autowired
+	private ITermValueSetMembershipSvc myValueSetMembershipSvc;
+
 	@After
 	public void after() {
 		myDaoConfig.setDeferIndexingForCodesystemsOfSize(new DaoConfig().getDeferIndexingForCodesystemsOfSize());
+		myDaoConfig.setDeferConceptFullTextIndexing(new DaoConfig().isDeferConceptFullTextIndexing());
+		myDaoConfig.setDeferredConceptSaveBatchSize(new DaoConfig().getDeferredConceptSaveBatchSize());
+		myDaoConfig.setStoreTokenModifierExpansions(new DaoConfig().isStoreTokenModifierExpansions());
 		
 		BaseHapiTerminologySvc.setForceSaveDeferredAlwaysForUnitTest(false);
 	}
@@ -673,6 +685,44 @@ public class FhirResourceDaoDstu3TerminologyTest extends BaseJpaDstu3Test {
 		assertThat(encoded, containsStringIgnoringCase("<code value=\"childAAB\"/>"));
 	}
 
+	@Test
+	public void testIndexingIsDeferredForLargeCodeSystemsWithBulkIndexing() {
+		myDaoConfig.setDeferIndexingForCodesystemsOfSize(1);
+		myDaoConfig.setDeferredConceptSaveBatchSize(100);
+		myDaoConfig.setDeferConceptFullTextIndexing(true);
+
+		myTermSvc.setProcessDeferred(false);
+
+		createExternalCsAndLocalVs();
+
+		// One pass saves all of the concepts, and the next saves all of the relationships
+		myTermSvc.setProcessDeferred(true);
+		myTermSvc.saveDeferred();
+		myTermSvc.saveDeferred();
+		assertFalse(myTermSvc.isDeferredSavePending());
+
+		ValueSet vs = new ValueSet();
+		ConceptSetComponent include = vs.getCompose().addInclude();
+		include.setSystem(URL_MY_CODE_SYSTEM);
+		include.addFilter().setProperty("concept").setOp(FilterOperator.ISA).setValue("ParentA");
+		ValueSet result = myValueSetDao.expand(vs, null);
+		logAndValidateValueSet(result);
+
+		// Saved, but not yet indexed
+		assertEquals(0, result.getExpansion().getContains().size());
+
+		// The next pass indexes them all
+		myTermSvc.saveDeferred();
+
+		result = myValueSetDao.expand(vs, null);
+		logAndValidateValueSet(result);
+
+		assertEquals(4, result.getExpansion().getContains().size());
+
+		String encoded = myFhirCtx.newXmlParser().setPrettyPrint(true).encodeResourceToString(result);
+		assertThat(encoded, containsStringIgnoringCase("<code value=\"childAAB\"/>"));
+	}
+
 	@Test
 	public void testLookupSnomed() {
 		CodeSystem codeSystem = new CodeSystem();
@@ -912,6 +962,37 @@ public class FhirResourceDaoDstu3TerminologyTest extends BaseJpaDstu3Test {
 
 	}
 
+	@Test
+	public void testSearchCodeBelowLocalCodesystemUsingStoredExpansion() {
+		myDaoConfig.setStoreTokenModifierExpansions(true);
+		createLocalCsAndVs();
+
+		Observation obsAA = new Observation();
+		obsAA.getCode().addCoding().setSystem(URL_MY_CODE_SYSTEM).setCode("AA");
+		IIdType idAA = myObservationDao.create(obsAA, mySrd).getId().toUnqualifiedVersionless();
+
+		Observation obsBA = new Observation();
+		obsBA.getCode().addCoding().setSystem(URL_MY_CODE_SYSTEM).setCode("BA");
+		myObservationDao.create(obsBA, mySrd).getId().toUnqualifiedVersionless();
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Observation.SP_CODE, new TokenParam(URL_MY_CODE_SYSTEM, "A").setModifier(TokenParamModifier.BELOW));
+		assertThat(toUnqualifiedVersionlessIdValues(myObservationDao.search(params)), containsInAnyOrder(idAA.getValue()));
+
+		String countQuery = "SELECT COUNT(e) FROM " + TermValueSetExpansion.class.getSimpleName() + " e";
+		assertEquals(1L, myEntityManager.createQuery(countQuery, Long.class).getSingleResult().longValue());
+
+		// The second search reuses the stored expansion
+		params = new SearchParameterMap();
+		params.add(Observation.SP_CODE, new TokenParam(URL_MY_CODE_SYSTEM, "A").setModifier(TokenParamModifier.BELOW));
+		assertThat(toUnqualifiedVersionlessIdValues(myObservationDao.search(params)), containsInAnyOrder(idAA.getValue()));
+		assertEquals(1L, myEntityManager.createQuery(countQuery, Long.class).getSingleResult().longValue());
+
+		params = new SearchParameterMap();
+		params.add(Observation.SP_CODE, new TokenParam(URL_MY_CODE_SYSTEM, "AAA").setModifier(TokenParamModifier.BELOW));
+		assertThat(toUnqualifiedVersionlessIdValues(myObservationDao.search(params)), empty());
+	}
+
 	@Test
 	public void testSearchCodeInBuiltInValueSet() {
 		AllergyIntolerance ai1 = new AllergyIntolerance();
@@ -1053,6 +1134,53 @@ public class FhirResourceDaoDstu3TerminologyTest extends BaseJpaDstu3Test {
 
 	}
 
+	@Test
+	public void testSearchCodeInLocalValueSetUsingStoredExpansion() {
+		myDaoConfig.setStoreTokenModifierExpansions(true);
+		createLocalCsAndVs();
+
+		Observation obsAA = new Observation();
+		obsAA.getCode().addCoding().setSystem(URL_MY_CODE_SYSTEM).setCode("AA");
+		IIdType idAA = myObservationDao.create(obsAA, mySrd).getId().toUnqualifiedVersionless();
+
+		Observation obsBA = new Observation();
+		obsBA.getCode().addCoding().setSystem(URL_MY_CODE_SYSTEM).setCode("BA");
+		IIdType idBA = myObservationDao.create(obsBA, mySrd).getId().toUnqualifiedVersionless();
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Observation.SP_CODE, new TokenParam(null, URL_MY_VALUE_SET).setModifier(TokenParamModifier.IN));
+		assertThat(toUnqualifiedVersionlessIdValues(myObservationDao.search(params)), containsInAnyOrder(idAA.getValue(), idBA.getValue()));
+
+		// The expansion is keyed on the ValueSet resource, so the second search doesn't store another
+		String query = "SELECT e FROM " + TermValueSetExpansion.class.getSimpleName() + " e ORDER BY e.myPid";
+		List<TermValueSetExpansion> expansions = myEntityManager.createQuery(query, TermValueSetExpansion.class).getResultList();
+		assertEquals(1, expansions.size());
+		assertThat(expansions.get(0).getVersionKey(), startsWith("vs "));
+
+		params = new SearchParameterMap();
+		params.add(Observation.SP_CODE, new TokenParam(null, URL_MY_VALUE_SET).setModifier(TokenParamModifier.IN));
+		assertThat(toUnqualifiedVersionlessIdValues(myObservationDao.search(params)), containsInAnyOrder(idAA.getValue(), idBA.getValue()));
+		assertEquals(1, myEntityManager.createQuery(query, TermValueSetExpansion.class).getResultList().size());
+
+		// A new version of the ValueSet gets a new expansion, and the old one is kept for now
+		ValueSet valueSet = (ValueSet) myValueSetDao.search(ValueSet.SP_URL, new UriParam(URL_MY_VALUE_SET)).getResources(0, 1).get(0);
+		valueSet.getCompose().getIncludeFirstRep().addConcept().setCode("AA");
+		myValueSetDao.update(valueSet, mySrd);
+
+		params = new SearchParameterMap();
+		params.add(Observation.SP_CODE, new TokenParam(null, URL_MY_VALUE_SET).setModifier(TokenParamModifier.IN));
+		assertThat(toUnqualifiedVersionlessIdValues(myObservationDao.search(params)), containsInAnyOrder(idAA.getValue()));
+		expansions = myEntityManager.createQuery(query, TermValueSetExpansion.class).getResultList();
+		assertEquals(2, expansions.size());
+
+		assertEquals(0, myValueSetMembershipSvc.deleteSupersededExpansions(expansions.get(1).getCreated()));
+		assertEquals(1, myValueSetMembershipSvc.deleteSupersededExpansions(new Date(System.currentTimeMillis() + 1000)));
+
+		expansions = myEntityManager.createQuery(query, TermValueSetExpansion.class).getResultList();
+		assertEquals(1, expansions.size());
+		assertThat(toUnqualifiedVersionlessIdValues(myObservationDao.search(params)), containsInAnyOrder(idAA.getValue()));
+	}
+
 	@Test
 	public void testSearchCodeInValueSetThatImportsInvalidCodeSystem() {
 		ValueSet valueSet = new ValueSet();
@@ -82,19 +82,26 @@ import org.hl7.fhir.dstu3.model.UriType;
 import org.hl7.fhir.instance.model.api.IAnyResource;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Ignore;
 import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.mockito.ArgumentCaptor;
 
 import com.google.common.collect.Lists;
 
+import ca.uhn.fhir.jpa.config.CapturingStatementInspector;
 import ca.uhn.fhir.jpa.dao.BaseHapiFhirDao;
 import ca.uhn.fhir.jpa.dao.BaseHapiFhirResourceDao;
+import ca.uhn.fhir.jpa.dao.DaoConfig;
 import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
 import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.jpa.entity.ResourceEncodingEnum;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamString;
+import ca.uhn.fhir.jpa.entity.TagDefinition;
 import ca.uhn.fhir.jpa.entity.TagTypeEnum;
+import ca.uhn.fhir.jpa.search.PersistedJpaBundleProvider;
 import ca.uhn.fhir.model.api.IQueryParameterType;
 import ca.uhn.fhir.model.api.Include;
 import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
@@ -129,6 +136,19 @@ public class FhirResourceDaoDstu3Test extends BaseJpaDstu3Test {
 
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(FhirResourceDaoDstu3Test.class);
 
+	@Autowired
+	private CapturingStatementInspector myStatementInspector;
+
+	@After
+	public void afterResetDao() {
+		myStatementInspector.setCapturing(false);
+		myStatementInspector.clear();
+		myDaoConfig.setDeduplicateCurrentVersionBody(new DaoConfig().isDeduplicateCurrentVersionBody());
+		myDaoConfig.setHistoryCountLookahead(new DaoConfig().getHistoryCountLookahead());
+		myDaoConfig.setResourceBodyCacheMaxChars(new DaoConfig().getResourceBodyCacheMaxChars());
+		myDaoConfig.setResourceEncoding(new DaoConfig().getResourceEncoding());
+	}
+
 	private void assertGone(IIdType theId) {
 		try {
 			assertNotGone(theId);
@@ -1002,6 +1022,26 @@ public class FhirResourceDaoDstu3Test extends BaseJpaDstu3Test {
 
 	}
 
+	@Test
+	public void testDeduplicateCurrentVersionBodies() {
+		Patient p1 = new Patient();
+		p1.addName().setFamily("testDeduplicateCurrentVersionBodies01");
+		IIdType id1 = myPatientDao.create(p1, mySrd).getId();
+		p1.setId(id1.toUnqualifiedVersionless());
+		p1.getName().get(0).setFamily("testDeduplicateCurrentVersionBodies02");
+		IIdType id2 = myPatientDao.update(p1, mySrd).getId();
+
+		Long pid = id1.getIdPartAsLong();
+		assertNotNull(myResourceHistoryTableDao.findForIdAndVersion(pid, 2).getResource());
+
+		assertThat(mySystemDao.deduplicateCurrentVersionBodies(), greaterThan(0));
+		assertNotNull(myResourceHistoryTableDao.findForIdAndVersion(pid, 1).getResource());
+		assertNull(myResourceHistoryTableDao.findForIdAndVersion(pid, 2).getResource());
+
+		assertEquals("testDeduplicateCurrentVersionBodies01", myPatientDao.read(id1, mySrd).getName().get(0).getFamily());
+		assertEquals("testDeduplicateCurrentVersionBodies02", myPatientDao.read(id2, mySrd).getName().get(0).getFamily());
+	}
+
 	@Test
 	public void testDeleteFailsIfIncomingLinks() {
 		String methodName = "testDeleteFailsIfIncomingLinks";
@@ -1578,6 +1618,47 @@ public class FhirResourceDaoDstu3Test extends BaseJpaDstu3Test {
 
 	}
 
+	@Test
+	public void testHistoryOverMultiplePagesWithEstimatedCount() throws Exception {
+		// The lookahead is no larger than a page, but each page still advertises the next
+		int pageSize = 10;
+		myDaoConfig.setHistoryCountLookahead(pageSize);
+
+		Patient patient = new Patient();
+		patient.addName().setFamily("testHistoryOverMultiplePagesWithEstimatedCount");
+		IIdType id = myPatientDao.create(patient, mySrd).getId().toUnqualifiedVersionless();
+		for (int i = 0; i < 30; i++) {
+			patient.setId(id);
+			patient.getName().get(0).getFamilyElement().setValue("testHistoryOverMultiplePagesWithEstimatedCount_" + i);
+			myPatientDao.update(patient, mySrd);
+		}
+
+		IBundleProvider history = myPatientDao.history(id, null, null, mySrd);
+		assertEquals(11, history.size());
+		String uuid = ((PersistedJpaBundleProvider) history).getUuid();
+
+		/*
+		 * Each page is loaded by a new provider, the way the paging provider does it, so
+		 * the estimate grows by one page at a time until the end of the history
+		 */
+		int[] expectedSizes = new int[] { 11, 21, 31, 31 };
+		for (int i = 0; i < expectedSizes.length; i++) {
+			int fromIndex = i * pageSize;
+			PersistedJpaBundleProvider page = new PersistedJpaBundleProvider(uuid, myPatientDao);
+			assertEquals(expectedSizes[i], page.size());
+			if (i < expectedSizes.length - 1) {
+				assertTrue("Page " + i + " should advertise a next page", page.size() > fromIndex + pageSize);
+			}
+
+			List<IBaseResource> resources = page.getResources(fromIndex, Math.min(fromIndex + pageSize, expectedSizes[i]));
+			assertEquals(Math.min(pageSize, 31 - fromIndex), resources.size());
+			for (int j = 0; j < resources.size(); j++) {
+				String expected = id.withVersion(Integer.toString(31 - fromIndex - j)).getValue();
+				assertEquals(expected, resources.get(j).getIdElement().getValue());
+			}
+		}
+	}
+
 	@Test
 	public void testHistoryReflectsMetaOperations() throws Exception {
 		Patient inPatient = new Patient();
@@ -2268,6 +2349,111 @@ public class FhirResourceDaoDstu3Test extends BaseJpaDstu3Test {
 
 	}
 
+	@Test
+	public void testReadUsesResourceBodyCache() {
+		myDaoConfig.setResourceBodyCacheMaxChars(1000000);
+
+		Patient p1 = new Patient();
+		p1.addName().setFamily("testReadUsesResourceBodyCache01");
+		IIdType id1 = myPatientDao.create(p1, mySrd).getId();
+
+		long hitsBefore = myResourceBodyCacheSvc.getStats().hitCount();
+		assertEquals("testReadUsesResourceBodyCache01", myPatientDao.read(id1.toUnqualifiedVersionless(), mySrd).getName().get(0).getFamily());
+		assertEquals("testReadUsesResourceBodyCache01", myPatientDao.read(id1.toUnqualifiedVersionless(), mySrd).getName().get(0).getFamily());
+		assertThat(myResourceBodyCacheSvc.getStats().hitCount(), greaterThan(hitsBefore));
+
+		p1.setId(id1.toUnqualifiedVersionless());
+		p1.getName().get(0).setFamily("testReadUsesResourceBodyCache02");
+		IIdType id2 = myPatientDao.update(p1, mySrd).getId();
+
+		assertEquals("testReadUsesResourceBodyCache02", myPatientDao.read(id1.toUnqualifiedVersionless(), mySrd).getName().get(0).getFamily());
+		assertEquals("testReadUsesResourceBodyCache02", myPatientDao.read(id2, mySrd).getName().get(0).getFamily());
+		assertEquals("testReadUsesResourceBodyCache01", myPatientDao.read(id1, mySrd).getName().get(0).getFamily());
+	}
+
+	@Test
+	public void testReadDeduplicatedCurrentVersionBody() {
+		Patient p1 = new Patient();
+		p1.addName().setFamily("testReadDeduplicatedCurrentVersionBody01");
+		IIdType id1 = myPatientDao.create(p1, mySrd).getId();
+
+		myDaoConfig.setDeduplicateCurrentVersionBody(true);
+		p1.setId(id1.toUnqualifiedVersionless());
+		p1.getName().get(0).setFamily("testReadDeduplicatedCurrentVersionBody02");
+		IIdType id2 = myPatientDao.update(p1, mySrd).getId();
+
+		Long pid = id1.getIdPartAsLong();
+		assertNotNull(myResourceHistoryTableDao.findForIdAndVersion(pid, 1).getResource());
+		assertNull(myResourceHistoryTableDao.findForIdAndVersion(pid, 2).getResource());
+
+		assertEquals("testReadDeduplicatedCurrentVersionBody02", myPatientDao.read(id1.toUnqualifiedVersionless(), mySrd).getName().get(0).getFamily());
+		assertEquals("testReadDeduplicatedCurrentVersionBody02", myPatientDao.read(id2, mySrd).getName().get(0).getFamily());
+		assertEquals("testReadDeduplicatedCurrentVersionBody01", myPatientDao.read(id1, mySrd).getName().get(0).getFamily());
+
+		IBundleProvider history = myPatientDao.history(id1, null, null, mySrd);
+		assertEquals(2, history.size());
+		assertEquals("testReadDeduplicatedCurrentVersionBody02", ((Patient) history.getResources(0, 1).get(0)).getName().get(0).getFamily());
+
+		// The body moves into the history table once the version is replaced
+		p1.getName().get(0).setFamily("testReadDeduplicatedCurrentVersionBody03");
+		IIdType id3 = myPatientDao.update(p1, mySrd).getId();
+		assertNotNull(myResourceHistoryTableDao.findForIdAndVersion(pid, 2).getResource());
+		assertNull(myResourceHistoryTableDao.findForIdAndVersion(pid, 3).getResource());
+		assertEquals("testReadDeduplicatedCurrentVersionBody02", myPatientDao.read(id2, mySrd).getName().get(0).getFamily());
+		assertEquals("testReadDeduplicatedCurrentVersionBody03", myPatientDao.read(id3, mySrd).getName().get(0).getFamily());
+
+		/*
+		 * The body is moved with a single bulk update, so the history entry of the
+		 * version being replaced is never loaded
+		 */
+		myStatementInspector.clear();
+		myStatementInspector.setCapturing(true);
+		p1.getName().get(0).setFamily("testReadDeduplicatedCurrentVersionBody04");
+		myPatientDao.update(p1, mySrd);
+		myStatementInspector.setCapturing(false);
+
+		int historySelects = 0;
+		int historyUpdates = 0;
+		for (String next : myStatementInspector.getStatements()) {
+			String sql = next.toLowerCase();
+			if (sql.startsWith("select") && sql.contains(" hfj_res_ver ")) {
+				historySelects++;
+			} else if (sql.startsWith("update hfj_res_ver ")) {
+				historyUpdates++;
+			}
+		}
+		assertEquals(0, historySelects);
+		assertEquals(1, historyUpdates);
+		assertNotNull(myResourceHistoryTableDao.findForIdAndVersion(pid, 3).getResource());
+		assertEquals("testReadDeduplicatedCurrentVersionBody03", myPatientDao.read(id3, mySrd).getName().get(0).getFamily());
+
+		// Turning the setting off again doesn't lose the body of the current version
+		myDaoConfig.setDeduplicateCurrentVersionBody(false);
+		p1.getName().get(0).setFamily("testReadDeduplicatedCurrentVersionBody05");
+		IIdType id5 = myPatientDao.update(p1, mySrd).getId();
+		assertEquals("5", id5.getVersionIdPart());
+		assertNotNull(myResourceHistoryTableDao.findForIdAndVersion(pid, 4).getResource());
+		assertNotNull(myResourceHistoryTableDao.findForIdAndVersion(pid, 5).getResource());
+		assertEquals("testReadDeduplicatedCurrentVersionBody04", myPatientDao.read(id1.withVersion("4"), mySrd).getName().get(0).getFamily());
+		assertEquals("testReadDeduplicatedCurrentVersionBody05", myPatientDao.read(id5, mySrd).getName().get(0).getFamily());
+	}
+
+	@Test
+	public void testReadDictionaryCompressedResource() {
+		Patient p1 = new Patient();
+		p1.addName().setFamily("testReadDictionaryCompressedResource01");
+		IIdType id1 = myPatientDao.create(p1, mySrd).getId();
+
+		myDaoConfig.setResourceEncoding(ResourceEncodingEnum.JSOND);
+		p1.setId(id1.toUnqualifiedVersionless());
+		p1.getName().get(0).setFamily("testReadDictionaryCompressedResource02");
+		IIdType id2 = myPatientDao.update(p1, mySrd).getId();
+
+		assertEquals(ResourceEncodingEnum.JSOND, myResourceTableDao.findOne(id1.getIdPartAsLong()).getEncoding());
+		assertEquals("testReadDictionaryCompressedResource02", myPatientDao.read(id2, mySrd).getName().get(0).getFamily());
+		assertEquals("testReadDictionaryCompressedResource01", myPatientDao.read(id1, mySrd).getName().get(0).getFamily());
+	}
+
 	@Test
 	public void testReadForcedIdVersionHistory() throws InterruptedException {
 		Patient p1 = new Patient();
@@ -3175,6 +3361,37 @@ public class FhirResourceDaoDstu3Test extends BaseJpaDstu3Test {
 		}
 	}
 
+	@Test
+	public void testTagDefinitionsAreCached() {
+		long hits = myTagDefinitionSvc.getCacheStats().hitCount();
+		long misses = myTagDefinitionSvc.getCacheStats().missCount();
+
+		for (int i = 0; i < 5; i++) {
+			Patient patient = new Patient();
+			patient.getMeta().addTag("http://foo", "bar", "Bar");
+			patient.getMeta().addSecurity("http://sec", "restricted", "Restricted");
+			patient.getMeta().addProfile("http://profile/cached");
+			myPatientDao.create(patient, mySrd);
+		}
+
+		// Only the first write should have looked up (and created) the definitions
+		assertEquals(3, myTagDefinitionSvc.getCacheStats().missCount() - misses);
+		assertEquals(12, myTagDefinitionSvc.getCacheStats().hitCount() - hits);
+
+		TagDefinition tag = myTagDefinitionSvc.getOrCreateTag(TagTypeEnum.TAG, "http://foo", "bar", "Bar");
+		Long count = myEntityManager.createQuery("SELECT COUNT(t) FROM TagDefinition t WHERE t.myCode = 'bar'", Long.class).getSingleResult();
+		assertEquals(1L, count.longValue());
+		assertNotNull(tag.getId());
+
+		// Once evicted, the existing row is loaded again rather than a new one created
+		myTagDefinitionSvc.clearCache();
+		assertEquals(tag.getId(), myTagDefinitionSvc.getOrCreateTag(TagTypeEnum.TAG, "http://foo", "bar", "Bar").getId());
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add("_tag", new TokenParam("http://foo", "bar"));
+		assertEquals(5, toUnqualifiedVersionlessIds(myPatientDao.search(params)).size());
+	}
+
 	@Test
 	public void testTagsAndProfilesAndSecurityLabelsWithCreateAndReadAndSearch() {
 		Patient patient = new Patient();
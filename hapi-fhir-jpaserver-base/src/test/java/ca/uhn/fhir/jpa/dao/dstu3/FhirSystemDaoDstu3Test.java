@@ -5,6 +5,7 @@ import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.emptyString;
 import static org.hamcrest.Matchers.endsWith;
 import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.hamcrest.Matchers.matchesPattern;
 import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.startsWith;
@@ -23,6 +24,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -44,13 +47,16 @@ import org.junit.AfterClass;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionTemplate;
 
+import ca.uhn.fhir.jpa.config.CapturingStatementInspector;
 import ca.uhn.fhir.jpa.dao.BaseHapiFhirDao;
 import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.ReindexStatus;
 import ca.uhn.fhir.jpa.dao.SearchParameterMap;
 import ca.uhn.fhir.jpa.entity.ResourceEncodingEnum;
 import ca.uhn.fhir.jpa.entity.ResourceTable;
@@ -71,10 +77,16 @@ public class FhirSystemDaoDstu3Test extends BaseJpaDstu3SystemTest {
 
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(FhirSystemDaoDstu3Test.class);
 
+	@Autowired
+	private CapturingStatementInspector myStatementInspector;
+
 	@After
 	public void after() {
+		myStatementInspector.setCapturing(false);
+		myStatementInspector.clear();
 		myDaoConfig.setAllowInlineMatchUrlReferences(false);
 		myDaoConfig.setAllowMultipleDelete(new DaoConfig().isAllowMultipleDelete());
+		myDaoConfig.setReindexThreadCount(new DaoConfig().getReindexThreadCount());
 	}
 
 	@SuppressWarnings("unchecked")
@@ -240,6 +252,86 @@ public class FhirSystemDaoDstu3Test extends BaseJpaDstu3SystemTest {
 
 	}
 
+	@Test
+	public void testReindexingStatus() {
+		for (int i = 0; i < 5; i++) {
+			Patient p = new Patient();
+			p.addName().setFamily("family" + i);
+			myPatientDao.create(p, mySrd);
+		}
+
+		mySystemDao.markAllResourcesForReindexing();
+
+		assertEquals(2, mySystemDao.performReindexingPass(2).intValue());
+		ReindexStatus status = mySystemDao.getReindexStatus();
+		assertEquals(2, status.getLastPassResourceCount());
+		assertEquals(0, status.getLastPassFailedCount());
+		assertEquals(3, status.getRemainingResourceCount());
+		assertThat(status.getResourcesPerSecond(), greaterThan(0.0));
+
+		// The remaining count isn't queried again straight away
+		myStatementInspector.clear();
+		myStatementInspector.setCapturing(true);
+		assertEquals(2, mySystemDao.performReindexingPass(2).intValue());
+		myStatementInspector.setCapturing(false);
+		assertEquals(0, myStatementInspector.countStatementsStartingWith("select count"));
+		assertEquals(1, mySystemDao.getReindexStatus().getRemainingResourceCount());
+
+		// A pass which runs out of resources knows there are none left
+		assertEquals(1, mySystemDao.performReindexingPass(2).intValue());
+		status = mySystemDao.getReindexStatus();
+		assertEquals(1, status.getLastPassResourceCount());
+		assertEquals(0, status.getRemainingResourceCount());
+		assertEquals(0, status.getEstimatedMillisRemaining());
+	}
+
+	@Test
+	public void testReindexingInParallelIsolatesFailures() {
+		myDaoConfig.setReindexThreadCount(3);
+
+		final List<Long> ids = new ArrayList<Long>();
+		for (int i = 0; i < 10; i++) {
+			Patient p = new Patient();
+			p.addName().setFamily("family" + i);
+			ids.add(myPatientDao.create(p, mySrd).getId().getIdPartAsLong());
+		}
+
+		mySystemDao.markAllResourcesForReindexing();
+
+		// Make one resource in the middle unparseable
+		TransactionTemplate template = new TransactionTemplate(myTxManager);
+		template.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		template.execute(new TransactionCallback<ResourceTable>() {
+			@Override
+			public ResourceTable doInTransaction(TransactionStatus theStatus) {
+				ResourceTable table = myEntityManager.find(ResourceTable.class, ids.get(4));
+				table.setEncoding(ResourceEncodingEnum.JSON);
+				try {
+					table.setResource("{\"resourceType\":\"FOO\"}".getBytes("UTF-8"));
+				} catch (UnsupportedEncodingException e) {
+					throw new Error(e);
+				}
+				myEntityManager.merge(table);
+				return null;
+			}
+		});
+
+		assertEquals(-1, mySystemDao.performReindexingPass(null).intValue());
+		assertEquals(0, mySystemDao.performReindexingPass(null).intValue());
+
+		new TransactionTemplate(myTxManager).execute(new TransactionCallback<Void>() {
+			@Override
+			public Void doInTransaction(TransactionStatus theStatus) {
+				for (int i = 0; i < ids.size(); i++) {
+					ResourceTable entity = myEntityManager.find(ResourceTable.class, ids.get(i));
+					Long expected = i == 4 ? BaseHapiFhirDao.INDEX_STATUS_INDEXING_FAILED : BaseHapiFhirDao.INDEX_STATUS_INDEXED;
+					assertEquals("Resource " + i, expected, entity.getIndexStatus());
+				}
+				return null;
+			}
+		});
+	}
+
 	@Test
 	public void testSystemMetaOperation() {
 
@@ -782,6 +874,40 @@ public class FhirSystemDaoDstu3Test extends BaseJpaDstu3SystemTest {
 
 	}
 
+	@Test
+	public void testTransactionCreateWritesIndexesInBatches() {
+		String methodName = "testTransactionCreateWritesIndexesInBatches";
+		Bundle request = new Bundle();
+		for (int i = 0; i < 100; i++) {
+			Patient p = new Patient();
+			p.addIdentifier().setSystem("urn:system").setValue(methodName + i);
+			p.addName().setFamily(methodName).addGiven("Given" + i);
+			request.addEntry().setResource(p).getRequest().setMethod(HTTPVerb.POST);
+		}
+
+		myStatementInspector.clear();
+		myStatementInspector.setCapturing(true);
+		Bundle resp = mySystemDao.transaction(mySrd, request);
+		myStatementInspector.setCapturing(false);
+		assertEquals(100, resp.getEntry().size());
+
+		/*
+		 * Each entry writes a resource row, a history row and several string and token
+		 * index rows. Those inserts should be sent as batches of up to 50 rows rather than
+		 * one statement per row.
+		 */
+		int resourceInserts = myStatementInspector.countStatementsStartingWith("insert into HFJ_RESOURCE ");
+		int stringInserts = myStatementInspector.countStatementsStartingWith("insert into HFJ_SPIDX_STRING ");
+		int tokenInserts = myStatementInspector.countStatementsStartingWith("insert into HFJ_SPIDX_TOKEN ");
+		ourLog.info("Resource inserts: {}, string inserts: {}, token inserts: {}", new Object[] { resourceInserts, stringInserts, tokenInserts });
+		assertThat(resourceInserts, greaterThan(0));
+		assertThat(resourceInserts, lessThanOrEqualTo(5));
+		assertThat(stringInserts, greaterThan(0));
+		assertThat(stringInserts, lessThanOrEqualTo(20));
+		assertThat(tokenInserts, greaterThan(0));
+		assertThat(tokenInserts, lessThanOrEqualTo(20));
+	}
+
 	@Test
 	public void testTransactionCreateWithDuplicateMatchUrl01() {
 		String methodName = "testTransactionCreateWithDuplicateMatchUrl01";
@@ -1927,6 +2053,67 @@ public class FhirSystemDaoDstu3Test extends BaseJpaDstu3SystemTest {
 		assertEquals(id0.toUnqualifiedVersionless().getValue(), app2.getParticipant().get(1).getActor().getReference());
 	}
 
+	@Test
+	public void testTransactionWithReferencesToClientAssignedIds() {
+		List<String> ids = new ArrayList<String>();
+		for (int i = 0; i < 5; i++) {
+			Patient patient = new Patient();
+			patient.setId("Patient/FIDREF" + i);
+			patient.setActive(true);
+			myPatientDao.update(patient, mySrd);
+			ids.add("FIDREF" + i);
+		}
+		myForcedIdSvc.clearCache();
+
+		Bundle request = new Bundle();
+		request.setType(BundleType.TRANSACTION);
+		for (String next : ids) {
+			Observation obs = new Observation();
+			obs.setStatus(ObservationStatus.FINAL);
+			obs.getSubject().setReference("Patient/" + next);
+			request.addEntry().setResource(obs).getRequest().setMethod(HTTPVerb.POST);
+		}
+		mySystemDao.transaction(mySrd, request);
+
+		// The translations loaded by the transaction are cached once it commits
+		long hits = myForcedIdSvc.getCacheStats().hitCount();
+		Map<String, Long> pids = myForcedIdSvc.translateForcedIdsToPids("Patient", ids);
+		assertEquals(5, pids.size());
+		assertEquals(hits + 5, myForcedIdSvc.getCacheStats().hitCount());
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Observation.SP_SUBJECT, new ReferenceParam("Patient/FIDREF3"));
+		assertEquals(1, toUnqualifiedVersionlessIdValues(myObservationDao.search(params)).size());
+	}
+
+	@Test
+	public void testTransactionWithReferencesToClientAssignedIdsRolledBack() {
+		Bundle request = new Bundle();
+		request.setType(BundleType.TRANSACTION);
+
+		Patient patient = new Patient();
+		patient.setId("Patient/FIDROLLBACK");
+		request.addEntry().setResource(patient).getRequest().setMethod(HTTPVerb.PUT).setUrl("Patient/FIDROLLBACK");
+
+		Observation obs = new Observation();
+		obs.getSubject().setReference("Patient/FIDROLLBACK");
+		request.addEntry().setResource(obs).getRequest().setMethod(HTTPVerb.POST);
+
+		obs = new Observation();
+		obs.getSubject().setReference("Patient/FIDMISSING");
+		request.addEntry().setResource(obs).getRequest().setMethod(HTTPVerb.POST);
+
+		try {
+			mySystemDao.transaction(mySrd, request);
+			fail();
+		} catch (InvalidRequestException e) {
+			assertThat(e.getMessage(), containsString("Patient/FIDMISSING"));
+		}
+
+		// The rolled back resource must not be found through a cached translation
+		assertTrue(myForcedIdSvc.translateForcedIdsToPids("Patient", Collections.singletonList("FIDROLLBACK")).isEmpty());
+	}
+
 	@Test
 	public void testTransactionWithReferenceToCreateIfNoneExist() {
 		Bundle bundle = new Bundle();
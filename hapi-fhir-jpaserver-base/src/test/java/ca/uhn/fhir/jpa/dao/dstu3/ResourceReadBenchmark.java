@@ -0,0 +1,74 @@
+package ca.uhn.fhir.jpa.dao.dstu3;
+
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.util.StopWatch;
+import ca.uhn.fhir.util.TestUtil;
+
+/**
+ * Compares read and vread latency with and without
+ * {@link DaoConfig#setDeduplicateCurrentVersionBody(boolean)}. This only logs its
+ * timings, and its name keeps it out of the regular unit test run. Run it explicitly
+ * with <code>mvn test -Dtest=ResourceReadBenchmark</code>.
+ */
+public class ResourceReadBenchmark extends BaseJpaDstu3Test {
+
+	private static final int NUM_READS = 1000;
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ResourceReadBenchmark.class);
+
+	@After
+	public void afterResetDao() {
+		myDaoConfig.setDeduplicateCurrentVersionBody(new DaoConfig().isDeduplicateCurrentVersionBody());
+	}
+
+	private void benchmarkReads(String theDescription) {
+		Patient p1 = new Patient();
+		p1.addName().setFamily("ResourceReadBenchmark01");
+		IIdType id1 = myPatientDao.create(p1, mySrd).getId();
+
+		p1.setId(id1.toUnqualifiedVersionless());
+		p1.getName().get(0).setFamily("ResourceReadBenchmark02");
+		IIdType id2 = myPatientDao.update(p1, mySrd).getId();
+
+		// Warm up
+		for (int i = 0; i < NUM_READS; i++) {
+			myPatientDao.read(id1.toUnqualifiedVersionless(), mySrd);
+			myPatientDao.read(id2, mySrd);
+		}
+
+		StopWatch sw = new StopWatch();
+		for (int i = 0; i < NUM_READS; i++) {
+			myPatientDao.read(id1.toUnqualifiedVersionless(), mySrd);
+		}
+		long readMillis = sw.getMillisAndRestart();
+		for (int i = 0; i < NUM_READS; i++) {
+			myPatientDao.read(id2, mySrd);
+		}
+		long vreadMillis = sw.getMillis();
+
+		ourLog.info("{}: {} reads took {}ms, {} vreads took {}ms", new Object[] { theDescription, NUM_READS, readMillis, NUM_READS, vreadMillis });
+	}
+
+	@Test
+	public void benchmarkReadWithDeduplicatedBody() {
+		myDaoConfig.setDeduplicateCurrentVersionBody(true);
+		benchmarkReads("Deduplicated current version body");
+	}
+
+	@Test
+	public void benchmarkReadWithDuplicatedBody() {
+		myDaoConfig.setDeduplicateCurrentVersionBody(false);
+		benchmarkReads("Duplicated current version body");
+	}
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+}
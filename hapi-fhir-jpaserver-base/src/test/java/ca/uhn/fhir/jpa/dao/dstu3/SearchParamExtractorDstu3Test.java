@@ -1,6 +1,8 @@
 package ca.uhn.fhir.jpa.dao.dstu3;
 
+import static org.hamcrest.Matchers.greaterThan;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -36,13 +38,9 @@ public class SearchParamExtractorDstu3Test {
 	public static void beforeClass() {
 		ourValidationSupport = new DefaultProfileValidationSupport();
 	}
-	
-	@Test
-	public void testParamWithOrInPath() {
-		Observation obs = new Observation();
-		obs.addCategory().addCoding().setSystem("SYSTEM").setCode("CODE");
-		
-		ISearchParamRegistry searchParamRegistry = new ISearchParamRegistry() {
+
+	private static ISearchParamRegistry newSearchParamRegistry() {
+		return new ISearchParamRegistry() {
 			@Override
 			public Map<String,RuntimeSearchParam> getActiveSearchParams(String theResourceName) {
 				RuntimeResourceDefinition nextResDef = ourCtx.getResourceDefinition(theResourceName);
@@ -68,6 +66,42 @@ public class SearchParamExtractorDstu3Test {
 				throw new UnsupportedOperationException();
 			}
 		};
+	}
+
+	@Test
+	public void testExtractUsingCachedPaths() {
+		SearchParamExtractorDstu3 extractor = new SearchParamExtractorDstu3(ourCtx, ourValidationSupport, newSearchParamRegistry());
+		assertEquals(0, extractor.getParsedPathCacheSize());
+
+		Observation obs = new Observation();
+		obs.addCategory().addCoding().setSystem("SYSTEM").setCode("CODE");
+		ResourceTable entity = new ResourceTable();
+
+		Set<BaseResourceIndexedSearchParam> uncached = extractor.extractSearchParamTokens(entity, obs);
+		assertEquals(1, uncached.size());
+		ResourceIndexedSearchParamToken token = (ResourceIndexedSearchParamToken) uncached.iterator().next();
+		assertEquals("category", token.getParamName());
+		assertEquals("CODE", token.getValue());
+
+		int cacheSize = extractor.getParsedPathCacheSize();
+		assertThat(cacheSize, greaterThan(0));
+
+		// Second pass uses the paths parsed by the first
+		Set<BaseResourceIndexedSearchParam> cached = extractor.extractSearchParamTokens(entity, obs);
+		assertEquals(cacheSize, extractor.getParsedPathCacheSize());
+		assertEquals(uncached, cached);
+
+		extractor.clearParsedPathCache();
+		assertEquals(0, extractor.getParsedPathCacheSize());
+		assertEquals(uncached, extractor.extractSearchParamTokens(entity, obs));
+	}
+
+	@Test
+	public void testParamWithOrInPath() {
+		Observation obs = new Observation();
+		obs.addCategory().addCoding().setSystem("SYSTEM").setCode("CODE");
+		
+		ISearchParamRegistry searchParamRegistry = newSearchParamRegistry();
 		
 		SearchParamExtractorDstu3 extractor = new SearchParamExtractorDstu3(ourCtx, ourValidationSupport, searchParamRegistry);
 		Set<BaseResourceIndexedSearchParam> tokens = extractor.extractSearchParamTokens(new ResourceTable(), obs);
@@ -77,5 +111,5 @@ public class SearchParamExtractorDstu3Test {
 		assertEquals("SYSTEM", token.getSystem());
 		assertEquals("CODE", token.getValue());
 	}
-	
+
 }
@@ -39,6 +39,8 @@ import ca.uhn.fhir.jpa.dao.BaseJpaTest;
 import ca.uhn.fhir.jpa.dao.DaoConfig;
 import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
 import ca.uhn.fhir.jpa.dao.IFhirSystemDao;
+import ca.uhn.fhir.jpa.dao.IForcedIdSvc;
+import ca.uhn.fhir.jpa.dao.ITagDefinitionSvc;
 import ca.uhn.fhir.jpa.testutil.RandomServerPortProvider;
 import ca.uhn.fhir.model.api.Bundle;
 import ca.uhn.fhir.model.api.IResource;
@@ -86,6 +88,8 @@ public class ResourceProviderDstu1Test  extends BaseJpaTest {
 	private static String ourServerBase;
 	private static CloseableHttpClient ourHttpClient;
 	private static EntityManager ourEntityManager;
+	private static IForcedIdSvc ourForcedIdSvc;
+	private static ITagDefinitionSvc ourTagDefinitionSvc;
 	private static PlatformTransactionManager ourTxManager;
 
 	@AfterClass
@@ -551,6 +555,8 @@ public class ResourceProviderDstu1Test  extends BaseJpaTest {
 		ourOrganizationDao = (IFhirResourceDao<Organization>) ourAppCtx.getBean("myOrganizationDaoDstu1", IFhirResourceDao.class);
 		ourEntityManager = ourAppCtx.getBean(EntityManager.class);
 		ourTxManager = ourAppCtx.getBean(PlatformTransactionManager.class);
+		ourTagDefinitionSvc = ourAppCtx.getBean(ITagDefinitionSvc.class);
+		ourForcedIdSvc = ourAppCtx.getBean(IForcedIdSvc.class);
 		
 		List<IResourceProvider> rpsDev = (List<IResourceProvider>) ourAppCtx.getBean("myResourceProvidersDstu1", List.class);
 		restServer.setResourceProviders(rpsDev);
@@ -594,6 +600,8 @@ public class ResourceProviderDstu1Test  extends BaseJpaTest {
 	@Before
 	public void before() {
 		super.purgeDatabase(ourEntityManager, ourTxManager);
+		ourTagDefinitionSvc.clearCache();
+		ourForcedIdSvc.clearCache();
 	}
 
 }
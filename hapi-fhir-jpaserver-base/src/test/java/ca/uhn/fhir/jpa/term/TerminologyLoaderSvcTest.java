@@ -3,6 +3,7 @@ package ca.uhn.fhir.jpa.term;
 import static org.hamcrest.Matchers.containsInRelativeOrder;
 import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.startsWith;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
@@ -11,7 +12,9 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -127,6 +130,40 @@ public class TerminologyLoaderSvcTest {
 		assertThat(allCodes, hasItem("126816002"));
 	}
 
+	@Test
+	public void testLoadSnomedCtFromFile() throws Exception {
+		File tempFile = File.createTempFile("tmp", ".zip");
+		tempFile.deleteOnExit();
+
+		ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(tempFile));
+		addEntry(zos, "/sct/", "sct2_Concept_Full_INT_20160131.txt");
+		addEntry(zos, "/sct/", "sct2_Description_Full-en_INT_20160131.txt");
+		addEntry(zos, "/sct/", "sct2_Relationship_Full_INT_20160131.txt");
+		zos.close();
+
+		RequestDetails details = mock(RequestDetails.class);
+		mySvc.loadSnomedCtFiles(Collections.singletonList(tempFile), details);
+
+		verify(myTermSvc).storeNewCodeSystemVersion(any(String.class), myCsvCaptor.capture(), any(RequestDetails.class));
+
+		TermCodeSystemVersion csv = myCsvCaptor.getValue();
+		TreeSet<String> allCodes = toCodes(csv, true);
+		assertThat(allCodes, containsInRelativeOrder("116680003"));
+		assertThat(allCodes, not(containsInRelativeOrder("207527008")));
+	}
+
+	@Test
+	public void testLoadSnomedCtFromMissingFile() throws Exception {
+		RequestDetails details = mock(RequestDetails.class);
+		File file = new File("target/does-not-exist.zip");
+		try {
+			mySvc.loadSnomedCtFiles(Collections.singletonList(file), details);
+			fail();
+		} catch (InvalidRequestException e) {
+			assertThat(e.getMessage(), startsWith("Failed to open ZIP file " + file.getAbsolutePath()));
+		}
+	}
+
 	private List<byte[]> list(byte[]... theByteArray) {
 		return new ArrayList<byte[]>(Arrays.asList(theByteArray));
 	}
@@ -14,9 +14,13 @@ import java.util.Set;
 import org.hl7.fhir.dstu3.model.CodeSystem;
 import org.hl7.fhir.dstu3.model.CodeSystem.CodeSystemContentMode;
 import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
 
+import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.data.ITermConceptClosureDao;
 import ca.uhn.fhir.jpa.dao.dstu3.BaseJpaDstu3Test;
 import ca.uhn.fhir.jpa.entity.ResourceTable;
 import ca.uhn.fhir.jpa.entity.TermCodeSystemVersion;
@@ -30,6 +34,14 @@ public class TerminologySvcImplTest extends BaseJpaDstu3Test {
 
 	private static final String CS_URL = "http://example.com/my_code_system";
 
+	@Autowired
+	private ITermConceptClosureDao myTermConceptClosureDao;
+
+
+	@After
+	public void after() {
+		myDaoConfig.setMaximumExpansionSize(new DaoConfig().getMaximumExpansionSize());
+	}
 
 	@AfterClass
 	public static void afterClassClearContext() {
@@ -102,6 +114,31 @@ public class TerminologySvcImplTest extends BaseJpaDstu3Test {
 
 	}
 
+	@Test
+	public void testFindCodesAboveAndBelowRefusesExpansionsOverTheLimit() {
+		IIdType id = createCodeSystem();
+
+		// ParentA has 4 descendants, and childAAA has 2 ancestors
+		myDaoConfig.setMaximumExpansionSize(4);
+		assertThat(toCodes(myTermSvc.findCodesBelow(id.getIdPartAsLong(), id.getVersionIdPartAsLong(), "childAA")), containsInAnyOrder("childAA", "childAAA", "childAAB"));
+		assertThat(toCodes(myTermSvc.findCodesAbove(id.getIdPartAsLong(), id.getVersionIdPartAsLong(), "childAAA")), containsInAnyOrder("childAAA", "childAA", "ParentA"));
+
+		try {
+			myTermSvc.findCodesBelow(id.getIdPartAsLong(), id.getVersionIdPartAsLong(), "ParentA");
+			fail();
+		} catch (InvalidRequestException e) {
+			assertEquals("Expansion of ValueSet produced too many codes (maximum 4) - Operation aborted!", e.getMessage());
+		}
+
+		myDaoConfig.setMaximumExpansionSize(3);
+		try {
+			myTermSvc.findCodesAbove(id.getIdPartAsLong(), id.getVersionIdPartAsLong(), "childAAA");
+			fail();
+		} catch (InvalidRequestException e) {
+			assertEquals("Expansion of ValueSet produced too many codes (maximum 3) - Operation aborted!", e.getMessage());
+		}
+	}
+
 	@Test
 	public void testFindCodesBelowBuiltInCodeSystem() {
 		List<VersionIndependentConcept> concepts;
@@ -214,7 +251,44 @@ public class TerminologySvcImplTest extends BaseJpaDstu3Test {
 		assertThat(codes, empty());
 	}
 
-	
+
+	@Test
+	public void testFindCodesWithMultipleParents() {
+		CodeSystem codeSystem = new CodeSystem();
+		codeSystem.setUrl(CS_URL);
+		codeSystem.setContent(CodeSystemContentMode.NOTPRESENT);
+		IIdType id = myCodeSystemDao.create(codeSystem, mySrd).getId().toUnqualified();
+
+		ResourceTable table = myResourceTableDao.findOne(id.getIdPartAsLong());
+
+		TermCodeSystemVersion cs = new TermCodeSystemVersion();
+		cs.setResource(table);
+		cs.setResourceVersionId(table.getVersion());
+
+		TermConcept parentA = new TermConcept(cs, "ParentA");
+		cs.getConcepts().add(parentA);
+		TermConcept parentB = new TermConcept(cs, "ParentB");
+		cs.getConcepts().add(parentB);
+
+		TermConcept childAB = new TermConcept(cs, "childAB");
+		parentA.addChild(childAB, RelationshipTypeEnum.ISA);
+		parentB.addChild(childAB, RelationshipTypeEnum.ISA);
+
+		TermConcept childABA = new TermConcept(cs, "childABA");
+		childAB.addChild(childABA, RelationshipTypeEnum.ISA);
+
+		myTermSvc.storeNewCodeSystemVersion(table.getId(), "http://foo", cs);
+
+		Set<String> codes = toCodes(myTermSvc.findCodesAbove(id.getIdPartAsLong(), id.getVersionIdPartAsLong(), "childABA"));
+		assertThat(codes, containsInAnyOrder("ParentA", "ParentB", "childAB", "childABA"));
+
+		codes = toCodes(myTermSvc.findCodesBelow(id.getIdPartAsLong(), id.getVersionIdPartAsLong(), "ParentB"));
+		assertThat(codes, containsInAnyOrder("ParentB", "childAB", "childABA"));
+
+		// ParentA and ParentB above childAB, and all three above childABA
+		assertEquals(5, myTermConceptClosureDao.count());
+	}
+
 	@Test
 	public void testCreateDuplicateCodeSystemUri() {
 		CodeSystem codeSystem = new CodeSystem();
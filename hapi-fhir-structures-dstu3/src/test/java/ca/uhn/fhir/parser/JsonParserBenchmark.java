@@ -0,0 +1,98 @@
+package ca.uhn.fhir.parser;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.json.GsonStreamingStructure;
+import ca.uhn.fhir.parser.json.GsonStructure;
+import ca.uhn.fhir.parser.json.JsonLikeStructure;
+import ca.uhn.fhir.util.TestUtil;
+
+/**
+ * Compares the bytes allocated and the time taken to parse a large transaction Bundle
+ * when the JSON parser reads the document as a stream of tokens, and when it walks a
+ * tree of the whole document (both the Gson tree used by {@link GsonStructure} and the
+ * compact tree built by {@link GsonStreamingStructure}). This only logs its results, and
+ * its name keeps it out of the regular unit test run. Run it explicitly with
+ * <code>mvn test -Dtest=JsonParserBenchmark</code>.
+ */
+public class JsonParserBenchmark {
+
+	private static final int NUM_ENTRIES = 2000;
+	private static final int NUM_PARSES = 20;
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(JsonParserBenchmark.class);
+	private static FhirContext ourCtx = FhirContext.forDstu3();
+
+	@Test
+	public void benchmarkParseLargeBundle() {
+		Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled());
+
+		String input = createLargeBundle(NUM_ENTRIES);
+
+		// Warm up
+		for (int i = 0; i < NUM_PARSES; i++) {
+			parse(input, new GsonStructure(), false);
+			parse(input, new GsonStreamingStructure(), true);
+			parse(input, new GsonStreamingStructure(), false);
+		}
+
+		String[] descriptions = new String[] { "Gson tree", "Compact tree", "Streaming" };
+		for (int pass = 0; pass < descriptions.length; pass++) {
+			long threadId = Thread.currentThread().getId();
+			long startBytes = threadBean.getThreadAllocatedBytes(threadId);
+			long startNanos = System.nanoTime();
+			for (int i = 0; i < NUM_PARSES; i++) {
+				JsonLikeStructure structure = pass == 0 ? new GsonStructure() : new GsonStreamingStructure();
+				Bundle bundle = parse(input, structure, pass == 1);
+				assertEquals(NUM_ENTRIES, bundle.getEntry().size());
+			}
+			long millis = (System.nanoTime() - startNanos) / 1000000;
+			long bytes = (threadBean.getThreadAllocatedBytes(threadId) - startBytes) / NUM_PARSES;
+
+			ourLog.info("{}: Bundle of {} chars parsed in {}ms on average, allocating {} bytes", new Object[] { descriptions[pass], input.length(), millis / NUM_PARSES, bytes });
+		}
+	}
+
+	private static Bundle parse(String theInput, JsonLikeStructure theStructure, boolean theReadTree) {
+		theStructure.load(new StringReader(theInput));
+		if (theReadTree) {
+			// Reading the tree up front means the parser can no longer stream the document
+			theStructure.getRootObject();
+		}
+		return ((IJsonLikeParser) ourCtx.newJsonParser()).parseResource(Bundle.class, theStructure);
+	}
+
+	private static String createLargeBundle(int theEntryCount) {
+		StringBuilder b = new StringBuilder();
+		b.append("{\"resourceType\":\"Bundle\",\"type\":\"transaction\",\"entry\":[");
+		for (int i = 0; i < theEntryCount; i++) {
+			if (i > 0) {
+				b.append(',');
+			}
+			b.append("{\"resource\":{\"resourceType\":\"Observation\",\"status\":\"final\",");
+			b.append("\"code\":{\"coding\":[{\"system\":\"http://loinc.org\",\"code\":\"29463-7\",\"display\":\"Body Weight\"}]},");
+			b.append("\"subject\":{\"reference\":\"Patient/").append(i).append("\"},");
+			b.append("\"effectiveDateTime\":\"2017-03-01\",\"_effectiveDateTime\":{\"id\":\"e").append(i).append("\"},");
+			b.append("\"valueQuantity\":{\"value\":").append(60 + i % 40).append(".5,\"unit\":\"kg\",\"system\":\"http://unitsofmeasure.org\",\"code\":\"kg\"}},");
+			b.append("\"request\":{\"method\":\"POST\",\"url\":\"Observation\"}}");
+		}
+		b.append("]}");
+		return b.toString();
+	}
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+}
@@ -1985,6 +1985,38 @@ public class JsonParserDstu3Test {
 
 	}
 
+	/**
+	 * The <code>_name</code> member holding the id and extensions of a primitive may come
+	 * before or after its value
+	 */
+	@Test
+	public void testParsePrimitiveExtensionBeforeAndAfterValue() {
+		//@formatter:off
+		String input = "{" +
+			"\"resourceType\":\"Patient\"," +
+			"\"_birthDate\":{\"id\":\"bd\",\"extension\":[{\"url\":\"http://foo\",\"valueString\":\"bar\"}]}," +
+			"\"birthDate\":\"2001-01-01\"," +
+			"\"active\":true," +
+			"\"name\":[{\"given\":[\"A\",\"B\"],\"_given\":[null,{\"id\":\"g2\"}]}]," +
+			"\"_active\":{\"id\":\"act\"}," +
+			"\"_gender\":{\"id\":\"gen\"}" +
+			"}";
+		//@formatter:on
+
+		Patient p = ourCtx.newJsonParser().parseResource(Patient.class, input);
+		assertEquals("2001-01-01", p.getBirthDateElement().getValueAsString());
+		assertEquals("bd", p.getBirthDateElement().getId());
+		assertEquals(1, p.getBirthDateElement().getExtensionsByUrl("http://foo").size());
+		assertEquals(true, p.getActive());
+		assertEquals("act", p.getActiveElement().getId());
+		assertEquals("A", p.getName().get(0).getGiven().get(0).getValue());
+		assertEquals(null, p.getName().get(0).getGiven().get(0).getId());
+		assertEquals("B", p.getName().get(0).getGiven().get(1).getValue());
+		assertEquals("g2", p.getName().get(0).getGiven().get(1).getId());
+		assertEquals(null, p.getGenderElement().getValue());
+		assertEquals("gen", p.getGenderElement().getId());
+	}
+
 	/**
 	 * See #163
 	 */
@@ -2015,6 +2047,27 @@ public class JsonParserDstu3Test {
 		assertEquals("Patient", reincarnatedPatient.getIdElement().getResourceType());
 	}
 
+	/**
+	 * Resources are normally parsed as they are read, but that needs the resource type
+	 * first
+	 */
+	@Test
+	public void testParseResourceTypeNotFirst() {
+		//@formatter:off
+		String input = "{" +
+			"\"type\":\"transaction\"," +
+			"\"entry\":[{\"resource\":{\"id\":\"123\",\"active\":true,\"resourceType\":\"Patient\"}}]," +
+			"\"resourceType\":\"Bundle\"" +
+			"}";
+		//@formatter:on
+
+		Bundle b = ourCtx.newJsonParser().parseResource(Bundle.class, input);
+		assertEquals(BundleType.TRANSACTION, b.getType());
+		Patient p = (Patient) b.getEntry().get(0).getResource();
+		assertEquals("123", p.getIdElement().getIdPart());
+		assertEquals(true, p.getActive());
+	}
+
 	/**
 	 * See #207
 	 */
@@ -0,0 +1,111 @@
+package ca.uhn.fhir.parser;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.util.TestUtil;
+import ca.uhn.fhir.util.XmlUtil;
+
+/**
+ * Measures the bytes allocated and the time taken per resource when the XML parser
+ * parses a large transaction Bundle. For comparison it also measures reading the same
+ * document with an {@link XMLEventReader}, which is what the parser did before it read
+ * from an {@link XMLStreamReader} cursor, and with the bare cursor. This only logs its
+ * results, and its name keeps it out of the regular unit test run. Run it explicitly
+ * with <code>mvn test -Dtest=XmlParserBenchmark</code>.
+ */
+public class XmlParserBenchmark {
+
+	private static final int NUM_ENTRIES = 2000;
+	private static final int NUM_PARSES = 20;
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(XmlParserBenchmark.class);
+	private static FhirContext ourCtx = FhirContext.forDstu3();
+
+	@Test
+	public void benchmarkParseLargeBundle() throws Exception {
+		Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled());
+
+		String input = createLargeBundle(NUM_ENTRIES);
+
+		// Warm up
+		for (int i = 0; i < NUM_PARSES; i++) {
+			readEvents(input);
+			readCursor(input);
+			ourCtx.newXmlParser().parseResource(Bundle.class, input);
+		}
+
+		String[] descriptions = new String[] { "XMLEventReader only", "XMLStreamReader only", "XmlParser" };
+		for (int pass = 0; pass < descriptions.length; pass++) {
+			long threadId = Thread.currentThread().getId();
+			long startBytes = threadBean.getThreadAllocatedBytes(threadId);
+			long startNanos = System.nanoTime();
+			for (int i = 0; i < NUM_PARSES; i++) {
+				if (pass == 0) {
+					readEvents(input);
+				} else if (pass == 1) {
+					readCursor(input);
+				} else {
+					Bundle bundle = ourCtx.newXmlParser().parseResource(Bundle.class, input);
+					assertEquals(NUM_ENTRIES, bundle.getEntry().size());
+				}
+			}
+			long micros = (System.nanoTime() - startNanos) / 1000;
+			long bytes = (threadBean.getThreadAllocatedBytes(threadId) - startBytes) / NUM_PARSES;
+
+			ourLog.info("{}: {} allocated bytes and {}us per resource", new Object[] { descriptions[pass], bytes / NUM_ENTRIES, micros / NUM_PARSES / NUM_ENTRIES });
+		}
+	}
+
+	private static void readCursor(String theInput) throws XMLStreamException {
+		XMLStreamReader reader = XmlUtil.createXmlStreamReader(new StringReader(theInput));
+		while (reader.hasNext()) {
+			reader.next();
+		}
+		reader.close();
+	}
+
+	private static void readEvents(String theInput) throws XMLStreamException {
+		XMLEventReader reader = XmlUtil.createXmlReader(new StringReader(theInput));
+		while (reader.hasNext()) {
+			reader.nextEvent();
+		}
+		reader.close();
+	}
+
+	private static String createLargeBundle(int theEntryCount) {
+		StringBuilder b = new StringBuilder();
+		b.append("<Bundle xmlns=\"http://hl7.org/fhir\"><type value=\"transaction\"/>");
+		for (int i = 0; i < theEntryCount; i++) {
+			b.append("<entry><resource><Observation>");
+			b.append("<status value=\"final\"/>");
+			b.append("<code><coding><system value=\"http://loinc.org\"/><code value=\"29463-7\"/><display value=\"Body Weight\"/></coding></code>");
+			b.append("<subject><reference value=\"Patient/").append(i).append("\"/></subject>");
+			b.append("<effectiveDateTime id=\"e").append(i).append("\" value=\"2017-03-01\"/>");
+			b.append("<valueQuantity><value value=\"").append(60 + i % 40).append(".5\"/><unit value=\"kg\"/><system value=\"http://unitsofmeasure.org\"/><code value=\"kg\"/></valueQuantity>");
+			b.append("</Observation></resource>");
+			b.append("<request><method value=\"POST\"/><url value=\"Observation\"/></request></entry>");
+		}
+		b.append("</Bundle>");
+		return b.toString();
+	}
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+}
@@ -2882,6 +2882,30 @@ public class XmlParserDstu3Test {
     assertEquals(htmlNs, p.getText().getDiv().getValueAsString());
   }
 
+  @Test
+  public void testParseNarrativeWithAttributesAndExtensions() throws Exception {
+
+    String res = "<Patient xmlns=\"http://hl7.org/fhir\">\n" +
+        "   <id value=\"1333\"/>\n" +
+        "   <text>\n" +
+        "      <div xmlns=\"http://www.w3.org/1999/xhtml\"><p class=\"hello\">AAA<a href=\"http://foo\">BBB</a></p><![CDATA[CCC]]></div>\n" +
+        "   </text>\n" +
+        "   <extension url=\"http://foo#ext\">\n" +
+        "      <valueString value=\"EXT\"/>\n" +
+        "   </extension>\n" +
+        "   <active value=\"true\"/>\n" +
+        "</Patient>";
+
+    Patient p = ourCtx.newXmlParser().parseResource(Patient.class, res);
+    String div = p.getText().getDiv().getValueAsString();
+    ourLog.info(div);
+    assertThat(div, containsString("<p class=\"hello\">AAA<a href=\"http://foo\">BBB</a></p>"));
+    assertThat(div, containsString("CCC"));
+    assertEquals(1, p.getExtensionsByUrl("http://foo#ext").size());
+    assertEquals("EXT", ((StringType) p.getExtensionsByUrl("http://foo#ext").get(0).getValue()).getValue());
+    assertTrue(p.getActive());
+  }
+
   @Test
   public void testParseNestedExtensionsInvalid() {
 